@@ -15,9 +15,14 @@ import com.jeppeman.globallydynamic.net.Request;
 import com.jeppeman.globallydynamic.net.Response;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 import androidx.annotation.NonNull;
@@ -35,7 +40,7 @@ class ApkDownloadRequestFactory {
             @NonNull HttpClient httpClient,
             @NonNull ApkDownloadRequest.StatusListener statusListener
     ) {
-        return new ApkDownloadRequestImpl(
+        ApkDownloadRequest archiveRequest = new ApkDownloadRequestImpl(
                 context,
                 executor,
                 logger,
@@ -45,6 +50,23 @@ class ApkDownloadRequestFactory {
                 statusListener,
                 httpClient
         );
+
+        // Throttling is applied by the server to archive downloads only
+        if (configuration.getThrottleDownloadBy() > 0) {
+            return archiveRequest;
+        }
+
+        return new ParallelApkDownloadRequestImpl(
+                context,
+                executor,
+                logger,
+                signatureProvider,
+                configuration,
+                splitInstallRequest,
+                statusListener,
+                httpClient,
+                archiveRequest
+        );
     }
 }
 
@@ -149,6 +171,7 @@ class ApkDownloadRequestImpl extends
         ResultReceiver implements
         ApkDownloadRequest,
         HttpClient.DownloadCallbacks<String> {
+    private static final int HTTP_NOT_MODIFIED = 304;
     private final Executor executor;
     private final Logger logger;
     private final SignatureProvider signatureProvider;
@@ -156,12 +179,14 @@ class ApkDownloadRequestImpl extends
     private final GlobalSplitInstallRequestInternal splitInstallRequest;
     private final StatusListener statusListener;
     private final HttpClient httpClient;
-    private final String filename = UUID.randomUUID().toString() + ".zip";
+    private final String requestKey;
     @VisibleForTesting
     final File downloadedApks;
     @VisibleForTesting
     final File downloadedSplitsDir;
     @VisibleForTesting
+    final DownloadedSplitsIndex downloadedSplitsIndex;
+    @VisibleForTesting
     int downloadId = -1;
 
     ApkDownloadRequestImpl(
@@ -182,9 +207,10 @@ class ApkDownloadRequestImpl extends
         this.splitInstallRequest = splitInstallRequest;
         this.statusListener = statusListener;
         this.httpClient = httpClient;
+        this.requestKey = requestKey(configuration, splitInstallRequest);
         this.downloadedApks = new File(
                 context.getCacheDir(),
-                filename
+                requestKey + ".zip"
         );
         this.downloadedSplitsDir = new File(
                 context.getFilesDir()
@@ -198,6 +224,54 @@ class ApkDownloadRequestImpl extends
                 logger.e("Failed to create directory " + downloadedSplitsDir.getAbsolutePath());
             }
         }
+        this.downloadedSplitsIndex = new DownloadedSplitsIndex(downloadedSplitsDir);
+    }
+
+    /**
+     * The same request always gets the same key, so that an interrupted download can be resumed from where
+     * it left off and a completed one can be made conditional the next time
+     */
+    private static String requestKey(
+            GloballyDynamicConfigurationDto configuration,
+            GlobalSplitInstallRequestInternal splitInstallRequest) {
+        List<String> features = new ArrayList<String>(splitInstallRequest.getModuleNames());
+        Collections.sort(features);
+        List<String> languages = new ArrayList<String>(splitInstallRequest.getLanguages().size());
+        for (Locale locale : splitInstallRequest.getLanguages()) {
+            languages.add(locale.getLanguage());
+        }
+        Collections.sort(languages);
+        String key = configuration.getApplicationId()
+                + ":" + configuration.getVersionCode()
+                + ":" + configuration.getVariantName()
+                + ":" + ListUtils.toString(features, false)
+                + ":" + ListUtils.toString(languages, false)
+                + ":" + splitInstallRequest.shouldIncludeMissingSplits();
+
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            StringBuilder stringBuilder = new StringBuilder();
+            for (byte b : messageDigest.digest(key.getBytes(Charset.forName("UTF-8")))) {
+                stringBuilder.append(String.format("%02x", b & 0xff));
+            }
+            return stringBuilder.toString();
+        } catch (NoSuchAlgorithmException exception) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    private static String getHeader(Response<?> response, String name) {
+        if (response.getHeaders() == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())
+                    && header.getValue() != null
+                    && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -215,8 +289,11 @@ class ApkDownloadRequestImpl extends
     }
 
     @Override
-    public void onResponse(Response<String> response, final long bytesDownloaded, final long totalBytesToDownload) {
-        if (response.isSuccessful()) {
+    public void onResponse(final Response<String> response, final long bytesDownloaded, final long totalBytesToDownload) {
+        if (response.getCode() == HTTP_NOT_MODIFIED) {
+            logger.i("Splits are unchanged since they were last downloaded");
+            statusListener.onUpdate(new Status.Successful(0, 0, downloadedSplitsIndex.getSplits(requestKey)));
+        } else if (response.isSuccessful()) {
             executor.execute(new Executor.Callbacks<List<File>>() {
                 @Override
                 List<File> execute() {
@@ -234,6 +311,11 @@ class ApkDownloadRequestImpl extends
 
                     downloadedApks.delete();
 
+                    String etag = getHeader(response, "ETag");
+                    if (etag != null) {
+                        downloadedSplitsIndex.put(requestKey, etag, extractedApks);
+                    }
+
                     return extractedApks;
                 }
 
@@ -326,11 +408,17 @@ class ApkDownloadRequestImpl extends
         logger.i("Started download from " + uri.toString());
         logger.i("Downloading to " + downloadedSplitsDir.getAbsolutePath());
 
-        final Request request = Request.builder()
+        Request.Builder requestBuilder = Request.builder()
                 .setBody(configuration.getDeviceSpec())
                 .setMethod(HttpMethod.POST)
-                .url(uri)
-                .build();
+                .url(uri);
+
+        String etag = downloadedSplitsIndex.getEtag(requestKey);
+        if (etag != null) {
+            requestBuilder.addHeader("If-None-Match", etag);
+        }
+
+        final Request request = requestBuilder.build();
 
         downloadId = httpClient.downloadFile(request, downloadedApks, this);
     }
@@ -0,0 +1,127 @@
+package com.jeppeman.globallydynamic.globalsplitinstall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps track of the ETag that the server sent along with the splits of a download request, and of which
+ * splits were extracted from it, so that the request can be made conditional the next time it is made.
+ */
+class DownloadedSplitsIndex {
+    private static final String ETAG_SUFFIX = ".etag";
+    private static final String SPLITS_SUFFIX = ".splits";
+    private static final String SPLITS_SEPARATOR = ",";
+    private static final Object lock = new Object();
+
+    private final File indexFile;
+    private final File splitsDir;
+
+    DownloadedSplitsIndex(@NonNull File splitsDir) {
+        this.splitsDir = splitsDir;
+        this.indexFile = new File(splitsDir, "downloaded-splits.properties");
+    }
+
+    /**
+     * @return the ETag recorded for {@code requestKey}, or null if nothing is recorded for it or if any
+     * of the splits that were extracted from it are gone
+     */
+    @Nullable
+    String getEtag(@NonNull String requestKey) {
+        synchronized (lock) {
+            Properties properties = read();
+            String etag = properties.getProperty(requestKey + ETAG_SUFFIX);
+            List<File> splits = getSplits(properties, requestKey);
+            if (etag == null || splits == null) {
+                return null;
+            }
+            for (File split : splits) {
+                if (!split.exists()) {
+                    return null;
+                }
+            }
+            return etag;
+        }
+    }
+
+    @NonNull
+    List<File> getSplits(@NonNull String requestKey) {
+        synchronized (lock) {
+            List<File> splits = getSplits(read(), requestKey);
+            return splits != null ? splits : Collections.<File>emptyList();
+        }
+    }
+
+    void put(@NonNull String requestKey, @NonNull String etag, @NonNull List<File> splits) {
+        synchronized (lock) {
+            List<String> filenames = new ArrayList<String>(splits.size());
+            for (File split : splits) {
+                filenames.add(split.getName());
+            }
+            Properties properties = read();
+            properties.setProperty(requestKey + ETAG_SUFFIX, etag);
+            properties.setProperty(
+                    requestKey + SPLITS_SUFFIX,
+                    com.jeppeman.globallydynamic.serialization.StringUtils.joinToString(filenames, SPLITS_SEPARATOR)
+            );
+            write(properties);
+        }
+    }
+
+    @Nullable
+    private List<File> getSplits(Properties properties, String requestKey) {
+        String filenames = properties.getProperty(requestKey + SPLITS_SUFFIX);
+        if (filenames == null) {
+            return null;
+        }
+        List<File> splits = new ArrayList<File>();
+        for (String filename : filenames.split(SPLITS_SEPARATOR)) {
+            if (!filename.isEmpty()) {
+                splits.add(new File(splitsDir, filename));
+            }
+        }
+        return splits;
+    }
+
+    private Properties read() {
+        Properties properties = new Properties();
+        if (!indexFile.exists()) {
+            return properties;
+        }
+        try {
+            InputStream inputStream = new FileInputStream(indexFile);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException exception) {
+            // A broken index only means that the next downloads are unconditional
+            properties.clear();
+        }
+        return properties;
+    }
+
+    private void write(Properties properties) {
+        try {
+            OutputStream outputStream = new FileOutputStream(indexFile);
+            try {
+                properties.store(outputStream, null);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException exception) {
+            indexFile.delete();
+        }
+    }
+}
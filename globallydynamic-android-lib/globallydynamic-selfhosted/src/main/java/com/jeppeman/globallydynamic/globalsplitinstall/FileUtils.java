@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -96,4 +97,25 @@ public class FileUtils {
             throw new RuntimeException(exception);
         }
     }
+
+    static String sha256(File file) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            FileInputStream fileInputStream = new FileInputStream(file);
+            byte[] buffer = new byte[65536];
+            int read = fileInputStream.read(buffer);
+            while (read != -1) {
+                messageDigest.update(buffer, 0, read);
+                read = fileInputStream.read(buffer);
+            }
+            fileInputStream.close();
+            StringBuilder stringBuilder = new StringBuilder();
+            for (byte b : messageDigest.digest()) {
+                stringBuilder.append(String.format("%02x", b & 0xff));
+            }
+            return stringBuilder.toString();
+        } catch (Exception exception) {
+            throw new RuntimeException(exception);
+        }
+    }
 }
@@ -0,0 +1,429 @@
+package com.jeppeman.globallydynamic.globalsplitinstall;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.ResultReceiver;
+
+import com.jeppeman.globallydynamic.net.HttpClient;
+import com.jeppeman.globallydynamic.net.HttpMethod;
+import com.jeppeman.globallydynamic.net.HttpUrl;
+import com.jeppeman.globallydynamic.net.ListUtils;
+import com.jeppeman.globallydynamic.net.Request;
+import com.jeppeman.globallydynamic.net.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Lists the splits to install through {@code /splits-manifest} and downloads the ones that are not
+ * already present in {@link #downloadedSplitsDir} from {@code /split-apk}, several at a time. Falls back
+ * on {@code fallbackRequest} if the server can not list the splits, e.g. since it predates the endpoint.
+ * <p>
+ * Splits that are present for a previously installed version are instead rebuilt from a patch served
+ * from {@code /split-patch}, the full split is downloaded if there is no patch or if it can not be applied.
+ */
+class ParallelApkDownloadRequestImpl extends
+        ResultReceiver implements
+        ApkDownloadRequest {
+    private final Executor executor;
+    private final Logger logger;
+    private final SignatureProvider signatureProvider;
+    private final GloballyDynamicConfigurationDto configuration;
+    private final GlobalSplitInstallRequestInternal splitInstallRequest;
+    private final StatusListener statusListener;
+    private final HttpClient httpClient;
+    private final ApkDownloadRequest fallbackRequest;
+    private final File downloadDir;
+    private final File splitCompatDir;
+    private final Map<String, BaseSplit> baseSplits = new HashMap<String, BaseSplit>();
+    private final List<Integer> downloadIds = new ArrayList<Integer>();
+    private final Map<String, Long> bytesDownloaded = new HashMap<String, Long>();
+    private final List<SplitDto> listedSplits = new ArrayList<SplitDto>();
+    private final List<File> splits = new ArrayList<File>();
+    private long totalBytes = 0;
+    private long bytesPresent = 0;
+    private boolean finished = false;
+    private boolean fallenBack = false;
+    private int splitsRemaining = 0;
+    @VisibleForTesting
+    final File downloadedSplitsDir;
+    @VisibleForTesting
+    int sessionId = -1;
+
+    ParallelApkDownloadRequestImpl(
+            @NonNull Context context,
+            @NonNull Executor executor,
+            @NonNull Logger logger,
+            @NonNull SignatureProvider signatureProvider,
+            @NonNull GloballyDynamicConfigurationDto configuration,
+            @NonNull GlobalSplitInstallRequestInternal splitInstallRequest,
+            @NonNull StatusListener statusListener,
+            @NonNull HttpClient httpClient,
+            @NonNull ApkDownloadRequest fallbackRequest
+    ) {
+        super(executor.getForegroundHandler());
+        this.executor = executor;
+        this.logger = logger;
+        this.signatureProvider = signatureProvider;
+        this.configuration = configuration;
+        this.splitInstallRequest = splitInstallRequest;
+        this.statusListener = statusListener;
+        this.httpClient = httpClient;
+        this.fallbackRequest = fallbackRequest;
+        this.downloadDir = context.getCacheDir();
+        this.splitCompatDir = new File(context.getFilesDir(), "splitcompat");
+        this.downloadedSplitsDir = new File(
+                splitCompatDir,
+                configuration.getVersionCode() + "/verified-splits"
+        );
+        if (!downloadedSplitsDir.exists()) {
+            boolean created = downloadedSplitsDir.mkdirs();
+            if (!created) {
+                logger.e("Failed to create directory " + downloadedSplitsDir.getAbsolutePath());
+            }
+        }
+    }
+
+    private HttpUrl.Builder urlBuilder(String pathSegment) {
+        return HttpUrl.parse(configuration.getServerUrl())
+                .newBuilder()
+                .pathSegments(pathSegment)
+                .queryParam("variant", configuration.getVariantName())
+                .queryParam("version", String.valueOf(configuration.getVersionCode()))
+                .queryParam("signature", signatureProvider.getCertificateFingerprint())
+                .queryParam("application-id", configuration.getApplicationId());
+    }
+
+    private HttpUrl splitsManifestUrl() {
+        List<String> features = splitInstallRequest.getModuleNames();
+        List<String> languages = new ArrayList<String>(splitInstallRequest.getLanguages().size());
+        for (Locale locale : splitInstallRequest.getLanguages()) {
+            languages.add(locale.getLanguage());
+        }
+
+        HttpUrl.Builder uriBuilder = urlBuilder("splits-manifest");
+
+        if (splitInstallRequest.shouldIncludeMissingSplits()) {
+            uriBuilder.queryParam("include-missing",
+                    String.valueOf(splitInstallRequest.shouldIncludeMissingSplits()));
+        }
+
+        if (!features.isEmpty()) {
+            uriBuilder.queryParam("features",
+                    com.jeppeman.globallydynamic.serialization.StringUtils.joinToString(features, ","));
+        }
+
+        if (!languages.isEmpty()) {
+            uriBuilder.queryParam("languages",
+                    com.jeppeman.globallydynamic.serialization.StringUtils.joinToString(languages, ","));
+        }
+
+        return uriBuilder.build();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    protected void onReceiveResult(int resultCode, Bundle resultData) {
+        boolean canceled = resultData.getBoolean(InstallService.ACTION_CANCELED, false);
+        if (canceled) {
+            cancel();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        if (fallenBack) {
+            fallbackRequest.cancel();
+            return;
+        }
+
+        for (Integer downloadId : downloadIds) {
+            httpClient.cancelDownload(downloadId);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (sessionId > -1) {
+            return;
+        }
+
+        sessionId = httpClient.getNextDownloadId();
+
+        HttpUrl uri = splitsManifestUrl();
+
+        logger.i("Listing splits from " + uri.toString());
+
+        final Request request = Request.builder()
+                .setBody(configuration.getDeviceSpec())
+                .setMethod(HttpMethod.POST)
+                .url(uri)
+                .build();
+
+        executor.execute(new Executor.Callbacks<List<SplitDto>>() {
+            @Override
+            List<SplitDto> execute() {
+                Response<SplitsManifestDto> response = httpClient.executeRequest(request, SplitsManifestDto.class);
+                if (!response.isSuccessful() || response.getBody() == null) {
+                    logger.i("Failed to list splits (" + response.getCode() + "), downloading them as an archive");
+                    return null;
+                }
+                listedSplits.addAll(response.getBody().getSplits());
+                List<SplitDto> missingSplits = new ArrayList<SplitDto>();
+                for (SplitDto split : listedSplits) {
+                    File file = new File(downloadedSplitsDir, split.getName());
+                    if (!file.exists()
+                            || file.length() != split.getSize()
+                            || !FileUtils.sha256(file).equals(split.getSha256())) {
+                        missingSplits.add(split);
+                        BaseSplit baseSplit = findBaseSplit(split.getName());
+                        if (baseSplit != null) {
+                            baseSplits.put(split.getSha256(), baseSplit);
+                        }
+                    }
+                }
+                return missingSplits;
+            }
+
+            @Override
+            void onComplete(List<SplitDto> missingSplits) {
+                if (missingSplits == null) {
+                    fallenBack = true;
+                    fallbackRequest.start();
+                } else {
+                    downloadSplits(missingSplits);
+                }
+            }
+
+            @Override
+            void onError(Exception exception) {
+                logger.e("Failed to list splits", exception);
+                fail(GlobalSplitInstallErrorCode.NETWORK_ERROR);
+            }
+        });
+    }
+
+    private void downloadSplits(List<SplitDto> missingSplits) {
+        for (SplitDto split : listedSplits) {
+            splits.add(new File(downloadedSplitsDir, split.getName()));
+            totalBytes += split.getSize();
+            if (!missingSplits.contains(split)) {
+                bytesPresent += split.getSize();
+            }
+        }
+
+        logger.i("Downloading " + missingSplits.size() + " of " + listedSplits.size() + " splits");
+
+        statusListener.onUpdate(new Status.Enqueued(sessionId));
+
+        if (missingSplits.isEmpty()) {
+            succeed();
+            return;
+        }
+
+        splitsRemaining = missingSplits.size();
+
+        for (SplitDto split : missingSplits) {
+            downloadSplit(split, baseSplits.get(split.getSha256()));
+        }
+    }
+
+    private void downloadSplit(SplitDto split, @Nullable BaseSplit baseSplit) {
+        HttpUrl.Builder uriBuilder = urlBuilder(baseSplit != null ? "split-patch" : "split-apk")
+                .queryParam("sha256", split.getSha256());
+        if (baseSplit != null) {
+            uriBuilder.queryParam("base-version", String.valueOf(baseSplit.version))
+                    .queryParam("base-sha256", baseSplit.sha256);
+        }
+        Request request = Request.builder()
+                .setMethod(HttpMethod.GET)
+                .url(uriBuilder.build())
+                .build();
+        downloadIds.add(httpClient.downloadFile(
+                request,
+                new File(downloadDir, split.getSha256() + (baseSplit != null ? ".patch" : ".apk")),
+                new SplitDownloadCallbacks(split, baseSplit)
+        ));
+    }
+
+    /**
+     * The split named {@code name} of the most recent previously installed version that still has it
+     */
+    @Nullable
+    private BaseSplit findBaseSplit(String name) {
+        File[] versionDirs = splitCompatDir.listFiles();
+        if (versionDirs == null) {
+            return null;
+        }
+        BaseSplit baseSplit = null;
+        for (File versionDir : versionDirs) {
+            int version;
+            try {
+                version = Integer.parseInt(versionDir.getName());
+            } catch (NumberFormatException exception) {
+                continue;
+            }
+            File file = new File(versionDir, "verified-splits/" + name);
+            if (version < configuration.getVersionCode()
+                    && (baseSplit == null || version > baseSplit.version)
+                    && file.exists()) {
+                baseSplit = new BaseSplit(version, file);
+            }
+        }
+        if (baseSplit != null) {
+            baseSplit.sha256 = FileUtils.sha256(baseSplit.file);
+        }
+        return baseSplit;
+    }
+
+    private void reportProgress() {
+        long downloaded = bytesPresent;
+        for (Long bytes : bytesDownloaded.values()) {
+            downloaded += bytes;
+        }
+        statusListener.onUpdate(new Status.Running(totalBytes, downloaded));
+    }
+
+    private void succeed() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        logger.i("Downloaded the following APKS: " + ListUtils.toString(splits));
+        statusListener.onUpdate(new Status.Successful(totalBytes, totalBytes, splits));
+    }
+
+    private void fail(@GlobalSplitInstallErrorCode int errorCode) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        cancel();
+        statusListener.onUpdate(new Status.Failed(0, 0, errorCode));
+    }
+
+    private static class BaseSplit {
+        final int version;
+        final File file;
+        String sha256;
+
+        BaseSplit(int version, File file) {
+            this.version = version;
+            this.file = file;
+        }
+    }
+
+    private class SplitDownloadCallbacks implements HttpClient.DownloadCallbacks<String> {
+        private final SplitDto split;
+        @Nullable
+        private final BaseSplit baseSplit;
+
+        SplitDownloadCallbacks(SplitDto split, @Nullable BaseSplit baseSplit) {
+            this.split = split;
+            this.baseSplit = baseSplit;
+        }
+
+        @Override
+        public Handler getCallbackHandler() {
+            return executor.getForegroundHandler();
+        }
+
+        @Override
+        public void onResponse(Response<String> response, long bytesDownloaded, long totalBytesToDownload) {
+            if (!response.isSuccessful() && baseSplit != null) {
+                logger.i("No patch for " + split.getName() + " (" + response.getCode() + "), downloading it in full");
+                downloadSplit(split, null);
+                return;
+            }
+
+            if (!response.isSuccessful()) {
+                logger.e("Failed to download " + split.getName(), new HttpException(response.getCode(), response.getErrorBody()));
+                fail(GlobalSplitInstallErrorCode.NETWORK_ERROR);
+                return;
+            }
+
+            final File downloadedSplit = new File(downloadDir, split.getSha256() + ".apk");
+            executor.execute(new Executor.Callbacks<File>() {
+                @Override
+                File execute() throws IOException {
+                    if (baseSplit != null) {
+                        File patch = new File(downloadDir, split.getSha256() + ".patch");
+                        try {
+                            SplitPatch.apply(baseSplit.file, patch, downloadedSplit);
+                        } finally {
+                            patch.delete();
+                        }
+                    }
+                    if (!FileUtils.sha256(downloadedSplit).equals(split.getSha256())) {
+                        downloadedSplit.delete();
+                        throw new IOException("Downloaded " + split.getName() + " does not match its digest");
+                    }
+                    File verifiedSplit = new File(downloadedSplitsDir, split.getName());
+                    verifiedSplit.delete();
+                    if (!downloadedSplit.renameTo(verifiedSplit)) {
+                        throw new IOException("Failed to move " + split.getName() + " to " + downloadedSplitsDir);
+                    }
+                    return verifiedSplit;
+                }
+
+                @Override
+                void onComplete(File result) {
+                    ParallelApkDownloadRequestImpl.this.bytesDownloaded.put(split.getSha256(), split.getSize());
+                    if (--splitsRemaining == 0) {
+                        succeed();
+                    } else {
+                        reportProgress();
+                    }
+                }
+
+                @Override
+                void onError(Exception exception) {
+                    if (baseSplit != null) {
+                        logger.e("Failed to patch " + split.getName() + ", downloading it in full", exception);
+                        downloadSplit(split, null);
+                    } else {
+                        logger.e("Failed to finalize downloaded split " + split.getName(), exception);
+                        fail(GlobalSplitInstallErrorCode.INTERNAL_ERROR);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onStartDownload(long totalBytes) {
+        }
+
+        @Override
+        public void onProgress(long bytesDownloaded, long totalBytesToDownload) {
+            ParallelApkDownloadRequestImpl.this.bytesDownloaded.put(split.getSha256(), bytesDownloaded);
+            reportProgress();
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            logger.e("Failed to download " + split.getName(), (Exception) throwable);
+            fail(GlobalSplitInstallErrorCode.NETWORK_ERROR);
+        }
+
+        @Override
+        public void onCanceled() {
+            if (!finished) {
+                finished = true;
+                cancel();
+                statusListener.onUpdate(new Status.Canceled(0, 0));
+            }
+        }
+    }
+}
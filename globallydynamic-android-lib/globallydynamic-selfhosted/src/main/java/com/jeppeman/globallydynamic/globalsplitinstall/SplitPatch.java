@@ -0,0 +1,79 @@
+package com.jeppeman.globallydynamic.globalsplitinstall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Applies patches served from {@code /split-patch}, which rebuild a split from the same split of a
+ * previously installed version. A patch is a gzipped sequence of operations, each either a copy of a
+ * range of the base or a run of literal bytes.
+ */
+class SplitPatch {
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_DATA = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static void apply(@NonNull File base, @NonNull File patch, @NonNull File target) throws IOException {
+        RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+        DataInputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(new FileInputStream(patch), BUFFER_SIZE)));
+            outputStream = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int op = inputStream.readUnsignedByte();
+                if (op == OP_COPY) {
+                    baseFile.seek(inputStream.readLong());
+                    copy(baseFile, outputStream, inputStream.readInt(), buffer);
+                } else if (op == OP_DATA) {
+                    copy(inputStream, outputStream, inputStream.readInt(), buffer);
+                } else if (op == OP_END) {
+                    return;
+                } else {
+                    throw new IOException("Unknown patch operation " + op);
+                }
+            }
+        } finally {
+            baseFile.close();
+            if (inputStream != null) {
+                inputStream.close();
+            }
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+    }
+
+    private static void copy(RandomAccessFile from, OutputStream to, int length, byte[] buffer) throws IOException {
+        while (length > 0) {
+            int read = from.read(buffer, 0, Math.min(length, buffer.length));
+            if (read == -1) {
+                throw new IOException("Patch refers to bytes beyond the end of the base");
+            }
+            to.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    private static void copy(DataInputStream from, OutputStream to, int length, byte[] buffer) throws IOException {
+        while (length > 0) {
+            int read = Math.min(length, buffer.length);
+            from.readFully(buffer, 0, read);
+            to.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.jeppeman.globallydynamic.globalsplitinstall;
+
+import com.jeppeman.globallydynamic.serialization.annotations.JsonDeserialize;
+
+import java.util.List;
+import java.util.Locale;
+
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+@Keep
+class SplitsManifestDto {
+    private List<SplitDto> splits;
+
+    SplitsManifestDto(@JsonDeserialize("splits") List<SplitDto> splits) {
+        this.splits = splits;
+    }
+
+    public List<SplitDto> getSplits() {
+        return splits;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.ENGLISH,
+                "%s(splits=%s)",
+                getClass().getSimpleName(),
+                splits
+        );
+    }
+}
+
+@Keep
+class SplitDto {
+    private String name;
+    private long size;
+    private String sha256;
+
+    SplitDto(
+            @JsonDeserialize("name") String name,
+            @JsonDeserialize("size") long size,
+            @JsonDeserialize("sha256") String sha256) {
+        this.name = name;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.ENGLISH,
+                "%s(name=%s, size=%d, sha256=%s)",
+                getClass().getSimpleName(),
+                name,
+                size,
+                sha256
+        );
+    }
+}
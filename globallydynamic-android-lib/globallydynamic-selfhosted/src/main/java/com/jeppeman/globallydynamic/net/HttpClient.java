@@ -9,6 +9,7 @@ import com.jeppeman.globallydynamic.serialization.StringUtils;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -39,6 +40,12 @@ import androidx.annotation.RestrictTo;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public interface HttpClient {
+    /**
+     * Appended to the path of a partially downloaded file to get the path where the ETag that it was
+     * downloaded with is kept, see {@link #downloadFile(Request, File, DownloadCallbacks)}
+     */
+    String ETAG_SUFFIX = ".etag";
+
     List<Interceptor> getInterceptors();
 
     long getReadTimeout();
@@ -179,6 +186,7 @@ class DownloadCallbacksWrapper<T> implements HttpClient.DownloadCallbacks<T> {
 }
 
 class HttpClientImpl implements HttpClient {
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
     private static final Executor executor = new ThreadPoolExecutor(
             Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
             Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
@@ -386,7 +394,17 @@ class HttpClientImpl implements HttpClient {
             @Override
             public void run() {
                 try {
-                    HttpURLConnection connection = getConnectionFromRequest(request);
+                    File etagFile = new File(downloadLocation.getPath() + ETAG_SUFFIX);
+                    String etag = downloadLocation.length() > 0 && etagFile.exists()
+                            ? readEtag(etagFile)
+                            : null;
+                    Request resumableRequest = etag != null
+                            ? request.newBuilder()
+                            .addHeader("Range", "bytes=" + downloadLocation.length() + "-")
+                            .addHeader("If-Range", etag)
+                            .build()
+                            : request;
+                    HttpURLConnection connection = getConnectionFromRequest(resumableRequest);
                     final int responseCode = connection.getResponseCode();
                     boolean isSuccessful = responseCode >= 200 && responseCode <= 299;
                     logger.i("<-- " + responseCode + " " + request.getUrl().url());
@@ -395,8 +413,15 @@ class HttpClientImpl implements HttpClient {
                     for (Map.Entry<String, List<String>> header : headers.entrySet()) {
                         logger.i(header.getKey() + ": " + ListUtils.toString(header.getValue(), false));
                     }
+                    if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                        // The partial file does not belong to what is being served anymore, start over next time
+                        downloadLocation.delete();
+                        etagFile.delete();
+                    }
                     if (!isSuccessful) {
-                        final String errorBody = readInputStream(connection.getErrorStream());
+                        final String errorBody = connection.getErrorStream() != null
+                                ? readInputStream(connection.getErrorStream())
+                                : null;
 
                         if (errorBody != null) {
                             logger.i("Error body: " + errorBody);
@@ -409,13 +434,20 @@ class HttpClientImpl implements HttpClient {
                                 .build(), 0, 0);
                     } else {
                         InputStream requestInputStream = connection.getInputStream();
-                        FileOutputStream downloadedFileOutputStream = new FileOutputStream(downloadLocation);
-                        long contentLength = Long.parseLong(connection.getHeaderField("Content-Length"));
+                        boolean isResumed = responseCode == HttpURLConnection.HTTP_PARTIAL;
+                        long alreadyDownloaded = isResumed ? downloadLocation.length() : 0;
+                        FileOutputStream downloadedFileOutputStream = new FileOutputStream(downloadLocation, isResumed);
+                        String responseEtag = connection.getHeaderField("ETag");
+                        if (!isResumed && responseEtag != null) {
+                            writeEtag(etagFile, responseEtag);
+                        }
+                        long contentLength = alreadyDownloaded
+                                + Long.parseLong(connection.getHeaderField("Content-Length"));
                         downloads.put(id, connection);
                         callbacksWrapper.onStartDownload(contentLength);
-                        callbacksWrapper.onProgress(0, contentLength);
+                        callbacksWrapper.onProgress(alreadyDownloaded, contentLength);
                         byte[] buffer = new byte[65536];
-                        int totalRead = 0;
+                        long totalRead = alreadyDownloaded;
                         long lastProgressTick = SystemClock.elapsedRealtime();
                         boolean downloadCanceled = false;
                         int numBytesRead = requestInputStream.read(buffer);
@@ -442,6 +474,7 @@ class HttpClientImpl implements HttpClient {
                         requestInputStream.close();
 
                         if (!downloadCanceled) {
+                            etagFile.delete();
                             callbacksWrapper.onResponse(Response.<String>builder()
                                     .setCode(responseCode)
                                     .setHeaders(headers)
@@ -461,6 +494,28 @@ class HttpClientImpl implements HttpClient {
         return id;
     }
 
+    private static String readEtag(File etagFile) {
+        try {
+            FileInputStream inputStream = new FileInputStream(etagFile);
+            try {
+                return new String(StreamUtils.readAllBytes(inputStream), Charset.forName("UTF-8"));
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    private static void writeEtag(File etagFile, String etag) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(etagFile);
+        try {
+            outputStream.write(etag.getBytes(Charset.forName("UTF-8")));
+        } finally {
+            outputStream.close();
+        }
+    }
+
     @Override
     public void cancelDownload(final int downloadId) {
         executor.execute(new Runnable() {
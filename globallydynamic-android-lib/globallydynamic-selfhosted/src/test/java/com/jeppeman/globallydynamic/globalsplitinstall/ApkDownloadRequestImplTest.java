@@ -3,6 +3,7 @@ package com.jeppeman.globallydynamic.globalsplitinstall;
 import android.os.Bundle;
 
 import com.google.common.collect.Lists;
+import com.jeppeman.globallydynamic.net.Headers;
 import com.jeppeman.globallydynamic.net.HttpClient;
 import com.jeppeman.globallydynamic.net.HttpUrl;
 import com.jeppeman.globallydynamic.net.Request;
@@ -42,6 +43,7 @@ import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -206,6 +208,46 @@ public class ApkDownloadRequestImplTest {
         verify(mockStatusListener).onUpdate(isA(ApkDownloadRequest.Status.Successful.class));
     }
 
+    @Test
+    public void whenSuccessfulWithEtag_start_shouldSendIfNoneMatchOnTheNextRequest() throws IOException {
+        FileOutputStream fos = new FileOutputStream(apkDownloadRequest.downloadedApks);
+        fos.write(StreamUtils.readAllBytes(getClass().getClassLoader().getResourceAsStream("dummy.aab")));
+        Headers headers = new Headers();
+        headers.put("ETag", "\"etag\"");
+        apkDownloadRequest.onResponse(Response.builder().setCode(200).setHeaders(headers).build(), 100, 100);
+        final Request[] request = new Request[]{null};
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                request[0] = invocation.getArgument(0);
+                return 1;
+            }
+        }).when(mockHttpClient).downloadFile(any(Request.class), any(File.class), any(HttpClient.DownloadCallbacks.class));
+
+        apkDownloadRequest.start();
+
+        assertThat(request[0].getHeaders().get("If-None-Match")).containsExactly("\"etag\"");
+    }
+
+    @Test
+    public void whenNotModified_onResult_shouldEmitSuccessWithPreviouslyDownloadedSplits() throws IOException {
+        FileOutputStream fos = new FileOutputStream(apkDownloadRequest.downloadedApks);
+        fos.write(StreamUtils.readAllBytes(getClass().getClassLoader().getResourceAsStream("dummy.aab")));
+        Headers headers = new Headers();
+        headers.put("ETag", "\"etag\"");
+        apkDownloadRequest.onResponse(Response.builder().setCode(200).setHeaders(headers).build(), 100, 100);
+        ArgumentCaptor<ApkDownloadRequest.Status.Successful> firstCaptor =
+                ArgumentCaptor.forClass(ApkDownloadRequest.Status.Successful.class);
+        verify(mockStatusListener).onUpdate(firstCaptor.capture());
+
+        apkDownloadRequest.onResponse(Response.builder().setCode(304).build(), 0, 0);
+
+        ArgumentCaptor<ApkDownloadRequest.Status.Successful> captor =
+                ArgumentCaptor.forClass(ApkDownloadRequest.Status.Successful.class);
+        verify(mockStatusListener, times(2)).onUpdate(captor.capture());
+        assertThat(captor.getValue().apks).containsExactlyElementsIn(firstCaptor.getValue().apks);
+    }
+
     @Test
     public void whenFailed_onResult_shouldEmitFailure() {
         Response response = Response.builder().setCode(500).build();
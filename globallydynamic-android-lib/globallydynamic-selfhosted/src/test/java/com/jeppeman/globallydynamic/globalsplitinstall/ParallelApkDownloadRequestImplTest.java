@@ -0,0 +1,223 @@
+package com.jeppeman.globallydynamic.globalsplitinstall;
+
+import com.google.common.collect.Lists;
+import com.jeppeman.globallydynamic.net.HttpClient;
+import com.jeppeman.globallydynamic.net.Request;
+import com.jeppeman.globallydynamic.net.Response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+public class ParallelApkDownloadRequestImplTest {
+    private ParallelApkDownloadRequestImpl apkDownloadRequest;
+    @Mock
+    private Executor mockExecutor;
+    @Mock
+    private Logger mockLogger;
+    @Mock
+    private ApkDownloadRequest.StatusListener mockStatusListener;
+    @Mock
+    private HttpClient mockHttpClient;
+    @Mock
+    private SignatureProvider mockSignatureProvider;
+    @Mock
+    private ApkDownloadRequest mockFallbackRequest;
+
+    private GloballyDynamicConfigurationDto configuration =
+            new GloballyDynamicConfigurationDto(
+                    "http://server.url",
+                    "applicationid",
+                    "variantName",
+                    23,
+                    0,
+                    new DeviceSpecDto(
+                            Lists.newArrayList("a", "b", "c"),
+                            Lists.newArrayList("a", "b"),
+                            Lists.newArrayList("p"),
+                            Lists.newArrayList("extension"),
+                            420,
+                            23
+                    )
+            );
+    private GlobalSplitInstallRequestInternal splitInstallRequest = GlobalSplitInstallRequestInternal.newBuilder()
+            .addModule("a")
+            .addLanguage(Locale.ENGLISH)
+            .build();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        apkDownloadRequest = new ParallelApkDownloadRequestImpl(
+                ApplicationProvider.getApplicationContext(),
+                mockExecutor,
+                mockLogger,
+                mockSignatureProvider,
+                configuration,
+                splitInstallRequest,
+                mockStatusListener,
+                mockHttpClient,
+                mockFallbackRequest
+        );
+
+        Mockito.doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                Executor.Callbacks<Object> callbacks =
+                        invocation.getArgument(0);
+                try {
+                    callbacks.onComplete(callbacks.execute());
+                } catch (Exception exception) {
+                    callbacks.onError(exception);
+                }
+                return null;
+            }
+        }).when(mockExecutor).execute(
+                ArgumentCaptor.<Executor.Callbacks, Executor.Callbacks>forClass(
+                        Executor.Callbacks.class).capture());
+    }
+
+    private SplitDto split(File file, String content) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        try {
+            fileOutputStream.write(content.getBytes("UTF-8"));
+        } finally {
+            fileOutputStream.close();
+        }
+        return new SplitDto(file.getName(), file.length(), FileUtils.sha256(file));
+    }
+
+    private void mockManifest(Response<SplitsManifestDto> response) {
+        when(mockHttpClient.executeRequest(any(Request.class), eq(SplitsManifestDto.class))).thenReturn(response);
+    }
+
+    @Test
+    public void whenSplitsCanNotBeListed_start_shouldFallBack() {
+        mockManifest(Response.<SplitsManifestDto>builder().setCode(404).build());
+
+        apkDownloadRequest.start();
+
+        verify(mockFallbackRequest).start();
+        verify(mockHttpClient, never()).downloadFile(any(Request.class), any(File.class), any(HttpClient.DownloadCallbacks.class));
+    }
+
+    @Test
+    public void whenSplitsArePresent_start_shouldEmitSuccessWithoutDownloading() throws IOException {
+        SplitDto split = split(new File(apkDownloadRequest.downloadedSplitsDir, "a-master.apk"), "a-master");
+        mockManifest(Response.<SplitsManifestDto>builder()
+                .setCode(200)
+                .setBody(new SplitsManifestDto(Lists.newArrayList(split)))
+                .build());
+
+        apkDownloadRequest.start();
+
+        ArgumentCaptor<ApkDownloadRequest.Status> captor = ArgumentCaptor.forClass(ApkDownloadRequest.Status.class);
+        verify(mockStatusListener, Mockito.times(2)).onUpdate(captor.capture());
+        assertThat(captor.getAllValues().get(0)).isInstanceOf(ApkDownloadRequest.Status.Enqueued.class);
+        assertThat(((ApkDownloadRequest.Status.Successful) captor.getAllValues().get(1)).apks)
+                .containsExactly(new File(apkDownloadRequest.downloadedSplitsDir, "a-master.apk"));
+        verify(mockHttpClient, never()).downloadFile(any(Request.class), any(File.class), any(HttpClient.DownloadCallbacks.class));
+    }
+
+    @Test
+    public void whenSplitsAreMissing_start_shouldDownloadAndVerifyThem() throws IOException {
+        File source = File.createTempFile("source", ".apk");
+        final SplitDto split = split(source, "a-en");
+        final SplitDto namedSplit = new SplitDto("a-en.apk", split.getSize(), split.getSha256());
+        final File sourceFile = source;
+        mockManifest(Response.<SplitsManifestDto>builder()
+                .setCode(200)
+                .setBody(new SplitsManifestDto(Lists.newArrayList(namedSplit)))
+                .build());
+        final Request[] request = new Request[]{null};
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                request[0] = invocation.getArgument(0);
+                File destination = invocation.getArgument(1);
+                assertThat(sourceFile.renameTo(destination)).isTrue();
+                HttpClient.DownloadCallbacks<String> callbacks = invocation.getArgument(2);
+                callbacks.onResponse(Response.<String>builder().setCode(200).build(), split.getSize(), split.getSize());
+                return 1;
+            }
+        }).when(mockHttpClient).downloadFile(any(Request.class), any(File.class), any(HttpClient.DownloadCallbacks.class));
+
+        apkDownloadRequest.start();
+
+        assertThat(request[0].getUrl().pathSegments()).contains("split-apk");
+        assertThat(request[0].getUrl().queryParams().get("sha256")).isEqualTo(split.getSha256());
+        assertThat(new File(apkDownloadRequest.downloadedSplitsDir, "a-en.apk").exists()).isTrue();
+        verify(mockStatusListener).onUpdate(isA(ApkDownloadRequest.Status.Successful.class));
+    }
+
+    @Test
+    public void whenSplitIsPresentForAPreviousVersion_start_shouldRebuildItFromAPatch() throws IOException {
+        File previousSplitsDir = new File(apkDownloadRequest.downloadedSplitsDir, "../../22/verified-splits");
+        assertThat(previousSplitsDir.mkdirs() || previousSplitsDir.exists()).isTrue();
+        final SplitDto baseSplit = split(new File(previousSplitsDir, "a-en.apk"), "a-en-previous");
+        File target = File.createTempFile("target", ".apk");
+        final SplitDto split = split(target, "a-en");
+        mockManifest(Response.<SplitsManifestDto>builder()
+                .setCode(200)
+                .setBody(new SplitsManifestDto(Lists.newArrayList(
+                        new SplitDto("a-en.apk", split.getSize(), split.getSha256()))))
+                .build());
+        final Request[] request = new Request[]{null};
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws IOException {
+                request[0] = invocation.getArgument(0);
+                File destination = invocation.getArgument(1);
+                DataOutputStream outputStream = new DataOutputStream(
+                        new GZIPOutputStream(new FileOutputStream(destination)));
+                try {
+                    outputStream.writeByte(1);
+                    outputStream.writeLong(0);
+                    outputStream.writeInt(4);
+                    outputStream.writeByte(0);
+                } finally {
+                    outputStream.close();
+                }
+                HttpClient.DownloadCallbacks<String> callbacks = invocation.getArgument(2);
+                callbacks.onResponse(Response.<String>builder().setCode(200).build(), 10, 10);
+                return 1;
+            }
+        }).when(mockHttpClient).downloadFile(any(Request.class), any(File.class), any(HttpClient.DownloadCallbacks.class));
+
+        apkDownloadRequest.start();
+
+        assertThat(request[0].getUrl().pathSegments()).contains("split-patch");
+        assertThat(request[0].getUrl().queryParams().get("base-version")).isEqualTo("22");
+        assertThat(request[0].getUrl().queryParams().get("base-sha256")).isEqualTo(baseSplit.getSha256());
+        assertThat(FileUtils.sha256(new File(apkDownloadRequest.downloadedSplitsDir, "a-en.apk")))
+                .isEqualTo(split.getSha256());
+        verify(mockStatusListener).onUpdate(isA(ApkDownloadRequest.Status.Successful.class));
+    }
+}
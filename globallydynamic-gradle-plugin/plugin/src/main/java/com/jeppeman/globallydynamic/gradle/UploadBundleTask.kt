@@ -9,16 +9,19 @@ import com.jeppeman.globallydynamic.gradle.extensions.stackTraceToString
 import com.jeppeman.globallydynamic.gradle.extensions.toBase64
 import org.apache.http.HttpException
 import org.apache.http.HttpStatus
+import org.apache.http.client.methods.CloseableHttpResponse
 import org.apache.http.client.methods.RequestBuilder
 import org.apache.http.client.utils.URIBuilder
 import org.apache.http.entity.ContentType
 import org.apache.http.entity.mime.HttpMultipartMode
 import org.apache.http.entity.mime.MultipartEntityBuilder
 import org.apache.http.entity.mime.content.StringBody
+import org.apache.http.impl.client.CloseableHttpClient
 import org.apache.http.impl.client.HttpClients
 import org.gradle.api.DefaultTask
 import org.gradle.api.tasks.*
 import java.io.File
+import java.util.concurrent.TimeoutException
 
 /**
  * A task which uploads the bundle generated from package<Flavor><BuildType>Bundle to the globally dynamic
@@ -110,22 +113,22 @@ open class UploadBundleTask : DefaultTask() {
                 )
                 .build()
 
+            // Servers that support it respond as soon as the bundle has been received, and APK:s are then
+            // built in the background, servers that do not will ignore the header and respond when done
             val requestBuilder = RequestBuilder
                 .post(uri)
                 .setEntity(entity)
-
-            if (serverInfo.username != null || serverInfo.password != null) {
-                val authorization = "${serverInfo.username}:${serverInfo.password}".toBase64()
-                requestBuilder.addHeader("Authorization", "Basic $authorization")
-            }
+                .addHeader("Prefer", "respond-async")
+                .authorize(serverInfo)
 
             val request = requestBuilder.build()
 
             val resp = httpClient.execute(request)
 
-            if (resp.statusLine.statusCode != HttpStatus.SC_OK) {
-                val body = resp.entity.content.use { it.readBytes().toString(Charsets.UTF_8) }
-                throw HttpException("${resp.statusLine}, $body")
+            when (resp.statusLine.statusCode) {
+                HttpStatus.SC_OK -> Unit
+                HttpStatus.SC_ACCEPTED -> awaitJob(httpClient, serverInfo, resp.readJson())
+                else -> throw HttpException("${resp.statusLine}, ${resp.readBody()}")
             }
         } catch (exception: Exception) {
             System.err.println("Failed to upload bundle, ${exception.stackTraceToString()}")
@@ -133,6 +136,45 @@ open class UploadBundleTask : DefaultTask() {
         }
     }
 
+    private fun RequestBuilder.authorize(serverInfo: GloballyDynamicServerInfoDto): RequestBuilder = apply {
+        if (serverInfo.username != null || serverInfo.password != null) {
+            val authorization = "${serverInfo.username}:${serverInfo.password}".toBase64()
+            addHeader("Authorization", "Basic $authorization")
+        }
+    }
+
+    private fun CloseableHttpResponse.readBody(): String =
+        use { entity.content.use { it.readBytes().toString(Charsets.UTF_8) } }
+
+    private fun CloseableHttpResponse.readJson(): JsonObject = gson.fromJson(readBody(), JsonObject::class.java)
+
+    /**
+     * Polls the job that processes the uploaded bundle until APK:s have been built from it and stored, for at
+     * most [JOB_TIMEOUT_MS]
+     */
+    private fun awaitJob(httpClient: CloseableHttpClient, serverInfo: GloballyDynamicServerInfoDto, job: JsonObject) {
+        val id = job.get("id").asString
+        val uri = URIPathBuilder(serverInfo.serverUrl!!).addPathSegment("jobs/$id").build()
+        var status = job
+        logger.lifecycle("Bundle uploaded, waiting for the server to build APKs from it (job $id)")
+        val deadline = System.currentTimeMillis() + JOB_TIMEOUT_MS
+        while (status.get("stage").asString !in FINISHED_STAGES) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw TimeoutException("Timed out after ${JOB_TIMEOUT_MS / 1000}s waiting for job $id, " +
+                    "last stage was ${status.get("stage").asString}")
+            }
+            Thread.sleep(JOB_POLL_INTERVAL_MS)
+            val resp = httpClient.execute(RequestBuilder.get(uri).authorize(serverInfo).build())
+            if (resp.statusLine.statusCode != HttpStatus.SC_OK) {
+                throw HttpException("${resp.statusLine}, ${resp.readBody()}")
+            }
+            status = resp.readJson()
+        }
+        if (status.get("stage").asString == STAGE_FAILED) {
+            throw HttpException("Failed to process bundle, ${status.get("error")?.takeIf { !it.isJsonNull }?.asString}")
+        }
+    }
+
     class CreationAction(
         applicationVariant: ApplicationVariant,
         private val extension: GloballyDynamicServer
@@ -151,6 +193,11 @@ open class UploadBundleTask : DefaultTask() {
     }
 }
 
+private const val JOB_POLL_INTERVAL_MS = 2000L
+private const val JOB_TIMEOUT_MS = 30 * 60 * 1000L
+private const val STAGE_FAILED = "failed"
+private val FINISHED_STAGES = setOf("completed", "warmed", STAGE_FAILED)
+
 private class URIPathBuilder(uri: String) : URIBuilder(uri) {
     private fun appendSegmentToPath(path: String?, segment: String): String? {
         return if (path == null) {
@@ -0,0 +1,300 @@
+package com.jeppeman.globallydynamic.server
+
+import com.jeppeman.globallydynamic.server.extensions.transferFully
+import org.eclipse.jetty.server.HttpOutput
+import java.io.FilterOutputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.servlet.AsyncContext
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A token bucket that refills at [bytesPerSecond] up to [capacity] tokens. Consumption is allowed to
+ * go into debt, which concurrent consumers of a shared bucket then have to wait out
+ */
+internal class TokenBucket(
+    private val bytesPerSecond: Long,
+    private val capacity: Long,
+    initialTokens: Long = capacity,
+    private val nanoTime: () -> Long = System::nanoTime
+) {
+    private var tokens = initialTokens.toDouble()
+    private var lastRefill = nanoTime()
+
+    private fun refill() {
+        val now = nanoTime()
+        tokens = min(capacity.toDouble(), tokens + (now - lastRefill) * bytesPerSecond / NANOS_PER_SECOND)
+        lastRefill = now
+    }
+
+    @Synchronized
+    fun available(): Long {
+        refill()
+        return max(0, tokens.toLong())
+    }
+
+    @Synchronized
+    fun consume(amount: Long) {
+        refill()
+        tokens -= amount
+    }
+
+    @Synchronized
+    fun nanosUntilAvailable(amount: Long): Long {
+        refill()
+        val deficit = min(amount, capacity) - tokens
+        return if (deficit <= 0) 0 else ceil(deficit * NANOS_PER_SECOND / bytesPerSecond).toLong()
+    }
+
+    companion object {
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+    }
+}
+
+/**
+ * Sends files subject to an optional server wide egress cap of [maxBytesPerSecond] and an optional
+ * per request duration.
+ *
+ * When the container supports async I/O, rate limited transfers are driven by [WriteListener]
+ * callbacks and resumed from a shared scheduler once enough tokens are available, so that slow
+ * clients do not occupy request threads. Content that is generated as it is sent is instead paced
+ * on the thread that writes it, see [throttle].
+ */
+internal class BandwidthThrottler(
+    private val maxBytesPerSecond: Long,
+    private val scheduler: ScheduledExecutorService = SHARED_SCHEDULER
+) {
+    private val egressBucket: TokenBucket? = maxBytesPerSecond.takeIf { it > 0 }?.let { bytesPerSecond ->
+        TokenBucket(bytesPerSecond, max(bytesPerSecond / 10, CHUNK_SIZE))
+    }
+
+    val isLimited: Boolean get() = egressBucket != null
+
+    /**
+     * Sends [count] bytes of [file] starting at [position]
+     *
+     * @param throttleBy the minimum duration of the transfer in milliseconds, 0 for no minimum
+     */
+    fun send(
+        request: HttpServletRequest,
+        response: HttpServletResponse,
+        file: Path,
+        throttleBy: Long,
+        position: Long = 0,
+        count: Long = Files.size(file) - position,
+        onProgress: (bytesSent: Long, totalBytes: Long) -> Unit = { _, _ -> },
+        onComplete: (Throwable?) -> Unit = {}
+    ) {
+        // The callbacks may run on other threads, which do not know whether the request is sampled
+        val sampled = SampledLogger.isSampled
+        val sampledOnProgress = { bytesSent: Long, totalBytes: Long ->
+            SampledLogger.sampling(sampled) { onProgress(bytesSent, totalBytes) }
+        }
+        val sampledOnComplete = { throwable: Throwable? -> SampledLogger.sampling(sampled) { onComplete(throwable) } }
+        val fileChannel = FileChannel.open(file, StandardOpenOption.READ)
+        val transfer = Transfer(position, position + count, buckets(count, throttleBy), sampledOnProgress)
+
+        if (request.isAsyncSupported) {
+            val asyncContext = request.startAsync().apply { timeout = 0 }
+            val outputStream = response.outputStream
+            outputStream.setWriteListener(
+                AsyncTransfer(transfer, fileChannel, asyncContext, outputStream, sampledOnComplete)
+            )
+        } else {
+            val error = try {
+                transfer.sendBlocking(fileChannel, response.outputStream)
+                null
+            } catch (throwable: Throwable) {
+                throwable
+            } finally {
+                fileChannel.close()
+            }
+            onComplete(error)
+            error?.let { throw it }
+        }
+    }
+
+    /**
+     * Wraps [outputStream], which [count] bytes are about to be written to, so that writes to it block
+     * until they are allowed
+     *
+     * @param throttleBy the minimum duration of the transfer in milliseconds, 0 for no minimum
+     */
+    fun throttle(
+        outputStream: OutputStream,
+        throttleBy: Long,
+        count: Long,
+        onProgress: (bytesSent: Long, totalBytes: Long) -> Unit = { _, _ -> }
+    ): OutputStream = ThrottledOutputStream(outputStream, Transfer(0, count, buckets(count, throttleBy), onProgress))
+
+    private fun buckets(count: Long, throttleBy: Long): List<TokenBucket> = listOfNotNull(
+        egressBucket,
+        throttleBy.takeIf { it > 0 }?.let {
+            TokenBucket(
+                bytesPerSecond = max(1, count * 1000 / throttleBy),
+                capacity = max(1, count / THROTTLE_INTERVALS),
+                initialTokens = 0
+            )
+        }
+    )
+
+    private class Transfer(
+        val start: Long,
+        val end: Long,
+        val buckets: List<TokenBucket>,
+        val onProgress: (Long, Long) -> Unit
+    ) {
+        var position = start
+        val isDone: Boolean get() = position >= end
+        private val remaining: Long get() = min(CHUNK_SIZE, end - position)
+
+        fun allowance(wanted: Long = remaining): Long =
+            buckets.fold(wanted) { allowance, bucket -> min(allowance, bucket.available()) }
+
+        fun nanosUntilAllowed(wanted: Long = remaining): Long =
+            buckets.maxOfOrNull { bucket -> bucket.nanosUntilAvailable(wanted) } ?: 0
+
+        fun advance(amount: Long) {
+            buckets.forEach { bucket -> bucket.consume(amount) }
+            position += amount
+            onProgress(position - start, end - start)
+        }
+
+        /**
+         * Waits until some of [wanted] is allowed and returns how much
+         */
+        fun awaitAllowance(wanted: Long = remaining): Long {
+            var allowance = allowance(wanted)
+            while (allowance <= 0) {
+                TimeUnit.NANOSECONDS.sleep(nanosUntilAllowed(wanted))
+                allowance = allowance(wanted)
+            }
+            return allowance
+        }
+
+        fun sendBlocking(fileChannel: FileChannel, outputStream: ServletOutputStream) {
+            val outputChannel = Channels.newChannel(outputStream)
+            while (!isDone) {
+                val allowance = awaitAllowance()
+                fileChannel.transferFully(outputChannel, position, allowance)
+                advance(allowance)
+            }
+        }
+    }
+
+    private class ThrottledOutputStream(
+        outputStream: OutputStream,
+        private val transfer: Transfer
+    ) : FilterOutputStream(outputStream) {
+        override fun write(b: Int) {
+            transfer.awaitAllowance(1)
+            out.write(b)
+            transfer.advance(1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var written = 0
+            while (written < len) {
+                val allowance = transfer.awaitAllowance(min(CHUNK_SIZE, (len - written).toLong())).toInt()
+                out.write(b, off + written, allowance)
+                transfer.advance(allowance.toLong())
+                written += allowance
+            }
+        }
+    }
+
+    private inner class AsyncTransfer(
+        private val transfer: Transfer,
+        private val fileChannel: FileChannel,
+        private val asyncContext: AsyncContext,
+        private val outputStream: ServletOutputStream,
+        private val onComplete: (Throwable?) -> Unit
+    ) : WriteListener {
+        private val buffer by lazy { ByteArray(CHUNK_SIZE.toInt()) }
+        private val mappedRange by lazy {
+            fileChannel.map(FileChannel.MapMode.READ_ONLY, transfer.start, transfer.end - transfer.start)
+        }
+        private val finished = AtomicBoolean()
+
+        private fun write(amount: Long) {
+            if (outputStream is HttpOutput && transfer.end - transfer.start <= Int.MAX_VALUE) {
+                outputStream.write(mappedRange.slice((transfer.position - transfer.start).toInt(), amount.toInt()))
+            } else {
+                val byteBuffer = ByteBuffer.wrap(buffer, 0, amount.toInt())
+                while (byteBuffer.hasRemaining()) {
+                    fileChannel.read(byteBuffer, transfer.position + byteBuffer.position())
+                }
+                outputStream.write(buffer, 0, amount.toInt())
+            }
+        }
+
+        private fun finish(throwable: Throwable?) {
+            if (finished.compareAndSet(false, true)) {
+                fileChannel.close()
+                try {
+                    onComplete(throwable)
+                } finally {
+                    asyncContext.complete()
+                }
+            }
+        }
+
+        private fun resume() {
+            try {
+                onWritePossible()
+            } catch (throwable: Throwable) {
+                finish(throwable)
+            }
+        }
+
+        override fun onWritePossible() {
+            while (outputStream.isReady) {
+                if (transfer.isDone) {
+                    finish(null)
+                    return
+                }
+
+                val allowance = transfer.allowance()
+                if (allowance <= 0) {
+                    scheduler.schedule(::resume, transfer.nanosUntilAllowed(), TimeUnit.NANOSECONDS)
+                    return
+                }
+
+                write(allowance)
+                transfer.advance(allowance)
+            }
+        }
+
+        override fun onError(throwable: Throwable) {
+            finish(throwable)
+        }
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = 64L * 1024L
+        private const val THROTTLE_INTERVALS = 30L
+
+        private val SHARED_SCHEDULER: ScheduledExecutorService by lazy {
+            Executors.newSingleThreadScheduledExecutor { runnable ->
+                Thread(runnable, "GloballyDynamicBandwidthThrottler").apply { isDaemon = true }
+            }
+        }
+
+        val UNLIMITED = BandwidthThrottler(0)
+    }
+}
@@ -1,28 +1,50 @@
 package com.jeppeman.globallydynamic.server
 
+import com.android.bundle.Commands
+import com.android.bundle.Config
 import com.android.bundle.Devices
 import com.android.tools.build.bundletool.commands.BuildApksCommand
-import com.android.tools.build.bundletool.commands.ExtractApksCommand
+import com.android.tools.build.bundletool.device.ApkMatcher
 import com.android.tools.build.bundletool.model.Password
 import com.android.tools.build.bundletool.model.SigningConfiguration
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException
-import com.google.common.collect.ImmutableList
+import com.android.tools.build.bundletool.model.exceptions.IncompatibleDeviceException
 import com.google.common.collect.ImmutableSet
+import com.google.common.util.concurrent.ListeningExecutorService
+import com.google.common.util.concurrent.MoreExecutors
 import com.google.gson.Gson
 import com.google.gson.JsonObject
+import com.google.protobuf.Int32Value
+import com.jeppeman.globallydynamic.server.dto.SplitDto
+import com.jeppeman.globallydynamic.server.dto.SplitsManifestDto
 import com.jeppeman.globallydynamic.server.dto.toDeviceSpec
 import com.jeppeman.globallydynamic.server.dto.toDeviceSpecDto
-import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import com.jeppeman.globallydynamic.server.extensions.sha256
 import com.jeppeman.globallydynamic.server.extensions.stackTraceToString
-import com.jeppeman.globallydynamic.server.extensions.zip
+import java.io.ByteArrayOutputStream
+import java.io.FilterInputStream
+import java.io.IOException
 import java.io.InputStream
+import java.nio.MappedByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.Paths
 import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
 import java.security.KeyStore
 import java.security.MessageDigest
 import java.security.cert.Certificate
 import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.ZipFile
 import java.util.Locale
 
 
@@ -37,13 +59,79 @@ internal interface BundleManager {
         includeMissing: Boolean
     ): Result
 
+    /**
+     * The ETag of the splits that [generateCompressedSplits] would produce for the same arguments, computed
+     * without producing them, or null if there is no bundle to produce them from
+     */
+    fun splitsEtag(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        deviceSpec: Devices.DeviceSpec,
+        features: Array<String>,
+        languages: Array<String>,
+        includeMissing: Boolean
+    ): String?
+
+    /**
+     * Lists the splits that [generateCompressedSplits] would produce for the same arguments, without
+     * extracting them
+     */
+    fun splitsManifest(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        deviceSpec: Devices.DeviceSpec,
+        features: Array<String>,
+        languages: Array<String>,
+        includeMissing: Boolean
+    ): Result
+
+    /**
+     * The split APK with the SHA-256 digest [sha256] from the APK set of the given bundle, as listed by
+     * [splitsManifest]
+     */
+    fun split(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        sha256: String
+    ): Result
+
+    /**
+     * A [SplitPatch] that rebuilds the split with the SHA-256 digest [sha256] of the given bundle from the
+     * split with the digest [baseSha256] of version [baseVersion] of the same bundle
+     */
+    fun splitPatch(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        sha256: String,
+        baseVersion: Int,
+        baseSha256: String
+    ): Result
+
     fun storeBundle(
         applicationId: String,
         version: Int,
         variant: String,
         signingConfig: String,
         bundleInputStream: InputStream,
-        keyStoreInputStream: InputStream
+        keyStoreInputStream: InputStream,
+        onProgress: (UploadJob.Stage) -> Unit = {}
+    ): Result
+
+    /**
+     * Like the above for a bundle and keystore that are already on local disk, they are read in place
+     */
+    fun storeBundle(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        signingConfig: String,
+        bundlePath: Path,
+        keyStorePath: Path,
+        onProgress: (UploadJob.Stage) -> Unit = {}
     ): Result
 
     fun validateSignature(
@@ -54,7 +142,29 @@ internal interface BundleManager {
     ): Result
 
     sealed class Result(val message: String) {
-        class Success(val path: Path) : Result("Success")
+        /**
+         * [onRelease] is invoked once every holder has called [release], see [retain]
+         */
+        class Success(
+            val path: Path,
+            val etag: String? = null,
+            private val onRelease: () -> Unit = {}
+        ) : Result("Success") {
+            private val references = AtomicInteger(1)
+
+            fun retain(count: Int = 1) = apply { references.addAndGet(count) }
+
+            fun release() {
+                if (references.decrementAndGet() == 0) {
+                    onRelease()
+                }
+            }
+        }
+        class Stream(val archive: SplitsArchive, val etag: String? = null) : Result("Success")
+        class Manifest(val manifest: SplitsManifestDto) : Result("Success")
+        class Apk(val split: SplitDto, val open: () -> InputStream) : Result("Success")
+        class Patch(val split: SplitDto, val base: SplitDto, val patch: ByteArray) : Result("Success")
+        object SignatureValid : Result("Success")
         sealed class Error(message: String) : Result(message) {
             class BundleNotFound(filename: String) : Error("Bundle with filename $filename was not found")
             class BuildApksFailure(message: String) : Error("Failed to build APKs: $message")
@@ -62,6 +172,8 @@ internal interface BundleManager {
             class BundleExists(message: String) : Error("The bundle already exists: $message")
             class SignatureMismatch(signature: String) : Error("The provided signature \"$signature\" does not match the one on the server")
             class SignatureNotFound(signature: String) : Error("The signature \"${signature}\" does not exist")
+            class SplitNotFound(sha256: String) : Error("No split with SHA-256 $sha256 was found")
+            class PatchNotSmaller(sha256: String) : Error("A patch for $sha256 is not smaller than the split")
             object MissingFeaturesAndLanguages : Error("Features or languages must not be empty")
             object KeystorePassMissing : Error("Keystore pass is missing")
             object KeyPassMissing : Error("Key pass is missing")
@@ -69,17 +181,40 @@ internal interface BundleManager {
         }
     }
 
-    companion object : (StorageBackend, Logger, Gson, Boolean) -> BundleManager {
+    companion object : (
+        StorageBackend,
+        Logger,
+        Gson,
+        Boolean,
+        SplitsCache,
+        Boolean,
+        List<DeviceClass>,
+        ListeningExecutorService,
+        ScratchSpace,
+        Metrics
+    ) -> BundleManager {
         override fun invoke(
             storageBackend: StorageBackend,
             logger: Logger,
             gson: Gson,
-            overrideExistingBundles: Boolean
+            overrideExistingBundles: Boolean,
+            splitsCache: SplitsCache,
+            streamSplits: Boolean,
+            warmUpDeviceClasses: List<DeviceClass>,
+            bundletoolExecutorService: ListeningExecutorService,
+            scratchSpace: ScratchSpace,
+            metrics: Metrics
         ): BundleManager = BundleManagerImpl(
             storageBackend = storageBackend,
             logger = logger,
             gson = gson,
-            overrideExistingBundles = overrideExistingBundles
+            overrideExistingBundles = overrideExistingBundles,
+            splitsCache = splitsCache,
+            streamSplits = streamSplits,
+            warmUpDeviceClasses = warmUpDeviceClasses,
+            bundletoolExecutorService = bundletoolExecutorService,
+            scratchSpace = scratchSpace,
+            metrics = metrics
         )
     }
 }
@@ -88,8 +223,38 @@ internal class BundleManagerImpl(
     private val gson: Gson,
     private val storageBackend: StorageBackend,
     private val logger: Logger,
-    private val overrideExistingBundles: Boolean
+    private val overrideExistingBundles: Boolean,
+    private val splitsCache: SplitsCache = SplitsCache.NONE,
+    private val streamSplits: Boolean = false,
+    private val warmUpDeviceClasses: List<DeviceClass> = emptyList(),
+    private val warmUpExecutor: Executor = WARM_UP_EXECUTOR,
+    private val persistenceExecutor: ExecutorService = PERSISTENCE_EXECUTOR,
+    private val bundletoolExecutorService: ListeningExecutorService = DEFAULT_BUNDLETOOL_EXECUTOR_SERVICE,
+    private val scratchSpace: ScratchSpace = ScratchSpace.DEFAULT,
+    private val metrics: Metrics = Metrics()
 ) : BundleManager {
+    private val splitsGenerations = SingleFlight<DownloadKey, BundleManager.Result>()
+    private val apkSetIndexing = SingleFlight<String, Map<String, SplitDto>?>()
+    private val apkSetIndexes = object : LinkedHashMap<String, Map<String, SplitDto>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Map<String, SplitDto>>?): Boolean =
+            size > MAX_APK_SET_INDEXES
+    }
+    private val signatureFingerprints = object : LinkedHashMap<String, String>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, String>?): Boolean =
+            size > MAX_SIGNATURE_FINGERPRINTS
+    }
+    private val tablesOfContents = object : LinkedHashMap<String, Commands.BuildApksResult>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Commands.BuildApksResult>?): Boolean =
+            size > MAX_TABLES_OF_CONTENTS
+    }
+    private val downloadKeys = object : LinkedHashMap<DownloadKey, DownloadKey>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<DownloadKey, DownloadKey>?): Boolean =
+            size > MAX_DOWNLOAD_KEYS
+    }
+    private val splitPatching = SingleFlight<String, ByteArray>()
+    private val splitPatches = LinkedHashMap<String, ByteArray>(16, 0.75f, true)
+    private var splitPatchesSizeBytes = 0L
+
     private fun getFinalFileName(
         applicationId: String,
         version: Int,
@@ -97,22 +262,92 @@ internal class BundleManagerImpl(
         extension: String
     ): String = "${applicationId}_${variant}_$version.$extension"
 
+    private fun getStagingFileName(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        stagingId: String,
+        extension: String
+    ): String = "${applicationId}_${variant}_$version.$stagingId$STAGING_SUFFIX.$extension"
+
+    /**
+     * Copies the APKs at [apkPaths] within the APK set stored as [apkSetFilename] into [outputDirectory],
+     * reading only those entries of the APK set
+     */
     internal fun extractApks(
-        apksArchivePath: Path,
-        outputDirectory: Path,
+        apkSetFilename: String,
+        apkPaths: List<String>,
+        outputDirectory: Path
+    ): List<Path> = metrics.time(Metrics.Stage.EXTRACT) {
+        openApkSet(apkSetFilename)?.use { apkSet ->
+            apkPaths.map { apkPath ->
+                val inputStream = apkSet.getInputStream(apkPath)
+                    ?: throw IOException("$apkPath is missing from $apkSetFilename")
+                outputDirectory.resolve(apkPath.substringAfterLast('/')).also { apk ->
+                    inputStream.use { Files.copy(it, apk, StandardCopyOption.REPLACE_EXISTING) }
+                }
+            }
+        } ?: throw IOException("$apkSetFilename does not exist")
+    }
+
+    /**
+     * The paths of the APKs that bundletool would extract for [deviceSpec] and [features], matched against
+     * the table of contents of an APK set the way that its extract-apks command does, which also fails with
+     * [IncompatibleDeviceException] when no APKs match
+     */
+    internal fun matchApks(
+        tableOfContents: Commands.BuildApksResult,
         deviceSpec: Devices.DeviceSpec,
         features: Array<String>
-    ): ImmutableList<Path> = ExtractApksCommand.builder()
-        .setApksArchivePath(apksArchivePath)
-        .setOutputDirectory(outputDirectory)
-        .setDeviceSpec(deviceSpec)
-        .apply {
-            if (features.isNotEmpty()) {
-                setModules(ImmutableSet.copyOf(features))
-            }
+    ): List<String> = ApkMatcher(
+        deviceSpec.withDefaultsOf(tableOfContents),
+        if (features.isNotEmpty()) Optional.of(ImmutableSet.copyOf(features)) else Optional.empty(),
+        // includeInstallTimeAssetModules, instant and ensureDensityAndAbiApksMatched as extract-apks sets them
+        true,
+        false,
+        true
+    ).getMatchingApks(tableOfContents)
+        .ifEmpty {
+            throw IncompatibleDeviceException.builder()
+                .withUserMessage("No compatible APKs found for the device.")
+                .build()
         }
-        .build()
-        .execute()
+        .map { generatedApk -> generatedApk.path.toString() }
+
+    /**
+     * Gives device specs without a device tier the default one of [tableOfContents], like bundletool does
+     * before it extracts APKs
+     */
+    private fun Devices.DeviceSpec.withDefaultsOf(tableOfContents: Commands.BuildApksResult): Devices.DeviceSpec {
+        if (hasDeviceTier()) {
+            return this
+        }
+        val defaultDeviceTier = tableOfContents.defaultTargetingValueList
+            .firstOrNull { defaultTargetingValue ->
+                defaultTargetingValue.dimension == Config.SplitDimension.Value.DEVICE_TIER
+                    && defaultTargetingValue.defaultValue.isNotEmpty()
+            }
+            ?.defaultValue
+            ?.toInt()
+            ?: 0
+        return toBuilder().setDeviceTier(Int32Value.of(defaultDeviceTier)).build()
+    }
+
+    /**
+     * The table of contents of the APK set stored as [apkSetFilename], parsed once per content of the APK set
+     */
+    private fun tableOfContents(apkSetFilename: String, apkSetHash: String): Commands.BuildApksResult? {
+        val key = "$apkSetFilename:$apkSetHash"
+        val cachedTableOfContents = synchronized(tablesOfContents) { tablesOfContents[key] }
+        metrics.cacheLookup(CACHE_TABLES_OF_CONTENTS, cachedTableOfContents != null)
+
+        return cachedTableOfContents ?: metrics.time(Metrics.Stage.TABLE_OF_CONTENTS) {
+            openApkSet(apkSetFilename)?.use { apkSet ->
+                apkSet.getInputStream(TABLE_OF_CONTENTS)?.use { inputStream -> Commands.BuildApksResult.parseFrom(inputStream) }
+                    ?: throw IOException("$TABLE_OF_CONTENTS is missing from $apkSetFilename")
+            }
+        }?.also { tableOfContents -> synchronized(tablesOfContents) { tablesOfContents[key] = tableOfContents } }
+    }
 
     internal fun buildApks(
         bundlePath: Path,
@@ -130,6 +365,8 @@ internal class BundleManagerImpl(
             Optional.of(Password { KeyStore.PasswordProtection(keystorePass.toCharArray()) }),
             Optional.of(Password { KeyStore.PasswordProtection(keyPass.toCharArray()) })
         ))
+        // Modules and splits are generated and signed in parallel on the executor
+        .setExecutorService(bundletoolExecutorService)
         .build()
         .execute()
 
@@ -146,139 +383,719 @@ internal class BundleManagerImpl(
             return BundleManager.Result.Error.MissingFeaturesAndLanguages
         }
 
+        val downloadKey = try {
+            downloadKey(applicationId, version, variant, deviceSpec, features, languages, includeMissing)
+        } catch (commandExecutionException: CommandExecutionException) {
+            return BundleManager.Result.Error.ExtractApksFailure(
+                commandExecutionException.message ?: commandExecutionException.stackTraceToString())
+        } catch (incompatibleDeviceException: IncompatibleDeviceException) {
+            return BundleManager.Result.Error.ExtractApksFailure(
+                incompatibleDeviceException.message ?: incompatibleDeviceException.stackTraceToString())
+        } ?: return BundleManager.Result.Error.BundleNotFound(
+            getFinalFileName(applicationId, version, variant, "apks")
+        )
+
+        return splitsGenerations.execute(
+            key = downloadKey,
+            share = { result, followers ->
+                if (followers > 0) {
+                    logger.i("Sharing splits for $downloadKey with $followers concurrent request(s)")
+                }
+                when (result) {
+                    is BundleManager.Result.Stream -> result.archive.retain(followers)
+                    is BundleManager.Result.Success -> result.retain(followers)
+                    else -> Unit
+                }
+            }
+        ) {
+            generateCompressedSplits(downloadKey)
+        }
+    }
+
+    override fun splitsEtag(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        deviceSpec: Devices.DeviceSpec,
+        features: Array<String>,
+        languages: Array<String>,
+        includeMissing: Boolean
+    ): String? = try {
+        downloadKey(applicationId, version, variant, deviceSpec, features, languages, includeMissing)?.etag
+    } catch (commandExecutionException: CommandExecutionException) {
+        null
+    } catch (incompatibleDeviceException: IncompatibleDeviceException) {
+        null
+    }
+
+    /**
+     * The key of the splits that are requested, reduced to the APKs that they resolve to within the APK set.
+     * Keys are memoized by the request that they are derived from, so that the APKs are not matched again
+     * when [splitsEtag] is followed by [generateCompressedSplits] or when the same device asks again. The APK
+     * set is still stat'ed on every call, and a memoized key is only used while the APK set has the hash that
+     * it was derived from, so a bundle that is replaced, also by another server sharing the storage backend,
+     * is never matched to the key of the old one
+     */
+    private fun downloadKey(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        deviceSpec: Devices.DeviceSpec,
+        features: Array<String>,
+        languages: Array<String>,
+        includeMissing: Boolean
+    ): DownloadKey? {
+        val apkSetFilename = getFinalFileName(applicationId, version, variant, "apks")
+        val apkSetStat = storageBackend.stat(apkSetFilename) ?: return null
+        val requestKey = DownloadKey(applicationId, version, variant, deviceSpec, features, languages, includeMissing)
+        synchronized(downloadKeys) { downloadKeys[requestKey] }
+            ?.takeIf { memoized -> memoized.apkSetHash == apkSetStat.hash }
+            ?.let { memoized -> return memoized }
+
+        val downloadKey = resolveDownloadKey(
+            applicationId, version, variant, deviceSpec, features, languages, includeMissing, apkSetFilename, apkSetStat
+        ) ?: return null
+        synchronized(downloadKeys) { downloadKeys[requestKey] = downloadKey }
+        return downloadKey
+    }
+
+    private fun resolveDownloadKey(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        deviceSpec: Devices.DeviceSpec,
+        features: Array<String>,
+        languages: Array<String>,
+        includeMissing: Boolean,
+        apkSetFilename: String,
+        apkSetStat: StorageBackend.Stat
+    ): DownloadKey? {
+        val tableOfContents = tableOfContents(apkSetFilename, apkSetStat.hash) ?: return null
+        val apks = matchApks(
+            tableOfContents = tableOfContents,
+            deviceSpec = deviceSpec.toDeviceSpecDto().run {
+                copy(supportedLocales = supportedLocales + languages)
+            }.toDeviceSpec(),
+            features = features
+        ).filter { apkPath -> isRequested(apkPath.substringAfterLast('/'), features, languages, includeMissing) }
+
+        return DownloadKey(
+            applicationId = applicationId,
+            version = version,
+            variant = variant,
+            deviceSpec = deviceSpec,
+            features = features,
+            languages = languages,
+            includeMissing = includeMissing,
+            apkSetHash = apkSetStat.hash,
+            apks = apks
+        )
+    }
+
+    private fun generateCompressedSplits(downloadKey: DownloadKey): BundleManager.Result {
+        val applicationId = downloadKey.applicationId
+        val version = downloadKey.version
+        val variant = downloadKey.variant
+
+        val cachedSplits = splitsCache.get(downloadKey)
+        if (splitsCache.isEnabled) {
+            metrics.cacheLookup(CACHE_SPLITS, cachedSplits != null)
+        }
+        if (cachedSplits != null) {
+            logger.i("Serving cached splits for $downloadKey")
+            return BundleManager.Result.Success(cachedSplits, downloadKey.etag) { splitsCache.release(cachedSplits) }
+        }
+
+        val apkSetFilename = getFinalFileName(applicationId, version, variant, "apks")
+        val workspace = scratchSpace.workspace("${applicationId}_${version}_$variant")
+        try {
+            val splitsPaths = extractApks(apkSetFilename, checkNotNull(downloadKey.apks), workspace.path)
+
+            logger.i("Extracted the following APKs: ${splitsPaths.joinToString(", ") { it.fileName.toString() }}")
+
+            val extractedSplitsZipPath = workspace.path.resolve(
+                (downloadKey.features + downloadKey.languages).joinToString(
+                    separator = "_",
+                    postfix = "_extracted.zip"
+                )
+            )
+
+            if (streamSplits) {
+                return BundleManager.Result.Stream(SplitsArchive(
+                    apks = splitsPaths,
+                    onClose = { archive ->
+                        // Filled after the response has been sent so that it does not delay the first byte
+                        try {
+                            if (splitsCache.isEnabled) {
+                                val zip = metrics.time(Metrics.Stage.ZIP) { archive.writeTo(extractedSplitsZipPath) }
+                                splitsCache.release(splitsCache.put(downloadKey, zip))
+                            }
+                        } catch (exception: Exception) {
+                            logger.e("Failed to cache splits for $downloadKey", exception)
+                        } finally {
+                            workspace.close()
+                        }
+                    }
+                ), downloadKey.etag)
+            }
+
+            metrics.time(Metrics.Stage.ZIP) { SplitsArchive(splitsPaths).writeTo(extractedSplitsZipPath) }
+
+            val splits = splitsCache.put(downloadKey, extractedSplitsZipPath)
+            return if (splits.startsWith(workspace.path)) {
+                // Not cached, so the archive is kept until it has been sent
+                BundleManager.Result.Success(splits, downloadKey.etag, workspace::close)
+            } else {
+                workspace.close()
+                BundleManager.Result.Success(splits, downloadKey.etag) { splitsCache.release(splits) }
+            }
+        } catch (throwable: Throwable) {
+            workspace.close()
+            throw throwable
+        }
+    }
+
+    override fun splitsManifest(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        deviceSpec: Devices.DeviceSpec,
+        features: Array<String>,
+        languages: Array<String>,
+        includeMissing: Boolean
+    ): BundleManager.Result {
+        if (features.isEmpty() && languages.isEmpty()) {
+            return BundleManager.Result.Error.MissingFeaturesAndLanguages
+        }
+
+        val apkSetFilename = getFinalFileName(applicationId, version, variant, "apks")
+        val apkSetHash = storageBackend.stat(apkSetFilename)?.hash
+            ?: return BundleManager.Result.Error.BundleNotFound(apkSetFilename)
+        val index = apkSetIndex(apkSetFilename, apkSetHash)
+            ?: return BundleManager.Result.Error.BundleNotFound(apkSetFilename)
+
+        return try {
+            val splits = tableOfContents(apkSetFilename, apkSetHash)?.let { tableOfContents ->
+                matchApks(
+                    tableOfContents = tableOfContents,
+                    deviceSpec = deviceSpec.toDeviceSpecDto().run {
+                        copy(supportedLocales = supportedLocales + languages)
+                    }.toDeviceSpec(),
+                    features = features
+                )
+            }.orEmpty().mapNotNull { apkPath ->
+                index[apkPath]?.takeIf { split -> isRequested(split.name, features, languages, includeMissing) }
+            }.sortedBy { split -> split.name }
+
+            BundleManager.Result.Manifest(SplitsManifestDto(splits))
+        } catch (commandExecutionException: CommandExecutionException) {
+            BundleManager.Result.Error.ExtractApksFailure(
+                commandExecutionException.message ?: commandExecutionException.stackTraceToString())
+        } catch (incompatibleDeviceException: IncompatibleDeviceException) {
+            BundleManager.Result.Error.ExtractApksFailure(
+                incompatibleDeviceException.message ?: incompatibleDeviceException.stackTraceToString())
+        }
+    }
+
+    override fun split(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        sha256: String
+    ): BundleManager.Result {
+        val apkSetFilename = getFinalFileName(applicationId, version, variant, "apks")
+        val index = apkSetIndex(apkSetFilename)
+            ?: return BundleManager.Result.Error.BundleNotFound(apkSetFilename)
+        val (apkPath, split) = index.entries.firstOrNull { (_, split) -> split.sha256 == sha256 }
+            ?: return BundleManager.Result.Error.SplitNotFound(sha256)
+
+        return BundleManager.Result.Apk(split) {
+            // Only the central directory and the APK itself are read, from backends that support ranged reads
+            val apkSet = openApkSet(apkSetFilename)
+                ?: throw IOException("$apkSetFilename no longer exists")
+            val inputStream = try {
+                apkSet.getInputStream(apkPath) ?: throw IOException("$apkPath is missing from $apkSetFilename")
+            } catch (exception: IOException) {
+                apkSet.close()
+                throw exception
+            }
+            object : FilterInputStream(inputStream) {
+                override fun close() {
+                    try {
+                        super.close()
+                    } finally {
+                        apkSet.close()
+                    }
+                }
+            }
+        }
+    }
+
+    override fun splitPatch(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        sha256: String,
+        baseVersion: Int,
+        baseSha256: String
+    ): BundleManager.Result {
         val apkSetFilename = getFinalFileName(applicationId, version, variant, "apks")
-        val apkSet = storageBackend.retrieveFile(apkSetFilename)
+        val index = apkSetIndex(apkSetFilename)
             ?: return BundleManager.Result.Error.BundleNotFound(apkSetFilename)
-        val tempDir = Files.createTempDirectory("${applicationId}_${version}_$variant")
-
-        val splitsPaths = try {
-            extractApks(
-                apksArchivePath = apkSet,
-                outputDirectory = tempDir,
-                deviceSpec = deviceSpec.toDeviceSpecDto().run {
-                    copy(supportedLocales = supportedLocales + languages)
-                }.toDeviceSpec(),
-                features = features
-            ).filter { apk ->
-                val apkFilename = apk.toFile().name
-                val keep = features.any { featureToInstall ->
-                    apkFilename.startsWith(featureToInstall)
-                } || languages.any { languageToInstall ->
-                    apkFilename.endsWith("-$languageToInstall.apk")
-                } || (includeMissing
-                    && apkFilename.startsWith("base")
-                    && !apkFilename.endsWith("-master.apk"))
-
-                if (keep) {
-                    true
+        val (apkPath, split) = index.entries.firstOrNull { (_, split) -> split.sha256 == sha256 }
+            ?: return BundleManager.Result.Error.SplitNotFound(sha256)
+
+        val baseApkSetFilename = getFinalFileName(applicationId, baseVersion, variant, "apks")
+        val baseIndex = apkSetIndex(baseApkSetFilename)
+            ?: return BundleManager.Result.Error.BundleNotFound(baseApkSetFilename)
+        val (baseApkPath, base) = baseIndex.entries.firstOrNull { (_, split) -> split.sha256 == baseSha256 }
+            ?: return BundleManager.Result.Error.SplitNotFound(baseSha256)
+
+        // Both ends are content addressed, so a patch never goes stale
+        val key = "$baseSha256:$sha256"
+        val patch = synchronized(splitPatches) { splitPatches[key] } ?: splitPatching.execute(key) {
+            val startTime = System.currentTimeMillis()
+            createSplitPatch(baseApkSetFilename, baseApkPath, apkSetFilename, apkPath, split.size).also { patch ->
+                if (patch === NO_SMALLER_PATCH) {
+                    logger.i("A patch from ${base.name} of version $baseVersion to ${split.name} of version " +
+                        "$version is not smaller than the ${split.size} bytes of the split")
                 } else {
-                    apk.deleteCompletely()
-                    false
+                    logger.i("Created a patch from ${base.name} of version $baseVersion to ${split.name} of " +
+                        "version $version, ${patch.size} of ${split.size} bytes, in " +
+                        "${System.currentTimeMillis() - startTime}ms")
                 }
+                cacheSplitPatch(key, patch)
             }
-        } catch (commandExecutionException: CommandExecutionException) {
-            return BundleManager.Result.Error.ExtractApksFailure(
-                commandExecutionException.message ?: commandExecutionException.stackTraceToString())
         }
 
-        logger.i("Extracted the following APKs: ${splitsPaths.joinToString(", ") { it.fileName.toString() }}")
+        if (patch === NO_SMALLER_PATCH) {
+            return BundleManager.Result.Error.PatchNotSmaller(sha256)
+        }
+
+        return BundleManager.Result.Patch(split, base, patch)
+    }
 
-        val extractedSplitsZipPath = tempDir.resolve(
-            (features + languages).joinToString(
-                separator = "_",
-                postfix = "_extracted.zip"
-            )
-        ).apply {
-            toFile().zip(*splitsPaths.map(Path::toFile).toTypedArray())
+    private fun openApkSet(apkSetFilename: String): SeekableZip? =
+        storageBackend.openRead(apkSetFilename)?.let(SeekableZip::open)
+
+    /**
+     * A patch from the APK at [baseApkPath] to the one at [apkPath], or [NO_SMALLER_PATCH] if it would not be
+     * smaller than [maxSize]. Both APKs are extracted into the scratch space and mapped from there rather
+     * than read onto the heap, and the patch is given up on as soon as it reaches [maxSize]
+     */
+    private fun createSplitPatch(
+        baseApkSetFilename: String,
+        baseApkPath: String,
+        apkSetFilename: String,
+        apkPath: String,
+        maxSize: Long
+    ): ByteArray = scratchSpace.withWorkspace("split_patch") { workspacePath ->
+        val basePath = extractApks(
+            baseApkSetFilename, listOf(baseApkPath), Files.createDirectory(workspacePath.resolve("base"))).single()
+        val targetPath = extractApks(
+            apkSetFilename, listOf(apkPath), Files.createDirectory(workspacePath.resolve("target"))).single()
+        val outputStream = BoundedByteArrayOutputStream(maxSize)
+        try {
+            SplitPatch.create(basePath.map(), targetPath.map(), outputStream)
+            outputStream.toByteArray()
+        } catch (exception: BoundedByteArrayOutputStream.BoundExceededException) {
+            NO_SMALLER_PATCH
         }
+    }
 
-        return BundleManager.Result.Success(extractedSplitsZipPath)
+    /**
+     * Keeps the most recently used patches within [MAX_SPLIT_PATCHES_SIZE_BYTES] and [MAX_SPLIT_PATCHES]
+     */
+    private fun cacheSplitPatch(key: String, patch: ByteArray) = synchronized(splitPatches) {
+        if (patch.size > MAX_SPLIT_PATCHES_SIZE_BYTES) {
+            return@synchronized
+        }
+        splitPatches.put(key, patch)?.let { previous -> splitPatchesSizeBytes -= previous.size }
+        splitPatchesSizeBytes += patch.size
+        val iterator = splitPatches.values.iterator()
+        while ((splitPatchesSizeBytes > MAX_SPLIT_PATCHES_SIZE_BYTES || splitPatches.size > MAX_SPLIT_PATCHES)
+            && iterator.hasNext()) {
+            splitPatchesSizeBytes -= iterator.next().size
+            iterator.remove()
+        }
     }
 
+    /**
+     * The name, size and SHA-256 of every APK in the APK set stored as [apkSetFilename] by path, computed
+     * once per content of the APK set
+     */
+    private fun apkSetIndex(
+        apkSetFilename: String,
+        apkSetHash: String? = storageBackend.stat(apkSetFilename)?.hash
+    ): Map<String, SplitDto>? {
+        val key = "$apkSetFilename:${apkSetHash ?: return null}"
+
+        return synchronized(apkSetIndexes) { apkSetIndexes[key] } ?: apkSetIndexing.execute(key) {
+            openApkSet(apkSetFilename)?.use { apkSet ->
+                apkSet.entries.values
+                    .filter { entry -> !entry.name.endsWith("/") && entry.name.endsWith(".apk") }
+                    .associate { entry ->
+                        entry.name to SplitDto(
+                            name = entry.name.substringAfterLast('/'),
+                            size = entry.size,
+                            sha256 = apkSet.getInputStream(entry).use { it.sha256() }
+                        )
+                    }
+            }?.also { index -> synchronized(apkSetIndexes) { apkSetIndexes[key] = index } }
+        }
+    }
+
+    private fun isRequested(
+        apkFilename: String,
+        features: Array<String>,
+        languages: Array<String>,
+        includeMissing: Boolean
+    ): Boolean = features.any { featureToInstall ->
+        apkFilename.startsWith(featureToInstall)
+    } || languages.any { languageToInstall ->
+        apkFilename.endsWith("-$languageToInstall.apk")
+    } || (includeMissing
+        && apkFilename.startsWith("base")
+        && !apkFilename.endsWith("-master.apk"))
+
     override fun storeBundle(
         applicationId: String,
         version: Int,
         variant: String,
         signingConfig: String,
         bundleInputStream: InputStream,
-        keyStoreInputStream: InputStream
+        keyStoreInputStream: InputStream,
+        onProgress: (UploadJob.Stage) -> Unit
     ): BundleManager.Result {
+        bundleExists(applicationId, version, variant)?.let { return it }
+
+        return scratchSpace.withWorkspace("${applicationId}_${version}_${variant}_input") { workspacePath ->
+            val keyStoreTempFile = workspacePath.resolve("temp.keystore")
+            Files.copy(keyStoreInputStream, keyStoreTempFile, StandardCopyOption.REPLACE_EXISTING)
+            val bundleTempFile = workspacePath.resolve("temp.aab")
+            Files.copy(bundleInputStream, bundleTempFile, StandardCopyOption.REPLACE_EXISTING)
+            storeBundle(applicationId, version, variant, signingConfig, bundleTempFile, keyStoreTempFile, onProgress)
+        }
+    }
+
+    private fun bundleExists(applicationId: String, version: Int, variant: String): BundleManager.Result? {
         val bundleFileName = getFinalFileName(applicationId, version, variant, "aab")
+        return if (!overrideExistingBundles && storageBackend.exists(bundleFileName)) {
+            BundleManager.Result.Error.BundleExists(bundleFileName)
+        } else {
+            null
+        }
+    }
 
-        if (!overrideExistingBundles && storageBackend.exists(bundleFileName)) {
-            return BundleManager.Result.Error.BundleExists(bundleFileName)
-        }
-
-        val tempDir = Files.createTempDirectory("${applicationId}_${version}_$variant")
-        val outputDir = tempDir.resolve("bundle.apks")
-        val keyStoreTempFile = tempDir.resolve("temp.keystore")
-        Files.copy(keyStoreInputStream, keyStoreTempFile, StandardCopyOption.REPLACE_EXISTING)
-        val bundleTempFile = tempDir.resolve("temp.aab")
-        Files.copy(bundleInputStream, bundleTempFile, StandardCopyOption.REPLACE_EXISTING)
-        val signingConfigJson = gson.fromJson(signingConfig, JsonObject::class.java)
-        val keystorePass = signingConfigJson.get("storePassword")?.asString
-            ?: return BundleManager.Result.Error.KeystorePassMissing
-        val keyPass = signingConfigJson.get("keyPassword")?.asString
-            ?: return BundleManager.Result.Error.KeyPassMissing
-        val keyAlias = signingConfigJson.get("keyAlias")?.asString
-            ?: return BundleManager.Result.Error.KeyAliasMissing
-
-        val apkSetPath = try {
-            buildApks(
-                bundlePath = bundleTempFile,
-                outputDirectory = outputDir,
-                keystorePath = keyStoreTempFile,
-                keystorePass = keystorePass,
-                keyPass = keyPass,
-                keyAlias = keyAlias
-            )
-        } catch (exception: Exception) {
-            return BundleManager.Result.Error.BuildApksFailure(
-                exception.message ?: exception.stackTraceToString())
+    override fun storeBundle(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        signingConfig: String,
+        bundlePath: Path,
+        keyStorePath: Path,
+        onProgress: (UploadJob.Stage) -> Unit
+    ): BundleManager.Result {
+        bundleExists(applicationId, version, variant)?.let { return it }
+
+        return scratchSpace.withWorkspace("${applicationId}_${version}_$variant") { workspacePath ->
+            val outputDir = workspacePath.resolve("bundle.apks")
+            val signingConfigJson = gson.fromJson(signingConfig, JsonObject::class.java)
+            val keystorePass = signingConfigJson.get("storePassword")?.asString
+                ?: return BundleManager.Result.Error.KeystorePassMissing
+            val keyPass = signingConfigJson.get("keyPassword")?.asString
+                ?: return BundleManager.Result.Error.KeyPassMissing
+            val keyAlias = signingConfigJson.get("keyAlias")?.asString
+                ?: return BundleManager.Result.Error.KeyAliasMissing
+
+            onProgress(UploadJob.Stage.BUILDING)
+            val apkSetPath = try {
+                metrics.time(Metrics.Stage.BUILD_APKS) {
+                    buildApks(
+                        bundlePath = bundlePath,
+                        outputDirectory = outputDir,
+                        keystorePath = keyStorePath,
+                        keystorePass = keystorePass,
+                        keyPass = keyPass,
+                        keyAlias = keyAlias
+                    )
+                }
+            } catch (exception: Exception) {
+                return BundleManager.Result.Error.BuildApksFailure(
+                    exception.message ?: exception.stackTraceToString())
+            }
+
+            // The keystore has been loaded by bundletool already, this only fails for keystores that it can not
+            // sign with. The fingerprint of a bundle that is overwritten is then deleted rather than kept, so
+            // that downloads are not validated against the previous keystore
+            val fingerPrint = try {
+                keyStorePath.toFile().inputStream().use { signatureFingerprint(it, keystorePass, keyAlias) }
+            } catch (exception: Exception) {
+                logger.e("Failed to derive the signature fingerprint of " +
+                    "${DownloadKey.bundleId(applicationId, version, variant)}: ${exception.message}")
+                null
+            }
+
+            onProgress(UploadJob.Stage.PERSISTING)
+            persist(applicationId, version, variant, listOf(
+                Artifact("apks", "application/zip") { apkSetPath.toFile().inputStream() },
+                Artifact("aab", "application/zip") { bundlePath.toFile().inputStream() },
+                Artifact("keystore", "application/octet-stream") { keyStorePath.toFile().inputStream() },
+                Artifact("json", "application/json") { signingConfig.byteInputStream() },
+                Artifact("fingerprint", "text/plain", fingerPrint?.let { { fingerPrint.byteInputStream() } })
+            ))
+
+            synchronized(signatureFingerprints) {
+                val bundleId = DownloadKey.bundleId(applicationId, version, variant)
+                if (fingerPrint != null) {
+                    signatureFingerprints[bundleId] = fingerPrint
+                } else {
+                    signatureFingerprints.remove(bundleId)
+                }
+            }
+            splitsCache.invalidate(applicationId, version, variant)
+            synchronized(downloadKeys) {
+                val bundleId = DownloadKey.bundleId(applicationId, version, variant)
+                downloadKeys.keys.removeAll { requestKey -> requestKey.bundleId == bundleId }
+            }
+            warmUp(applicationId, version, variant, apkSetPath) { onProgress(UploadJob.Stage.WARMED) }
+
+            BundleManager.Result.Success(Paths.get(getFinalFileName(applicationId, version, variant, "apks")))
         }
+    }
 
-        val apkSetFileName = getFinalFileName(applicationId, version, variant, "apks")
-        storageBackend.storeFile(apkSetFileName, "application/zip", apkSetPath.toFile().inputStream())
+    /**
+     * @param open null for an artifact that is deleted rather than stored
+     */
+    private class Artifact(val extension: String, val contentType: String, val open: (() -> InputStream)?)
 
-        storageBackend.storeFile(bundleFileName, "application/zip", bundleTempFile.toFile().inputStream())
-        val signingConfigFileName = getFinalFileName(applicationId, version, variant, "json")
-        storageBackend.storeFile(signingConfigFileName, "application/json", signingConfig.byteInputStream())
-        val keystoreFileName = getFinalFileName(applicationId, version, variant, "keystore")
-        storageBackend.storeFile(keystoreFileName, "application/octet-stream", keyStoreTempFile.toFile().inputStream())
+    /**
+     * Uploads [artifacts] concurrently under staging names and then moves them into place, so that a failed
+     * upload leaves no artifacts of the bundle behind. Artifacts are moved in the order that they are given,
+     * the APKs before the signature that downloads are validated against, so that the new signature is never
+     * accepted while the old APKs are still in place. Artifacts without content are deleted in their turn
+     * instead. Artifacts that are being overwritten or deleted are copied aside first, and if a move fails
+     * the artifacts that were already moved are put back the way they were
+     */
+    private fun persist(applicationId: String, version: Int, variant: String, artifacts: List<Artifact>) {
+        val stagingId = UUID.randomUUID().toString()
+        val staged = Collections.synchronizedList(mutableListOf<String>())
+        val backups = mutableListOf<String>()
+        try {
+            stage(artifacts.filter { artifact -> artifact.open != null }, staged) { artifact ->
+                getStagingFileName(applicationId, version, variant, stagingId, artifact.extension)
+            }
 
-        bundleTempFile.deleteCompletely()
-        keyStoreTempFile.deleteCompletely()
+            val moved = mutableListOf<Artifact>()
+            try {
+                artifacts.forEach { artifact ->
+                    val finalFileName = getFinalFileName(applicationId, version, variant, artifact.extension)
+                    if (storageBackend.exists(finalFileName)) {
+                        val backupFileName = getStagingFileName(
+                            applicationId, version, variant, stagingId, "${artifact.extension}$BACKUP_SUFFIX")
+                        backups += backupFileName
+                        storageBackend.copyFile(finalFileName, backupFileName, artifact.contentType)
+                    } else if (artifact.open == null) {
+                        return@forEach
+                    }
+                    if (artifact.open == null) {
+                        storageBackend.deleteFile(finalFileName)
+                    } else {
+                        val stagingFileName = getStagingFileName(
+                            applicationId, version, variant, stagingId, artifact.extension)
+                        storageBackend.moveFile(stagingFileName, finalFileName, artifact.contentType)
+                        staged -= stagingFileName
+                    }
+                    moved += artifact
+                }
+            } catch (exception: Exception) {
+                rollBack(applicationId, version, variant, stagingId, moved, backups)
+                throw exception
+            }
+        } finally {
+            (staged.toList() + backups).forEach { fileName -> deleteQuietly(fileName) }
+        }
+    }
 
-        return BundleManager.Result.Success(apkSetPath)
+    /**
+     * Uploads [artifacts] concurrently, recording the names that are written to in [staged]. If an upload
+     * fails, the uploads that have not started are skipped and the running ones are waited for, so that
+     * nothing is written to after this returns
+     */
+    private fun stage(artifacts: List<Artifact>, staged: MutableList<String>, stagingFileName: (Artifact) -> String) {
+        val failed = AtomicBoolean()
+        val futures = artifacts.map { artifact ->
+            persistenceExecutor.submit {
+                if (!failed.get()) {
+                    val fileName = stagingFileName(artifact)
+                    staged += fileName
+                    try {
+                        storageBackend.storeFile(fileName, artifact.contentType, checkNotNull(artifact.open)())
+                    } catch (throwable: Throwable) {
+                        failed.set(true)
+                        throw throwable
+                    }
+                }
+            }
+        }
+        var failure: Throwable? = null
+        futures.forEach { future ->
+            try {
+                future.await()
+            } catch (throwable: Throwable) {
+                failure = failure?.apply { addSuppressed(throwable) } ?: throwable
+            }
+        }
+        failure?.let { throw it }
     }
 
-    override fun validateSignature(
-        signature: String,
+    /**
+     * Puts the artifacts that were overwritten or deleted by [moved] back from [backups], and deletes those
+     * that did not exist before
+     */
+    private fun rollBack(
         applicationId: String,
         version: Int,
-        variant: String): BundleManager.Result {
-        val keystoreFileName = getFinalFileName(applicationId, version, variant, "keystore")
-        val keyStoreFile = storageBackend.retrieveFile(keystoreFileName)
+        variant: String,
+        stagingId: String,
+        moved: List<Artifact>,
+        backups: MutableList<String>
+    ) {
+        moved.asReversed().forEach { artifact ->
+            val finalFileName = getFinalFileName(applicationId, version, variant, artifact.extension)
+            val backupFileName = getStagingFileName(
+                applicationId, version, variant, stagingId, "${artifact.extension}$BACKUP_SUFFIX")
+            try {
+                if (backupFileName in backups) {
+                    storageBackend.moveFile(backupFileName, finalFileName, artifact.contentType)
+                    backups -= backupFileName
+                } else {
+                    storageBackend.deleteFile(finalFileName)
+                }
+            } catch (exception: Exception) {
+                logger.e("Failed to roll back $finalFileName", exception)
+            }
+        }
+    }
 
-        val signingConfigFileName = getFinalFileName(applicationId, version, variant, "json")
-        val signingConfig = storageBackend.retrieveFile(signingConfigFileName)
+    private fun deleteQuietly(fileName: String) {
+        try {
+            storageBackend.deleteFile(fileName)
+        } catch (exception: Exception) {
+            logger.e("Failed to delete $fileName", exception)
+        }
+    }
+
+    private fun Future<*>.await() {
+        try {
+            get()
+        } catch (executionException: ExecutionException) {
+            throw executionException.cause ?: executionException
+        }
+    }
+
+    /**
+     * Generates the splits of every dynamic feature for every configured [DeviceClass] in the background,
+     * so that they are in the splits cache by the time the first devices ask for them
+     */
+    private fun warmUp(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        apkSetPath: Path,
+        onWarmedUp: () -> Unit
+    ) {
+        if (warmUpDeviceClasses.isEmpty()) {
+            return
+        }
 
-        if (keyStoreFile?.let { Files.exists(it) } != true || signingConfig?.let { Files.exists(it) } != true) {
-            return BundleManager.Result.Error.SignatureNotFound(signature)
+        if (!splitsCache.isEnabled) {
+            logger.i("Skipping warm-up of ${DownloadKey.bundleId(applicationId, version, variant)}, the splits " +
+                "cache is disabled")
+            return
         }
 
-        val signingConfigJson = gson.fromJson(signingConfig.toFile().readText(), JsonObject::class.java)
-        val keystorePass = signingConfigJson.get("storePassword")?.asString
-            ?: return BundleManager.Result.Error.KeystorePassMissing
-        val keyAlias = signingConfigJson.get("keyAlias")?.asString
-            ?: return BundleManager.Result.Error.KeyAliasMissing
+        val features = try {
+            apkSetPath.dynamicFeatures()
+        } catch (exception: IOException) {
+            logger.e("Failed to list the dynamic features of $apkSetPath, skipping warm-up", exception)
+            return
+        }
+        warmUpExecutor.execute {
+            val startTime = System.currentTimeMillis()
+            features.forEach { feature ->
+                warmUpDeviceClasses.forEach { deviceClass ->
+                    try {
+                        when (val result = generateCompressedSplits(
+                            applicationId = applicationId,
+                            version = version,
+                            variant = variant,
+                            deviceSpec = deviceClass.toDeviceSpec(),
+                            features = arrayOf(feature),
+                            languages = arrayOf(),
+                            includeMissing = false
+                        )) {
+                            is BundleManager.Result.Stream -> result.archive.close()
+                            is BundleManager.Result.Success -> result.release()
+                            is BundleManager.Result.Error ->
+                                logger.e("Failed to warm up $feature for $deviceClass: ${result.message}")
+                            else -> Unit
+                        }
+                    } catch (exception: Exception) {
+                        logger.e("Failed to warm up $feature for $deviceClass", exception)
+                    }
+                }
+            }
+            logger.i("Warmed up [${features.joinToString(",")}] of " +
+                "${DownloadKey.bundleId(applicationId, version, variant)} for ${warmUpDeviceClasses.size} device " +
+                "class(es) in ${System.currentTimeMillis() - startTime}ms")
+            onWarmedUp()
+        }
+    }
 
+    private fun signatureFingerprint(keyStoreInputStream: InputStream, keystorePass: String, keyAlias: String): String? {
         val keyStore = KeyStore.getInstance("JKS")
+        keyStore.load(keyStoreInputStream, keystorePass.toCharArray())
+        return keyStore.getCertificateChain(keyAlias)?.let(::getFingerPrintFromSignature)
+    }
 
-        keyStore.load(keyStoreFile.toFile().inputStream(), keystorePass.toCharArray())
-        val chain = keyStore.getCertificateChain(keyAlias)
+    /**
+     * Looks the fingerprint up in memory, then in the fingerprint stored along with the bundle, and lastly
+     * derives it from the keystore for bundles that were stored before fingerprints were
+     */
+    override fun validateSignature(
+        signature: String,
+        applicationId: String,
+        version: Int,
+        variant: String): BundleManager.Result = metrics.time(Metrics.Stage.VALIDATE_SIGNATURE) {
+        val bundleId = DownloadKey.bundleId(applicationId, version, variant)
+        val cachedFingerPrint = synchronized(signatureFingerprints) { signatureFingerprints[bundleId] }
+        metrics.cacheLookup(CACHE_SIGNATURE_FINGERPRINTS, cachedFingerPrint != null)
+        val fingerPrint = cachedFingerPrint ?: run {
+            val fingerprintFileName = getFinalFileName(applicationId, version, variant, "fingerprint")
+            val fingerPrint = storageBackend.readBytes(fingerprintFileName)?.toString(Charsets.UTF_8) ?: run {
+                val keystoreFileName = getFinalFileName(applicationId, version, variant, "keystore")
+                val keyStoreBytes = storageBackend.readBytes(keystoreFileName)
 
-        val fingerPrint = getFingerPrintFromSignature(chain)
+                val signingConfigFileName = getFinalFileName(applicationId, version, variant, "json")
+                val signingConfig = storageBackend.readBytes(signingConfigFileName)
+
+                if (keyStoreBytes == null || signingConfig == null) {
+                    return BundleManager.Result.Error.SignatureNotFound(signature)
+                }
+
+                val signingConfigJson = gson.fromJson(signingConfig.toString(Charsets.UTF_8), JsonObject::class.java)
+                val keystorePass = signingConfigJson.get("storePassword")?.asString
+                    ?: return BundleManager.Result.Error.KeystorePassMissing
+                val keyAlias = signingConfigJson.get("keyAlias")?.asString
+                    ?: return BundleManager.Result.Error.KeyAliasMissing
+
+                signatureFingerprint(keyStoreBytes.inputStream(), keystorePass, keyAlias)
+                    ?: return BundleManager.Result.Error.SignatureNotFound(signature)
+            }
+            synchronized(signatureFingerprints) { signatureFingerprints[bundleId] = fingerPrint }
+            fingerPrint
+        }
 
         logger.i("Validating signatures, provided: $signature, stored: $fingerPrint")
 
@@ -289,8 +1106,98 @@ internal class BundleManagerImpl(
 
         logger.i("Signature valid")
 
-        return BundleManager.Result.Success(keyStoreFile)
+        BundleManager.Result.SignatureValid
+    }
+}
+
+/**
+ * The names of the dynamic features in an APK set, derived from its split APKs which are named
+ * splits/<module>-<config>.apk
+ */
+private fun Path.dynamicFeatures(): List<String> = ZipFile(toFile()).use { zipFile ->
+    zipFile.entries().asSequence()
+        .map { entry -> entry.name }
+        .filter { name -> name.startsWith(SPLITS_DIRECTORY) && name.endsWith(".apk") }
+        .map { name -> name.removePrefix(SPLITS_DIRECTORY).substringBefore("-").removeSuffix(".apk") }
+        .filter { module -> module != BASE_MODULE }
+        .distinct()
+        .sorted()
+        .toList()
+}
+
+private fun StorageBackend.readBytes(name: String): ByteArray? =
+    openRead(name)?.use { channel -> Channels.newInputStream(channel).readBytes() }
+
+private fun Path.map(): MappedByteBuffer = FileChannel.open(this, StandardOpenOption.READ).use { channel ->
+    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+}
+
+/**
+ * Throws [BoundExceededException] once [maxSize] bytes or more have been written to it
+ */
+private class BoundedByteArrayOutputStream(private val maxSize: Long) : ByteArrayOutputStream() {
+    class BoundExceededException : IOException()
+
+    override fun write(b: Int) {
+        checkBound(1)
+        super.write(b)
     }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        checkBound(len)
+        super.write(b, off, len)
+    }
+
+    private fun checkBound(length: Int) {
+        if (count.toLong() + length >= maxSize) {
+            throw BoundExceededException()
+        }
+    }
+}
+
+// Cached in place of patches that are not smaller than their splits, so that they are not attempted again
+private val NO_SMALLER_PATCH = ByteArray(0)
+
+private const val SPLITS_DIRECTORY = "splits/"
+private const val BASE_MODULE = "base"
+private const val TABLE_OF_CONTENTS = "toc.pb"
+private const val MAX_APK_SET_INDEXES = 16
+private const val MAX_TABLES_OF_CONTENTS = 64
+private const val MAX_SPLIT_PATCHES = 64
+private const val MAX_SPLIT_PATCHES_SIZE_BYTES = 32L * 1024 * 1024
+private const val MAX_SIGNATURE_FINGERPRINTS = 1024
+private const val MAX_DOWNLOAD_KEYS = 1024
+private const val STAGING_SUFFIX = ".staging"
+private const val BACKUP_SUFFIX = ".backup"
+private const val CACHE_SPLITS = "splits"
+private const val CACHE_TABLES_OF_CONTENTS = "tables_of_contents"
+private const val CACHE_SIGNATURE_FINGERPRINTS = "signature_fingerprints"
+
+private val WARM_UP_EXECUTOR: Executor by lazy {
+    Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "GloballyDynamicWarmUp").apply { isDaemon = true }
+    }
+}
+
+private val PERSISTENCE_EXECUTOR: ExecutorService by lazy {
+    val threadCount = AtomicInteger()
+    Executors.newCachedThreadPool { runnable ->
+        Thread(runnable, "GloballyDynamicPersistence-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+    }
+}
+
+internal val DEFAULT_BUNDLETOOL_EXECUTOR_SERVICE: ListeningExecutorService by lazy {
+    bundletoolExecutorService(Runtime.getRuntime().availableProcessors())
+}
+
+/**
+ * A pool of [threads] daemon threads for bundletool to build APKs on, shared by all uploads
+ */
+internal fun bundletoolExecutorService(threads: Int): ListeningExecutorService {
+    val threadCount = AtomicInteger()
+    return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads) { runnable ->
+        Thread(runnable, "GloballyDynamicBundletool-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+    })
 }
 
 private fun getFingerPrintFromSignature(signatures: Array<Certificate>): String? {
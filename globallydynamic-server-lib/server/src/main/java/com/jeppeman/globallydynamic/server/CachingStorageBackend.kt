@@ -0,0 +1,279 @@
+package com.jeppeman.globallydynamic.server
+
+import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import java.io.InputStream
+import java.net.URLDecoder
+import java.net.URLEncoder
+import java.nio.channels.FileChannel
+import java.nio.channels.SeekableByteChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * A read-through cache in front of another [StorageBackend], typically a remote one.
+ *
+ * Retrieved files are kept on local disk and validated against [StorageBackend.stat] of the
+ * underlying backend on every read, so that overwritten files are fetched anew. Files are evicted in
+ * least recently used order once their total size exceeds [maxSizeBytes]. Concurrent reads of a file
+ * that is not yet cached wait for a single fetch.
+ *
+ * Cached files are never handed out directly, since they may be evicted while still being read. They are
+ * pinned while [openRead] opens them or [retrieveFile] copies or links them elsewhere, and files that are
+ * evicted while pinned are deleted once the last pin is released.
+ */
+class CachingStorageBackend private constructor(
+    internal val storageBackend: StorageBackend,
+    private val cachePath: Path,
+    private val maxSizeBytes: Long,
+    internal val scratchPath: Path
+) : StorageBackend {
+    private class Entry(val path: Path, val hash: String, val size: Long)
+
+    private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private val fetches = SingleFlight<String, Path?>()
+    private val pins = HashMap<Path, Int>()
+    private val pendingDeletions = HashSet<Path>()
+    private var totalSizeBytes = 0L
+
+    private val scratchSpace = ScratchSpace.unswept(scratchPath)
+
+    init {
+        Files.createDirectories(cachePath)
+        restore()
+    }
+
+    private fun String.encoded() = URLEncoder.encode(this, Charsets.UTF_8.name())
+
+    private fun String.decoded() = URLDecoder.decode(this, Charsets.UTF_8.name())
+
+    private fun restore() {
+        Files.list(cachePath).use { paths ->
+            paths.sorted(Comparator.comparing { path: Path -> Files.getLastModifiedTime(path) })
+                .forEach { path ->
+                    val parts = path.fileName.toString().split(HASH_SEPARATOR)
+                    if (parts.size == 2 && !path.toString().endsWith(PARTIAL_SUFFIX) && Files.isRegularFile(path)) {
+                        val entry = Entry(path, parts[1].decoded(), Files.size(path))
+                        entries[parts[0].decoded()] = entry
+                        totalSizeBytes += entry.size
+                    } else {
+                        path.deleteCompletely()
+                    }
+                }
+        }
+        evict()
+    }
+
+    private fun pin(path: Path, count: Int = 1) {
+        pins[path] = (pins[path] ?: 0) + count
+    }
+
+    @Synchronized
+    private fun release(path: Path) {
+        val count = (pins[path] ?: return) - 1
+        if (count > 0) {
+            pins[path] = count
+        } else {
+            pins.remove(path)
+            if (pendingDeletions.remove(path)) {
+                path.deleteCompletely()
+            }
+        }
+    }
+
+    private fun delete(path: Path) {
+        if (pins.containsKey(path)) {
+            pendingDeletions.add(path)
+        } else {
+            path.deleteCompletely()
+        }
+    }
+
+    private fun evict() {
+        val iterator = entries.values.iterator()
+        while (totalSizeBytes > maxSizeBytes && iterator.hasNext()) {
+            val entry = iterator.next()
+            iterator.remove()
+            totalSizeBytes -= entry.size
+            delete(entry.path)
+        }
+    }
+
+    @Synchronized
+    private fun cached(name: String, hash: String): Path? = entries[name]
+        ?.takeIf { entry -> entry.hash == hash && Files.exists(entry.path) }
+        ?.path
+        ?.also { path -> pin(path) }
+
+    /**
+     * Pins the registered file for the fetching reader before it can be evicted
+     */
+    @Synchronized
+    private fun register(name: String, path: Path, hash: String): Path {
+        entries.remove(name)?.let { previous ->
+            totalSizeBytes -= previous.size
+            if (previous.path != path) {
+                delete(previous.path)
+            }
+        }
+        pendingDeletions.remove(path)
+        pin(path)
+        val entry = Entry(path, hash, Files.size(path))
+        entries[name] = entry
+        totalSizeBytes += entry.size
+        evict()
+        return path
+    }
+
+    @Synchronized
+    private fun share(path: Path?, followers: Int) {
+        if (path != null && followers > 0) {
+            pin(path, followers)
+        }
+    }
+
+    @Synchronized
+    private fun invalidate(name: String) {
+        entries.remove(name)?.let { entry ->
+            totalSizeBytes -= entry.size
+            delete(entry.path)
+        }
+    }
+
+    private fun fetch(name: String, stat: StorageBackend.Stat): Path? {
+        val path = cachePath.resolve("${name.encoded()}$HASH_SEPARATOR${stat.hash.encoded()}")
+        val partialPath = cachePath.resolve("${path.fileName}$PARTIAL_SUFFIX")
+        return try {
+            if (storageBackend.retrieveFile(name, partialPath)) {
+                Files.move(partialPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                register(name, path, stat.hash)
+            } else {
+                null
+            }
+        } finally {
+            partialPath.deleteCompletely()
+        }
+    }
+
+    /**
+     * Returns the cached file for [name] pinned, fetching it if needed, the caller must [release] it
+     */
+    private fun retrievePinned(name: String): Path? {
+        val stat = storageBackend.stat(name) ?: return null
+        cached(name, stat.hash)?.let { return it }
+
+        return fetches.execute("$name$HASH_SEPARATOR${stat.hash}", share = ::share) {
+            // Another reader may have completed the fetch between the lookup above and joining this one
+            cached(name, stat.hash) ?: fetch(name, stat)
+        }
+    }
+
+    private inline fun <T> withPinned(name: String, block: (Path) -> T): T? {
+        val path = retrievePinned(name) ?: return null
+        return try {
+            block(path)
+        } finally {
+            release(path)
+        }
+    }
+
+    /**
+     * Returns a link to, or if links are not supported a copy of, the cached file, which stays intact if
+     * the cached file is evicted and is left to the scratch space sweeper, since the caller does not
+     * know to delete it
+     */
+    override fun retrieveFile(name: String): Path? = withPinned(name) { path ->
+        val link = scratchSpace.createTempDirectory("CachingStorageBackend").resolve(name.encoded())
+        try {
+            Files.createLink(link, path)
+        } catch (exception: Exception) {
+            Files.copy(path, link)
+        }
+        link
+    }
+
+    override fun retrieveFile(name: String, destination: Path): Boolean = withPinned(name) { path ->
+        Files.copy(path, destination, StandardCopyOption.REPLACE_EXISTING)
+        true
+    } ?: false
+
+    // An open channel keeps reading the file even if it is evicted and deleted afterwards
+    override fun openRead(name: String): SeekableByteChannel? = withPinned(name) { path ->
+        FileChannel.open(path, StandardOpenOption.READ)
+    }
+
+    override fun storeFile(name: String, contentType: String, inputStream: InputStream) {
+        invalidate(name)
+        storageBackend.storeFile(name, contentType, inputStream)
+    }
+
+    override fun deleteFile(name: String) {
+        invalidate(name)
+        storageBackend.deleteFile(name)
+    }
+
+    override fun moveFile(source: String, destination: String, contentType: String) {
+        invalidate(source)
+        invalidate(destination)
+        storageBackend.moveFile(source, destination, contentType)
+    }
+
+    override fun copyFile(source: String, destination: String, contentType: String) {
+        invalidate(destination)
+        storageBackend.copyFile(source, destination, contentType)
+    }
+
+    override fun exists(name: String): Boolean = storageBackend.exists(name)
+
+    override fun stat(name: String): StorageBackend.Stat? = storageBackend.stat(name)
+
+    override fun toString(): String {
+        return "CachingStorageBackend(storageBackend=$storageBackend, cachePath=$cachePath, maxSizeBytes=$maxSizeBytes)"
+    }
+
+    fun newBuilder(): Builder = Builder(this)
+
+    class Builder internal constructor() {
+        @set:JvmSynthetic
+        var storageBackend: StorageBackend? = null
+
+        @set:JvmSynthetic
+        var cachePath: Path = Paths.get(System.getProperty("java.io.tmpdir"), "globallydynamic", "storage-cache")
+
+        @set:JvmSynthetic
+        var maxSizeBytes: Long = 0
+
+        /**
+         * Where retrieved files are linked or copied to, see [GloballyDynamicServer.Configuration.scratchPath]
+         */
+        @set:JvmSynthetic
+        var scratchPath: Path = ScratchSpace.DEFAULT_PATH
+
+        internal constructor(cachingStorageBackend: CachingStorageBackend) : this() {
+            storageBackend = cachingStorageBackend.storageBackend
+            cachePath = cachingStorageBackend.cachePath
+            maxSizeBytes = cachingStorageBackend.maxSizeBytes
+            scratchPath = cachingStorageBackend.scratchPath
+        }
+
+        fun setStorageBackend(storageBackend: StorageBackend) = apply { this.storageBackend = storageBackend }
+        fun setCachePath(cachePath: Path) = apply { this.cachePath = cachePath }
+        fun setMaxSizeBytes(maxSizeBytes: Long) = apply { this.maxSizeBytes = maxSizeBytes }
+        fun setScratchPath(scratchPath: Path) = apply { this.scratchPath = scratchPath }
+
+        fun build(): CachingStorageBackend {
+            val storageBackend = requireNotNull(this.storageBackend)
+            require(maxSizeBytes > 0) { "maxSizeBytes must be positive, got $maxSizeBytes" }
+            return CachingStorageBackend(storageBackend, cachePath, maxSizeBytes, scratchPath)
+        }
+    }
+
+    companion object {
+        private const val HASH_SEPARATOR = "@"
+        private const val PARTIAL_SUFFIX = ".part"
+
+        fun builder(): Builder = Builder()
+    }
+}
@@ -0,0 +1,274 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.gson.Gson
+import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import java.io.IOException
+import java.io.InputStream
+import java.net.URLEncoder
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.SeekableByteChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+/**
+ * Stores the entries of APK sets in another [StorageBackend] once by their SHA-256, as blobs named
+ * sha256-<digest>.blob, and the APK sets themselves as small manifests that list the blobs that they are
+ * made up of. Splits that are unchanged between versions or variants are thereby stored, and uploaded to
+ * the underlying backend, only once.
+ *
+ * APK sets are reassembled from their blobs into the scratch space when they are first retrieved, and kept
+ * there for as long as their manifest is unchanged and the scratch space does not sweep them. All other
+ * files, as well as APK sets that were stored before this backend was put in place, are passed through as
+ * they are, including their streaming reads and writes. Blobs are never deleted, since they may be shared
+ * between APK sets.
+ */
+class ContentAddressedStorageBackend private constructor(
+    internal val storageBackend: StorageBackend,
+    internal val scratchPath: Path,
+    private val gson: Gson = Gson()
+) : StorageBackend {
+    private class Manifest(val entries: List<Entry>)
+
+    private class Entry(val name: String, val blob: String, val size: Long, val crc: Long, val method: Int)
+
+    private val assemblies = SingleFlight<String, Path?>()
+    private val assembled = HashMap<String, Path>()
+
+    private val scratchSpace = ScratchSpace.unswept(scratchPath)
+
+    private fun String.isApkSet() = endsWith(APK_SET_SUFFIX)
+
+    private fun String.encoded() = URLEncoder.encode(this, Charsets.UTF_8.name())
+
+    override fun storeFile(name: String, contentType: String, inputStream: InputStream) {
+        if (!name.isApkSet()) {
+            storageBackend.storeFile(name, contentType, inputStream)
+            return
+        }
+
+        scratchSpace.withWorkspace("ContentAddressedStorageBackend") { tempDir ->
+            val apkSet = tempDir.resolve(name)
+            inputStream.use { Files.copy(it, apkSet, StandardCopyOption.REPLACE_EXISTING) }
+            storeApkSet(name, apkSet, tempDir)
+        }
+    }
+
+    /**
+     * Stores the entries of [apkSet] that are not yet stored as blobs, and then its manifest as [name]
+     */
+    private fun storeApkSet(name: String, apkSet: Path, tempDir: Path) {
+        val manifest = ZipFile(apkSet.toFile()).use { zipFile ->
+            Manifest(zipFile.entries().asSequence().filter { entry -> !entry.isDirectory }.map { entry ->
+                val blobPath = tempDir.resolve("blob")
+                val messageDigest = MessageDigest.getInstance("SHA-256")
+                val crc = CRC32()
+                zipFile.getInputStream(entry).use { entryInputStream ->
+                    Files.newOutputStream(blobPath).use { outputStream ->
+                        val buffer = ByteArray(BUFFER_SIZE)
+                        var read = entryInputStream.read(buffer)
+                        while (read != -1) {
+                            messageDigest.update(buffer, 0, read)
+                            crc.update(buffer, 0, read)
+                            outputStream.write(buffer, 0, read)
+                            read = entryInputStream.read(buffer)
+                        }
+                    }
+                }
+                val blob = "$BLOB_PREFIX${messageDigest.digest().joinToString("") { "%02x".format(it) }}$BLOB_SUFFIX"
+                if (!storageBackend.exists(blob)) {
+                    storageBackend.storeFile(blob, CONTENT_TYPE_BLOB, Files.newInputStream(blobPath))
+                }
+                Entry(entry.name, blob, Files.size(blobPath), crc.value, entry.method)
+            }.toList())
+        }
+        storageBackend.storeFile(name, CONTENT_TYPE_MANIFEST, gson.toJson(manifest).byteInputStream())
+    }
+
+    override fun retrieveFile(name: String): Path? {
+        if (!name.isApkSet()) {
+            return storageBackend.retrieveFile(name)
+        }
+
+        val stat = storageBackend.stat(name) ?: return null
+        val key = "${name.encoded()}$HASH_SEPARATOR${stat.hash.encoded()}"
+        assembledPath(key)?.let { return it }
+
+        return assemblies.execute(key) {
+            assembledPath(key) ?: assemble(name, key)
+        }
+    }
+
+    /**
+     * The assembly for [key] if it has not been swept, which is kept from being swept for as long as it is used
+     */
+    private fun assembledPath(key: String): Path? {
+        val path = synchronized(assembled) { assembled[key] } ?: return null
+        return try {
+            Files.setLastModifiedTime(path.parent, FileTime.fromMillis(System.currentTimeMillis()))
+            path.takeIf(Files::exists)
+        } catch (exception: IOException) {
+            null
+        }
+    }
+
+    /**
+     * Reassembles the APK set [name] into a directory of the scratch space if it is stored as a manifest,
+     * otherwise returns it as it is
+     */
+    private fun assemble(name: String, key: String): Path? {
+        val stored = storageBackend.retrieveFile(name) ?: return null
+        if (Files.newInputStream(stored).use { it.read() } != MANIFEST_START.code) {
+            return stored
+        }
+
+        val manifest = gson.fromJson(String(Files.readAllBytes(stored), Charsets.UTF_8), Manifest::class.java)
+        val directory = scratchSpace.createTempDirectory("ContentAddressedStorageBackend")
+        val path = directory.resolve(key)
+        try {
+            ZipOutputStream(Files.newOutputStream(path)).use { zipOutputStream ->
+                manifest.entries.forEach { entry ->
+                    val blob = storageBackend.openRead(entry.blob)
+                        ?: throw IllegalStateException("Blob ${entry.blob} of $name is missing")
+                    Channels.newInputStream(blob).use { blobInputStream ->
+                        zipOutputStream.putNextEntry(ZipEntry(entry.name).apply {
+                            method = entry.method
+                            if (entry.method == ZipEntry.STORED) {
+                                size = entry.size
+                                compressedSize = entry.size
+                                crc = entry.crc
+                            }
+                        })
+                        blobInputStream.copyTo(zipOutputStream)
+                    }
+                    zipOutputStream.closeEntry()
+                }
+            }
+        } catch (throwable: Throwable) {
+            directory.deleteCompletely()
+            throw throwable
+        }
+
+        // Earlier assemblies of the same APK set are stale now
+        val prefix = "${name.encoded()}$HASH_SEPARATOR"
+        val stale = synchronized(assembled) {
+            assembled.keys.filter { other -> other.startsWith(prefix) }
+                .mapNotNull { other -> assembled.remove(other) }
+                .also { assembled[key] = path }
+        }
+        stale.forEach { other -> other.parent.deleteCompletely() }
+
+        return path
+    }
+
+    override fun openRead(name: String): SeekableByteChannel? = if (name.isApkSet()) {
+        retrieveFile(name)?.let { file -> FileChannel.open(file, StandardOpenOption.READ) }
+    } else {
+        storageBackend.openRead(name)
+    }
+
+    /**
+     * APK sets are written to a workspace and split into blobs once the channel is closed
+     */
+    override fun openWrite(name: String, contentType: String): WritableByteChannel {
+        if (!name.isApkSet()) {
+            return storageBackend.openWrite(name, contentType)
+        }
+
+        val workspace = scratchSpace.workspace("ContentAddressedStorageBackend")
+        val apkSet = workspace.path.resolve(name)
+        val channel = try {
+            FileChannel.open(apkSet, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+        } catch (exception: IOException) {
+            workspace.close()
+            throw exception
+        }
+        return object : WritableByteChannel by channel {
+            override fun close() {
+                if (!channel.isOpen) {
+                    return
+                }
+                try {
+                    channel.close()
+                    storeApkSet(name, apkSet, workspace.path)
+                } finally {
+                    workspace.close()
+                }
+            }
+        }
+    }
+
+    override fun retrieveFile(name: String, destination: Path): Boolean {
+        val file = retrieveFile(name) ?: return false
+        Files.copy(file, destination, StandardCopyOption.REPLACE_EXISTING)
+        return true
+    }
+
+    override fun deleteFile(name: String) = storageBackend.deleteFile(name)
+
+    /**
+     * APK sets are moved as their manifests, the blobs that they refer to stay where they are
+     */
+    override fun moveFile(source: String, destination: String, contentType: String) =
+        storageBackend.moveFile(source, destination, contentType)
+
+    /**
+     * APK sets are copied as their manifests, the blobs that they refer to are shared
+     */
+    override fun copyFile(source: String, destination: String, contentType: String) =
+        storageBackend.copyFile(source, destination, contentType)
+
+    override fun exists(name: String): Boolean = storageBackend.exists(name)
+
+    override fun stat(name: String): StorageBackend.Stat? = storageBackend.stat(name)
+
+    override fun toString(): String {
+        return "ContentAddressedStorageBackend(storageBackend=$storageBackend)"
+    }
+
+    fun newBuilder(): Builder = Builder(this)
+
+    class Builder internal constructor() {
+        @set:JvmSynthetic
+        var storageBackend: StorageBackend? = null
+
+        /**
+         * Where APK sets are reassembled, see [GloballyDynamicServer.Configuration.scratchPath]
+         */
+        @set:JvmSynthetic
+        var scratchPath: Path = ScratchSpace.DEFAULT_PATH
+
+        internal constructor(contentAddressedStorageBackend: ContentAddressedStorageBackend) : this() {
+            storageBackend = contentAddressedStorageBackend.storageBackend
+            scratchPath = contentAddressedStorageBackend.scratchPath
+        }
+
+        fun setStorageBackend(storageBackend: StorageBackend) = apply { this.storageBackend = storageBackend }
+        fun setScratchPath(scratchPath: Path) = apply { this.scratchPath = scratchPath }
+
+        fun build(): ContentAddressedStorageBackend =
+            ContentAddressedStorageBackend(requireNotNull(storageBackend), scratchPath)
+    }
+
+    companion object {
+        private const val APK_SET_SUFFIX = ".apks"
+        private const val BLOB_PREFIX = "sha256-"
+        private const val BLOB_SUFFIX = ".blob"
+        private const val CONTENT_TYPE_BLOB = "application/octet-stream"
+        private const val CONTENT_TYPE_MANIFEST = "application/json"
+        private const val MANIFEST_START = '{'
+        private const val HASH_SEPARATOR = "@"
+        private const val BUFFER_SIZE = 64 * 1024
+
+        fun builder(): Builder = Builder()
+    }
+}
@@ -0,0 +1,43 @@
+package com.jeppeman.globallydynamic.server
+
+import com.android.bundle.Devices
+
+/**
+ * A class of devices for which split archives can be generated ahead of the first download, see
+ * [GloballyDynamicServer.Configuration.Builder.addWarmUpDeviceClasses]
+ */
+class DeviceClass(
+    val abi: String,
+    val screenDensity: Int,
+    val sdkVersion: Int,
+    val locales: List<String>
+) {
+    internal fun toDeviceSpec(): Devices.DeviceSpec = Devices.DeviceSpec.newBuilder()
+        .addSupportedAbis(abi)
+        .addAllSupportedLocales(locales)
+        .setScreenDensity(screenDensity)
+        .setSdkVersion(sdkVersion)
+        .build()
+
+    override fun toString(): String {
+        return "DeviceClass(abi=$abi, screenDensity=$screenDensity, sdkVersion=$sdkVersion, locales=$locales)"
+    }
+
+    companion object {
+        /**
+         * Every combination of [abis], [screenDensities] and [sdkVersions], each with the given [locales]
+         */
+        fun combinations(
+            abis: List<String>,
+            screenDensities: List<Int>,
+            sdkVersions: List<Int>,
+            locales: List<String>
+        ): List<DeviceClass> = abis.flatMap { abi ->
+            screenDensities.flatMap { screenDensity ->
+                sdkVersions.map { sdkVersion ->
+                    DeviceClass(abi, screenDensity, sdkVersion, locales)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.jeppeman.globallydynamic.server
+
+import com.android.bundle.Devices
+import java.security.MessageDigest
+
+/**
+ * Canonical identity of a split download, two requests that would produce the same splits
+ * archive yield equal keys regardless of the order in which features, languages etc. were given.
+ * [apkSetHash] identifies the content of the APK set that the archive is generated from, see
+ * [StorageBackend.stat]
+ *
+ * If the paths of the [apks] that the request resolves to within the APK set are given, the key is
+ * reduced to them, since they are all that the archive is made of. Devices that differ only in what
+ * the APK set does not target, e.g. in densities within the same density split or in locales that
+ * there are no splits for, then share keys
+ */
+internal class DownloadKey(
+    val applicationId: String,
+    val version: Int,
+    val variant: String,
+    deviceSpec: Devices.DeviceSpec,
+    features: Array<String>,
+    languages: Array<String>,
+    val includeMissing: Boolean,
+    val apkSetHash: String = "",
+    apks: List<String>? = null
+) {
+    val deviceSpec: Devices.DeviceSpec = deviceSpec.normalized()
+    val features: List<String> = features.filter(String::isNotBlank).distinct().sorted()
+    val languages: List<String> = languages.filter(String::isNotBlank).distinct().sorted()
+    val apks: List<String>? = apks?.distinct()?.sorted()
+
+    val bundleId: String get() = bundleId(applicationId, version, variant)
+
+    /**
+     * A 128 bit fingerprint of the canonical form of the key
+     */
+    val hash: String by lazy {
+        val canonical = listOf(
+            "applicationId=$applicationId",
+            "version=$version",
+            "variant=$variant",
+            "apkSetHash=$apkSetHash"
+        ) + (this.apks?.let { apks -> listOf("apks=${apks.joinToString(",")}") } ?: listOf(
+            "abis=${this.deviceSpec.supportedAbisList.joinToString(",")}",
+            "locales=${this.deviceSpec.supportedLocalesList.joinToString(",")}",
+            "deviceFeatures=${this.deviceSpec.deviceFeaturesList.joinToString(",")}",
+            "glExtensions=${this.deviceSpec.glExtensionsList.joinToString(",")}",
+            "screenDensity=${this.deviceSpec.screenDensity}",
+            "sdkVersion=${this.deviceSpec.sdkVersion}",
+            "features=${this.features.joinToString(",")}",
+            "languages=${this.languages.joinToString(",")}",
+            "includeMissing=$includeMissing"
+        ))
+
+        MessageDigest.getInstance("SHA-256")
+            .digest(canonical.joinToString("\n").toByteArray(Charsets.UTF_8))
+            .copyOf(HASH_BYTES)
+            .joinToString("") { byte -> "%02x".format(byte) }
+    }
+
+    /**
+     * A strong validator of the archive, which is byte for byte reproducible from the same inputs
+     */
+    val etag: String get() = "\"$hash\""
+
+    override fun equals(other: Any?): Boolean = other is DownloadKey && other.hash == hash
+
+    override fun hashCode(): Int = hash.hashCode()
+
+    override fun toString(): String = "DownloadKey(bundleId=$bundleId, hash=$hash)"
+
+    companion object {
+        private const val HASH_BYTES = 16
+
+        fun bundleId(applicationId: String, version: Int, variant: String) = "${applicationId}_${variant}_$version"
+    }
+}
+
+/**
+ * ABIs are kept in the order given since it denotes preference, everything else is sorted and de-duplicated
+ */
+private fun Devices.DeviceSpec.normalized(): Devices.DeviceSpec = Devices.DeviceSpec.newBuilder()
+    .addAllSupportedAbis(supportedAbisList.filter(String::isNotBlank).distinct())
+    .addAllSupportedLocales(supportedLocalesList.filter(String::isNotBlank).distinct().sorted())
+    .addAllDeviceFeatures(deviceFeaturesList.filter(String::isNotBlank).distinct().sorted())
+    .addAllGlExtensions(glExtensionsList.filter(String::isNotBlank).distinct().sorted())
+    .setScreenDensity(screenDensity)
+    .setSdkVersion(sdkVersion)
+    .build()
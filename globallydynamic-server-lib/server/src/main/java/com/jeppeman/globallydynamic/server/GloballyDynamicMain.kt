@@ -11,9 +11,45 @@ private const val ARG_STORAGE_BACKEND = "--storage-backend"
 private const val ARG_LOCAL_STORAGE_PATH = "--local-storage-path"
 private const val ARG_GCP_BUCKET_ID = "--gcp-bucket-id"
 private const val ARG_S3_BUCKET_ID = "--s3-bucket-id"
+private const val ARG_S3_ENDPOINT = "--s3-endpoint"
+private const val ARG_S3_PART_SIZE = "--s3-part-size"
+private const val ARG_S3_UPLOAD_PARALLELISM = "--s3-upload-parallelism"
+private const val ARG_GCP_STORAGE_HOST = "--gcp-storage-host"
+private const val ARG_GCP_CHUNK_SIZE = "--gcp-chunk-size"
 private const val ARG_OVERRIDE_EXISTING_BUNDLES = "--override-existing-bundles"
 private const val ARG_VALIDATE_SIGNATURE_ON_DOWNLOAD = "--validate-signature-on-download"
 private const val ARG_HOST_ADDRESS = "--host-address"
+private const val ARG_SPLITS_CACHE_PATH = "--splits-cache-path"
+private const val ARG_SPLITS_CACHE_MAX_SIZE = "--splits-cache-max-size"
+private const val ARG_STORAGE_CACHE_PATH = "--storage-cache-path"
+private const val ARG_STORAGE_CACHE_MAX_SIZE = "--storage-cache-max-size"
+private const val ARG_CONTENT_ADDRESSED_STORAGE = "--content-addressed-storage"
+private const val ARG_MAX_EGRESS_BANDWIDTH = "--max-egress-bandwidth"
+private const val ARG_STREAM_SPLITS = "--stream-splits"
+private const val ARG_WARM_UP_ABIS = "--warm-up-abis"
+private const val ARG_WARM_UP_SCREEN_DENSITIES = "--warm-up-screen-densities"
+private const val ARG_WARM_UP_SDK_VERSIONS = "--warm-up-sdk-versions"
+private const val ARG_WARM_UP_LOCALES = "--warm-up-locales"
+private const val ARG_MAX_CONCURRENT_UPLOADS = "--max-concurrent-uploads"
+private const val ARG_MAX_QUEUED_UPLOADS = "--max-queued-uploads"
+private const val ARG_BUNDLETOOL_THREADS = "--bundletool-threads"
+private const val ARG_SCRATCH_PATH = "--scratch-path"
+private const val ARG_SCRATCH_MAX_SIZE = "--scratch-max-size"
+private const val ARG_SCRATCH_TTL = "--scratch-ttl"
+private const val ARG_LOG_LEVEL = "--log-level"
+private const val ARG_LOG_FORMAT = "--log-format"
+private const val ARG_ASYNC_LOGGING = "--async-logging"
+private const val ARG_LOG_BUFFER_SIZE = "--log-buffer-size"
+private const val ARG_LOG_SAMPLE_RATES = "--log-sample-rates"
+private const val ARG_MIN_THREADS = "--min-threads"
+private const val ARG_MAX_THREADS = "--max-threads"
+private const val ARG_MAX_QUEUED_REQUESTS = "--max-queued-requests"
+private const val ARG_ACCEPTORS = "--acceptors"
+private const val ARG_SELECTORS = "--selectors"
+private const val ARG_IDLE_TIMEOUT = "--idle-timeout"
+private const val ARG_OUTPUT_BUFFER_SIZE = "--output-buffer-size"
+private const val ARG_HTTP2 = "--http2"
+private const val ARG_VIRTUAL_THREADS = "--virtual-threads"
 
 private const val ENV_VAR_PREFIX = "GLOBALLY_DYNAMIC_"
 private const val ENV_PORT = "${ENV_VAR_PREFIX}PORT"
@@ -24,9 +60,51 @@ private const val ENV_STORAGE_BACKEND = "${ENV_VAR_PREFIX}STORAGE_BACKEND"
 private const val ENV_LOCAL_STORAGE_PATH = "${ENV_VAR_PREFIX}LOCAL_STORAGE_PATH"
 private const val ENV_GCP_BUCKET_ID = "${ENV_VAR_PREFIX}GCP_BUCKET_ID"
 private const val ENV_S3_BUCKET_ID = "${ENV_VAR_PREFIX}S3_BUCKET_ID"
+private const val ENV_S3_ENDPOINT = "${ENV_VAR_PREFIX}S3_ENDPOINT"
+private const val ENV_S3_PART_SIZE = "${ENV_VAR_PREFIX}S3_PART_SIZE"
+private const val ENV_S3_UPLOAD_PARALLELISM = "${ENV_VAR_PREFIX}S3_UPLOAD_PARALLELISM"
+private const val ENV_GCP_STORAGE_HOST = "${ENV_VAR_PREFIX}GCP_STORAGE_HOST"
+private const val ENV_GCP_CHUNK_SIZE = "${ENV_VAR_PREFIX}GCP_CHUNK_SIZE"
 private const val ENV_OVERRIDE_EXISTING_BUNDLES = "${ENV_VAR_PREFIX}OVERRIDE_EXISTING_BUNDLES"
 private const val ENV_VALIDATE_SIGNATURE_ON_DOWNLOAD = "${ENV_VAR_PREFIX}VALIDATE_SIGNATURE_ON_DOWNLOAD"
 private const val ENV_HOST_ADDRESS = "${ENV_VAR_PREFIX}HOST_ADDRESS"
+private const val ENV_SPLITS_CACHE_PATH = "${ENV_VAR_PREFIX}SPLITS_CACHE_PATH"
+private const val ENV_SPLITS_CACHE_MAX_SIZE = "${ENV_VAR_PREFIX}SPLITS_CACHE_MAX_SIZE"
+private const val ENV_STORAGE_CACHE_PATH = "${ENV_VAR_PREFIX}STORAGE_CACHE_PATH"
+private const val ENV_STORAGE_CACHE_MAX_SIZE = "${ENV_VAR_PREFIX}STORAGE_CACHE_MAX_SIZE"
+private const val ENV_CONTENT_ADDRESSED_STORAGE = "${ENV_VAR_PREFIX}CONTENT_ADDRESSED_STORAGE"
+private const val ENV_MAX_EGRESS_BANDWIDTH = "${ENV_VAR_PREFIX}MAX_EGRESS_BANDWIDTH"
+private const val ENV_STREAM_SPLITS = "${ENV_VAR_PREFIX}STREAM_SPLITS"
+private const val ENV_WARM_UP_ABIS = "${ENV_VAR_PREFIX}WARM_UP_ABIS"
+private const val ENV_WARM_UP_SCREEN_DENSITIES = "${ENV_VAR_PREFIX}WARM_UP_SCREEN_DENSITIES"
+private const val ENV_WARM_UP_SDK_VERSIONS = "${ENV_VAR_PREFIX}WARM_UP_SDK_VERSIONS"
+private const val ENV_WARM_UP_LOCALES = "${ENV_VAR_PREFIX}WARM_UP_LOCALES"
+private const val ENV_MAX_CONCURRENT_UPLOADS = "${ENV_VAR_PREFIX}MAX_CONCURRENT_UPLOADS"
+private const val ENV_MAX_QUEUED_UPLOADS = "${ENV_VAR_PREFIX}MAX_QUEUED_UPLOADS"
+private const val ENV_BUNDLETOOL_THREADS = "${ENV_VAR_PREFIX}BUNDLETOOL_THREADS"
+private const val ENV_SCRATCH_PATH = "${ENV_VAR_PREFIX}SCRATCH_PATH"
+private const val ENV_SCRATCH_MAX_SIZE = "${ENV_VAR_PREFIX}SCRATCH_MAX_SIZE"
+private const val ENV_SCRATCH_TTL = "${ENV_VAR_PREFIX}SCRATCH_TTL"
+private const val ENV_LOG_LEVEL = "${ENV_VAR_PREFIX}LOG_LEVEL"
+private const val ENV_LOG_FORMAT = "${ENV_VAR_PREFIX}LOG_FORMAT"
+private const val ENV_ASYNC_LOGGING = "${ENV_VAR_PREFIX}ASYNC_LOGGING"
+private const val ENV_LOG_BUFFER_SIZE = "${ENV_VAR_PREFIX}LOG_BUFFER_SIZE"
+private const val ENV_LOG_SAMPLE_RATES = "${ENV_VAR_PREFIX}LOG_SAMPLE_RATES"
+private const val ENV_MIN_THREADS = "${ENV_VAR_PREFIX}MIN_THREADS"
+private const val ENV_MAX_THREADS = "${ENV_VAR_PREFIX}MAX_THREADS"
+private const val ENV_MAX_QUEUED_REQUESTS = "${ENV_VAR_PREFIX}MAX_QUEUED_REQUESTS"
+private const val ENV_ACCEPTORS = "${ENV_VAR_PREFIX}ACCEPTORS"
+private const val ENV_SELECTORS = "${ENV_VAR_PREFIX}SELECTORS"
+private const val ENV_IDLE_TIMEOUT = "${ENV_VAR_PREFIX}IDLE_TIMEOUT"
+private const val ENV_OUTPUT_BUFFER_SIZE = "${ENV_VAR_PREFIX}OUTPUT_BUFFER_SIZE"
+private const val ENV_HTTP2 = "${ENV_VAR_PREFIX}HTTP2"
+private const val ENV_VIRTUAL_THREADS = "${ENV_VAR_PREFIX}VIRTUAL_THREADS"
+
+private const val BYTES_PER_MEGABYTE = 1024L * 1024L
+private const val BYTES_PER_KILOBYTE = 1024L
+private const val MILLIS_PER_MINUTE = 60 * 1000L
+private const val MILLIS_PER_SECOND = 1000L
+private const val MAX_UPLOAD_CHUNK_SIZE_MEGABYTES = 1024
 
 internal fun GloballyDynamicServer.Configuration.fromArgs(args: Array<String>): GloballyDynamicServer.Configuration {
     val configurationBuilder = newBuilder()
@@ -40,6 +118,19 @@ internal fun GloballyDynamicServer.Configuration.fromArgs(args: Array<String>):
     var localStoragePathArg: String? = null
     var gcpBucketIdArg: String? = null
     var s3BucketIdArg: String? = null
+    var s3EndpointArg: String? = null
+    var s3PartSizeArg: Int? = null
+    var s3UploadParallelismArg: Int? = null
+    var gcpStorageHostArg: String? = null
+    var gcpChunkSizeArg: Int? = null
+    var storageCachePathArg: String? = null
+    var storageCacheMaxSizeArg: Long? = null
+    var contentAddressedStorageArg: Boolean? = null
+    val warmUpArgs = mutableMapOf<String, String>()
+    var loggerBuilder: Logger.Builder? = null
+    fun loggerBuilder(): Logger.Builder = loggerBuilder
+        ?: ((configurationBuilder.logger as? BuildableLogger)?.newBuilder() ?: Logger.builder())
+            .also { loggerBuilder = it }
 
     for (i in 0 until args.size step 2) {
         when (val argName = args[i]) {
@@ -73,6 +164,30 @@ internal fun GloballyDynamicServer.Configuration.fromArgs(args: Array<String>):
             ARG_S3_BUCKET_ID -> {
                 s3BucketIdArg = tryGetArgValue(ARG_S3_BUCKET_ID, i + 1)
             }
+            ARG_S3_ENDPOINT -> {
+                s3EndpointArg = tryGetArgValue(ARG_S3_ENDPOINT, i + 1)
+            }
+            ARG_S3_PART_SIZE -> {
+                val argValue = tryGetArgValue(ARG_S3_PART_SIZE, i + 1)
+                s3PartSizeArg = argValue.toIntOrNull()?.takeIf { it in 5..MAX_UPLOAD_CHUNK_SIZE_MEGABYTES }
+                    ?: throw IllegalArgumentException("Expected a number between 5 and" +
+                        " $MAX_UPLOAD_CHUNK_SIZE_MEGABYTES as value for argument $ARG_S3_PART_SIZE, got $argValue")
+            }
+            ARG_S3_UPLOAD_PARALLELISM -> {
+                val argValue = tryGetArgValue(ARG_S3_UPLOAD_PARALLELISM, i + 1)
+                s3UploadParallelismArg = argValue.toIntOrNull()?.takeIf { it > 0 }
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_S3_UPLOAD_PARALLELISM, got $argValue")
+            }
+            ARG_GCP_STORAGE_HOST -> {
+                gcpStorageHostArg = tryGetArgValue(ARG_GCP_STORAGE_HOST, i + 1)
+            }
+            ARG_GCP_CHUNK_SIZE -> {
+                val argValue = tryGetArgValue(ARG_GCP_CHUNK_SIZE, i + 1)
+                gcpChunkSizeArg = argValue.toIntOrNull()?.takeIf { it in 1..MAX_UPLOAD_CHUNK_SIZE_MEGABYTES }
+                    ?: throw IllegalArgumentException("Expected a number between 1 and" +
+                        " $MAX_UPLOAD_CHUNK_SIZE_MEGABYTES as value for argument $ARG_GCP_CHUNK_SIZE, got $argValue")
+            }
             ARG_OVERRIDE_EXISTING_BUNDLES -> {
                 configurationBuilder.overrideExistingBundles = tryGetArgValue(ARG_OVERRIDE_EXISTING_BUNDLES, i + 1).toBoolean()
             }
@@ -82,6 +197,155 @@ internal fun GloballyDynamicServer.Configuration.fromArgs(args: Array<String>):
             ARG_HOST_ADDRESS -> {
                 configurationBuilder.hostAddress = tryGetArgValue(ARG_HOST_ADDRESS, i + 1)
             }
+            ARG_SPLITS_CACHE_PATH -> {
+                configurationBuilder.splitsCachePath = tryGetArgValue(ARG_SPLITS_CACHE_PATH, i + 1).toPath()
+            }
+            ARG_SPLITS_CACHE_MAX_SIZE -> {
+                val argValue = tryGetArgValue(ARG_SPLITS_CACHE_MAX_SIZE, i + 1)
+                configurationBuilder.splitsCacheMaxBytes = try {
+                    argValue.toLong() * BYTES_PER_MEGABYTE
+                } catch (numberFormatException: NumberFormatException) {
+                    throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_SPLITS_CACHE_MAX_SIZE, got $argValue")
+                }
+            }
+            ARG_STORAGE_CACHE_PATH -> {
+                storageCachePathArg = tryGetArgValue(ARG_STORAGE_CACHE_PATH, i + 1)
+            }
+            ARG_STORAGE_CACHE_MAX_SIZE -> {
+                val argValue = tryGetArgValue(ARG_STORAGE_CACHE_MAX_SIZE, i + 1)
+                storageCacheMaxSizeArg = try {
+                    argValue.toLong()
+                } catch (numberFormatException: NumberFormatException) {
+                    throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_STORAGE_CACHE_MAX_SIZE, got $argValue")
+                }
+            }
+            ARG_CONTENT_ADDRESSED_STORAGE -> {
+                contentAddressedStorageArg = tryGetArgValue(ARG_CONTENT_ADDRESSED_STORAGE, i + 1).toBoolean()
+            }
+            ARG_MAX_EGRESS_BANDWIDTH -> {
+                val argValue = tryGetArgValue(ARG_MAX_EGRESS_BANDWIDTH, i + 1)
+                configurationBuilder.maxEgressBytesPerSecond = try {
+                    argValue.toLong() * BYTES_PER_KILOBYTE
+                } catch (numberFormatException: NumberFormatException) {
+                    throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_MAX_EGRESS_BANDWIDTH, got $argValue")
+                }
+            }
+            ARG_STREAM_SPLITS -> {
+                configurationBuilder.streamSplits = tryGetArgValue(ARG_STREAM_SPLITS, i + 1).toBoolean()
+            }
+            ARG_WARM_UP_ABIS, ARG_WARM_UP_SCREEN_DENSITIES, ARG_WARM_UP_SDK_VERSIONS, ARG_WARM_UP_LOCALES -> {
+                warmUpArgs[argName] = tryGetArgValue(argName, i + 1)
+            }
+            ARG_MAX_CONCURRENT_UPLOADS -> {
+                val argValue = tryGetArgValue(ARG_MAX_CONCURRENT_UPLOADS, i + 1)
+                configurationBuilder.maxConcurrentUploads = argValue.toIntOrNull()?.takeIf { it > 0 }
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_MAX_CONCURRENT_UPLOADS, got $argValue")
+            }
+            ARG_MAX_QUEUED_UPLOADS -> {
+                val argValue = tryGetArgValue(ARG_MAX_QUEUED_UPLOADS, i + 1)
+                configurationBuilder.maxQueuedUploads = argValue.toIntOrNull()?.takeIf { it >= 0 }
+                    ?: throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_MAX_QUEUED_UPLOADS, got $argValue")
+            }
+            ARG_BUNDLETOOL_THREADS -> {
+                val argValue = tryGetArgValue(ARG_BUNDLETOOL_THREADS, i + 1)
+                val threads = argValue.toIntOrNull()?.takeIf { it > 0 }
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_BUNDLETOOL_THREADS, got $argValue")
+                configurationBuilder.bundletoolExecutorService = bundletoolExecutorService(threads)
+            }
+            ARG_SCRATCH_PATH -> {
+                configurationBuilder.scratchPath = tryGetArgValue(ARG_SCRATCH_PATH, i + 1).toPath()
+            }
+            ARG_SCRATCH_MAX_SIZE -> {
+                val argValue = tryGetArgValue(ARG_SCRATCH_MAX_SIZE, i + 1)
+                configurationBuilder.scratchMaxBytes = argValue.toLongOrNull()?.takeIf { it >= 0 }
+                    ?.times(BYTES_PER_MEGABYTE)
+                    ?: throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_SCRATCH_MAX_SIZE, got $argValue")
+            }
+            ARG_SCRATCH_TTL -> {
+                val argValue = tryGetArgValue(ARG_SCRATCH_TTL, i + 1)
+                configurationBuilder.scratchTtlMillis = argValue.toLongOrNull()?.takeIf { it > 0 }
+                    ?.times(MILLIS_PER_MINUTE)
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_SCRATCH_TTL, got $argValue")
+            }
+            ARG_LOG_LEVEL -> {
+                loggerBuilder().level = logLevel(ARG_LOG_LEVEL, tryGetArgValue(ARG_LOG_LEVEL, i + 1))
+            }
+            ARG_LOG_FORMAT -> {
+                loggerBuilder().format = logFormat(ARG_LOG_FORMAT, tryGetArgValue(ARG_LOG_FORMAT, i + 1))
+            }
+            ARG_ASYNC_LOGGING -> {
+                loggerBuilder().async = tryGetArgValue(ARG_ASYNC_LOGGING, i + 1).toBoolean()
+            }
+            ARG_LOG_BUFFER_SIZE -> {
+                val argValue = tryGetArgValue(ARG_LOG_BUFFER_SIZE, i + 1)
+                loggerBuilder().bufferSize = argValue.toIntOrNull()?.takeIf { it > 0 }
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_LOG_BUFFER_SIZE, got $argValue")
+            }
+            ARG_LOG_SAMPLE_RATES -> {
+                configurationBuilder.logSampleRates = logSampleRates(
+                    ARG_LOG_SAMPLE_RATES,
+                    tryGetArgValue(ARG_LOG_SAMPLE_RATES, i + 1)
+                ).toMutableMap()
+            }
+            ARG_MIN_THREADS -> {
+                val argValue = tryGetArgValue(ARG_MIN_THREADS, i + 1)
+                configurationBuilder.minThreads = argValue.toIntOrNull()?.takeIf { it > 0 }
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_MIN_THREADS, got $argValue")
+            }
+            ARG_MAX_THREADS -> {
+                val argValue = tryGetArgValue(ARG_MAX_THREADS, i + 1)
+                configurationBuilder.maxThreads = argValue.toIntOrNull()?.takeIf { it > 0 }
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_MAX_THREADS, got $argValue")
+            }
+            ARG_MAX_QUEUED_REQUESTS -> {
+                val argValue = tryGetArgValue(ARG_MAX_QUEUED_REQUESTS, i + 1)
+                configurationBuilder.maxQueuedRequests = argValue.toIntOrNull()?.takeIf { it >= 0 }
+                    ?: throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_MAX_QUEUED_REQUESTS, got $argValue")
+            }
+            ARG_ACCEPTORS -> {
+                val argValue = tryGetArgValue(ARG_ACCEPTORS, i + 1)
+                configurationBuilder.acceptors = argValue.toIntOrNull()?.takeIf { it >= -1 }
+                    ?: throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_ACCEPTORS, got $argValue")
+            }
+            ARG_SELECTORS -> {
+                val argValue = tryGetArgValue(ARG_SELECTORS, i + 1)
+                configurationBuilder.selectors = argValue.toIntOrNull()?.takeIf { it >= -1 }
+                    ?: throw IllegalArgumentException("Expected a number as value for argument" +
+                        " $ARG_SELECTORS, got $argValue")
+            }
+            ARG_IDLE_TIMEOUT -> {
+                val argValue = tryGetArgValue(ARG_IDLE_TIMEOUT, i + 1)
+                configurationBuilder.idleTimeoutMillis = argValue.toLongOrNull()?.takeIf { it > 0 }
+                    ?.times(MILLIS_PER_SECOND)
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_IDLE_TIMEOUT, got $argValue")
+            }
+            ARG_OUTPUT_BUFFER_SIZE -> {
+                val argValue = tryGetArgValue(ARG_OUTPUT_BUFFER_SIZE, i + 1)
+                configurationBuilder.outputBufferSize = argValue.toIntOrNull()?.takeIf { it > 0 }
+                    ?.times(BYTES_PER_KILOBYTE.toInt())
+                    ?: throw IllegalArgumentException("Expected a positive number as value for argument" +
+                        " $ARG_OUTPUT_BUFFER_SIZE, got $argValue")
+            }
+            ARG_HTTP2 -> {
+                configurationBuilder.http2 = tryGetArgValue(ARG_HTTP2, i + 1).toBoolean()
+            }
+            ARG_VIRTUAL_THREADS -> {
+                configurationBuilder.virtualThreads = tryGetArgValue(ARG_VIRTUAL_THREADS, i + 1).toBoolean()
+            }
             else -> throw IllegalArgumentException("Unrecognized argument $argName")
         }
     }
@@ -96,12 +360,17 @@ internal fun GloballyDynamicServer.Configuration.fromArgs(args: Array<String>):
             GoogleCloudStorageBackend.builder()
                 .setBucketId(gcpBucketIdArg ?: throw IllegalArgumentException("gcp was given as a storage backend, " +
                     "but no value for argument $ARG_GCP_BUCKET_ID was provided"))
+                .setHost(gcpStorageHostArg)
+                .apply { gcpChunkSizeArg?.let { setChunkSizeBytes(it * BYTES_PER_MEGABYTE.toInt()) } }
                 .build()
         }
         "s3" -> {
             S3Backend.builder()
                 .setBucketId(s3BucketIdArg ?: throw IllegalArgumentException("s3 was given as a storage backend, " +
                     "but no value for $ARG_S3_BUCKET_ID was provided"))
+                .setEndpoint(s3EndpointArg)
+                .apply { s3PartSizeArg?.let { setPartSizeBytes(it * BYTES_PER_MEGABYTE.toInt()) } }
+                .apply { s3UploadParallelismArg?.let(::setUploadParallelism) }
                 .build()
         }
         null -> configurationBuilder.storageBackend
@@ -109,17 +378,150 @@ internal fun GloballyDynamicServer.Configuration.fromArgs(args: Array<String>):
             "alternatives are [\"local\", \"gcp\", \"s3\"]")
     }
 
-    configurationBuilder.setStorageBackend(storageBackend)
+    val contentAddressedStorage = contentAddressedStorageArg ?: (storageBackend is ContentAddressedStorageBackend)
+    configurationBuilder.setStorageBackend(storageBackend.withContentAddressing(false).withCache(
+        cachePath = storageCachePathArg?.toPath(),
+        maxSizeMegabytes = storageCacheMaxSizeArg
+    ).withContentAddressing(contentAddressedStorage).withScratchPath(configurationBuilder.scratchPath))
+
+    deviceClasses(
+        abis = ARG_WARM_UP_ABIS to warmUpArgs[ARG_WARM_UP_ABIS],
+        screenDensities = ARG_WARM_UP_SCREEN_DENSITIES to warmUpArgs[ARG_WARM_UP_SCREEN_DENSITIES],
+        sdkVersions = ARG_WARM_UP_SDK_VERSIONS to warmUpArgs[ARG_WARM_UP_SDK_VERSIONS],
+        locales = ARG_WARM_UP_LOCALES to warmUpArgs[ARG_WARM_UP_LOCALES]
+    )?.let { deviceClasses -> configurationBuilder.warmUpDeviceClasses = deviceClasses.toMutableList() }
+
+    loggerBuilder?.let { configurationBuilder.logger = it.build() }
 
     return configurationBuilder.build()
 }
 
+private fun logLevel(name: String, value: String): Logger.Level =
+    Logger.Level.values().firstOrNull { level -> level.name.equals(value, ignoreCase = true) }
+        ?: throw IllegalArgumentException("Expected one of [\"debug\", \"info\", \"error\"] as value for " +
+            "$name, got $value")
+
+private fun logFormat(name: String, value: String): Logger.Format =
+    Logger.Format.values().firstOrNull { format -> format.name.equals(value, ignoreCase = true) }
+        ?: throw IllegalArgumentException("Expected one of [\"text\", \"json\"] as value for $name, got $value")
+
+/**
+ * Comma separated <path>=<sample rate> pairs, e.g. download=0.1,manifest=0.01
+ */
+private fun logSampleRates(name: String, value: String): Map<String, Double> = value.split(",")
+    .filter(String::isNotBlank)
+    .associate { pair ->
+        val path = pair.substringBefore("=").trim()
+        val sampleRate = pair.substringAfter("=", "").trim().toDoubleOrNull()?.takeIf { it in 0.0..1.0 }
+        if (path.isEmpty() || sampleRate == null) {
+            throw IllegalArgumentException("Expected comma separated <path>=<sample rate between 0 and 1> " +
+                "pairs as value for $name, got $value")
+        }
+        path to sampleRate
+    }
+
+/**
+ * Every combination of the given comma separated values, each paired with the name of the argument or
+ * environment variable that it came from. Returns null if no ABIs are given
+ */
+private fun deviceClasses(
+    abis: Pair<String, String?>,
+    screenDensities: Pair<String, String?>,
+    sdkVersions: Pair<String, String?>,
+    locales: Pair<String, String?>
+): List<DeviceClass>? {
+    fun Pair<String, String?>.values(): List<String> = second?.split(",")?.map(String::trim)?.filter(String::isNotEmpty)
+        ?: emptyList()
+
+    fun Pair<String, String?>.numbers(): List<Int> = values().map { value ->
+        value.toIntOrNull() ?: throw IllegalArgumentException("Expected comma separated numbers as value for " +
+            "$first, got $second")
+    }.ifEmpty {
+        throw IllegalArgumentException("$first must be provided along with ${abis.first}")
+    }
+
+    if (abis.values().isEmpty()) {
+        return null
+    }
+
+    return DeviceClass.combinations(
+        abis = abis.values(),
+        screenDensities = screenDensities.numbers(),
+        sdkVersions = sdkVersions.numbers(),
+        locales = locales.values()
+    )
+}
+
 private fun String.toPath(): Path = if (Paths.get(this).isAbsolute) {
     Paths.get(this)
 } else {
     Paths.get(System.getProperty("user.dir"), this)
 }
 
+/**
+ * Wraps remote storage backends in a [CachingStorageBackend] if a cache size is given
+ */
+private fun StorageBackend.withCache(cachePath: Path?, maxSizeMegabytes: Long?): StorageBackend = when (this) {
+    is GoogleCloudStorageBackend, is S3Backend -> {
+        if (maxSizeMegabytes != null && maxSizeMegabytes > 0) {
+            CachingStorageBackend.builder()
+                .setStorageBackend(this)
+                .setMaxSizeBytes(maxSizeMegabytes * BYTES_PER_MEGABYTE)
+                .apply { cachePath?.let(::setCachePath) }
+                .build()
+        } else {
+            this
+        }
+    }
+    is CachingStorageBackend -> {
+        if (maxSizeMegabytes != null && maxSizeMegabytes <= 0) {
+            requireNotNull(newBuilder().storageBackend)
+        } else if (cachePath != null || maxSizeMegabytes != null) {
+            newBuilder()
+                .apply { cachePath?.let(::setCachePath) }
+                .apply { maxSizeMegabytes?.let { setMaxSizeBytes(it * BYTES_PER_MEGABYTE) } }
+                .build()
+        } else {
+            this
+        }
+    }
+    else -> this
+}
+
+/**
+ * Wraps the storage backend in a [ContentAddressedStorageBackend] if [enabled], or unwraps it if not
+ */
+private fun StorageBackend.withContentAddressing(enabled: Boolean): StorageBackend = when (this) {
+    is ContentAddressedStorageBackend -> if (enabled) this else requireNotNull(newBuilder().storageBackend)
+    else -> if (enabled) ContentAddressedStorageBackend.builder().setStorageBackend(this).build() else this
+}
+
+/**
+ * Makes the storage backend keep the files that it retrieves in [scratchPath], where they are swept by the server
+ */
+private fun StorageBackend.withScratchPath(scratchPath: Path): StorageBackend = when (this) {
+    is GoogleCloudStorageBackend ->
+        if (this.scratchPath == scratchPath) this else newBuilder().setScratchPath(scratchPath).build()
+    is S3Backend -> if (this.scratchPath == scratchPath) this else newBuilder().setScratchPath(scratchPath).build()
+    is CachingStorageBackend -> if (this.scratchPath == scratchPath) {
+        this
+    } else {
+        newBuilder()
+            .setStorageBackend(storageBackend.withScratchPath(scratchPath))
+            .setScratchPath(scratchPath)
+            .build()
+    }
+    is ContentAddressedStorageBackend -> if (this.scratchPath == scratchPath) {
+        this
+    } else {
+        newBuilder()
+            .setStorageBackend(storageBackend.withScratchPath(scratchPath))
+            .setScratchPath(scratchPath)
+            .build()
+    }
+    else -> this
+}
+
 private fun StorageBackend.Companion.fromEnvironment(): StorageBackend = when (val storageBackend = System.getenv(ENV_STORAGE_BACKEND)) {
     "local", null -> {
         System.getenv(ENV_LOCAL_STORAGE_PATH)?.let { localStoragePath ->
@@ -132,6 +534,8 @@ private fun StorageBackend.Companion.fromEnvironment(): StorageBackend = when (v
         System.getenv(ENV_GCP_BUCKET_ID)?.let { gcpBucketId ->
             GoogleCloudStorageBackend.builder()
                 .setBucketId(gcpBucketId)
+                .setHost(System.getenv(ENV_GCP_STORAGE_HOST))
+                .apply { System.getenv(ENV_GCP_CHUNK_SIZE)?.toInt()?.let { setChunkSizeBytes(it * BYTES_PER_MEGABYTE.toInt()) } }
                 .build()
         } ?: throw IllegalArgumentException("gcp was given as a storage backend, but no value for $ENV_GCP_BUCKET_ID" +
             " was found")
@@ -140,6 +544,9 @@ private fun StorageBackend.Companion.fromEnvironment(): StorageBackend = when (v
         System.getenv(ENV_S3_BUCKET_ID)?.let { s3BucketId ->
             S3Backend.builder()
                 .setBucketId(s3BucketId)
+                .setEndpoint(System.getenv(ENV_S3_ENDPOINT))
+                .apply { System.getenv(ENV_S3_PART_SIZE)?.toInt()?.let { setPartSizeBytes(it * BYTES_PER_MEGABYTE.toInt()) } }
+                .apply { System.getenv(ENV_S3_UPLOAD_PARALLELISM)?.toInt()?.let(::setUploadParallelism) }
                 .build()
         } ?: throw IllegalArgumentException("s3 was given as a storage backend, but no value for $ENV_S3_BUCKET_ID" +
             " was found")
@@ -156,7 +563,57 @@ private fun GloballyDynamicServer.Configuration.Companion.fromEnvironment(): Glo
     .apply { System.getenv(ENV_HTTPS_REDIRECT)?.toBoolean()?.let(::setHttpsRedirect) }
     .apply { System.getenv(ENV_OVERRIDE_EXISTING_BUNDLES)?.toBoolean()?.let(::setOverrideExistingBundles) }
     .apply { System.getenv(ENV_VALIDATE_SIGNATURE_ON_DOWNLOAD)?.toBoolean()?.let(::setValidateSignatureOnDownload) }
-    .setStorageBackend(StorageBackend.fromEnvironment())
+    .apply { System.getenv(ENV_SPLITS_CACHE_PATH)?.toPath()?.let(::setSplitsCachePath) }
+    .apply { System.getenv(ENV_SPLITS_CACHE_MAX_SIZE)?.toLong()?.times(BYTES_PER_MEGABYTE)?.let(::setSplitsCacheMaxBytes) }
+    .apply { System.getenv(ENV_MAX_EGRESS_BANDWIDTH)?.toLong()?.times(BYTES_PER_KILOBYTE)?.let(::setMaxEgressBytesPerSecond) }
+    .apply { System.getenv(ENV_STREAM_SPLITS)?.toBoolean()?.let(::setStreamSplits) }
+    .apply { System.getenv(ENV_MAX_CONCURRENT_UPLOADS)?.toInt()?.let(::setMaxConcurrentUploads) }
+    .apply { System.getenv(ENV_MAX_QUEUED_UPLOADS)?.toInt()?.let(::setMaxQueuedUploads) }
+    .apply { System.getenv(ENV_SCRATCH_PATH)?.toPath()?.let(::setScratchPath) }
+    .apply { System.getenv(ENV_SCRATCH_MAX_SIZE)?.toLong()?.times(BYTES_PER_MEGABYTE)?.let(::setScratchMaxBytes) }
+    .apply { System.getenv(ENV_SCRATCH_TTL)?.toLong()?.times(MILLIS_PER_MINUTE)?.let(::setScratchTtlMillis) }
+    .apply { System.getenv(ENV_MIN_THREADS)?.toInt()?.let(::setMinThreads) }
+    .apply { System.getenv(ENV_MAX_THREADS)?.toInt()?.let(::setMaxThreads) }
+    .apply { System.getenv(ENV_MAX_QUEUED_REQUESTS)?.toInt()?.let(::setMaxQueuedRequests) }
+    .apply { System.getenv(ENV_ACCEPTORS)?.toInt()?.let(::setAcceptors) }
+    .apply { System.getenv(ENV_SELECTORS)?.toInt()?.let(::setSelectors) }
+    .apply { System.getenv(ENV_IDLE_TIMEOUT)?.toLong()?.times(MILLIS_PER_SECOND)?.let(::setIdleTimeoutMillis) }
+    .apply { System.getenv(ENV_OUTPUT_BUFFER_SIZE)?.toInt()?.times(BYTES_PER_KILOBYTE.toInt())?.let(::setOutputBufferSize) }
+    .apply { System.getenv(ENV_HTTP2)?.toBoolean()?.let(::setHttp2) }
+    .apply { System.getenv(ENV_VIRTUAL_THREADS)?.toBoolean()?.let(::setVirtualThreads) }
+    .apply {
+        setLogger(Logger.builder()
+            .apply { System.getenv(ENV_LOG_LEVEL)?.let { setLevel(logLevel(ENV_LOG_LEVEL, it)) } }
+            .apply { System.getenv(ENV_LOG_FORMAT)?.let { setFormat(logFormat(ENV_LOG_FORMAT, it)) } }
+            .apply { System.getenv(ENV_ASYNC_LOGGING)?.toBoolean()?.let(::setAsync) }
+            .apply { System.getenv(ENV_LOG_BUFFER_SIZE)?.toInt()?.let(::setBufferSize) }
+            .build())
+    }
+    .apply {
+        System.getenv(ENV_LOG_SAMPLE_RATES)?.let { logSampleRates(ENV_LOG_SAMPLE_RATES, it) }?.forEach { (path, rate) ->
+            setLogSampleRate(path, rate)
+        }
+    }
+    .apply {
+        System.getenv(ENV_BUNDLETOOL_THREADS)?.toInt()?.let { threads ->
+            setBundletoolExecutorService(bundletoolExecutorService(threads))
+        }
+    }
+    .apply {
+        deviceClasses(
+            abis = ENV_WARM_UP_ABIS to System.getenv(ENV_WARM_UP_ABIS),
+            screenDensities = ENV_WARM_UP_SCREEN_DENSITIES to System.getenv(ENV_WARM_UP_SCREEN_DENSITIES),
+            sdkVersions = ENV_WARM_UP_SDK_VERSIONS to System.getenv(ENV_WARM_UP_SDK_VERSIONS),
+            locales = ENV_WARM_UP_LOCALES to System.getenv(ENV_WARM_UP_LOCALES)
+        )?.let { deviceClasses -> addWarmUpDeviceClasses(*deviceClasses.toTypedArray()) }
+    }
+    .apply {
+        setStorageBackend(StorageBackend.fromEnvironment().withCache(
+            cachePath = System.getenv(ENV_STORAGE_CACHE_PATH)?.toPath(),
+            maxSizeMegabytes = System.getenv(ENV_STORAGE_CACHE_MAX_SIZE)?.toLong()
+        ).withContentAddressing(System.getenv(ENV_CONTENT_ADDRESSED_STORAGE)?.toBoolean() == true)
+            .withScratchPath(scratchPath))
+    }
     .build()
 
 fun main(args: Array<String>) {
@@ -0,0 +1,58 @@
+package com.jeppeman.globallydynamic.server
+
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.SeekableByteChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+
+/**
+ * Records the time that the operations of [storageBackend] take in [metrics]. Reads through [openRead] are
+ * timed one by one, since each may be a request of its own to a remote backend, and writes through
+ * [openWrite] are timed when the channel is closed, which is when they are stored
+ */
+internal class InstrumentedStorageBackend(
+    internal val storageBackend: StorageBackend,
+    private val metrics: Metrics
+) : StorageBackend {
+    override fun storeFile(name: String, contentType: String, inputStream: InputStream) =
+        metrics.time(Metrics.Stage.STORAGE_STORE) { storageBackend.storeFile(name, contentType, inputStream) }
+
+    override fun retrieveFile(name: String): Path? =
+        metrics.time(Metrics.Stage.STORAGE_RETRIEVE) { storageBackend.retrieveFile(name) }
+
+    override fun retrieveFile(name: String, destination: Path): Boolean =
+        metrics.time(Metrics.Stage.STORAGE_RETRIEVE) { storageBackend.retrieveFile(name, destination) }
+
+    override fun deleteFile(name: String) = storageBackend.deleteFile(name)
+
+    override fun exists(name: String): Boolean =
+        metrics.time(Metrics.Stage.STORAGE_STAT) { storageBackend.exists(name) }
+
+    override fun stat(name: String): StorageBackend.Stat? =
+        metrics.time(Metrics.Stage.STORAGE_STAT) { storageBackend.stat(name) }
+
+    override fun openRead(name: String): SeekableByteChannel? =
+        metrics.time(Metrics.Stage.STORAGE_RETRIEVE) { storageBackend.openRead(name) }?.let { channel ->
+            object : SeekableByteChannel by channel {
+                override fun read(dst: ByteBuffer): Int = metrics.time(Metrics.Stage.STORAGE_RETRIEVE) {
+                    channel.read(dst)
+                }
+            }
+        }
+
+    override fun openWrite(name: String, contentType: String): WritableByteChannel {
+        val channel = storageBackend.openWrite(name, contentType)
+        return object : WritableByteChannel by channel {
+            override fun close() = metrics.time(Metrics.Stage.STORAGE_STORE) { channel.close() }
+        }
+    }
+
+    override fun moveFile(source: String, destination: String, contentType: String) =
+        metrics.time(Metrics.Stage.STORAGE_STORE) { storageBackend.moveFile(source, destination, contentType) }
+
+    override fun copyFile(source: String, destination: String, contentType: String) =
+        metrics.time(Metrics.Stage.STORAGE_STORE) { storageBackend.copyFile(source, destination, contentType) }
+
+    override fun toString(): String = storageBackend.toString()
+}
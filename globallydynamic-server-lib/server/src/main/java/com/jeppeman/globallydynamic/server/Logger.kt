@@ -1,52 +1,295 @@
 package com.jeppeman.globallydynamic.server
 
+import com.google.gson.JsonObject
 import com.jeppeman.globallydynamic.server.extensions.stackTraceToString
+import java.time.Instant
 import java.time.LocalDateTime
+import java.time.ZoneId
 import java.time.format.DateTimeFormatter
 import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
 
 interface Logger {
+    enum class Level { DEBUG, INFO, ERROR }
+
+    enum class Format { TEXT, JSON }
+
     fun i(message: String, newLine: Boolean = true, prefix: String = "")
     fun e(message: String, newLine: Boolean = true, prefix: String = "")
     fun e(throwable: Throwable, newLine: Boolean = true, prefix: String = "")
     fun e(message: String, throwable: Throwable, newLine: Boolean = true, prefix: String = "")
 
+    /**
+     * Messages that are only of interest when troubleshooting, such as request headers, dropped unless
+     * implemented
+     */
+    fun d(message: String, newLine: Boolean = true, prefix: String = "") = Unit
+
+    fun isEnabled(level: Level): Boolean = level != Level.DEBUG
+
+    class Builder internal constructor() {
+        @set:JvmSynthetic
+        var level: Level = Level.INFO
+
+        @set:JvmSynthetic
+        var format: Format = Format.TEXT
+
+        @set:JvmSynthetic
+        var async: Boolean = true
+
+        @set:JvmSynthetic
+        var bufferSize: Int = DEFAULT_BUFFER_SIZE
+
+        internal constructor(logger: LoggerImpl, async: Boolean, bufferSize: Int) : this() {
+            level = logger.level
+            format = logger.format
+            this.async = async
+            this.bufferSize = bufferSize
+        }
+
+        fun setLevel(level: Level) = apply { this.level = level }
+        fun setFormat(format: Format) = apply { this.format = format }
+
+        /**
+         * Whether messages are written on a background thread, request threads then never wait for the
+         * console. Messages below [Level.ERROR] are dropped while [bufferSize] messages are waiting to be
+         * written
+         */
+        fun setAsync(async: Boolean) = apply { this.async = async }
+        fun setBufferSize(bufferSize: Int) = apply { this.bufferSize = bufferSize }
+
+        fun build(): Logger {
+            require(bufferSize > 0) { "The buffer size must be positive" }
+            val logger = LoggerImpl(level, format)
+            return if (async) AsyncLogger(logger, bufferSize) else logger
+        }
+    }
+
     companion object : () -> Logger {
+        const val DEFAULT_BUFFER_SIZE = 8192
+
         override fun invoke(): Logger = LoggerImpl()
+
+        fun builder(): Builder = Builder()
     }
 }
 
-private class LoggerImpl : Logger {
+/**
+ * Only builds [message] if debug messages are logged
+ */
+inline fun Logger.d(newLine: Boolean = true, prefix: String = "", message: () -> String) {
+    if (isEnabled(Logger.Level.DEBUG)) {
+        d(message(), newLine, prefix)
+    }
+}
+
+/**
+ * Only builds [message] if info messages are logged
+ */
+inline fun Logger.i(newLine: Boolean = true, prefix: String = "", message: () -> String) {
+    if (isEnabled(Logger.Level.INFO)) {
+        i(message(), newLine, prefix)
+    }
+}
+
+/**
+ * The built-in loggers, which can be turned back into the builder that they were built from
+ */
+internal interface BuildableLogger : Logger {
+    fun newBuilder(): Logger.Builder
+}
+
+/**
+ * A message and what is known about it at the time that it was logged, it is formatted when written
+ */
+internal class LogEvent(
+    val level: Logger.Level,
+    val message: String,
+    val throwable: Throwable? = null,
+    val newLine: Boolean = true,
+    val prefix: String = "",
+    val timestamp: Long = System.currentTimeMillis(),
+    val thread: String = Thread.currentThread().name
+)
+
+internal class LoggerImpl(
+    val level: Logger.Level = Logger.Level.INFO,
+    val format: Logger.Format = Logger.Format.TEXT
+) : BuildableLogger {
     private val dateTimeFormatter: DateTimeFormatter = DateTimeFormatter.ofPattern(
         "yyyy-MM-dd HH:mm:ss",
         Locale.getDefault()
     )
 
-    private fun String.timestamped(): String {
-        return "${LocalDateTime.now().format(dateTimeFormatter)} GloballyDynamicServer: $this"
+    override fun newBuilder(): Logger.Builder = Logger.Builder(this, false, Logger.DEFAULT_BUFFER_SIZE)
+
+    override fun isEnabled(level: Logger.Level): Boolean = level >= this.level
+
+    private fun LogEvent.text(): String {
+        val time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault())
+        val text = when {
+            throwable == null -> message
+            message.isEmpty() -> throwable.stackTraceToString()
+            else -> "$message: ${throwable.stackTraceToString()}"
+        }
+        return "${time.format(dateTimeFormatter)} GloballyDynamicServer: $text"
     }
 
-    override fun i(message: String, newLine: Boolean, prefix: String) {
-        if (newLine) {
-            println("${prefix}${message.timestamped()}")
+    private fun LogEvent.json(): String = JsonObject().apply {
+        addProperty("timestamp", Instant.ofEpochMilli(timestamp).toString())
+        addProperty("level", level.name)
+        addProperty("thread", thread)
+        addProperty("message", message)
+        throwable?.let { addProperty("exception", it.stackTraceToString()) }
+    }.toString()
+
+    fun write(event: LogEvent) {
+        if (!isEnabled(event.level)) {
+            return
+        }
+
+        val line = if (format == Logger.Format.JSON) event.json() else "${event.prefix}${event.text()}"
+        val newLine = format == Logger.Format.JSON || event.newLine
+        if (event.level == Logger.Level.ERROR) {
+            if (newLine) System.err.println(line) else System.err.print("\r$line")
         } else {
-            print("\r$prefix${message.timestamped()}")
+            if (newLine) println(line) else print("\r$line")
         }
     }
 
-    override fun e(message: String, newLine: Boolean, prefix: String) {
-        if (newLine) {
-            System.err.println("$prefix${message.timestamped()}")
-        } else {
-            System.err.print("\r$prefix${message.timestamped()}")
+    override fun d(message: String, newLine: Boolean, prefix: String) =
+        write(LogEvent(Logger.Level.DEBUG, message, newLine = newLine, prefix = prefix))
+
+    override fun i(message: String, newLine: Boolean, prefix: String) =
+        write(LogEvent(Logger.Level.INFO, message, newLine = newLine, prefix = prefix))
+
+    override fun e(message: String, newLine: Boolean, prefix: String) =
+        write(LogEvent(Logger.Level.ERROR, message, newLine = newLine, prefix = prefix))
+
+    override fun e(throwable: Throwable, newLine: Boolean, prefix: String) =
+        write(LogEvent(Logger.Level.ERROR, "", throwable, newLine))
+
+    override fun e(message: String, throwable: Throwable, newLine: Boolean, prefix: String) =
+        write(LogEvent(Logger.Level.ERROR, message, throwable, newLine))
+}
+
+/**
+ * Queues messages in a bounded buffer that [logger] writes from on a background thread. While the buffer is
+ * full, errors wait for room and other messages are dropped, how many is logged once there is room again
+ */
+internal class AsyncLogger(
+    private val logger: LoggerImpl,
+    private val bufferSize: Int
+) : BuildableLogger {
+    private val events = ArrayBlockingQueue<LogEvent>(bufferSize)
+    private val dropped = AtomicLong()
+    private val writer by lazy {
+        Runtime.getRuntime().addShutdownHook(Thread(::flush))
+        Thread(::drain, "GloballyDynamicLogger").apply {
+            isDaemon = true
+            start()
         }
     }
 
-    override fun e(throwable: Throwable, newLine: Boolean, prefix: String) {
-        e(throwable.stackTraceToString(), newLine)
+    override fun newBuilder(): Logger.Builder = Logger.Builder(logger, true, bufferSize)
+
+    override fun isEnabled(level: Logger.Level): Boolean = logger.isEnabled(level)
+
+    private fun append(event: LogEvent) {
+        if (!isEnabled(event.level)) {
+            return
+        }
+
+        writer
+        if (event.level == Logger.Level.ERROR) {
+            events.put(event)
+        } else if (!events.offer(event)) {
+            dropped.incrementAndGet()
+        }
     }
 
-    override fun e(message: String, throwable: Throwable, newLine: Boolean, prefix: String) {
-        e("$message: ${throwable.stackTraceToString()}", newLine)
+    private fun write(event: LogEvent) {
+        val dropped = dropped.getAndSet(0)
+        if (dropped > 0) {
+            logger.write(LogEvent(Logger.Level.ERROR, "Dropped $dropped log messages, the log buffer is full"))
+        }
+        logger.write(event)
     }
-}
\ No newline at end of file
+
+    private fun drain() {
+        while (true) {
+            write(events.take())
+        }
+    }
+
+    /**
+     * Writes the messages that are waiting to be written on the calling thread
+     */
+    fun flush() {
+        generateSequence { events.poll() }.forEach(::write)
+    }
+
+    override fun d(message: String, newLine: Boolean, prefix: String) =
+        append(LogEvent(Logger.Level.DEBUG, message, newLine = newLine, prefix = prefix))
+
+    override fun i(message: String, newLine: Boolean, prefix: String) =
+        append(LogEvent(Logger.Level.INFO, message, newLine = newLine, prefix = prefix))
+
+    override fun e(message: String, newLine: Boolean, prefix: String) =
+        append(LogEvent(Logger.Level.ERROR, message, newLine = newLine, prefix = prefix))
+
+    override fun e(throwable: Throwable, newLine: Boolean, prefix: String) =
+        append(LogEvent(Logger.Level.ERROR, "", throwable, newLine))
+
+    override fun e(message: String, throwable: Throwable, newLine: Boolean, prefix: String) =
+        append(LogEvent(Logger.Level.ERROR, message, throwable, newLine))
+}
+
+/**
+ * Drops the debug and info messages that are logged while handling a request that was not sampled, see
+ * [GloballyDynamicServer.Configuration.Builder.setLogSampleRate]. Errors are always logged
+ */
+internal class SampledLogger(private val logger: Logger) : Logger {
+    override fun isEnabled(level: Logger.Level): Boolean =
+        (level == Logger.Level.ERROR || sampled.get()) && logger.isEnabled(level)
+
+    override fun d(message: String, newLine: Boolean, prefix: String) {
+        if (sampled.get()) {
+            logger.d(message, newLine, prefix)
+        }
+    }
+
+    override fun i(message: String, newLine: Boolean, prefix: String) {
+        if (sampled.get()) {
+            logger.i(message, newLine, prefix)
+        }
+    }
+
+    override fun e(message: String, newLine: Boolean, prefix: String) = logger.e(message, newLine, prefix)
+
+    override fun e(throwable: Throwable, newLine: Boolean, prefix: String) = logger.e(throwable, newLine, prefix)
+
+    override fun e(message: String, throwable: Throwable, newLine: Boolean, prefix: String) =
+        logger.e(message, throwable, newLine, prefix)
+
+    companion object {
+        private val sampled = ThreadLocal.withInitial { true }
+
+        /**
+         * Whether the request that the current thread handles is sampled, to be carried over with [sampling]
+         * to work that continues on other threads
+         */
+        val isSampled: Boolean get() = sampled.get()
+
+        fun <T> sampling(isSampled: Boolean, block: () -> T): T {
+            val previous = sampled.get()
+            sampled.set(isSampled)
+            try {
+                return block()
+            } finally {
+                sampled.set(previous)
+            }
+        }
+    }
+}
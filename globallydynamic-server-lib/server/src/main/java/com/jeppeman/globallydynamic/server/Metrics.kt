@@ -0,0 +1,188 @@
+package com.jeppeman.globallydynamic.server
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Latency histograms, counters and gauges of the server, written in the Prometheus text format by
+ * [MetricsPathHandler]
+ */
+internal class Metrics {
+    enum class Stage(val label: String) {
+        STORAGE_RETRIEVE("storage_retrieve"),
+        STORAGE_STORE("storage_store"),
+        STORAGE_STAT("storage_stat"),
+        TABLE_OF_CONTENTS("table_of_contents"),
+        EXTRACT("extract"),
+        ZIP("zip"),
+        TRANSFER("transfer"),
+        BUILD_APKS("build_apks"),
+        VALIDATE_SIGNATURE("validate_signature")
+    }
+
+    /**
+     * Started by [startTimer], records the time until [stop] is called, once
+     */
+    inner class Timer internal constructor(private val stage: Stage) {
+        private val startTime = System.nanoTime()
+        private var stopped = false
+
+        fun stop() {
+            if (!stopped) {
+                stopped = true
+                stages.getValue(stage).record(System.nanoTime() - startTime)
+            }
+        }
+    }
+
+    /**
+     * Every power of two nanoseconds between 2^[MIN_OCTAVE] and 2^[MAX_OCTAVE] is split into [SUB_BUCKETS]
+     * linear buckets, as in HdrHistogram, so that recorded values are known within 50% at any magnitude
+     * and recording is a few bit operations. Shorter values are counted in the first bucket and longer
+     * ones only in +Inf.
+     */
+    private class Histogram {
+        val buckets = AtomicLongArray(BUCKET_COUNT + 1)
+        val sumNanos = LongAdder()
+
+        fun record(nanos: Long) {
+            val value = maxOf(nanos, 1)
+            val octave = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val subBucket = if (octave == 0) 0 else ((value ushr (octave - 1)) and 1).toInt()
+            val index = (octave * SUB_BUCKETS + subBucket - MIN_OCTAVE * SUB_BUCKETS).coerceIn(0, BUCKET_COUNT)
+            buckets.incrementAndGet(index)
+            sumNanos.add(maxOf(nanos, 0))
+        }
+
+        companion object {
+            const val SUB_BUCKETS = 2
+            const val MIN_OCTAVE = 17
+            const val MAX_OCTAVE = 37
+            const val BUCKET_COUNT = (MAX_OCTAVE - MIN_OCTAVE) * SUB_BUCKETS
+
+            fun upperBoundSeconds(index: Int): Double {
+                val octave = MIN_OCTAVE + index / SUB_BUCKETS
+                val subBucket = index % SUB_BUCKETS
+                val upperBoundNanos = (1L shl octave) + (subBucket + 1) * (1L shl (octave - 1))
+                return upperBoundNanos / NANOS_PER_SECOND
+            }
+        }
+    }
+
+    private val stages = Stage.values().associateWith { Histogram() }
+    private val requestDurations = ConcurrentHashMap<String, Histogram>()
+    private val requests = ConcurrentHashMap<Pair<String, Int>, LongAdder>()
+    private val requestsInFlight = ConcurrentHashMap<String, AtomicLong>()
+    private val bytesSent = ConcurrentHashMap<String, LongAdder>()
+    private val cacheLookups = ConcurrentHashMap<Pair<String, Boolean>, LongAdder>()
+
+    fun startTimer(stage: Stage): Timer = Timer(stage)
+
+    inline fun <T> time(stage: Stage, block: () -> T): T {
+        val timer = startTimer(stage)
+        try {
+            return block()
+        } finally {
+            timer.stop()
+        }
+    }
+
+    fun requestStarted(handler: String) {
+        requestsInFlight.computeIfAbsent(handler) { AtomicLong() }.incrementAndGet()
+    }
+
+    fun requestFinished(handler: String, status: Int, durationNanos: Long) {
+        requestsInFlight.computeIfAbsent(handler) { AtomicLong() }.decrementAndGet()
+        requests.computeIfAbsent(handler to status) { LongAdder() }.increment()
+        requestDurations.computeIfAbsent(handler) { Histogram() }.record(durationNanos)
+    }
+
+    fun bytesSent(handler: String, bytes: Long) {
+        bytesSent.computeIfAbsent(handler) { LongAdder() }.add(bytes)
+    }
+
+    fun cacheLookup(cache: String, hit: Boolean) {
+        cacheLookups.computeIfAbsent(cache to hit) { LongAdder() }.increment()
+    }
+
+    private fun String.escaped() = replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+
+    private fun Map<String, String>.labels(): String = if (isEmpty()) "" else entries.joinToString(
+        separator = ",",
+        prefix = "{",
+        postfix = "}"
+    ) { (name, value) -> "$name=\"${value.escaped()}\"" }
+
+    private fun StringBuilder.header(name: String, type: String, help: String) {
+        append("# HELP ").append(name).append(' ').append(help).append('\n')
+        append("# TYPE ").append(name).append(' ').append(type).append('\n')
+    }
+
+    private fun StringBuilder.sample(name: String, labels: Map<String, String>, value: Any) {
+        append(name).append(labels.labels()).append(' ').append(value).append('\n')
+    }
+
+    private fun StringBuilder.histogram(name: String, labels: Map<String, String>, histogram: Histogram) {
+        var cumulativeCount = 0L
+        for (index in 0 until Histogram.BUCKET_COUNT) {
+            cumulativeCount += histogram.buckets.get(index)
+            val upperBound = Histogram.upperBoundSeconds(index).toString()
+            sample("${name}_bucket", labels + ("le" to upperBound), cumulativeCount)
+        }
+        cumulativeCount += histogram.buckets.get(Histogram.BUCKET_COUNT)
+        sample("${name}_bucket", labels + ("le" to "+Inf"), cumulativeCount)
+        sample("${name}_sum", labels, histogram.sumNanos.sum() / NANOS_PER_SECOND)
+        sample("${name}_count", labels, cumulativeCount)
+    }
+
+    fun toPrometheusText(): String = StringBuilder().apply {
+        header(
+            "${PREFIX}stage_duration_seconds",
+            "histogram",
+            "Time spent in each stage of storing and serving bundles"
+        )
+        stages.forEach { (stage, histogram) ->
+            histogram("${PREFIX}stage_duration_seconds", mapOf("stage" to stage.label), histogram)
+        }
+
+        header("${PREFIX}request_duration_seconds", "histogram", "Time spent handling requests")
+        requestDurations.toSortedMap().forEach { (handler, histogram) ->
+            histogram("${PREFIX}request_duration_seconds", mapOf("handler" to handler), histogram)
+        }
+
+        header("${PREFIX}requests_total", "counter", "Handled requests")
+        requests.entries.sortedWith(compareBy({ it.key.first }, { it.key.second })).forEach { (key, count) ->
+            sample(
+                "${PREFIX}requests_total",
+                mapOf("handler" to key.first, "status" to key.second.toString()),
+                count.sum()
+            )
+        }
+
+        header("${PREFIX}requests_in_flight", "gauge", "Requests that are being handled")
+        requestsInFlight.toSortedMap().forEach { (handler, count) ->
+            sample("${PREFIX}requests_in_flight", mapOf("handler" to handler), count.get())
+        }
+
+        header("${PREFIX}bytes_sent_total", "counter", "Bytes of splits, APKs and patches sent")
+        bytesSent.toSortedMap().forEach { (handler, bytes) ->
+            sample("${PREFIX}bytes_sent_total", mapOf("handler" to handler), bytes.sum())
+        }
+
+        header("${PREFIX}cache_lookups_total", "counter", "Cache lookups by whether they hit")
+        cacheLookups.entries.sortedWith(compareBy({ it.key.first }, { it.key.second })).forEach { (key, count) ->
+            sample(
+                "${PREFIX}cache_lookups_total",
+                mapOf("cache" to key.first, "result" to if (key.second) "hit" else "miss"),
+                count.sum()
+            )
+        }
+    }.toString()
+
+    companion object {
+        private const val PREFIX = "globallydynamic_"
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+    }
+}
@@ -1,15 +1,25 @@
 package com.jeppeman.globallydynamic.server
 
+import com.android.bundle.Devices
 import com.google.gson.Gson
 import com.jeppeman.globallydynamic.server.dto.DeviceSpecDto
 import com.jeppeman.globallydynamic.server.dto.toDeviceSpec
 import com.jeppeman.globallydynamic.server.extensions.readString
+import com.jeppeman.globallydynamic.server.extensions.transferFully
+import org.eclipse.jetty.http.HttpHeader
 import org.eclipse.jetty.http.HttpStatus
+import org.eclipse.jetty.server.HttpOutput
 import org.eclipse.jetty.server.Request
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
 import javax.servlet.MultipartConfigElement
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 import javax.servlet.http.Part
+import kotlin.math.max
+import kotlin.math.min
 
 
 interface PathHandler {
@@ -42,84 +52,187 @@ interface PathHandler {
     fun handle(request: HttpServletRequest?, response: HttpServletResponse?)
 }
 
+/**
+ * The parameters shared by the endpoints that serve splits, see [readSplitsRequest]
+ */
+internal class SplitsRequest(
+    val applicationId: String,
+    val version: Int,
+    val variant: String,
+    val deviceSpec: Devices.DeviceSpec,
+    val features: Array<String>,
+    val languages: Array<String>,
+    val includeMissing: Boolean
+)
+
+/**
+ * Reads and validates the query parameters and the device spec body of a request for splits, as sent to
+ * [DownloadSplitsPathHandler] and [SplitsManifestPathHandler]
+ */
+internal fun PathHandler.readSplitsRequest(
+    request: HttpServletRequest?,
+    bundleManager: BundleManager,
+    validateSignature: Boolean,
+    logger: Logger,
+    gson: Gson
+): SplitsRequest {
+    val applicationIdParam = request.requireQueryParam("application-id")
+    val versionParam = request.requireQueryParam("version")
+    val variantParam = request.requireQueryParam("variant")
+    val signatureParam = request.requireQueryParam("signature")
+    val featuresToInstallParam = request.getQueryParam("features") ?: arrayOf()
+    val languagesToInstallParam = request.getQueryParam("languages") ?: arrayOf()
+    val includeMissingParam = request.getQueryParam("include-missing")
+
+    val body = request?.inputStream?.use { it.readString() }
+
+    logger.d { "Request body: $body" }
+
+    val deviceSpec = try {
+        gson.fromJson(body, DeviceSpecDto::class.java).toDeviceSpec()
+    } catch (exception: Exception) {
+        throw HttpException(HttpStatus.BAD_REQUEST_400, "Invalid body, expected device spec json")
+    }
+
+    val version = try {
+        versionParam.first().toInt()
+    } catch (exception: Exception) {
+        throw HttpException(HttpStatus.BAD_REQUEST_400, "Expected version to be an integer, " +
+            "got ${versionParam.joinToString(",")}")
+    }
+
+    if (featuresToInstallParam.isEmpty() && languagesToInstallParam.isEmpty()) {
+        throw HttpException(HttpStatus.BAD_REQUEST_400, "No features or languages included in the request")
+    }
+
+    val applicationId = applicationIdParam.first()
+    val variant = variantParam.first()
+    val signature = signatureParam.first()
+
+    if (validateSignature) {
+        // Validate app signature
+        when (val validationResult = bundleManager.validateSignature(signature, applicationId, version, variant)) {
+            is BundleManager.Result.Error ->
+                throw HttpException(HttpStatus.BAD_REQUEST_400, validationResult.message)
+            else -> Unit
+        }
+    }
+
+    return SplitsRequest(
+        applicationId = applicationId,
+        version = version,
+        variant = variant,
+        deviceSpec = deviceSpec,
+        features = featuresToInstallParam.flatMap { feature -> feature.split(",") }.toTypedArray(),
+        languages = languagesToInstallParam.flatMap { language -> language.split(",") }.toTypedArray(),
+        includeMissing = includeMissingParam?.first()?.toBoolean() ?: false
+    )
+}
+
+// For responses that are addressed by the digests of their content, which therefore never changes
+private const val IMMUTABLE_MAX_AGE_SECONDS = 365L * 24 * 60 * 60
+
+/**
+ * Whether an If-None-Match header value lists [etag], weak comparison as per RFC 7232
+ */
+private fun String.matchesEtag(etag: String): Boolean = trim() == "*" || split(",")
+    .map { candidate -> candidate.trim().removePrefix("W/") }
+    .contains(etag.removePrefix("W/"))
+
 internal class DownloadSplitsPathHandler(
     private val bundleManager: BundleManager,
     private val validateSignature: Boolean,
     private val logger: Logger,
-    private val gson: Gson
+    private val gson: Gson,
+    private val bandwidthThrottler: BandwidthThrottler = BandwidthThrottler.UNLIMITED,
+    private val metrics: Metrics = Metrics()
 ) : PathHandler {
     override val path: String = "download"
     override val authRequired: Boolean = false
 
     override fun handle(request: HttpServletRequest?, response: HttpServletResponse?) {
-        val applicationIdParam = request.requireQueryParam("application-id")
-        val versionParam = request.requireQueryParam("version")
-        val variantParam = request.requireQueryParam("variant")
-        val signatureParam = request.requireQueryParam("signature")
+        val splitsRequest = readSplitsRequest(request, bundleManager, validateSignature, logger, gson)
+        val applicationId = splitsRequest.applicationId
+        val version = splitsRequest.version
+        val variant = splitsRequest.variant
+        val deviceSpec = splitsRequest.deviceSpec
+        val features = splitsRequest.features
+        val languages = splitsRequest.languages
+        val includeMissing = splitsRequest.includeMissing
         val throttle = request.getQueryParam("throttle")
         val featuresToInstallParam = request.getQueryParam("features") ?: arrayOf()
         val languagesToInstallParam = request.getQueryParam("languages") ?: arrayOf()
-        val includeMissingParam = request.getQueryParam("include-missing")
-
-        val body = request?.inputStream?.use { it.readString() }
-
-        logger.i("Request body: $body")
-
-        val deviceSpec = try {
-            gson.fromJson(body, DeviceSpecDto::class.java).toDeviceSpec()
-        } catch (exception: Exception) {
-            throw HttpException(HttpStatus.BAD_REQUEST_400, "Invalid body, expected device spec json")
-        }
-
-        val version = try {
-            versionParam.first().toInt()
-        } catch (exception: Exception) {
-            throw HttpException(HttpStatus.BAD_REQUEST_400, "Expected version to be an integer, " +
-                "got ${versionParam.joinToString(",")}")
-        }
-
-        if (featuresToInstallParam.isEmpty() && languagesToInstallParam.isEmpty()) {
-            throw HttpException(HttpStatus.BAD_REQUEST_400, "No features or languages included in the request")
-        }
-
-        val applicationId = applicationIdParam.first()
-        val variant = variantParam.first()
-        val signature = signatureParam.first()
 
-        if (validateSignature) {
-            // Validate app signature
-            when (val validationResult = bundleManager.validateSignature(signature, applicationId, version, variant)) {
-                is BundleManager.Result.Error ->
-                    throw HttpException(HttpStatus.BAD_REQUEST_400, validationResult.message)
-                else -> Unit
+        val ifNoneMatch = request?.getHeader(HttpHeader.IF_NONE_MATCH.asString())
+        if (ifNoneMatch != null) {
+            val currentEtag = bundleManager.splitsEtag(
+                applicationId = applicationId,
+                version = version,
+                variant = variant,
+                deviceSpec = deviceSpec,
+                features = features,
+                languages = languages,
+                includeMissing = includeMissing
+            )
+            if (currentEtag != null && ifNoneMatch.matchesEtag(currentEtag)) {
+                logger.i("Splits for $currentEtag are unchanged, not sending them")
+                response?.apply {
+                    status = HttpStatus.NOT_MODIFIED_304
+                    setHeader(HttpHeader.ETAG.asString(), currentEtag)
+                }
+                return
             }
         }
 
-        val includeMissing = includeMissingParam?.first()?.toBoolean() ?: false
-
         val compressedSplitsResult = bundleManager.generateCompressedSplits(
-            applicationId = applicationIdParam.first(),
+            applicationId = applicationId,
             version = version,
-            variant = variantParam.first(),
+            variant = variant,
             deviceSpec = deviceSpec,
-            features = featuresToInstallParam.flatMap { feature -> feature.split(",") }.toTypedArray(),
-            languages = languagesToInstallParam.flatMap { feature -> feature.split(",") }.toTypedArray(),
+            features = features,
+            languages = languages,
             includeMissing = includeMissing
         )
 
-        val compressedSplits = when (compressedSplitsResult) {
-            is BundleManager.Result.Success -> compressedSplitsResult.path
+        val throttleBy = throttle?.firstOrNull()?.toLongOrNull() ?: 0
+        val throttled = throttleBy > 0 || bandwidthThrottler.isLimited
+
+        val (compressedSplits, archive) = when (compressedSplitsResult) {
+            is BundleManager.Result.Success -> compressedSplitsResult.path to null
+            is BundleManager.Result.Stream -> null to compressedSplitsResult.archive
             else -> throw HttpException(HttpStatus.BAD_REQUEST_400, compressedSplitsResult.message)
         }
+        val etag = when (compressedSplitsResult) {
+            is BundleManager.Result.Success -> compressedSplitsResult.etag
+            is BundleManager.Result.Stream -> compressedSplitsResult.etag
+            else -> null
+        }
+
+        val transferTimer = metrics.startTimer(Metrics.Stage.TRANSFER)
+        val onSent = {
+            transferTimer.stop()
+            archive?.close()
+            (compressedSplitsResult as? BundleManager.Result.Success)?.release()
+        }
+
+        val fileSize = try {
+            compressedSplits?.let(Files::size) ?: archive!!.size
+        } catch (exception: Exception) {
+            onSent()
+            throw exception
+        }
+        val range = try {
+            request.requestedRange(fileSize, etag)
+        } catch (httpException: HttpException) {
+            onSent()
+            response?.setHeader(HttpHeader.CONTENT_RANGE.asString(), "bytes */$fileSize")
+            throw httpException
+        }
+        val position = range?.first ?: 0
+        val count = range?.let { it.last - it.first + 1 } ?: fileSize
 
-        val fileSize = compressedSplits.toFile().length().toInt()
-        var byteOffset = 0
-        val throttleBy = throttle?.firstOrNull()?.toLongOrNull() ?: 0
-        val interval = (throttleBy / 30f).toLong()
-        val byteInterval = (fileSize / 30f).toInt()
         val featuresString = featuresToInstallParam.joinToString(",")
         val languagesString = languagesToInstallParam.joinToString(",")
-        val buffer = ByteArray(byteInterval)
         if (featuresToInstallParam.isNotEmpty()) {
             logger.i("Sending splits from features [$featuresString]")
         }
@@ -128,29 +241,20 @@ internal class DownloadSplitsPathHandler(
         }
 
         logger.i("Total size of splits: $fileSize")
+        if (range != null) {
+            logger.i("Sending bytes ${range.first}-${range.last}")
+        }
 
         response?.apply {
             contentType = "application/zip"
             setHeader("Content-Disposition", "attachment; filename=splits.zip")
-            setContentLength(fileSize)
-            compressedSplits.toFile().inputStream().use { inputStream ->
-                while (byteOffset < fileSize) {
-                    val bytesLeftToWrite = fileSize - byteOffset
-                    val writeLength = if (byteOffset + byteInterval > fileSize) {
-                        bytesLeftToWrite
-                    } else {
-                        byteInterval
-                    }
-                    inputStream.read(buffer, 0, writeLength)
-                    outputStream.write(buffer, 0, writeLength)
-                    byteOffset += writeLength
-                    val percentageSent = Math.round((byteOffset / fileSize.toFloat()) * 100)
-                    logger.i("Sent $byteOffset / $fileSize ($percentageSent%)", false)
-                    if (interval > 0) {
-                        Thread.sleep(interval)
-                    }
-                }
+            setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes")
+            etag?.let { setHeader(HttpHeader.ETAG.asString(), it) }
+            if (range != null) {
+                status = HttpStatus.PARTIAL_CONTENT_206
+                setHeader(HttpHeader.CONTENT_RANGE.asString(), "bytes ${range.first}-${range.last}/$fileSize")
             }
+            setContentLengthLong(count)
         }
 
         val message = StringBuilder("Finished sending ")
@@ -160,13 +264,302 @@ internal class DownloadSplitsPathHandler(
         if (languagesToInstallParam.isNotEmpty()) {
             message.append((if (featuresToInstallParam.isNotEmpty()) " and " else "") + "languages [$languagesString")
         }
-        logger.i(message = message.toString(), prefix = "\n")
+
+        var lastLoggedInterval = 0L
+        val onProgress = { bytesSent: Long, totalBytes: Long ->
+            val interval = bytesSent * PROGRESS_LOG_INTERVALS / totalBytes
+            if (interval > lastLoggedInterval) {
+                lastLoggedInterval = interval
+                logger.d(newLine = false) {
+                    val percentageSent = Math.round((bytesSent / totalBytes.toFloat()) * 100)
+                    "Sent $bytesSent / $totalBytes ($percentageSent%)"
+                }
+            }
+        }
+
+        if (compressedSplits == null) {
+            try {
+                response?.outputStream?.let { output ->
+                    // Generated as it is sent, so it is paced on this thread rather than through async I/O
+                    val pacedOutput = if (throttled) {
+                        bandwidthThrottler.throttle(output, throttleBy, count, onProgress)
+                    } else {
+                        output
+                    }
+                    archive!!.writeTo(pacedOutput, position, count)
+                }
+            } finally {
+                onSent()
+            }
+            metrics.bytesSent(path, count)
+            logger.i(message = message.toString(), prefix = "\n")
+        } else if (request != null && response != null && throttled) {
+            bandwidthThrottler.send(
+                request = request,
+                response = response,
+                file = compressedSplits,
+                throttleBy = throttleBy,
+                position = position,
+                count = count,
+                onProgress = onProgress,
+                onComplete = { throwable ->
+                    onSent()
+                    if (throwable == null) {
+                        metrics.bytesSent(path, count)
+                        logger.i(message = message.toString(), prefix = "\n")
+                    } else {
+                        logger.e("Failed to send splits", throwable)
+                    }
+                }
+            )
+        } else {
+            try {
+                response?.outputStream?.let { output ->
+                    FileChannel.open(compressedSplits, StandardOpenOption.READ).use { fileChannel ->
+                        if (output is HttpOutput) {
+                            // Lets Jetty hand the mapped file to the socket without copying it through the heap
+                            output.sendContent(fileChannel.map(FileChannel.MapMode.READ_ONLY, position, count))
+                        } else {
+                            fileChannel.transferFully(Channels.newChannel(output), position, count)
+                        }
+                    }
+                }
+            } finally {
+                onSent()
+            }
+            metrics.bytesSent(path, count)
+            logger.i(message = message.toString(), prefix = "\n")
+        }
+    }
+
+    /**
+     * The single byte range asked for through the Range header, or null if the whole archive should be
+     * sent, which is also the case if If-Range does not match [etag] or if several ranges are asked for
+     */
+    private fun HttpServletRequest?.requestedRange(size: Long, etag: String?): LongRange? {
+        val rangeHeader = this?.getHeader(HttpHeader.RANGE.asString())?.trim() ?: return null
+        val ifRange = getHeader(HttpHeader.IF_RANGE.asString())
+        if (ifRange != null && ifRange != etag) {
+            return null
+        }
+
+        if (!rangeHeader.startsWith(BYTES_UNIT) || rangeHeader.contains(",")) {
+            return null
+        }
+
+        val bounds = rangeHeader.removePrefix(BYTES_UNIT).split("-").map(String::trim)
+        if (bounds.size != 2) {
+            return null
+        }
+
+        val (first, last) = bounds
+        val range = if (first.isEmpty()) {
+            val suffixLength = last.toLongOrNull() ?: return null
+            max(0, size - suffixLength) until size
+        } else {
+            val start = first.toLongOrNull() ?: return null
+            val end = if (last.isEmpty()) Long.MAX_VALUE else last.toLongOrNull() ?: return null
+            if (end < start) {
+                return null
+            }
+            start..min(end, size - 1)
+        }
+
+        if (range.isEmpty()) {
+            throw HttpException(HttpStatus.RANGE_NOT_SATISFIABLE_416, "Range $rangeHeader is not satisfiable " +
+                "for $size bytes")
+        }
+
+        return range
+    }
+
+    companion object {
+        private const val PROGRESS_LOG_INTERVALS = 30L
+        private const val BYTES_UNIT = "bytes="
     }
 }
 
-internal class UploadBundlePathHandler(
+internal class SplitsManifestPathHandler(
+    private val bundleManager: BundleManager,
+    private val validateSignature: Boolean,
+    private val logger: Logger,
+    private val gson: Gson
+) : PathHandler {
+    override val path: String = "splits-manifest"
+    override val authRequired: Boolean = false
+
+    override fun handle(request: HttpServletRequest?, response: HttpServletResponse?) {
+        val splitsRequest = readSplitsRequest(request, bundleManager, validateSignature, logger, gson)
+
+        val manifest = when (val result = bundleManager.splitsManifest(
+            applicationId = splitsRequest.applicationId,
+            version = splitsRequest.version,
+            variant = splitsRequest.variant,
+            deviceSpec = splitsRequest.deviceSpec,
+            features = splitsRequest.features,
+            languages = splitsRequest.languages,
+            includeMissing = splitsRequest.includeMissing
+        )) {
+            is BundleManager.Result.Manifest -> result.manifest
+            else -> throw HttpException(HttpStatus.BAD_REQUEST_400, result.message)
+        }
+
+        logger.i("Listing splits ${manifest.splits.joinToString(", ") { split -> split.name }}")
+
+        response?.apply {
+            contentType = "application/json"
+            characterEncoding = Charsets.UTF_8.name()
+            writer.write(gson.toJson(manifest))
+        }
+    }
+}
+
+internal class SplitApkPathHandler(
     private val bundleManager: BundleManager,
-    private val logger: Logger
+    private val validateSignature: Boolean,
+    private val logger: Logger,
+    private val metrics: Metrics = Metrics()
+) : PathHandler {
+    override val path: String = "split-apk"
+    override val authRequired: Boolean = false
+
+    override fun handle(request: HttpServletRequest?, response: HttpServletResponse?) {
+        val applicationId = request.requireQueryParam("application-id").first()
+        val versionParam = request.requireQueryParam("version")
+        val variant = request.requireQueryParam("variant").first()
+        val signature = request.requireQueryParam("signature").first()
+        val sha256 = request.requireQueryParam("sha256").first().lowercase()
+
+        val version = try {
+            versionParam.first().toInt()
+        } catch (exception: Exception) {
+            throw HttpException(HttpStatus.BAD_REQUEST_400, "Expected version to be an integer, " +
+                "got ${versionParam.joinToString(",")}")
+        }
+
+        if (validateSignature) {
+            when (val validationResult = bundleManager.validateSignature(signature, applicationId, version, variant)) {
+                is BundleManager.Result.Error ->
+                    throw HttpException(HttpStatus.BAD_REQUEST_400, validationResult.message)
+                else -> Unit
+            }
+        }
+
+        val apk = when (val result = bundleManager.split(applicationId, version, variant, sha256)) {
+            is BundleManager.Result.Apk -> result
+            is BundleManager.Result.Error.SplitNotFound -> throw HttpException(HttpStatus.NOT_FOUND_404, result.message)
+            else -> throw HttpException(HttpStatus.BAD_REQUEST_400, result.message)
+        }
+        val etag = "\"${apk.split.sha256}\""
+
+        response?.apply {
+            setHeader(HttpHeader.CACHE_CONTROL.asString(), "public, max-age=$IMMUTABLE_MAX_AGE_SECONDS, immutable")
+            setHeader(HttpHeader.ETAG.asString(), etag)
+        }
+
+        if (request?.getHeader(HttpHeader.IF_NONE_MATCH.asString())?.matchesEtag(etag) == true) {
+            response?.status = HttpStatus.NOT_MODIFIED_304
+            return
+        }
+
+        logger.i("Sending ${apk.split.name} (${apk.split.size} bytes)")
+
+        response?.apply {
+            contentType = CONTENT_TYPE_APK
+            setHeader("Content-Disposition", "attachment; filename=${apk.split.name}")
+            setContentLengthLong(apk.split.size)
+            apk.open().use { inputStream -> inputStream.copyTo(outputStream, BUFFER_SIZE) }
+        }
+        metrics.bytesSent(path, apk.split.size)
+    }
+
+    companion object {
+        private const val CONTENT_TYPE_APK = "application/vnd.android.package-archive"
+        private const val BUFFER_SIZE = 64 * 1024
+    }
+}
+
+internal class SplitPatchPathHandler(
+    private val bundleManager: BundleManager,
+    private val validateSignature: Boolean,
+    private val logger: Logger,
+    private val metrics: Metrics = Metrics()
+) : PathHandler {
+    override val path: String = "split-patch"
+    override val authRequired: Boolean = false
+
+    private fun HttpServletRequest?.requireIntQueryParam(name: String): Int {
+        val param = requireQueryParam(name)
+        return try {
+            param.first().toInt()
+        } catch (exception: Exception) {
+            throw HttpException(HttpStatus.BAD_REQUEST_400, "Expected $name to be an integer, " +
+                "got ${param.joinToString(",")}")
+        }
+    }
+
+    override fun handle(request: HttpServletRequest?, response: HttpServletResponse?) {
+        val applicationId = request.requireQueryParam("application-id").first()
+        val version = request.requireIntQueryParam("version")
+        val variant = request.requireQueryParam("variant").first()
+        val signature = request.requireQueryParam("signature").first()
+        val sha256 = request.requireQueryParam("sha256").first().lowercase()
+        val baseVersion = request.requireIntQueryParam("base-version")
+        val baseSha256 = request.requireQueryParam("base-sha256").first().lowercase()
+
+        if (validateSignature) {
+            when (val validationResult = bundleManager.validateSignature(signature, applicationId, version, variant)) {
+                is BundleManager.Result.Error ->
+                    throw HttpException(HttpStatus.BAD_REQUEST_400, validationResult.message)
+                else -> Unit
+            }
+        }
+
+        val etag = "\"$baseSha256-$sha256\""
+
+        if (request?.getHeader(HttpHeader.IF_NONE_MATCH.asString())?.matchesEtag(etag) == true) {
+            response?.status = HttpStatus.NOT_MODIFIED_304
+            response?.setHeader(HttpHeader.ETAG.asString(), etag)
+            return
+        }
+
+        val patch = when (val result = bundleManager.splitPatch(
+            applicationId = applicationId,
+            version = version,
+            variant = variant,
+            sha256 = sha256,
+            baseVersion = baseVersion,
+            baseSha256 = baseSha256
+        )) {
+            is BundleManager.Result.Patch -> result
+            is BundleManager.Result.Error.SplitNotFound,
+            is BundleManager.Result.Error.BundleNotFound,
+            is BundleManager.Result.Error.PatchNotSmaller -> throw HttpException(HttpStatus.NOT_FOUND_404, result.message)
+            else -> throw HttpException(HttpStatus.BAD_REQUEST_400, result.message)
+        }
+
+        logger.i("Sending a patch from ${patch.base.name} of version $baseVersion to ${patch.split.name} " +
+            "(${patch.patch.size} bytes)")
+
+        response?.apply {
+            setHeader(HttpHeader.CACHE_CONTROL.asString(), "public, max-age=$IMMUTABLE_MAX_AGE_SECONDS, immutable")
+            setHeader(HttpHeader.ETAG.asString(), etag)
+            contentType = CONTENT_TYPE_PATCH
+            setContentLength(patch.patch.size)
+            outputStream.write(patch.patch)
+        }
+        metrics.bytesSent(path, patch.patch.size.toLong())
+    }
+
+    companion object {
+        private const val CONTENT_TYPE_PATCH = "application/octet-stream"
+    }
+}
+
+internal class UploadBundlePathHandler(
+    private val uploadJobs: UploadJobs,
+    private val logger: Logger,
+    private val gson: Gson
 ) : PathHandler {
     override val path: String = "upload"
 
@@ -198,16 +591,34 @@ internal class UploadBundlePathHandler(
                 "got $versionString")
         }
 
-        val result = bundleManager.storeBundle(
+        // Clients that can poll /jobs opt in to not having to wait for the APKs to be built
+        val respondAsync = request.getHeader(HEADER_PREFER)?.contains(PREFER_RESPOND_ASYNC) == true
+
+        val job = uploadJobs.submit(
             applicationId = applicationId,
             version = version,
             variant = variant,
             signingConfig = signingConfig,
             bundleInputStream = bundlePart.inputStream,
-            keyStoreInputStream = keystorePart.inputStream
+            keyStoreInputStream = keystorePart.inputStream,
+            spool = respondAsync
         )
 
-        when (result) {
+        if (respondAsync) {
+            logger.i("Accepted upload ${job.id}")
+            response?.apply {
+                status = HttpStatus.ACCEPTED_202
+                setHeader(HttpHeader.LOCATION.asString(), "jobs/${job.id}")
+                contentType = "application/json"
+                writer.write(gson.toJson(job.toDto()))
+            }
+            return
+        }
+
+        job.await()
+
+        job.error?.let { error -> throw error }
+        when (val result = job.result) {
             is BundleManager.Result.Error -> {
                 logger.e(result.message)
                 throw HttpException(HttpStatus.BAD_REQUEST_400, result.message)
@@ -218,6 +629,52 @@ internal class UploadBundlePathHandler(
 
     companion object {
         internal const val CONTENT_TYPE_MULTIPART_FORM_DATA = "multipart/form-data"
+        private const val HEADER_PREFER = "Prefer"
+        private const val PREFER_RESPOND_ASYNC = "respond-async"
+    }
+}
+
+/**
+ * Reports the progress of uploads accepted with Prefer: respond-async
+ */
+internal class JobsPathHandler(
+    private val uploadJobs: UploadJobs,
+    private val gson: Gson
+) : PathHandler {
+    override val path: String = "jobs"
+    override val loggingEnabled: Boolean = false
+
+    override fun handle(request: HttpServletRequest?, response: HttpServletResponse?) {
+        val id = request?.pathInfo?.split("/")?.filter(String::isNotBlank)?.getOrNull(1)
+            ?: throw HttpException(HttpStatus.BAD_REQUEST_400, "Missing job id, expected /$path/<id>")
+        val job = uploadJobs[id] ?: throw HttpException(HttpStatus.NOT_FOUND_404, "No job with id $id")
+
+        response?.apply {
+            contentType = "application/json"
+            writer.write(gson.toJson(job.toDto()))
+        }
+    }
+}
+
+/**
+ * Exposes [Metrics] in the Prometheus text format
+ */
+internal class MetricsPathHandler(
+    private val metrics: Metrics
+) : PathHandler {
+    override val path: String = "metrics"
+    override val loggingEnabled: Boolean = false
+
+    override fun handle(request: HttpServletRequest?, response: HttpServletResponse?) {
+        response?.apply {
+            contentType = CONTENT_TYPE_PROMETHEUS
+            characterEncoding = Charsets.UTF_8.name()
+            writer.write(metrics.toPrometheusText())
+        }
+    }
+
+    companion object {
+        private const val CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4"
     }
 }
 
@@ -232,4 +689,4 @@ class LivenessPathHandler : PathHandler {
     override fun handle(request: HttpServletRequest?, response: HttpServletResponse?) {
         response?.status = HttpStatus.OK_200
     }
-}
\ No newline at end of file
+}
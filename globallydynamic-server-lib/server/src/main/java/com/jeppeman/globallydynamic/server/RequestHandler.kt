@@ -6,6 +6,10 @@ import com.jeppeman.globallydynamic.server.server.BuildConfig
 import org.eclipse.jetty.http.HttpStatus
 import org.eclipse.jetty.server.Request
 import org.eclipse.jetty.server.handler.AbstractHandler
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.servlet.AsyncEvent
+import javax.servlet.AsyncListener
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 
@@ -17,9 +21,25 @@ private val HttpServletRequest.isSsl
 
 internal class RequestHandler(
     internal val configuration: GloballyDynamicServer.Configuration,
-    internal val pathHandlers: List<PathHandler>
+    internal val pathHandlers: List<PathHandler>,
+    private val metrics: Metrics = Metrics()
 ) : AbstractHandler() {
-    private val logger = configuration.logger
+    private val logger = SampledLogger(configuration.logger)
+
+    /**
+     * Whether the debug and info messages of a request to [pathHandler] are to be logged, see
+     * [GloballyDynamicServer.Configuration.Builder.setLogSampleRate]
+     */
+    private fun isSampled(pathHandler: PathHandler?): Boolean {
+        val sampleRate = pathHandler?.let { configuration.logSampleRates[pathHandler.path] } ?: return true
+        return ThreadLocalRandom.current().nextDouble() < sampleRate
+    }
+
+    private fun PathHandler?.d(message: () -> String) {
+        if (this == null || this.loggingEnabled) {
+            logger.d { message() }
+        }
+    }
 
     private fun PathHandler?.i(message: String) {
         if (this == null || this.loggingEnabled) {
@@ -45,21 +65,52 @@ internal class RequestHandler(
         request: HttpServletRequest?,
         response: HttpServletResponse?
     ) {
-        var pathHandler: PathHandler? = null
-        try {
-            val firstSegment = request?.pathInfo?.split("/")?.firstOrNull(String::isNotBlank)
+        val firstSegment = request?.pathInfo?.split("/")?.firstOrNull(String::isNotBlank)
+        val pathHandler = firstSegment?.let {
+            pathHandlers.firstOrNull { handler -> handler.path.startsWith(firstSegment) }
+        }
 
-            pathHandler = firstSegment?.let {
-                pathHandlers.firstOrNull { handler -> handler.path.startsWith(firstSegment) }
+        val handlerLabel = pathHandler?.path ?: NO_HANDLER
+        val startTime = System.nanoTime()
+        val finished = AtomicBoolean()
+        val finish = {
+            if (finished.compareAndSet(false, true)) {
+                metrics.requestFinished(handlerLabel, response?.status ?: 0, System.nanoTime() - startTime)
+            }
+        }
+        metrics.requestStarted(handlerLabel)
+        try {
+            SampledLogger.sampling(isSampled(pathHandler)) {
+                handle(pathHandler, baseRequest, request, response)
             }
+        } finally {
+            // Responses that are sent asynchronously, e.g. throttled downloads, finish once they have been sent
+            if (request?.isAsyncStarted == true) {
+                request.asyncContext.addListener(object : AsyncListener {
+                    override fun onComplete(event: AsyncEvent?) = finish()
+                    override fun onError(event: AsyncEvent?) = finish()
+                    override fun onTimeout(event: AsyncEvent?) = finish()
+                    override fun onStartAsync(event: AsyncEvent?) = Unit
+                })
+            } else {
+                finish()
+            }
+        }
+    }
 
+    private fun handle(
+        pathHandler: PathHandler?,
+        baseRequest: Request?,
+        request: HttpServletRequest?,
+        response: HttpServletResponse?
+    ) {
+        try {
             pathHandler.i("<-- ${request?.requestLine}")
-            pathHandler.i("Request-IP: ${request?.remoteAddr}")
+            pathHandler.d { "Request-IP: ${request?.remoteAddr}" }
             request?.headerNames?.asSequence()?.forEach { name ->
-                pathHandler.i("$name: ${request.getHeader(name)}")
+                pathHandler.d { "$name: ${request.getHeader(name)}" }
             }
 
-
             if (request?.isSsl != true && configuration.httpsRedirect) {
                 val redirectUrl = "${request?.requestURL}${request?.queryString?.let { "?$it" } ?: ""}"
                     .replace("http://", "https://")
@@ -94,6 +145,10 @@ internal class RequestHandler(
             pathHandler.i("--> ${response?.status} ${request?.requestLine}")
         }
     }
+
+    companion object {
+        private const val NO_HANDLER = "none"
+    }
 }
 
 private fun HttpServletResponse.transmitError(code: Int, message: String) {
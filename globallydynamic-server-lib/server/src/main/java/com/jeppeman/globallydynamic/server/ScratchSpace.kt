@@ -0,0 +1,167 @@
+package com.jeppeman.globallydynamic.server
+
+import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import java.io.Closeable
+import java.io.IOException
+import java.io.UncheckedIOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.streams.asSequence
+
+/**
+ * The local disk space that requests and uploads extract, build and spool files in, laid out as
+ * <path>/<entry>. Work that knows when it is done with its files does it in a [Workspace], which is deleted
+ * when it is closed. Everything else, such as files that are handed to callers and entries left behind by a
+ * crashed process, is swept once it is older than [ttlMillis], and the oldest of it first while the total
+ * size exceeds [maxSizeBytes]. Open workspaces are never swept.
+ */
+internal class ScratchSpace(
+    val path: Path = DEFAULT_PATH,
+    private val maxSizeBytes: Long = 0,
+    private val ttlMillis: Long = DEFAULT_TTL_MILLIS,
+    private val logger: Logger = Logger(),
+    sweeper: ScheduledExecutorService? = SWEEPER
+) {
+    inner class Workspace internal constructor(val path: Path) : Closeable {
+        override fun close() {
+            if (open.remove(path)) {
+                try {
+                    path.deleteCompletely()
+                } catch (exception: IOException) {
+                    logger.e("Failed to delete $path, it will be swept", exception)
+                }
+            }
+        }
+    }
+
+    private class Entry(val path: Path, val lastModified: Long, val size: Long)
+
+    init {
+        require(ttlMillis > 0) { "The scratch space ttl must be positive" }
+        require(maxSizeBytes >= 0) { "The scratch space max size can not be negative" }
+        sweeper?.scheduleWithFixedDelay(
+            {
+                try {
+                    sweep()
+                } catch (exception: Exception) {
+                    logger.e("Failed to sweep $path", exception)
+                }
+            },
+            0,
+            minOf(ttlMillis, MAX_SWEEP_INTERVAL_MILLIS),
+            TimeUnit.MILLISECONDS
+        )
+    }
+
+    /**
+     * A directory that is kept until the returned workspace is closed
+     */
+    fun workspace(prefix: String): Workspace {
+        val directory = Files.createTempDirectory(Files.createDirectories(path), prefix).toAbsolutePath()
+        open.add(directory)
+        return Workspace(directory)
+    }
+
+    inline fun <T> withWorkspace(prefix: String, block: (Path) -> T): T = workspace(prefix).use { workspace ->
+        block(workspace.path)
+    }
+
+    /**
+     * A directory that nothing is responsible for deleting, it is swept once it is older than the ttl
+     */
+    fun createTempDirectory(prefix: String): Path = Files.createTempDirectory(Files.createDirectories(path), prefix)
+
+    private fun Path.size(): Long = try {
+        Files.walk(this).use { paths ->
+            paths.asSequence()
+                .filter { path -> Files.isRegularFile(path) }
+                .sumOf { path -> try { Files.size(path) } catch (exception: IOException) { 0L } }
+        }
+    } catch (exception: IOException) {
+        0L
+    } catch (exception: UncheckedIOException) {
+        // Entries may be deleted while they are being walked
+        0L
+    }
+
+    private fun Entry.delete(): Boolean = try {
+        path.deleteCompletely()
+        true
+    } catch (exception: IOException) {
+        logger.e("Failed to sweep $path", exception)
+        false
+    }
+
+    @Synchronized
+    internal fun sweep(now: Long = System.currentTimeMillis()) {
+        if (!Files.isDirectory(path)) {
+            return
+        }
+
+        val entries = Files.list(path).use { paths ->
+            paths.asSequence().mapNotNull { path ->
+                try {
+                    Entry(path.toAbsolutePath(), Files.getLastModifiedTime(path).toMillis(), path.size())
+                } catch (exception: IOException) {
+                    null
+                }
+            }.toList()
+        }
+        var totalSizeBytes = entries.sumOf { entry -> entry.size }
+        var swept = 0
+        var sweptBytes = 0L
+
+        entries.filter { entry -> entry.path !in open }
+            .sortedBy { entry -> entry.lastModified }
+            .forEach { entry ->
+                val expired = now - entry.lastModified > ttlMillis
+                // Spares entries that were just created, which may be workspaces that are about to be opened
+                val overQuota = maxSizeBytes > 0 && totalSizeBytes > maxSizeBytes &&
+                    now - entry.lastModified > MIN_AGE_MILLIS
+                if ((expired || overQuota) && entry.delete()) {
+                    totalSizeBytes -= entry.size
+                    sweptBytes += entry.size
+                    swept++
+                }
+            }
+
+        if (swept > 0) {
+            logger.i("Swept $swept entries ($sweptBytes bytes) from $path")
+        }
+        if (maxSizeBytes > 0 && totalSizeBytes > maxSizeBytes) {
+            logger.e("$path holds $totalSizeBytes bytes in open workspaces, more than the $maxSizeBytes allowed")
+        }
+    }
+
+    companion object {
+        const val DEFAULT_TTL_MILLIS = 60 * 60 * 1000L
+        private const val MAX_SWEEP_INTERVAL_MILLIS = 60 * 1000L
+        private const val MIN_AGE_MILLIS = 10 * 1000L
+
+        val DEFAULT_PATH: Path = Paths.get(System.getProperty("java.io.tmpdir"), "globallydynamic", "scratch")
+
+        // Shared by all scratch spaces of the process, so that one never sweeps the open workspaces of another
+        private val open: MutableSet<Path> = ConcurrentHashMap.newKeySet()
+
+        private val threadCount = AtomicInteger()
+        private val SWEEPER: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "GloballyDynamicScratchSweeper-${threadCount.incrementAndGet()}").apply {
+                isDaemon = true
+            }
+        }
+
+        val DEFAULT: ScratchSpace by lazy { ScratchSpace() }
+
+        /**
+         * The scratch space at [path] as seen by a storage backend, which keeps files there but leaves them
+         * to be swept by the server that is configured with the same path
+         */
+        fun unswept(path: Path): ScratchSpace = ScratchSpace(path, sweeper = null)
+    }
+}
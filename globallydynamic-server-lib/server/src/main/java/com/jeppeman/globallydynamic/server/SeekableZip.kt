@@ -0,0 +1,236 @@
+package com.jeppeman.globallydynamic.server
+
+import java.io.Closeable
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.SeekableByteChannel
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+
+/**
+ * Reads the entries of a zip archive through a [SeekableByteChannel], see [StorageBackend.openRead]. Only
+ * the central directory and the entries that are read are fetched, so that single entries can be read from
+ * an archive without retrieving all of it.
+ */
+internal class SeekableZip private constructor(private val channel: SeekableByteChannel) : Closeable {
+    class Entry(
+        val name: String,
+        val method: Int,
+        val compressedSize: Long,
+        val size: Long,
+        val localHeaderOffset: Long
+    )
+
+    val entries: Map<String, Entry> = readCentralDirectory()
+
+    fun getInputStream(name: String): InputStream? = entries[name]?.let(::getInputStream)
+
+    fun getInputStream(entry: Entry): InputStream {
+        val localHeader = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE)
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw ZipException("Invalid local header for ${entry.name}")
+        }
+        val dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+            localHeader.unsignedShort(LOCAL_HEADER_NAME_LENGTH) + localHeader.unsignedShort(LOCAL_HEADER_EXTRA_LENGTH)
+        val data = RangeInputStream(dataOffset, entry.compressedSize)
+
+        return when (entry.method) {
+            ZipEntry.STORED -> data
+            ZipEntry.DEFLATED -> RawInflaterInputStream(data)
+            else -> throw ZipException("Unsupported compression method ${entry.method} of ${entry.name}")
+        }
+    }
+
+    fun readBytes(name: String): ByteArray? = getInputStream(name)?.use { it.readBytes() }
+
+    override fun close() = channel.close()
+
+    private fun read(position: Long, length: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+        synchronized(channel) {
+            channel.position(position)
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw EOFException("Unexpected end of zip archive at ${position + buffer.position()}")
+                }
+            }
+        }
+        return buffer.apply { flip() }
+    }
+
+    private fun ByteBuffer.unsignedShort(index: Int): Int = getShort(index).toInt() and 0xffff
+
+    private fun ByteBuffer.unsignedInt(index: Int): Long = getInt(index).toLong() and 0xffffffffL
+
+    private fun readCentralDirectory(): Map<String, Entry> {
+        val size = channel.size()
+        val tailSize = minOf(size, (END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE).toLong()).toInt()
+        val tail = read(size - tailSize, tailSize)
+        val endOfCentralDirectory = (tailSize - END_OF_CENTRAL_DIRECTORY_SIZE downTo 0)
+            .firstOrNull { index -> tail.getInt(index) == END_OF_CENTRAL_DIRECTORY_SIGNATURE }
+            ?: throw ZipException("Not a zip archive")
+
+        var entryCount = tail.unsignedShort(endOfCentralDirectory + 10).toLong()
+        var centralDirectorySize = tail.unsignedInt(endOfCentralDirectory + 12)
+        var centralDirectoryOffset = tail.unsignedInt(endOfCentralDirectory + 16)
+
+        if (entryCount == ZIP64_SHORT || centralDirectorySize == ZIP64_INT || centralDirectoryOffset == ZIP64_INT) {
+            val locator = endOfCentralDirectory - ZIP64_LOCATOR_SIZE
+            if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw ZipException("Missing zip64 end of central directory locator")
+            }
+            val zip64EndOfCentralDirectory = read(tail.getLong(locator + 8), ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE)
+            if (zip64EndOfCentralDirectory.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                throw ZipException("Invalid zip64 end of central directory")
+            }
+            entryCount = zip64EndOfCentralDirectory.getLong(32)
+            centralDirectorySize = zip64EndOfCentralDirectory.getLong(40)
+            centralDirectoryOffset = zip64EndOfCentralDirectory.getLong(48)
+        }
+
+        val centralDirectory = read(centralDirectoryOffset, centralDirectorySize.toInt())
+        val entries = LinkedHashMap<String, Entry>()
+        var index = 0
+        repeat(entryCount.toInt()) {
+            if (centralDirectory.getInt(index) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw ZipException("Invalid central directory entry at ${centralDirectoryOffset + index}")
+            }
+            val nameLength = centralDirectory.unsignedShort(index + 28)
+            val extraLength = centralDirectory.unsignedShort(index + 30)
+            val commentLength = centralDirectory.unsignedShort(index + 32)
+            val name = ByteArray(nameLength).also { name ->
+                centralDirectory.position(index + CENTRAL_DIRECTORY_ENTRY_SIZE)
+                centralDirectory.get(name)
+            }.toString(Charsets.UTF_8)
+
+            var compressedSize = centralDirectory.unsignedInt(index + 20)
+            var uncompressedSize = centralDirectory.unsignedInt(index + 24)
+            var localHeaderOffset = centralDirectory.unsignedInt(index + 42)
+
+            // Values that do not fit in 32 bits are found, in this order, in the zip64 extra field
+            var extra = index + CENTRAL_DIRECTORY_ENTRY_SIZE + nameLength
+            val extraEnd = extra + extraLength
+            while (extra + 4 <= extraEnd) {
+                val id = centralDirectory.unsignedShort(extra)
+                val length = centralDirectory.unsignedShort(extra + 2)
+                if (id == ZIP64_EXTRA_FIELD_ID) {
+                    var field = extra + 4
+                    if (uncompressedSize == ZIP64_INT) {
+                        uncompressedSize = centralDirectory.getLong(field)
+                        field += 8
+                    }
+                    if (compressedSize == ZIP64_INT) {
+                        compressedSize = centralDirectory.getLong(field)
+                        field += 8
+                    }
+                    if (localHeaderOffset == ZIP64_INT) {
+                        localHeaderOffset = centralDirectory.getLong(field)
+                    }
+                }
+                extra += 4 + length
+            }
+
+            entries[name] = Entry(
+                name = name,
+                method = centralDirectory.unsignedShort(index + 10),
+                compressedSize = compressedSize,
+                size = uncompressedSize,
+                localHeaderOffset = localHeaderOffset
+            )
+            index += CENTRAL_DIRECTORY_ENTRY_SIZE + nameLength + extraLength + commentLength
+        }
+
+        return entries
+    }
+
+    private inner class RangeInputStream(private var position: Long, private var remaining: Long) : InputStream() {
+        override fun read(): Int {
+            val byte = ByteArray(1)
+            return if (read(byte, 0, 1) == -1) -1 else byte[0].toInt() and 0xff
+        }
+
+        override fun read(bytes: ByteArray, offset: Int, length: Int): Int {
+            if (remaining <= 0) {
+                return -1
+            }
+            val read = synchronized(channel) {
+                channel.position(position)
+                channel.read(ByteBuffer.wrap(bytes, offset, minOf(length.toLong(), remaining).toInt()))
+            }
+            if (read < 0) {
+                throw EOFException("Unexpected end of zip archive at $position")
+            }
+            position += read
+            remaining -= read
+            return read
+        }
+
+        override fun available(): Int = minOf(remaining, Int.MAX_VALUE.toLong()).toInt()
+    }
+
+    /**
+     * Entries are deflated without a zlib header, which the inflater needs to be fed a trailing byte for
+     */
+    private class RawInflaterInputStream(inputStream: InputStream) :
+        InflaterInputStream(inputStream, Inflater(true), BUFFER_SIZE) {
+        private var eof = false
+        private var closed = false
+
+        override fun fill() {
+            if (eof) {
+                throw EOFException("Unexpected end of deflated entry")
+            }
+            len = `in`.read(buf, 0, buf.size)
+            if (len == -1) {
+                buf[0] = 0
+                len = 1
+                eof = true
+            }
+            inf.setInput(buf, 0, len)
+        }
+
+        override fun close() {
+            if (!closed) {
+                closed = true
+                try {
+                    super.close()
+                } finally {
+                    inf.end()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50
+        private const val END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50
+        private const val ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val LOCAL_HEADER_NAME_LENGTH = 26
+        private const val LOCAL_HEADER_EXTRA_LENGTH = 28
+        private const val CENTRAL_DIRECTORY_ENTRY_SIZE = 46
+        private const val END_OF_CENTRAL_DIRECTORY_SIZE = 22
+        private const val ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_EXTRA_FIELD_ID = 0x0001
+        private const val ZIP64_SHORT = 0xffffL
+        private const val ZIP64_INT = 0xffffffffL
+        private const val MAX_COMMENT_SIZE = 0xffff
+        private const val BUFFER_SIZE = 64 * 1024
+
+        @Throws(IOException::class)
+        fun open(channel: SeekableByteChannel): SeekableZip = try {
+            SeekableZip(channel)
+        } catch (exception: IOException) {
+            channel.close()
+            throw exception
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.jeppeman.globallydynamic.server
 
+import com.google.common.util.concurrent.ListeningExecutorService
 import com.google.gson.Gson
 import com.google.gson.GsonBuilder
 import com.jeppeman.globallydynamic.server.server.BuildConfig
@@ -7,13 +8,22 @@ import org.apache.http.client.config.RequestConfig
 import org.apache.http.client.methods.HttpGet
 import org.apache.http.impl.client.HttpClientBuilder
 import org.apache.http.impl.client.HttpClients
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory
 import org.eclipse.jetty.server.Handler
+import org.eclipse.jetty.server.HttpConfiguration
+import org.eclipse.jetty.server.HttpConnectionFactory
+import org.eclipse.jetty.server.ServerConnector
+import org.eclipse.jetty.util.BlockingArrayQueue
+import org.eclipse.jetty.util.thread.QueuedThreadPool
+import org.eclipse.jetty.util.thread.ThreadPool
 import java.net.Inet4Address
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.NetworkInterface
 import java.net.Socket
 import java.net.URI
+import java.nio.file.Path
+import java.nio.file.Paths
 
 interface GloballyDynamicServer {
     val address: String?
@@ -32,7 +42,28 @@ interface GloballyDynamicServer {
         val validateSignatureOnDownload: Boolean,
         val hostAddress: String?,
         val logger: Logger,
-        val pathHandlers: List<PathHandler>
+        val pathHandlers: List<PathHandler>,
+        val splitsCachePath: Path,
+        val splitsCacheMaxBytes: Long,
+        val maxEgressBytesPerSecond: Long,
+        val streamSplits: Boolean,
+        val warmUpDeviceClasses: List<DeviceClass>,
+        val maxConcurrentUploads: Int,
+        val maxQueuedUploads: Int,
+        val bundletoolExecutorService: ListeningExecutorService,
+        val scratchPath: Path,
+        val scratchMaxBytes: Long,
+        val scratchTtlMillis: Long,
+        val logSampleRates: Map<String, Double>,
+        val minThreads: Int,
+        val maxThreads: Int,
+        val maxQueuedRequests: Int,
+        val acceptors: Int,
+        val selectors: Int,
+        val idleTimeoutMillis: Long,
+        val outputBufferSize: Int,
+        val http2: Boolean,
+        val virtualThreads: Boolean
     ) {
         fun newBuilder(): Builder = Builder(this)
 
@@ -67,6 +98,69 @@ interface GloballyDynamicServer {
             @set:JvmSynthetic
             var hostAddress: String? = null
 
+            @set:JvmSynthetic
+            var splitsCachePath: Path = Paths.get(System.getProperty("java.io.tmpdir"), "globallydynamic", "splits-cache")
+
+            @set:JvmSynthetic
+            var splitsCacheMaxBytes: Long = 0
+
+            @set:JvmSynthetic
+            var maxEgressBytesPerSecond: Long = 0
+
+            @set:JvmSynthetic
+            var streamSplits: Boolean = false
+
+            @set:JvmSynthetic
+            var warmUpDeviceClasses = mutableListOf<DeviceClass>()
+
+            @set:JvmSynthetic
+            var maxConcurrentUploads: Int = UploadJobs.DEFAULT_MAX_CONCURRENT_UPLOADS
+
+            @set:JvmSynthetic
+            var maxQueuedUploads: Int = UploadJobs.DEFAULT_MAX_QUEUED_UPLOADS
+
+            @set:JvmSynthetic
+            var bundletoolExecutorService: ListeningExecutorService = DEFAULT_BUNDLETOOL_EXECUTOR_SERVICE
+
+            @set:JvmSynthetic
+            var scratchPath: Path = ScratchSpace.DEFAULT_PATH
+
+            @set:JvmSynthetic
+            var scratchMaxBytes: Long = 0
+
+            @set:JvmSynthetic
+            var scratchTtlMillis: Long = ScratchSpace.DEFAULT_TTL_MILLIS
+
+            @set:JvmSynthetic
+            var logSampleRates = mutableMapOf<String, Double>()
+
+            @set:JvmSynthetic
+            var minThreads: Int = JettyServerWrapper.DEFAULT_MIN_THREADS
+
+            @set:JvmSynthetic
+            var maxThreads: Int = JettyServerWrapper.DEFAULT_MAX_THREADS
+
+            @set:JvmSynthetic
+            var maxQueuedRequests: Int = 0
+
+            @set:JvmSynthetic
+            var acceptors: Int = -1
+
+            @set:JvmSynthetic
+            var selectors: Int = -1
+
+            @set:JvmSynthetic
+            var idleTimeoutMillis: Long = JettyServerWrapper.DEFAULT_IDLE_TIMEOUT_MILLIS
+
+            @set:JvmSynthetic
+            var outputBufferSize: Int = JettyServerWrapper.DEFAULT_OUTPUT_BUFFER_SIZE
+
+            @set:JvmSynthetic
+            var http2: Boolean = false
+
+            @set:JvmSynthetic
+            var virtualThreads: Boolean = false
+
             internal constructor(configuration: Configuration) : this() {
                 port = configuration.port
                 storageBackend = configuration.storageBackend
@@ -77,6 +171,27 @@ interface GloballyDynamicServer {
                 overrideExistingBundles = configuration.overrideExistingBundles
                 validateSignatureOnDownload = configuration.validateSignatureOnDownload
                 logger = configuration.logger
+                splitsCachePath = configuration.splitsCachePath
+                splitsCacheMaxBytes = configuration.splitsCacheMaxBytes
+                maxEgressBytesPerSecond = configuration.maxEgressBytesPerSecond
+                streamSplits = configuration.streamSplits
+                warmUpDeviceClasses = configuration.warmUpDeviceClasses.toMutableList()
+                maxConcurrentUploads = configuration.maxConcurrentUploads
+                maxQueuedUploads = configuration.maxQueuedUploads
+                bundletoolExecutorService = configuration.bundletoolExecutorService
+                scratchPath = configuration.scratchPath
+                scratchMaxBytes = configuration.scratchMaxBytes
+                scratchTtlMillis = configuration.scratchTtlMillis
+                logSampleRates = configuration.logSampleRates.toMutableMap()
+                minThreads = configuration.minThreads
+                maxThreads = configuration.maxThreads
+                maxQueuedRequests = configuration.maxQueuedRequests
+                acceptors = configuration.acceptors
+                selectors = configuration.selectors
+                idleTimeoutMillis = configuration.idleTimeoutMillis
+                outputBufferSize = configuration.outputBufferSize
+                http2 = configuration.http2
+                virtualThreads = configuration.virtualThreads
             }
 
             fun setPort(port: Int) = apply { this.port = port }
@@ -93,19 +208,171 @@ interface GloballyDynamicServer {
 
             fun setLogger(logger: Logger) = apply { this.logger = logger }
             fun addPathHandlers(vararg pathHandlers: PathHandler) = apply { this.pathHandlers.addAll(pathHandlers) }
+            fun setSplitsCachePath(splitsCachePath: Path) = apply { this.splitsCachePath = splitsCachePath }
+
+            /**
+             * The maximum total size of generated splits archives to keep cached on disk, 0 disables caching
+             */
+            fun setSplitsCacheMaxBytes(splitsCacheMaxBytes: Long) =
+                apply { this.splitsCacheMaxBytes = splitsCacheMaxBytes }
+
+            /**
+             * The maximum rate at which splits are sent to clients in total, 0 disables the limit
+             */
+            fun setMaxEgressBytesPerSecond(maxEgressBytesPerSecond: Long) =
+                apply { this.maxEgressBytesPerSecond = maxEgressBytesPerSecond }
+
+            /**
+             * Whether to write split archives straight into responses instead of to temporary files first
+             */
+            fun setStreamSplits(streamSplits: Boolean) = apply { this.streamSplits = streamSplits }
+
+            /**
+             * Device classes to generate the splits of every dynamic feature for as soon as a bundle has been
+             * uploaded, requires the splits cache to be enabled
+             */
+            fun addWarmUpDeviceClasses(vararg deviceClasses: DeviceClass) =
+                apply { this.warmUpDeviceClasses.addAll(deviceClasses) }
+
+            /**
+             * The maximum number of uploaded bundles to build APKs from at the same time
+             */
+            fun setMaxConcurrentUploads(maxConcurrentUploads: Int) =
+                apply { this.maxConcurrentUploads = maxConcurrentUploads }
+
+            /**
+             * The maximum number of uploaded bundles to keep waiting for processing, further uploads are
+             * rejected with 503
+             */
+            fun setMaxQueuedUploads(maxQueuedUploads: Int) = apply { this.maxQueuedUploads = maxQueuedUploads }
+
+            /**
+             * The executor that bundletool builds APKs on, shared by all uploads that are being processed,
+             * defaults to a pool with one thread per available processor
+             */
+            fun setBundletoolExecutorService(bundletoolExecutorService: ListeningExecutorService) =
+                apply { this.bundletoolExecutorService = bundletoolExecutorService }
+
+            /**
+             * The directory that APKs are extracted to, bundles are built in and uploads are spooled to. The
+             * storage backend should be built with the same scratch path, the files that it retrieves are
+             * otherwise never swept
+             */
+            fun setScratchPath(scratchPath: Path) = apply { this.scratchPath = scratchPath }
+
+            /**
+             * The size above which files that are no longer in use are swept from the scratch path before they
+             * expire, 0 disables the limit
+             */
+            fun setScratchMaxBytes(scratchMaxBytes: Long) = apply { this.scratchMaxBytes = scratchMaxBytes }
+
+            /**
+             * The age after which files that are no longer in use are swept from the scratch path
+             */
+            fun setScratchTtlMillis(scratchTtlMillis: Long) = apply { this.scratchTtlMillis = scratchTtlMillis }
+
+            /**
+             * The fraction, between 0 and 1, of requests to the path handler registered for [path] to log
+             * debug and info messages of, errors are always logged
+             */
+            fun setLogSampleRate(path: String, sampleRate: Double) = apply {
+                require(sampleRate in 0.0..1.0) { "The sample rate of $path must be between 0 and 1" }
+                this.logSampleRates[path] = sampleRate
+            }
 
-            fun build(): Configuration = Configuration(
-                port = port,
-                username = username,
-                logger = logger,
-                password = password,
-                httpsRedirect = httpsRedirect,
-                hostAddress = hostAddress,
-                overrideExistingBundles = overrideExistingBundles,
-                validateSignatureOnDownload = validateSignatureOnDownload,
-                storageBackend = storageBackend,
-                pathHandlers = pathHandlers
-            )
+            /**
+             * The number of threads that are kept to handle requests when idle
+             */
+            fun setMinThreads(minThreads: Int) = apply { this.minThreads = minThreads }
+
+            /**
+             * The maximum number of threads that handle requests, connections and acceptors included
+             */
+            fun setMaxThreads(maxThreads: Int) = apply { this.maxThreads = maxThreads }
+
+            /**
+             * The maximum number of requests to keep waiting for a thread, further connections are closed,
+             * 0 disables the limit
+             */
+            fun setMaxQueuedRequests(maxQueuedRequests: Int) =
+                apply { this.maxQueuedRequests = maxQueuedRequests }
+
+            /**
+             * The number of threads that accept connections, -1 lets Jetty decide from the available processors
+             */
+            fun setAcceptors(acceptors: Int) = apply { this.acceptors = acceptors }
+
+            /**
+             * The number of threads that select connections with data to read or room to write, -1 lets Jetty
+             * decide from the available processors
+             */
+            fun setSelectors(selectors: Int) = apply { this.selectors = selectors }
+
+            /**
+             * The time after which connections that neither read nor write are closed
+             */
+            fun setIdleTimeoutMillis(idleTimeoutMillis: Long) = apply { this.idleTimeoutMillis = idleTimeoutMillis }
+
+            /**
+             * The size of the buffer that responses are written to before being flushed to the connection,
+             * responses that fit in it are sent with a Content-Length in one write
+             */
+            fun setOutputBufferSize(outputBufferSize: Int) = apply { this.outputBufferSize = outputBufferSize }
+
+            /**
+             * Whether to accept HTTP/2 over cleartext (h2c), both with prior knowledge and by upgrading from
+             * HTTP/1.1, which multiplexes requests over one connection per client
+             */
+            fun setHttp2(http2: Boolean) = apply { this.http2 = http2 }
+
+            /**
+             * Whether to handle requests on virtual threads rather than on a pool of [maxThreads] threads,
+             * requires JDK 21 or later
+             */
+            fun setVirtualThreads(virtualThreads: Boolean) = apply { this.virtualThreads = virtualThreads }
+
+            fun build(): Configuration {
+                require(minThreads > 0) { "The min threads must be positive" }
+                require(maxThreads >= minThreads) { "The max threads must be at least the min threads" }
+                require(maxQueuedRequests >= 0) { "The max queued requests can not be negative" }
+                require(idleTimeoutMillis > 0) { "The idle timeout must be positive" }
+                require(outputBufferSize > 0) { "The output buffer size must be positive" }
+                require(!virtualThreads || VirtualThreadPool.isSupported) { "Virtual threads require JDK 21 or later" }
+
+                return Configuration(
+                    port = port,
+                    username = username,
+                    logger = logger,
+                    password = password,
+                    httpsRedirect = httpsRedirect,
+                    hostAddress = hostAddress,
+                    overrideExistingBundles = overrideExistingBundles,
+                    validateSignatureOnDownload = validateSignatureOnDownload,
+                    storageBackend = storageBackend,
+                    pathHandlers = pathHandlers,
+                    splitsCachePath = splitsCachePath,
+                    splitsCacheMaxBytes = splitsCacheMaxBytes,
+                    maxEgressBytesPerSecond = maxEgressBytesPerSecond,
+                    streamSplits = streamSplits,
+                    warmUpDeviceClasses = warmUpDeviceClasses,
+                    maxConcurrentUploads = maxConcurrentUploads,
+                    maxQueuedUploads = maxQueuedUploads,
+                    bundletoolExecutorService = bundletoolExecutorService,
+                    scratchPath = scratchPath,
+                    scratchMaxBytes = scratchMaxBytes,
+                    scratchTtlMillis = scratchTtlMillis,
+                    logSampleRates = logSampleRates,
+                    minThreads = minThreads,
+                    maxThreads = maxThreads,
+                    maxQueuedRequests = maxQueuedRequests,
+                    acceptors = acceptors,
+                    selectors = selectors,
+                    idleTimeoutMillis = idleTimeoutMillis,
+                    outputBufferSize = outputBufferSize,
+                    http2 = http2,
+                    virtualThreads = virtualThreads
+                )
+            }
         }
 
         companion object {
@@ -134,10 +401,8 @@ internal interface Server {
 typealias JettyServer = org.eclipse.jetty.server.Server
 
 internal class JettyServerWrapper(
-    private val port: Int,
-    private val jettyServer: JettyServer = JettyServer(port).apply {
-        stopAtShutdown = true
-    }
+    configuration: GloballyDynamicServer.Configuration,
+    private val jettyServer: JettyServer = jettyServer(configuration)
 ) : Server {
     override val uri: URI get() = jettyServer.uri
     override val isRunning: Boolean get() = jettyServer.isRunning
@@ -152,6 +417,56 @@ internal class JettyServerWrapper(
     override fun stop() = jettyServer.stop()
     override fun join() = jettyServer.join()
     override fun destroy() = jettyServer.destroy()
+
+    companion object {
+        const val DEFAULT_MIN_THREADS = 8
+        const val DEFAULT_MAX_THREADS = 200
+        const val DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000L
+        const val DEFAULT_OUTPUT_BUFFER_SIZE = 32 * 1024
+        private const val THREAD_IDLE_TIMEOUT_MILLIS = 60 * 1000
+
+        private fun threadPool(configuration: GloballyDynamicServer.Configuration): ThreadPool =
+            if (configuration.virtualThreads) {
+                VirtualThreadPool()
+            } else {
+                val queue = if (configuration.maxQueuedRequests > 0) {
+                    val capacity = minOf(configuration.minThreads, configuration.maxQueuedRequests)
+                    BlockingArrayQueue<Runnable>(capacity, capacity, configuration.maxQueuedRequests)
+                } else {
+                    null
+                }
+                QueuedThreadPool(
+                    configuration.maxThreads,
+                    configuration.minThreads,
+                    THREAD_IDLE_TIMEOUT_MILLIS,
+                    queue
+                ).apply { name = "GloballyDynamicServer" }
+            }
+
+        /**
+         * A server with one connector on the configured port, which speaks HTTP/1.1 and, if enabled, h2c
+         */
+        internal fun jettyServer(configuration: GloballyDynamicServer.Configuration): JettyServer =
+            JettyServer(threadPool(configuration)).apply {
+                stopAtShutdown = true
+                val httpConfiguration = HttpConfiguration().apply {
+                    outputBufferSize = configuration.outputBufferSize
+                }
+                val connectionFactories = listOfNotNull(
+                    HttpConnectionFactory(httpConfiguration),
+                    if (configuration.http2) HTTP2CServerConnectionFactory(httpConfiguration) else null
+                )
+                addConnector(ServerConnector(
+                    this,
+                    configuration.acceptors,
+                    configuration.selectors,
+                    *connectionFactories.toTypedArray()
+                ).apply {
+                    port = configuration.port
+                    idleTimeout = configuration.idleTimeoutMillis
+                })
+            }
+    }
 }
 
 internal class GloballyDynamicServerImpl(
@@ -159,25 +474,76 @@ internal class GloballyDynamicServerImpl(
     private val gson: Gson = GsonBuilder()
         .disableHtmlEscaping()
         .create(),
+    private val requestLogger: Logger = SampledLogger(configuration.logger),
+    private val metrics: Metrics = Metrics(),
+    private val scratchSpace: ScratchSpace = ScratchSpace(
+        configuration.scratchPath,
+        configuration.scratchMaxBytes,
+        configuration.scratchTtlMillis,
+        configuration.logger
+    ),
     private val bundleManager: BundleManager = BundleManager(
-        configuration.storageBackend,
-        configuration.logger,
+        InstrumentedStorageBackend(configuration.storageBackend, metrics),
+        requestLogger,
         gson,
-        configuration.overrideExistingBundles
+        configuration.overrideExistingBundles,
+        SplitsCache(
+            configuration.splitsCachePath,
+            configuration.splitsCacheMaxBytes,
+            requestLogger
+        ),
+        configuration.streamSplits,
+        configuration.warmUpDeviceClasses,
+        configuration.bundletoolExecutorService,
+        scratchSpace,
+        metrics
     ),
-    private val server: Server = JettyServerWrapper(configuration.port),
+    private val uploadJobs: UploadJobs = UploadJobs(
+        bundleManager,
+        requestLogger,
+        scratchSpace,
+        configuration.maxConcurrentUploads,
+        configuration.maxQueuedUploads
+    ),
+    private val server: Server = JettyServerWrapper(configuration),
     private val lazyPathHandlers: () -> List<PathHandler> = {
         listOf(
             DownloadSplitsPathHandler(
                 bundleManager = bundleManager,
                 validateSignature = configuration.validateSignatureOnDownload,
-                logger = configuration.logger,
+                logger = requestLogger,
+                gson = gson,
+                bandwidthThrottler = BandwidthThrottler(configuration.maxEgressBytesPerSecond),
+                metrics = metrics
+            ),
+            SplitsManifestPathHandler(
+                bundleManager = bundleManager,
+                validateSignature = configuration.validateSignatureOnDownload,
+                logger = requestLogger,
                 gson = gson
             ),
-            UploadBundlePathHandler(
+            SplitApkPathHandler(
                 bundleManager = bundleManager,
-                logger = configuration.logger
+                validateSignature = configuration.validateSignatureOnDownload,
+                logger = requestLogger,
+                metrics = metrics
+            ),
+            SplitPatchPathHandler(
+                bundleManager = bundleManager,
+                validateSignature = configuration.validateSignatureOnDownload,
+                logger = requestLogger,
+                metrics = metrics
+            ),
+            UploadBundlePathHandler(
+                uploadJobs = uploadJobs,
+                logger = requestLogger,
+                gson = gson
             ),
+            JobsPathHandler(
+                uploadJobs = uploadJobs,
+                gson = gson
+            ),
+            MetricsPathHandler(metrics),
             LivenessPathHandler()
         ) + configuration.pathHandlers
     }
@@ -227,7 +593,8 @@ internal class GloballyDynamicServerImpl(
             val pathHandlers = lazyPathHandlers()
             server.handler = RequestHandler(
                 configuration = configuration,
-                pathHandlers = pathHandlers
+                pathHandlers = pathHandlers,
+                metrics = metrics
             )
             server.start()
             configuration.logger.i("GloballyDynamic Server v${BuildConfig.VERSION} started at $address")
@@ -240,6 +607,32 @@ internal class GloballyDynamicServerImpl(
             configuration.logger.i("Storage backend initialized: ${configuration.storageBackend}")
             configuration.logger.i("Https redirects enabled: ${configuration.httpsRedirect}")
             configuration.logger.i("Override existing bundles: ${configuration.overrideExistingBundles}")
+            if (configuration.splitsCacheMaxBytes > 0) {
+                configuration.logger.i("Splits cache: ${configuration.splitsCachePath} " +
+                    "(max ${configuration.splitsCacheMaxBytes} bytes)")
+            }
+            configuration.logger.i("Scratch space: ${configuration.scratchPath} (ttl " +
+                "${configuration.scratchTtlMillis}ms" +
+                (if (configuration.scratchMaxBytes > 0) ", max ${configuration.scratchMaxBytes} bytes)" else ")"))
+            configuration.logger.i("Stream splits: ${configuration.streamSplits}")
+            if (configuration.virtualThreads) {
+                configuration.logger.i("Request threads: virtual")
+            } else {
+                configuration.logger.i("Request threads: ${configuration.minThreads}-${configuration.maxThreads}" +
+                    if (configuration.maxQueuedRequests > 0) " (${configuration.maxQueuedRequests} queued)" else "")
+            }
+            configuration.logger.i("HTTP/2 (h2c) enabled: ${configuration.http2}")
+            if (configuration.warmUpDeviceClasses.isNotEmpty()) {
+                configuration.logger.i("Warm-up device classes: ${configuration.warmUpDeviceClasses}")
+            }
+            configuration.logger.i("Max concurrent uploads: ${configuration.maxConcurrentUploads} " +
+                "(${configuration.maxQueuedUploads} queued)")
+            if (configuration.maxEgressBytesPerSecond > 0) {
+                configuration.logger.i("Max egress bandwidth: ${configuration.maxEgressBytesPerSecond} bytes/s")
+            }
+            if (configuration.logSampleRates.isNotEmpty()) {
+                configuration.logger.i("Log sample rates: ${configuration.logSampleRates}")
+            }
             pathHandlers.forEach { pathHandler ->
                 configuration.logger.i("${pathHandler::class.java.simpleName} registered for path /${pathHandler.path}")
             }
@@ -0,0 +1,55 @@
+package com.jeppeman.globallydynamic.server
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+
+/**
+ * Coalesces concurrent calls with equal keys, the first caller computes the value and callers that
+ * arrive while it is doing so wait for and share its outcome, including any exception
+ */
+internal class SingleFlight<K, V> {
+    private class Call<V> {
+        val future = CompletableFuture<V>()
+        var followers = 0
+    }
+
+    private val calls = HashMap<K, Call<V>>()
+
+    /**
+     * @param share invoked with the computed value and the number of callers that will share it besides
+     * the first one, before any of them receive it
+     */
+    fun execute(key: K, share: (value: V, followers: Int) -> Unit = { _, _ -> }, block: () -> V): V {
+        var isLeader = false
+        val call = synchronized(calls) {
+            calls[key]?.apply { followers++ } ?: Call<V>().also { call ->
+                calls[key] = call
+                isLeader = true
+            }
+        }
+
+        if (!isLeader) {
+            return try {
+                call.future.get()
+            } catch (executionException: ExecutionException) {
+                throw executionException.cause ?: executionException
+            }
+        }
+
+        val value = try {
+            block().also { value ->
+                synchronized(calls) {
+                    calls.remove(key)
+                    share(value, call.followers)
+                }
+            }
+        } catch (throwable: Throwable) {
+            synchronized(calls) { calls.remove(key) }
+            call.future.completeExceptionally(throwable)
+            throw throwable
+        }
+        call.future.complete(value)
+
+        return value
+    }
+}
@@ -0,0 +1,146 @@
+package com.jeppeman.globallydynamic.server
+
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Binary patches that rebuild an APK from a previous version of it.
+ *
+ * The target is scanned with a rolling checksum for blocks of [BLOCK_SIZE] bytes that also occur in the
+ * base, every match is extended as far as the bytes keep matching and emitted as a copy from the base,
+ * everything in between is emitted as literal data. A patch is a gzipped sequence of operations:
+ * [OP_COPY] followed by the offset (long) and length (int) in the base, [OP_DATA] followed by a length
+ * (int) and as many literal bytes, and lastly [OP_END].
+ */
+internal object SplitPatch {
+    const val BLOCK_SIZE = 2048
+    const val OP_END = 0
+    const val OP_COPY = 1
+    const val OP_DATA = 2
+    private const val CHUNK_SIZE = 64 * 1024
+
+    fun create(base: ByteArray, target: ByteArray): ByteArray = ByteArrayOutputStream().also { outputStream ->
+        create(ByteBuffer.wrap(base), ByteBuffer.wrap(target), outputStream)
+    }.toByteArray()
+
+    /**
+     * Writes a patch from [base] to [target] to [outputStream], the buffers are only read at absolute
+     * positions so that they may be mapped from files rather than held on the heap
+     */
+    fun create(base: ByteBuffer, target: ByteBuffer, outputStream: OutputStream) {
+        val baseSize = base.limit()
+        val targetSize = target.limit()
+        val blocks = HashMap<Int, MutableList<Int>>()
+        var blockOffset = 0
+        while (blockOffset + BLOCK_SIZE <= baseSize) {
+            blocks.getOrPut(checksum(base, blockOffset)) { mutableListOf() } += blockOffset
+            blockOffset += BLOCK_SIZE
+        }
+
+        DataOutputStream(GZIPOutputStream(outputStream)).use { dataOutputStream ->
+            var dataStart = 0
+            var position = 0
+            var checksum = if (targetSize >= BLOCK_SIZE) checksum(target, 0) else 0
+
+            while (position + BLOCK_SIZE <= targetSize) {
+                val baseOffset = blocks[checksum]?.firstOrNull { offset ->
+                    regionMatches(base, offset, target, position, BLOCK_SIZE)
+                }
+
+                if (baseOffset != null) {
+                    var length = BLOCK_SIZE
+                    while (position + length < targetSize
+                        && baseOffset + length < baseSize
+                        && base[baseOffset + length] == target[position + length]) {
+                        length++
+                    }
+                    dataOutputStream.writeData(target, dataStart, position)
+                    dataOutputStream.writeByte(OP_COPY)
+                    dataOutputStream.writeLong(baseOffset.toLong())
+                    dataOutputStream.writeInt(length)
+                    position += length
+                    dataStart = position
+                    if (position + BLOCK_SIZE <= targetSize) {
+                        checksum = checksum(target, position)
+                    }
+                } else {
+                    if (position + BLOCK_SIZE < targetSize) {
+                        checksum = roll(checksum, target[position], target[position + BLOCK_SIZE])
+                    }
+                    position++
+                }
+            }
+
+            dataOutputStream.writeData(target, dataStart, targetSize)
+            dataOutputStream.writeByte(OP_END)
+        }
+    }
+
+    fun apply(base: ByteArray, patch: InputStream): ByteArray {
+        val byteArrayOutputStream = ByteArrayOutputStream()
+        DataInputStream(GZIPInputStream(patch)).use { inputStream ->
+            while (true) {
+                when (val op = inputStream.readUnsignedByte()) {
+                    OP_COPY -> {
+                        val offset = inputStream.readLong().toInt()
+                        byteArrayOutputStream.write(base, offset, inputStream.readInt())
+                    }
+                    OP_DATA -> {
+                        val data = ByteArray(inputStream.readInt())
+                        inputStream.readFully(data)
+                        byteArrayOutputStream.write(data)
+                    }
+                    OP_END -> return byteArrayOutputStream.toByteArray()
+                    else -> throw IllegalArgumentException("Unknown patch operation $op")
+                }
+            }
+        }
+    }
+
+    private fun DataOutputStream.writeData(bytes: ByteBuffer, from: Int, to: Int) {
+        if (to > from) {
+            writeByte(OP_DATA)
+            writeInt(to - from)
+            val region = bytes.duplicate()
+            region.limit(to)
+            region.position(from)
+            val chunk = ByteArray(minOf(to - from, CHUNK_SIZE))
+            while (region.hasRemaining()) {
+                val length = minOf(region.remaining(), chunk.size)
+                region.get(chunk, 0, length)
+                write(chunk, 0, length)
+            }
+        }
+    }
+
+    private fun regionMatches(first: ByteBuffer, firstOffset: Int, second: ByteBuffer, secondOffset: Int, length: Int) =
+        (0 until length).all { index -> first[firstOffset + index] == second[secondOffset + index] }
+
+    /**
+     * The rsync weak checksum of the block starting at [offset], the sum of its bytes in the lower half and
+     * the sum of its prefix sums in the upper half
+     */
+    private fun checksum(bytes: ByteBuffer, offset: Int): Int {
+        var a = 0
+        var b = 0
+        for (index in 0 until BLOCK_SIZE) {
+            val byte = bytes[offset + index].toInt() and 0xff
+            a += byte
+            b += (BLOCK_SIZE - index) * byte
+        }
+        return (a and 0xffff) or ((b and 0xffff) shl 16)
+    }
+
+    private fun roll(checksum: Int, removed: Byte, added: Byte): Int {
+        val out = removed.toInt() and 0xff
+        val a = ((checksum and 0xffff) - out + (added.toInt() and 0xff)) and 0xffff
+        val b = ((checksum ushr 16) - BLOCK_SIZE * out + a) and 0xffff
+        return a or (b shl 16)
+    }
+}
@@ -0,0 +1,149 @@
+package com.jeppeman.globallydynamic.server
+
+import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A zip archive of [apks] that is written on demand rather than kept on disk.
+ *
+ * APKs are already compressed, so entries are STORED with a fixed timestamp and in a fixed order,
+ * which makes the output deterministic and its [size] known before anything is written. The
+ * [workingDirectory] that the APKs were extracted to is deleted once every holder has called [close],
+ * see [retain].
+ */
+internal class SplitsArchive(
+    apks: List<Path>,
+    private val workingDirectory: Path? = null,
+    private val onClose: (SplitsArchive) -> Unit = {}
+) : Closeable {
+    private val apks: List<Path> = apks.sortedBy { apk -> apk.fileName.toString() }
+    private val references = AtomicInteger(1)
+
+    val filenames: List<String> get() = apks.map { apk -> apk.fileName.toString() }
+
+    val size: Long by lazy {
+        apks.fold(END_OF_CENTRAL_DIRECTORY_SIZE) { size, apk ->
+            val nameLength = apk.fileName.toString().toByteArray(Charsets.UTF_8).size
+            size + LOCAL_HEADER_SIZE + CENTRAL_DIRECTORY_HEADER_SIZE + 2 * nameLength + Files.size(apk)
+        }
+    }
+
+    private fun Path.crc32(buffer: ByteArray): Long = CRC32().also { crc ->
+        Files.newInputStream(this).use { inputStream ->
+            var read = inputStream.read(buffer)
+            while (read != -1) {
+                crc.update(buffer, 0, read)
+                read = inputStream.read(buffer)
+            }
+        }
+    }.value
+
+    /**
+     * Writes the archive to [outputStream], which is left open. The checksum of each entry is computed
+     * right before it is written, so the first bytes go out before the later APKs have been read.
+     */
+    fun writeTo(outputStream: OutputStream) {
+        val buffer = ByteArray(BUFFER_SIZE)
+        val zipOutputStream = ZipOutputStream(object : BufferedOutputStream(outputStream, BUFFER_SIZE) {
+            override fun close() = flush()
+        })
+        zipOutputStream.use {
+            apks.forEach { apk ->
+                val apkSize = Files.size(apk)
+                zipOutputStream.putNextEntry(ZipEntry(apk.fileName.toString()).apply {
+                    method = ZipEntry.STORED
+                    time = ENTRY_TIME
+                    size = apkSize
+                    compressedSize = apkSize
+                    crc = apk.crc32(buffer)
+                })
+                Files.newInputStream(apk).use { inputStream ->
+                    var read = inputStream.read(buffer)
+                    while (read != -1) {
+                        zipOutputStream.write(buffer, 0, read)
+                        read = inputStream.read(buffer)
+                    }
+                }
+                zipOutputStream.closeEntry()
+            }
+        }
+    }
+
+    /**
+     * Writes the [count] bytes of the archive that start at [position] to [outputStream], the bytes before
+     * them still have to be produced but are discarded rather than sent
+     */
+    fun writeTo(outputStream: OutputStream, position: Long, count: Long) {
+        if (position == 0L && count == size) {
+            writeTo(outputStream)
+            return
+        }
+
+        writeTo(object : OutputStream() {
+            private var offset = 0L
+
+            override fun write(b: Int) {
+                if (offset in position until position + count) {
+                    outputStream.write(b)
+                }
+                offset++
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                val from = max(offset, position)
+                val to = min(offset + len, position + count)
+                if (from < to) {
+                    outputStream.write(b, off + (from - offset).toInt(), (to - from).toInt())
+                }
+                offset += len
+            }
+
+            override fun flush() = outputStream.flush()
+        })
+    }
+
+    fun writeTo(path: Path): Path {
+        val partialPath = path.resolveSibling("${path.fileName}.part")
+        Files.newOutputStream(partialPath).use(::writeTo)
+        return Files.move(partialPath, path, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    /**
+     * Registers [count] additional holders of the archive, each of which has to [close] it
+     */
+    fun retain(count: Int = 1) = apply { references.addAndGet(count) }
+
+    override fun close() {
+        if (references.decrementAndGet() != 0) {
+            return
+        }
+
+        try {
+            onClose(this)
+        } finally {
+            workingDirectory?.deleteCompletely()
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val LOCAL_HEADER_SIZE = 30L
+        private const val CENTRAL_DIRECTORY_HEADER_SIZE = 46L
+        private const val END_OF_CENTRAL_DIRECTORY_SIZE = 22L
+
+        // 2000-01-01T12:00:00Z, well within the DOS date range in any time zone so that no extended
+        // timestamp fields are added to the headers
+        private const val ENTRY_TIME = 946728000000L
+    }
+}
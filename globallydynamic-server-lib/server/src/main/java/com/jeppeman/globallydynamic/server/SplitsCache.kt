@@ -0,0 +1,184 @@
+package com.jeppeman.globallydynamic.server
+
+import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+
+/**
+ * Disk backed cache of generated splits archives, keyed by [DownloadKey]. The cached archives returned by
+ * [get] and [put] are pinned until they are passed to [release], they are not deleted while pinned even if
+ * they are evicted or invalidated
+ */
+internal interface SplitsCache {
+    val isEnabled: Boolean get() = true
+    fun get(key: DownloadKey): Path?
+    fun put(key: DownloadKey, splits: Path): Path
+    fun release(splits: Path)
+    fun invalidate(applicationId: String, version: Int, variant: String)
+
+    companion object : (Path, Long, Logger) -> SplitsCache {
+        val NONE: SplitsCache = object : SplitsCache {
+            override val isEnabled: Boolean = false
+            override fun get(key: DownloadKey): Path? = null
+            override fun put(key: DownloadKey, splits: Path): Path = splits
+            override fun release(splits: Path) = Unit
+            override fun invalidate(applicationId: String, version: Int, variant: String) = Unit
+        }
+
+        override fun invoke(directory: Path, maxSizeBytes: Long, logger: Logger): SplitsCache =
+            if (maxSizeBytes > 0) {
+                SplitsCacheImpl(
+                    directory = directory,
+                    maxSizeBytes = maxSizeBytes,
+                    logger = logger
+                )
+            } else {
+                NONE
+            }
+    }
+}
+
+/**
+ * Entries are laid out as <directory>/<bundle id>/<key hash>.zip and evicted in least recently used order
+ * once their total size exceeds [maxSizeBytes]
+ */
+internal class SplitsCacheImpl(
+    private val directory: Path,
+    private val maxSizeBytes: Long,
+    private val logger: Logger
+) : SplitsCache {
+    private class Entry(val bundleId: String, val path: Path, val size: Long)
+
+    private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private var totalSizeBytes = 0L
+    private val pins = HashMap<Path, Int>()
+    private val pendingDeletions = HashSet<Path>()
+
+    init {
+        Files.createDirectories(directory)
+        restore()
+    }
+
+    private fun restore() {
+        Files.walk(directory).use { paths ->
+            paths.filter { path -> Files.isRegularFile(path) }
+                .sorted(Comparator.comparing { path: Path -> Files.getLastModifiedTime(path) })
+                .forEach { path ->
+                    val filename = path.fileName.toString()
+                    if (path.parent.parent == directory && filename.endsWith(ARCHIVE_SUFFIX)) {
+                        val entry = Entry(path.parent.fileName.toString(), path, Files.size(path))
+                        entries[filename.removeSuffix(ARCHIVE_SUFFIX)] = entry
+                        totalSizeBytes += entry.size
+                    } else {
+                        path.deleteCompletely()
+                    }
+                }
+        }
+        evict()
+        if (entries.isNotEmpty()) {
+            logger.i("Restored ${entries.size} cached splits archive(s) from $directory ($totalSizeBytes bytes)")
+        }
+    }
+
+    private fun pin(path: Path): Path = path.also { pins[path] = (pins[path] ?: 0) + 1 }
+
+    /**
+     * Deletes [path] now if it is not pinned, otherwise once it is released
+     */
+    private fun delete(path: Path) {
+        if (path in pins) {
+            pendingDeletions.add(path)
+        } else {
+            path.deleteCompletely()
+        }
+    }
+
+    private fun evict() {
+        val iterator = entries.values.iterator()
+        while (totalSizeBytes > maxSizeBytes && iterator.hasNext()) {
+            val entry = iterator.next()
+            iterator.remove()
+            totalSizeBytes -= entry.size
+            delete(entry.path)
+        }
+    }
+
+    @Synchronized
+    override fun get(key: DownloadKey): Path? {
+        val entry = entries[key.hash] ?: return null
+        return if (Files.exists(entry.path)) {
+            pin(entry.path)
+        } else {
+            entries.remove(key.hash)
+            totalSizeBytes -= entry.size
+            null
+        }
+    }
+
+    @Synchronized
+    override fun put(key: DownloadKey, splits: Path): Path {
+        val size = Files.size(splits)
+        if (size > maxSizeBytes) {
+            return splits
+        }
+
+        val existing = entries[key.hash]
+        if (existing != null && Files.exists(existing.path)) {
+            // The same key always yields the same archive, so the one that is already cached is kept
+            splits.deleteCompletely()
+            return pin(existing.path)
+        }
+        existing?.let { totalSizeBytes -= existing.size }
+
+        val bundleDirectory = Files.createDirectories(directory.resolve(key.bundleId))
+        val temporaryPath = bundleDirectory.resolve("${key.hash}$ARCHIVE_SUFFIX.tmp")
+        val path = bundleDirectory.resolve("${key.hash}$ARCHIVE_SUFFIX")
+        Files.move(splits, temporaryPath, StandardCopyOption.REPLACE_EXISTING)
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        // An evicted archive that is still pinned has just been replaced by the same content
+        pendingDeletions.remove(path)
+
+        entries[key.hash] = Entry(key.bundleId, path, size)
+        totalSizeBytes += size
+        pin(path)
+        evict()
+
+        return path
+    }
+
+    @Synchronized
+    override fun release(splits: Path) {
+        val count = pins[splits] ?: return
+        if (count > 1) {
+            pins[splits] = count - 1
+        } else {
+            pins.remove(splits)
+            if (pendingDeletions.remove(splits)) {
+                splits.deleteCompletely()
+            }
+        }
+    }
+
+    @Synchronized
+    override fun invalidate(applicationId: String, version: Int, variant: String) {
+        val bundleId = DownloadKey.bundleId(applicationId, version, variant)
+        val iterator = entries.values.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.bundleId == bundleId) {
+                iterator.remove()
+                totalSizeBytes -= entry.size
+                delete(entry.path)
+            }
+        }
+        val bundleDirectory = directory.resolve(bundleId)
+        if (pins.keys.none { path -> path.startsWith(bundleDirectory) }) {
+            bundleDirectory.deleteCompletely()
+        }
+    }
+
+    companion object {
+        private const val ARCHIVE_SUFFIX = ".zip"
+    }
+}
@@ -1,21 +1,57 @@
 package com.jeppeman.globallydynamic.server
 
+import com.amazonaws.AmazonClientException
+import com.amazonaws.AmazonServiceException
+import com.amazonaws.SdkClientException
+import com.amazonaws.client.builder.AwsClientBuilder
+import com.amazonaws.regions.DefaultAwsRegionProviderChain
+import com.amazonaws.regions.Regions
 import com.amazonaws.services.s3.AmazonS3
 import com.amazonaws.services.s3.AmazonS3ClientBuilder
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.AmazonS3Exception
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.GetObjectRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest
 import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PartETag
+import com.amazonaws.services.s3.model.S3ObjectInputStream
+import com.amazonaws.services.s3.model.UploadPartRequest
+import com.google.cloud.NoCredentials
+import com.google.cloud.ReadChannel
+import com.google.cloud.WriteChannel
 import com.google.cloud.storage.BlobId
 import com.google.cloud.storage.BlobInfo
 import com.google.cloud.storage.Storage
 import com.google.cloud.storage.StorageOptions
 import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import org.eclipse.jetty.http.HttpStatus
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
 import java.io.File
+import java.io.IOException
 import java.io.InputStream
 import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.FileChannel
+import java.nio.channels.NonWritableChannelException
+import java.nio.channels.SeekableByteChannel
+import java.nio.channels.WritableByteChannel
 import java.nio.file.Files
+import java.nio.file.NoSuchFileException
 import java.nio.file.Path
 import java.nio.file.Paths
 import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
 
 interface StorageBackend {
     fun storeFile(name: String, contentType: String, inputStream: InputStream)
@@ -23,6 +59,78 @@ interface StorageBackend {
     fun deleteFile(name: String)
     fun exists(name: String): Boolean
 
+    /**
+     * Retrieves [name] into [destination], returns false if it does not exist
+     */
+    fun retrieveFile(name: String, destination: Path): Boolean {
+        val file = retrieveFile(name) ?: return false
+        Files.copy(file, destination, StandardCopyOption.REPLACE_EXISTING)
+        return true
+    }
+
+    /**
+     * Opens [name] for reading from any position, or returns null if it does not exist. Backends that can
+     * read ranges of a file remotely do so rather than retrieving all of it first
+     */
+    fun openRead(name: String): SeekableByteChannel? =
+        retrieveFile(name)?.let { file -> FileChannel.open(file, StandardOpenOption.READ) }
+
+    /**
+     * Opens [name] for writing, what has been written is stored once the channel is closed. Backends that
+     * can upload in parts do so while the channel is being written to
+     */
+    fun openWrite(name: String, contentType: String): WritableByteChannel {
+        val tempFile = Files.createTempFile("StorageBackend", null)
+        val channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)
+        return object : WritableByteChannel by channel {
+            override fun close() {
+                try {
+                    channel.close()
+                    storeFile(name, contentType, Files.newInputStream(tempFile))
+                } finally {
+                    tempFile.deleteCompletely()
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves [source] to [destination], replacing it if it exists. Backends that can move or copy files
+     * without transferring their content do so, others store [source] anew with [contentType]
+     */
+    fun moveFile(source: String, destination: String, contentType: String) {
+        val file = retrieveFile(source) ?: throw NoSuchFileException(source)
+        storeFile(destination, contentType, Files.newInputStream(file))
+        deleteFile(source)
+    }
+
+    /**
+     * Copies [source] to [destination], replacing it if it exists. Backends that can copy files without
+     * transferring their content do so, others store [source] anew with [contentType]
+     */
+    fun copyFile(source: String, destination: String, contentType: String) {
+        val file = retrieveFile(source) ?: throw NoSuchFileException(source)
+        storeFile(destination, contentType, Files.newInputStream(file))
+    }
+
+    /**
+     * Returns the size and a content validator of [name], or null if it does not exist
+     */
+    fun stat(name: String): Stat? = retrieveFile(name)?.let { file ->
+        Stat(
+            size = Files.size(file),
+            hash = "${Files.getLastModifiedTime(file).toMillis()}-${Files.size(file)}"
+        )
+    }
+
+    /**
+     * @param hash an opaque value that changes whenever the content of the file changes, e.g. a checksum,
+     * an ETag or a generation number
+     */
+    class Stat(val size: Long, val hash: String) {
+        override fun toString(): String = "Stat(size=$size, hash=$hash)"
+    }
+
     companion object {
         val LOCAL_DEFAULT: LocalStorageBackend = LocalStorageBackend.builder().build()
     }
@@ -50,6 +158,44 @@ class LocalStorageBackend private constructor(
 
     override fun exists(name: String): Boolean = Files.exists(baseStoragePath.resolve(name))
 
+    override fun openRead(name: String): SeekableByteChannel? = try {
+        FileChannel.open(baseStoragePath.resolve(name), StandardOpenOption.READ)
+    } catch (noSuchFileException: NoSuchFileException) {
+        null
+    }
+
+    override fun openWrite(name: String, contentType: String): WritableByteChannel {
+        Files.createDirectories(baseStoragePath)
+        val file = baseStoragePath.resolve(name)
+        val partialFile = baseStoragePath.resolve("$name.${UUID.randomUUID()}$PARTIAL_SUFFIX")
+        val channel = FileChannel.open(partialFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+        return object : WritableByteChannel by channel {
+            override fun close() {
+                if (channel.isOpen) {
+                    channel.close()
+                    Files.move(partialFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                }
+            }
+        }
+    }
+
+    override fun moveFile(source: String, destination: String, contentType: String) {
+        Files.move(
+            baseStoragePath.resolve(source),
+            baseStoragePath.resolve(destination),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        )
+    }
+
+    override fun copyFile(source: String, destination: String, contentType: String) {
+        Files.copy(
+            baseStoragePath.resolve(source),
+            baseStoragePath.resolve(destination),
+            StandardCopyOption.REPLACE_EXISTING
+        )
+    }
+
     override fun toString(): String {
         return "LocalStorageBackend(baseStoragePath=$baseStoragePath)"
     }
@@ -74,56 +220,92 @@ class LocalStorageBackend private constructor(
     }
 
     companion object {
+        private const val PARTIAL_SUFFIX = ".part"
+
         fun builder(): Builder = Builder()
     }
 }
 
-class GoogleCloudStorageBackend private constructor(
+/**
+ * Uploads go through resumable sessions in chunks of [chunkSizeBytes], a chunk that fails to be sent is
+ * retried from where the session left off rather than from the start of the file
+ */
+class GoogleCloudStorageBackend internal constructor(
     private val bucketId: String,
-    private val storage: Storage = StorageOptions.getDefaultInstance().service
+    private val chunkSizeBytes: Int = DEFAULT_CHUNK_SIZE_BYTES,
+    private val host: String? = null,
+    internal val scratchPath: Path = ScratchSpace.DEFAULT_PATH,
+    private val storage: Storage = storage(host)
 ) : StorageBackend {
 
     private fun String.asBlobId() = BlobId.of(bucketId, this)
 
-    private fun createTempFile(name: String) = Files.createTempDirectory("GoogleCloudStorageBackend").resolve(name)
+    // Handed to the caller, which does not know to delete it, so it is left to the scratch space sweeper
+    private val scratchSpace = ScratchSpace.unswept(scratchPath)
+
+    private fun createTempFile(name: String) = scratchSpace.createTempDirectory("GoogleCloudStorageBackend").resolve(name)
 
+    // The object is replaced atomically once the writer is closed, so the previous one is not deleted first
     override fun storeFile(name: String, contentType: String, inputStream: InputStream) {
-        val blobId = name.asBlobId()
-        val blobInfo = BlobInfo.newBuilder(blobId).setContentType(contentType).build()
-        try {
-            storage.delete(blobId)
-        } finally {
-            inputStream.use {
-                val writeChannel = storage.writer(blobInfo)
-                val buffer = ByteArray(1024)
-                var limit = 0
-                while (inputStream.read(buffer).also { limit = it } >= 0) {
-                    writeChannel.write(ByteBuffer.wrap(buffer, 0, limit))
-                }
-                writeChannel.close()
-            }
+        inputStream.use {
+            // Not closed on failure, so that a partial upload is never committed
+            val writeChannel = openWrite(name, contentType)
+            it.copyTo(writeChannel)
+            writeChannel.close()
         }
     }
 
+    override fun openRead(name: String): SeekableByteChannel? {
+        val blob = storage.get(name.asBlobId()) ?: return null
+        return GoogleCloudStorageReadChannel(
+            storage.reader(blob.blobId, Storage.BlobSourceOption.generationMatch(blob.generation)),
+            blob.size
+        )
+    }
+
+    override fun openWrite(name: String, contentType: String): WriteChannel =
+        storage.writer(BlobInfo.newBuilder(name.asBlobId()).setContentType(contentType).build())
+            .apply { setChunkSize(chunkSizeBytes) }
+
     override fun retrieveFile(name: String): Path? {
-        val blobId = name.asBlobId()
-        val blob = storage.get(blobId)
-        return if (blob != null) {
-            createTempFile(name).apply(blob::downloadTo)
+        val tempFile = createTempFile(name)
+        return if (retrieveFile(name, tempFile)) {
+            tempFile
         } else {
+            tempFile.parent.deleteCompletely()
             null
         }
     }
 
+    override fun retrieveFile(name: String, destination: Path): Boolean {
+        val blob = storage.get(name.asBlobId()) ?: return false
+        blob.downloadTo(destination)
+        return true
+    }
+
+    override fun stat(name: String): StorageBackend.Stat? = storage.get(name.asBlobId())?.let { blob ->
+        StorageBackend.Stat(size = blob.size, hash = blob.generation.toString())
+    }
+
     override fun deleteFile(name: String) {
         val blobId = name.asBlobId()
         storage.delete(blobId)
     }
 
+    override fun moveFile(source: String, destination: String, contentType: String) {
+        // Copies within a bucket are rewritten without transferring the content
+        storage.copy(Storage.CopyRequest.of(source.asBlobId(), destination.asBlobId())).result
+        storage.delete(source.asBlobId())
+    }
+
+    override fun copyFile(source: String, destination: String, contentType: String) {
+        storage.copy(Storage.CopyRequest.of(source.asBlobId(), destination.asBlobId())).result
+    }
+
     override fun exists(name: String): Boolean = storage.get(name.asBlobId()) != null
 
     override fun toString(): String {
-        return "GoogleCloudStorageBackend(bucketId=$bucketId)"
+        return "GoogleCloudStorageBackend(bucketId=$bucketId, chunkSizeBytes=$chunkSizeBytes)"
     }
 
     fun newBuilder(): Builder = Builder(this)
@@ -132,86 +314,500 @@ class GoogleCloudStorageBackend private constructor(
         @set:JvmSynthetic
         var bucketId: String = ""
 
+        /**
+         * The size of the chunks that uploads are sent in, must be a multiple of 256 KB
+         */
+        @set:JvmSynthetic
+        var chunkSizeBytes: Int = DEFAULT_CHUNK_SIZE_BYTES
+
+        /**
+         * The host of a Cloud Storage emulator to use instead of Google Cloud Storage, such as
+         * fake-gcs-server, requests are then sent without credentials
+         */
+        @set:JvmSynthetic
+        var host: String? = null
+
+        /**
+         * Where retrieved files are kept, see [GloballyDynamicServer.Configuration.scratchPath]
+         */
+        @set:JvmSynthetic
+        var scratchPath: Path = ScratchSpace.DEFAULT_PATH
+
         internal constructor(googleCloudStorageBackend: GoogleCloudStorageBackend) : this() {
             bucketId = googleCloudStorageBackend.bucketId
+            chunkSizeBytes = googleCloudStorageBackend.chunkSizeBytes
+            host = googleCloudStorageBackend.host
+            scratchPath = googleCloudStorageBackend.scratchPath
         }
 
         fun setBucketId(bucketId: String) = apply { this.bucketId = bucketId }
+        fun setChunkSizeBytes(chunkSizeBytes: Int) = apply { this.chunkSizeBytes = chunkSizeBytes }
+        fun setHost(host: String?) = apply { this.host = host }
+        fun setScratchPath(scratchPath: Path) = apply { this.scratchPath = scratchPath }
 
         fun build(): GoogleCloudStorageBackend {
             val bucketId = requireNotNull(this.bucketId.takeIf(String::isNotBlank))
-            return GoogleCloudStorageBackend(bucketId)
+            require(chunkSizeBytes > 0 && chunkSizeBytes % CHUNK_SIZE_MULTIPLE == 0) {
+                "The chunk size must be a positive multiple of $CHUNK_SIZE_MULTIPLE bytes"
+            }
+            return GoogleCloudStorageBackend(bucketId, chunkSizeBytes, host, scratchPath)
         }
     }
 
     companion object {
+        const val DEFAULT_CHUNK_SIZE_BYTES = 16 * 1024 * 1024
+        private const val CHUNK_SIZE_MULTIPLE = 256 * 1024
+
+        private fun storage(host: String?): Storage = if (host == null) {
+            StorageOptions.getDefaultInstance().service
+        } else {
+            StorageOptions.newBuilder()
+                .setHost(host)
+                .setCredentials(NoCredentials.getInstance())
+                .build()
+                .service
+        }
+
         fun builder(): Builder = Builder()
     }
 }
 
 class S3Backend(
     private val bucketId: String,
-    private val s3: AmazonS3 = AmazonS3ClientBuilder.defaultClient()
+    private val s3: AmazonS3 = AmazonS3ClientBuilder.defaultClient(),
+    private val partSizeBytes: Int = DEFAULT_PART_SIZE_BYTES,
+    private val uploadParallelism: Int = DEFAULT_UPLOAD_PARALLELISM,
+    internal val scratchPath: Path = ScratchSpace.DEFAULT_PATH
 ) : StorageBackend {
-    private fun createTempFile(name: String) = Files.createTempDirectory("S3Backend").resolve(name)
+    private val threadCount = AtomicInteger()
+    private val uploadExecutor by lazy {
+        Executors.newFixedThreadPool(uploadParallelism) { runnable ->
+            Thread(runnable, "GloballyDynamicS3Upload-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+
+    init {
+        require(partSizeBytes >= MIN_PART_SIZE_BYTES) { "The part size must be at least $MIN_PART_SIZE_BYTES bytes" }
+        require(uploadParallelism > 0) { "The upload parallelism must be positive" }
+    }
+
+    // Handed to the caller, which does not know to delete it, so it is left to the scratch space sweeper
+    private val scratchSpace = ScratchSpace.unswept(scratchPath)
+
+    private fun createTempFile(name: String) = scratchSpace.createTempDirectory("S3Backend").resolve(name)
+
+    private fun newWriteChannel(name: String, contentType: String) =
+        S3WriteChannel(s3, bucketId, name, contentType, partSizeBytes, uploadParallelism, uploadExecutor)
 
     override fun storeFile(name: String, contentType: String, inputStream: InputStream) {
-        val tempFile = createTempFile(UUID.randomUUID().toString())
-        inputStream.use {
-            tempFile.toFile().outputStream().use { outputStream ->
-                it.copyTo(outputStream)
-            }
-        }
-        tempFile.toFile().inputStream().use { fileInputStream ->
-            val metaData = ObjectMetadata().apply {
-                setContentType(contentType)
-                contentLength = tempFile.toFile().length()
-            }
-            s3.putObject(bucketId, name, fileInputStream, metaData)
+        val writeChannel = newWriteChannel(name, contentType)
+        try {
+            inputStream.use { it.copyTo(writeChannel) }
+            writeChannel.close()
+        } catch (exception: Exception) {
+            writeChannel.abort()
+            throw exception
         }
-
-        tempFile.deleteCompletely()
     }
 
     override fun retrieveFile(name: String): Path? {
         val tempFile = createTempFile(name)
-        val s3Object = s3.getObject(bucketId, name)
-        s3Object.objectContent.use { inputStream ->
-            tempFile.toFile().outputStream().use { outputStream ->
-                inputStream.copyTo(outputStream)
-            }
+        return if (retrieveFile(name, tempFile)) {
+            tempFile
+        } else {
+            tempFile.parent.deleteCompletely()
+            null
+        }
+    }
+
+    override fun openRead(name: String): SeekableByteChannel? =
+        stat(name)?.let { stat -> S3ReadChannel(s3, bucketId, name, stat.hash, stat.size) }
+
+    override fun openWrite(name: String, contentType: String): WritableByteChannel =
+        newWriteChannel(name, contentType)
+
+    override fun retrieveFile(name: String, destination: Path): Boolean = try {
+        s3.getObject(GetObjectRequest(bucketId, name), destination.toFile())
+        true
+    } catch (amazonS3Exception: AmazonS3Exception) {
+        if (amazonS3Exception.statusCode == HttpStatus.NOT_FOUND_404) {
+            false
+        } else {
+            throw amazonS3Exception
         }
+    }
 
-        return tempFile
+    override fun stat(name: String): StorageBackend.Stat? = try {
+        val metadata = s3.getObjectMetadata(bucketId, name)
+        StorageBackend.Stat(size = metadata.contentLength, hash = metadata.eTag)
+    } catch (amazonS3Exception: AmazonS3Exception) {
+        if (amazonS3Exception.statusCode == HttpStatus.NOT_FOUND_404) {
+            null
+        } else {
+            throw amazonS3Exception
+        }
     }
 
     override fun deleteFile(name: String) {
         s3.deleteObject(bucketId, name)
     }
 
+    override fun moveFile(source: String, destination: String, contentType: String) {
+        s3.copyObject(bucketId, source, bucketId, destination)
+        s3.deleteObject(bucketId, source)
+    }
+
+    override fun copyFile(source: String, destination: String, contentType: String) {
+        s3.copyObject(bucketId, source, bucketId, destination)
+    }
+
     override fun exists(name: String): Boolean = s3.doesObjectExist(bucketId, name)
 
     override fun toString(): String {
-        return "S3Backend(bucketId=$bucketId)"
+        return "S3Backend(bucketId=$bucketId, partSizeBytes=$partSizeBytes, uploadParallelism=$uploadParallelism)"
     }
 
+    fun newBuilder(): Builder = Builder(this)
+
     class Builder internal constructor() {
         @set:JvmSynthetic
         var bucketId: String = ""
 
+        /**
+         * The endpoint of an S3 compatible service to use instead of AWS, such as MinIO, objects are then
+         * addressed by path rather than by virtual host
+         */
+        @set:JvmSynthetic
+        var endpoint: String? = null
+
+        @set:JvmSynthetic
+        var partSizeBytes: Int = DEFAULT_PART_SIZE_BYTES
+
+        @set:JvmSynthetic
+        var uploadParallelism: Int = DEFAULT_UPLOAD_PARALLELISM
+
+        /**
+         * Where retrieved files are kept, see [GloballyDynamicServer.Configuration.scratchPath]
+         */
+        @set:JvmSynthetic
+        var scratchPath: Path = ScratchSpace.DEFAULT_PATH
+
+        // The client of the backend that the builder was created from, unless an endpoint is given
+        private var s3: AmazonS3? = null
+
         internal constructor(s3Backend: S3Backend) : this() {
+            s3 = s3Backend.s3
             bucketId = s3Backend.bucketId
+            partSizeBytes = s3Backend.partSizeBytes
+            uploadParallelism = s3Backend.uploadParallelism
+            scratchPath = s3Backend.scratchPath
         }
 
         fun setBucketId(bucketId: String) = apply { this.bucketId = bucketId }
+        fun setEndpoint(endpoint: String?) = apply { this.endpoint = endpoint }
+        fun setPartSizeBytes(partSizeBytes: Int) = apply { this.partSizeBytes = partSizeBytes }
+        fun setUploadParallelism(uploadParallelism: Int) = apply { this.uploadParallelism = uploadParallelism }
+        fun setScratchPath(scratchPath: Path) = apply { this.scratchPath = scratchPath }
 
         fun build(): S3Backend {
             val bucketId = requireNotNull(this.bucketId.takeIf(String::isNotBlank))
-            return S3Backend(bucketId)
+            val s3 = endpoint?.let { endpoint ->
+                AmazonS3ClientBuilder.standard()
+                    .withEndpointConfiguration(AwsClientBuilder.EndpointConfiguration(endpoint, defaultRegion()))
+                    .withPathStyleAccessEnabled(true)
+                    .build()
+            } ?: s3 ?: AmazonS3ClientBuilder.defaultClient()
+            return S3Backend(bucketId, s3, partSizeBytes, uploadParallelism, scratchPath)
+        }
+
+        private fun defaultRegion(): String = try {
+            DefaultAwsRegionProviderChain().region
+        } catch (sdkClientException: SdkClientException) {
+            Regions.DEFAULT_REGION.getName()
         }
     }
 
     companion object {
+        const val DEFAULT_PART_SIZE_BYTES = 8 * 1024 * 1024
+        const val DEFAULT_UPLOAD_PARALLELISM = 4
+
+        /**
+         * The smallest part size that S3 accepts for all but the last part of a file
+         */
+        const val MIN_PART_SIZE_BYTES = 5 * 1024 * 1024
+
         fun builder(): Builder = Builder()
     }
-}
\ No newline at end of file
+}
+
+private fun InputStream.copyTo(channel: WritableByteChannel) {
+    val buffer = ByteArray(COPY_BUFFER_SIZE)
+    var read = read(buffer)
+    while (read >= 0) {
+        val byteBuffer = ByteBuffer.wrap(buffer, 0, read)
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer)
+        }
+        read = read(buffer)
+    }
+}
+
+/**
+ * A read only [SeekableByteChannel] of a file of a known size in a remote backend
+ */
+private abstract class RemoteReadChannel(private val size: Long) : SeekableByteChannel {
+    protected var position = 0L
+    private var open = true
+
+    protected abstract fun read(dst: ByteBuffer, position: Long): Int
+
+    protected abstract fun release()
+
+    override fun read(dst: ByteBuffer): Int {
+        if (!open) {
+            throw ClosedChannelException()
+        }
+        if (position >= size) {
+            return -1
+        }
+        return read(dst, position).also { read -> if (read > 0) position += read }
+    }
+
+    override fun position(): Long = position
+
+    override fun position(newPosition: Long): SeekableByteChannel = apply { position = newPosition }
+
+    override fun size(): Long = size
+
+    override fun write(src: ByteBuffer): Int = throw NonWritableChannelException()
+
+    override fun truncate(size: Long): SeekableByteChannel = throw NonWritableChannelException()
+
+    override fun isOpen(): Boolean = open
+
+    override fun close() {
+        if (open) {
+            open = false
+            release()
+        }
+    }
+}
+
+private class GoogleCloudStorageReadChannel(
+    private val readChannel: ReadChannel,
+    size: Long
+) : RemoteReadChannel(size) {
+    private var readChannelPosition = 0L
+
+    override fun read(dst: ByteBuffer, position: Long): Int {
+        if (position != readChannelPosition) {
+            readChannel.seek(position)
+            readChannelPosition = position
+        }
+        return readChannel.read(dst).also { read -> if (read > 0) readChannelPosition += read }
+    }
+
+    override fun release() = readChannel.close()
+}
+
+/**
+ * Reads through ranged GETs of the version of the object that has [eTag], a request is kept open for as
+ * long as reads are sequential or skip only a short distance ahead
+ */
+private class S3ReadChannel(
+    private val s3: AmazonS3,
+    private val bucketId: String,
+    private val name: String,
+    private val eTag: String,
+    size: Long
+) : RemoteReadChannel(size) {
+    private var inputStream: S3ObjectInputStream? = null
+    private var inputStreamPosition = 0L
+
+    private fun open(position: Long): S3ObjectInputStream {
+        inputStream?.abort()
+        val request = GetObjectRequest(bucketId, name)
+            .withRange(position)
+            .withMatchingETagConstraint(eTag)
+        val inputStream = s3.getObject(request)?.objectContent
+            ?: throw IOException("$name in $bucketId has changed since it was opened")
+        inputStreamPosition = position
+        this.inputStream = inputStream
+        return inputStream
+    }
+
+    override fun read(dst: ByteBuffer, position: Long): Int {
+        val current = inputStream
+        var inputStream = if (current == null
+            || position < inputStreamPosition
+            || position - inputStreamPosition > MAX_SKIP_BYTES) {
+            open(position)
+        } else {
+            current
+        }
+        while (inputStreamPosition < position) {
+            val skipped = inputStream.skip(position - inputStreamPosition)
+            if (skipped <= 0) {
+                inputStream = open(position)
+                break
+            }
+            inputStreamPosition += skipped
+        }
+
+        val bytes = ByteArray(minOf(dst.remaining(), COPY_BUFFER_SIZE))
+        val read = inputStream.read(bytes)
+        if (read > 0) {
+            dst.put(bytes, 0, read)
+            inputStreamPosition += read
+        }
+        return read
+    }
+
+    override fun release() {
+        inputStream?.abort()
+        inputStream = null
+    }
+
+    companion object {
+        private const val MAX_SKIP_BYTES = 256 * 1024L
+    }
+}
+
+/**
+ * Uploads parts of [partSizeBytes] bytes on [executor] as they are written, with at most [uploadParallelism]
+ * parts of the file in flight at a time. Parts are retried on their own, so that a failed request does not
+ * restart the upload. Files smaller than a part are uploaded in a single request once the channel is closed
+ */
+private class S3WriteChannel(
+    private val s3: AmazonS3,
+    private val bucketId: String,
+    private val name: String,
+    private val contentType: String,
+    private val partSizeBytes: Int,
+    private val uploadParallelism: Int,
+    private val executor: ExecutorService
+) : WritableByteChannel {
+    private val buffer = ByteArrayOutputStream()
+    private val parts = mutableListOf<Future<PartETag>>()
+    private val inFlight = Semaphore(uploadParallelism)
+    private var uploadId: String? = null
+    private var open = true
+
+    private fun Future<PartETag>.await(): PartETag = try {
+        get()
+    } catch (executionException: ExecutionException) {
+        throw executionException.cause ?: executionException
+    }
+
+    private fun uploadPart() {
+        val uploadId = uploadId ?: s3.initiateMultipartUpload(
+            InitiateMultipartUploadRequest(bucketId, name, ObjectMetadata().apply { setContentType(contentType) })
+        ).uploadId.also { uploadId = it }
+        val bytes = buffer.toByteArray()
+        val partNumber = parts.size + 1
+        buffer.reset()
+
+        // Surfaces failed parts as soon as possible rather than once all of the file has been written
+        parts.filter(Future<PartETag>::isDone).forEach { part -> part.await() }
+
+        inFlight.acquire()
+        parts += try {
+            executor.submit(Callable {
+                try {
+                    uploadPart(uploadId, partNumber, bytes)
+                } finally {
+                    inFlight.release()
+                }
+            })
+        } catch (exception: Exception) {
+            inFlight.release()
+            throw exception
+        }
+    }
+
+    private fun uploadPart(uploadId: String, partNumber: Int, bytes: ByteArray): PartETag {
+        var attempt = 1
+        while (true) {
+            try {
+                return s3.uploadPart(UploadPartRequest()
+                    .withBucketName(bucketId)
+                    .withKey(name)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withInputStream(ByteArrayInputStream(bytes))
+                    .withPartSize(bytes.size.toLong())
+                ).partETag
+            } catch (amazonClientException: AmazonClientException) {
+                val isClientError = (amazonClientException as? AmazonServiceException)?.statusCode
+                    ?.let { statusCode -> statusCode in 400..499 } == true
+                if (isClientError || attempt >= MAX_PART_ATTEMPTS) {
+                    throw amazonClientException
+                }
+                attempt++
+            }
+        }
+    }
+
+    override fun write(src: ByteBuffer): Int {
+        if (!open) {
+            throw ClosedChannelException()
+        }
+        val written = src.remaining()
+        while (src.hasRemaining()) {
+            val bytes = ByteArray(minOf(src.remaining(), partSizeBytes - buffer.size()))
+            src.get(bytes)
+            buffer.write(bytes)
+            if (buffer.size() >= partSizeBytes) {
+                uploadPart()
+            }
+        }
+        return written
+    }
+
+    override fun isOpen(): Boolean = open
+
+    override fun close() {
+        if (!open) {
+            return
+        }
+        open = false
+        val uploadId = uploadId
+        if (uploadId == null) {
+            val bytes = buffer.toByteArray()
+            val metadata = ObjectMetadata().apply {
+                setContentType(contentType)
+                contentLength = bytes.size.toLong()
+            }
+            s3.putObject(bucketId, name, ByteArrayInputStream(bytes), metadata)
+        } else {
+            try {
+                if (buffer.size() > 0) {
+                    uploadPart()
+                }
+                val partETags = parts.map { part -> part.await() }
+                s3.completeMultipartUpload(CompleteMultipartUploadRequest(bucketId, name, uploadId, partETags))
+            } catch (exception: Exception) {
+                abort()
+                throw exception
+            }
+        }
+    }
+
+    /**
+     * Discards what has been written
+     */
+    fun abort() {
+        open = false
+        buffer.reset()
+        parts.forEach { part -> part.cancel(true) }
+        parts.clear()
+        uploadId?.let { uploadId -> s3.abortMultipartUpload(AbortMultipartUploadRequest(bucketId, name, uploadId)) }
+        uploadId = null
+    }
+
+    companion object {
+        private const val MAX_PART_ATTEMPTS = 3
+    }
+}
+
+private const val COPY_BUFFER_SIZE = 64 * 1024
@@ -0,0 +1,190 @@
+package com.jeppeman.globallydynamic.server
+
+import com.jeppeman.globallydynamic.server.dto.UploadJobDto
+import org.eclipse.jetty.http.HttpStatus
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.UUID
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The processing of an uploaded bundle, see [UploadJobs]
+ */
+internal class UploadJob(
+    val id: String,
+    val applicationId: String,
+    val version: Int,
+    val variant: String
+) {
+    enum class Stage { STORED, BUILDING, PERSISTING, COMPLETED, WARMED, FAILED }
+
+    private val createdAt = System.currentTimeMillis()
+    private val finished = CountDownLatch(1)
+    private val timings = LinkedHashMap<Stage, Long>()
+
+    @Volatile
+    var stage: Stage = Stage.STORED
+        private set
+
+    @Volatile
+    var result: BundleManager.Result? = null
+        private set
+
+    @Volatile
+    var error: Throwable? = null
+        private set
+
+    init {
+        enter(Stage.STORED)
+    }
+
+    @Synchronized
+    fun enter(stage: Stage) {
+        // Warm-up runs in the background and may finish before the upload is reported as completed
+        if (this.stage != Stage.WARMED) {
+            this.stage = stage
+        }
+        timings[stage] = System.currentTimeMillis() - createdAt
+    }
+
+    fun complete(result: BundleManager.Result) {
+        this.result = result
+        enter(if (result is BundleManager.Result.Error) Stage.FAILED else Stage.COMPLETED)
+        finished.countDown()
+    }
+
+    fun fail(error: Throwable) {
+        this.error = error
+        enter(Stage.FAILED)
+        finished.countDown()
+    }
+
+    /**
+     * Waits until the bundle has been stored or has failed to be, warm-up is not waited for
+     */
+    fun await() = finished.await()
+
+    @Synchronized
+    fun toDto() = UploadJobDto(
+        id = id,
+        applicationId = applicationId,
+        version = version,
+        variant = variant,
+        stage = stage.name.lowercase(),
+        error = (result as? BundleManager.Result.Error)?.message ?: error?.message,
+        timings = timings.mapKeys { (stage, _) -> stage.name.lowercase() }
+    )
+}
+
+/**
+ * Stores uploaded bundles on a pool of [maxConcurrentUploads] workers, so that concurrent uploads do not
+ * starve downloads of CPU, with room for [maxQueuedUploads] uploads waiting for a worker. The most recent
+ * jobs are kept around so that their status can be looked up by id.
+ */
+internal class UploadJobs(
+    private val bundleManager: BundleManager,
+    private val logger: Logger,
+    private val scratchSpace: ScratchSpace = ScratchSpace.DEFAULT,
+    maxConcurrentUploads: Int = DEFAULT_MAX_CONCURRENT_UPLOADS,
+    maxQueuedUploads: Int = DEFAULT_MAX_QUEUED_UPLOADS
+) {
+    private val threadCount = AtomicInteger()
+    private val executor = ThreadPoolExecutor(
+        maxConcurrentUploads,
+        maxConcurrentUploads,
+        IDLE_TIMEOUT_SECONDS,
+        TimeUnit.SECONDS,
+        ArrayBlockingQueue(maxOf(maxQueuedUploads, 1))
+    ) { runnable ->
+        Thread(runnable, "GloballyDynamicUpload-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+    }.apply { allowCoreThreadTimeOut(true) }
+    private val jobs = object : LinkedHashMap<String, UploadJob>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, UploadJob>?): Boolean =
+            size > MAX_RETAINED_JOBS
+    }
+
+    operator fun get(id: String): UploadJob? = synchronized(jobs) { jobs[id] }
+
+    /**
+     * Queues the bundle to be stored. If [spool] is set, the input streams are first copied to local disk so
+     * that they can be read after the request that they came from has completed
+     */
+    fun submit(
+        applicationId: String,
+        version: Int,
+        variant: String,
+        signingConfig: String,
+        bundleInputStream: InputStream,
+        keyStoreInputStream: InputStream,
+        spool: Boolean
+    ): UploadJob {
+        val spoolWorkspace = if (spool) scratchSpace.workspace("${applicationId}_${version}_${variant}_upload") else null
+        val (bundle, keyStore) = try {
+            spoolWorkspace?.path?.resolve("bundle.aab")?.also { path ->
+                bundleInputStream.use { Files.copy(it, path, StandardCopyOption.REPLACE_EXISTING) }
+            } to spoolWorkspace?.path?.resolve("bundle.keystore")?.also { path ->
+                keyStoreInputStream.use { Files.copy(it, path, StandardCopyOption.REPLACE_EXISTING) }
+            }
+        } catch (exception: Exception) {
+            spoolWorkspace?.close()
+            throw exception
+        }
+
+        val job = UploadJob(UUID.randomUUID().toString(), applicationId, version, variant)
+
+        try {
+            executor.execute {
+                try {
+                    logger.i("Processing upload ${job.id} of ${DownloadKey.bundleId(applicationId, version, variant)}")
+                    job.complete(if (bundle != null && keyStore != null) {
+                        // Read in place, rather than copied once more from streams of the spooled files
+                        bundleManager.storeBundle(
+                            applicationId = applicationId,
+                            version = version,
+                            variant = variant,
+                            signingConfig = signingConfig,
+                            bundlePath = bundle,
+                            keyStorePath = keyStore,
+                            onProgress = job::enter
+                        )
+                    } else {
+                        bundleManager.storeBundle(
+                            applicationId = applicationId,
+                            version = version,
+                            variant = variant,
+                            signingConfig = signingConfig,
+                            bundleInputStream = bundleInputStream,
+                            keyStoreInputStream = keyStoreInputStream,
+                            onProgress = job::enter
+                        )
+                    })
+                } catch (throwable: Throwable) {
+                    logger.e("Upload ${job.id} failed", throwable)
+                    job.fail(throwable)
+                } finally {
+                    spoolWorkspace?.close()
+                }
+            }
+        } catch (rejectedExecutionException: RejectedExecutionException) {
+            spoolWorkspace?.close()
+            throw HttpException(HttpStatus.SERVICE_UNAVAILABLE_503, "Too many uploads in progress, try again later")
+        }
+
+        synchronized(jobs) { jobs[job.id] = job }
+
+        return job
+    }
+
+    companion object {
+        const val DEFAULT_MAX_CONCURRENT_UPLOADS = 2
+        const val DEFAULT_MAX_QUEUED_UPLOADS = 16
+        private const val MAX_RETAINED_JOBS = 256
+        private const val IDLE_TIMEOUT_SECONDS = 60L
+    }
+}
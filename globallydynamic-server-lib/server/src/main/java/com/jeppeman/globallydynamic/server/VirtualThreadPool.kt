@@ -0,0 +1,68 @@
+package com.jeppeman.globallydynamic.server
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle
+import org.eclipse.jetty.util.thread.ThreadPool
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs every task that Jetty dispatches on a virtual thread of its own, so that requests that block on
+ * storage or on slow clients do not hold on to a platform thread. Jetty 9.4 can not keep its selectors on
+ * platform threads while dispatching requests to virtual ones, so they run on virtual threads as well.
+ * Requires JDK 21 or later, see [isSupported]
+ */
+internal class VirtualThreadPool : AbstractLifeCycle(), ThreadPool {
+    private val threads = AtomicInteger()
+    private var executor: ExecutorService? = null
+
+    override fun doStart() {
+        executor = newVirtualThreadPerTaskExecutor()
+        super.doStart()
+    }
+
+    override fun doStop() {
+        executor?.shutdownNow()
+        super.doStop()
+    }
+
+    override fun execute(command: Runnable) {
+        val executor = checkNotNull(executor) { "$this is not started" }
+        threads.incrementAndGet()
+        executor.execute {
+            try {
+                command.run()
+            } finally {
+                threads.decrementAndGet()
+            }
+        }
+    }
+
+    override fun join() {
+        executor?.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+    }
+
+    override fun getThreads(): Int = threads.get()
+
+    override fun getIdleThreads(): Int = 0
+
+    override fun isLowOnThreads(): Boolean = false
+
+    override fun toString(): String = "VirtualThreadPool[threads=${threads.get()}]"
+
+    companion object {
+        private const val MIN_JAVA_VERSION = 21
+
+        // Virtual threads are a preview feature before JDK 21
+        val isSupported: Boolean by lazy {
+            (System.getProperty("java.specification.version")?.toIntOrNull() ?: 0) >= MIN_JAVA_VERSION
+        }
+
+        // Looked up reflectively since the server is compiled for JDKs that do not have virtual threads
+        private fun newVirtualThreadPerTaskExecutor(): ExecutorService {
+            check(isSupported) { "Virtual threads require JDK 21 or later" }
+            return Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService
+        }
+    }
+}
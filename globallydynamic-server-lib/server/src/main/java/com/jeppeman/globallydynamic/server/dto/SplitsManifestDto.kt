@@ -0,0 +1,11 @@
+package com.jeppeman.globallydynamic.server.dto
+
+internal data class SplitsManifestDto(
+    val splits: List<SplitDto>
+)
+
+internal data class SplitDto(
+    val name: String,
+    val size: Long,
+    val sha256: String
+)
@@ -0,0 +1,11 @@
+package com.jeppeman.globallydynamic.server.dto
+
+internal data class UploadJobDto(
+    val id: String,
+    val applicationId: String,
+    val version: Int,
+    val variant: String,
+    val stage: String,
+    val error: String?,
+    val timings: Map<String, Long>
+)
@@ -0,0 +1,24 @@
+package com.jeppeman.globallydynamic.server.extensions
+
+import java.io.EOFException
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+
+/**
+ * Transfers [count] bytes starting at [position] to [target], [FileChannel.transferTo] may transfer
+ * fewer bytes than requested so this keeps going until all of them have been transferred
+ */
+fun FileChannel.transferFully(
+    target: WritableByteChannel,
+    position: Long = 0,
+    count: Long = size() - position
+) {
+    var transferred = 0L
+    while (transferred < count) {
+        val result = transferTo(position + transferred, count - transferred, target)
+        if (result <= 0 && position + transferred >= size()) {
+            throw EOFException("Unexpected end of file at ${position + transferred}, expected ${position + count}")
+        }
+        transferred += result
+    }
+}
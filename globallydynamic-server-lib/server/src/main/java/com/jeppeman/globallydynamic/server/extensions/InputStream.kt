@@ -2,5 +2,20 @@ package com.jeppeman.globallydynamic.server.extensions
 
 import java.io.InputStream
 import java.nio.charset.Charset
+import java.security.MessageDigest
 
-fun InputStream.readString(charset: Charset = Charsets.UTF_8) = readBytes().toString(charset)
\ No newline at end of file
+fun InputStream.readString(charset: Charset = Charsets.UTF_8) = readBytes().toString(charset)
+
+/**
+ * Reads the stream to its end and returns the hex encoded SHA-256 digest of what was read
+ */
+fun InputStream.sha256(): String {
+    val messageDigest = MessageDigest.getInstance("SHA-256")
+    val buffer = ByteArray(64 * 1024)
+    var read = read(buffer)
+    while (read != -1) {
+        messageDigest.update(buffer, 0, read)
+        read = read(buffer)
+    }
+    return messageDigest.digest().joinToString("") { byte -> "%02x".format(byte) }
+}
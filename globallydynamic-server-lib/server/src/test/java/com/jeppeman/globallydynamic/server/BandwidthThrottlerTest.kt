@@ -0,0 +1,168 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.io.ByteArrayOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import javax.servlet.AsyncContext
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+@RunWith(JUnitPlatform::class)
+class BandwidthThrottlerTest {
+    private class FakeServletOutputStream : ServletOutputStream() {
+        val written = ByteArrayOutputStream()
+        override fun isReady(): Boolean = true
+        override fun setWriteListener(writeListener: WriteListener?) = Unit
+        override fun write(b: Int) = written.write(b)
+    }
+
+    @Test
+    fun tokenBucket_shouldRefillAtRateUpToCapacity() {
+        var now = 0L
+        val tokenBucket = TokenBucket(
+            bytesPerSecond = 1000,
+            capacity = 500,
+            initialTokens = 0,
+            nanoTime = { now }
+        )
+
+        assertThat(tokenBucket.available()).isEqualTo(0)
+        now = 250_000_000
+        assertThat(tokenBucket.available()).isEqualTo(250)
+        now = 10_000_000_000
+        assertThat(tokenBucket.available()).isEqualTo(500)
+    }
+
+    @Test
+    fun whenConsumedIntoDebt_tokenBucket_shouldWaitOutTheDebt() {
+        var now = 0L
+        val tokenBucket = TokenBucket(
+            bytesPerSecond = 1000,
+            capacity = 100,
+            nanoTime = { now }
+        )
+
+        tokenBucket.consume(300)
+
+        assertThat(tokenBucket.available()).isEqualTo(0)
+        assertThat(tokenBucket.nanosUntilAvailable(100)).isEqualTo(300_000_000)
+        now = 300_000_000
+        assertThat(tokenBucket.nanosUntilAvailable(100)).isEqualTo(0)
+        assertThat(tokenBucket.available()).isEqualTo(100)
+    }
+
+    @Test
+    fun whenAsyncIsNotSupported_send_shouldSendWholeFileBlocking(@TempDir tempDir: Path) {
+        val file = Files.write(tempDir.resolve("splits.zip"), ByteArray(200) { it.toByte() })
+        val outputStream = FakeServletOutputStream()
+        val request = mock<HttpServletRequest>()
+        val response = mock<HttpServletResponse>()
+        whenever(response.outputStream).thenReturn(outputStream)
+        var completedWith: Throwable? = IllegalStateException()
+
+        val startTime = System.currentTimeMillis()
+        BandwidthThrottler(0).send(
+            request = request,
+            response = response,
+            file = file,
+            throttleBy = 500,
+            onComplete = { completedWith = it }
+        )
+        val elapsed = System.currentTimeMillis() - startTime
+
+        assertThat(elapsed).isAtLeast(500)
+        assertThat(completedWith).isNull()
+        assertThat(outputStream.written.toByteArray()).isEqualTo(Files.readAllBytes(file))
+    }
+
+    @Test
+    fun throttle_shouldPaceWritesToTheStreamOverTheThrottleDuration() {
+        val content = ByteArray(200) { it.toByte() }
+        val outputStream = ByteArrayOutputStream()
+        var sent = 0L
+
+        val startTime = System.currentTimeMillis()
+        BandwidthThrottler(0).throttle(outputStream, throttleBy = 500, count = content.size.toLong()) { bytesSent, _ ->
+            sent = bytesSent
+        }.write(content)
+        val elapsed = System.currentTimeMillis() - startTime
+
+        assertThat(elapsed).isAtLeast(500)
+        assertThat(sent).isEqualTo(content.size)
+        assertThat(outputStream.toByteArray()).isEqualTo(content)
+    }
+
+    @Test
+    fun whenAsyncIsSupported_send_shouldWriteFromWriteListenerAndComplete(@TempDir tempDir: Path) {
+        val file = Files.write(tempDir.resolve("splits.zip"), ByteArray(200) { it.toByte() })
+        val outputStream = mock<ServletOutputStream>()
+        val asyncContext = mock<AsyncContext>()
+        val request = mock<HttpServletRequest>()
+        val response = mock<HttpServletResponse>()
+        whenever(request.isAsyncSupported).thenReturn(true)
+        whenever(request.startAsync()).thenReturn(asyncContext)
+        whenever(response.outputStream).thenReturn(outputStream)
+        whenever(outputStream.isReady).thenReturn(true)
+        var completedWith: Throwable? = IllegalStateException()
+
+        BandwidthThrottler(1024 * 1024).send(
+            request = request,
+            response = response,
+            file = file,
+            throttleBy = 0,
+            onComplete = { completedWith = it }
+        )
+        val writeListener = argumentCaptor<WriteListener>().apply {
+            verify(outputStream).setWriteListener(capture())
+        }.firstValue
+        writeListener.onWritePossible()
+
+        verify(outputStream).write(any<ByteArray>(), any(), any())
+        verify(asyncContext).complete()
+        assertThat(completedWith).isNull()
+    }
+
+    @Test
+    fun whenSendingAsynchronously_send_shouldCarryTheSamplingDecisionOverToTheCallbacks(@TempDir tempDir: Path) {
+        val file = Files.write(tempDir.resolve("splits.zip"), ByteArray(200) { it.toByte() })
+        val outputStream = mock<ServletOutputStream>()
+        val request = mock<HttpServletRequest>()
+        val response = mock<HttpServletResponse>()
+        whenever(request.isAsyncSupported).thenReturn(true)
+        whenever(request.startAsync()).thenReturn(mock())
+        whenever(response.outputStream).thenReturn(outputStream)
+        whenever(outputStream.isReady).thenReturn(true)
+        var sampledOnProgress: Boolean? = null
+        var sampledOnComplete: Boolean? = null
+
+        SampledLogger.sampling(false) {
+            BandwidthThrottler(1024 * 1024).send(
+                request = request,
+                response = response,
+                file = file,
+                throttleBy = 0,
+                onProgress = { _, _ -> sampledOnProgress = SampledLogger.isSampled },
+                onComplete = { sampledOnComplete = SampledLogger.isSampled }
+            )
+        }
+        val writeListener = argumentCaptor<WriteListener>().apply {
+            verify(outputStream).setWriteListener(capture())
+        }.firstValue
+        writeListener.onWritePossible()
+
+        assertThat(sampledOnProgress).isFalse()
+        assertThat(sampledOnComplete).isFalse()
+    }
+}
@@ -1,22 +1,41 @@
 package com.jeppeman.globallydynamic.server
 
+import com.android.bundle.Commands
+import com.android.bundle.Config
 import com.android.bundle.Devices
-import com.google.common.collect.ImmutableList
+import com.android.bundle.Targeting
 import com.google.common.truth.Truth.assertThat
 import com.google.gson.Gson
+import com.google.protobuf.Int32Value
+import com.jeppeman.globallydynamic.server.dto.SplitDto
 import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import com.jeppeman.globallydynamic.server.extensions.sha256
 import com.jeppeman.globallydynamic.server.extensions.unzip
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import org.junit.jupiter.api.io.TempDir
 import org.junit.platform.runner.JUnitPlatform
 import org.junit.runner.RunWith
 import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
 import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.inOrder
+import org.mockito.kotlin.never
 import org.mockito.kotlin.spy
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
+import java.io.IOException
+import java.nio.file.Files
 import java.nio.file.Path
+import java.util.concurrent.Executor
+import java.util.stream.Collectors
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
 
 @RunWith(JUnitPlatform::class)
 class BundleManagerImplTest {
@@ -39,6 +58,40 @@ class BundleManagerImplTest {
         tempDir.deleteCompletely()
     }
 
+    private fun apkSet(
+        vararg entries: Pair<String, String>,
+        tableOfContents: Commands.BuildApksResult? = null
+    ): Path = tempDir.resolve("temp.apks").apply {
+        ZipOutputStream(Files.newOutputStream(this)).use { zipOutputStream ->
+            zipOutputStream.putNextEntry(ZipEntry("toc.pb"))
+            tableOfContents?.let { zipOutputStream.write(it.toByteArray()) }
+            zipOutputStream.closeEntry()
+            entries.forEach { (name, content) ->
+                zipOutputStream.putNextEntry(ZipEntry(name))
+                zipOutputStream.write(content.toByteArray())
+                zipOutputStream.closeEntry()
+            }
+        }
+    }
+
+    private fun deviceTierTableOfContents(vararg apkDescriptions: Commands.ApkDescription) =
+        Commands.BuildApksResult.newBuilder()
+            .addDefaultTargetingValue(Commands.DefaultTargetingValue.newBuilder()
+                .setDimension(Config.SplitDimension.Value.DEVICE_TIER)
+                .setDefaultValue("1"))
+            .addVariant(Commands.Variant.newBuilder()
+                .addApkSet(Commands.ApkSet.newBuilder()
+                    .setModuleMetadata(Commands.ModuleMetadata.newBuilder().setName("feature"))
+                    .apply { apkDescriptions.forEach { apkDescription -> addApkDescription(apkDescription) } }))
+            .build()
+
+    private val deviceSpecWithoutDeviceTier = Devices.DeviceSpec.newBuilder()
+        .addSupportedAbis("arm64-v8a")
+        .addSupportedLocales("en")
+        .setScreenDensity(480)
+        .setSdkVersion(30)
+        .build()
+
     @Test
     fun whenFeaturesAndLanguagesAreEmpty_generateCompressedSplitsShouldReturnMissingFeaturesAndLanguagesError() {
         val compressedSplitsResult = bundleManager.generateCompressedSplits(
@@ -100,22 +153,14 @@ class BundleManagerImplTest {
             writeText("Hi, I am a little keystore")
         }
         val unzipDir = tempDir.resolve("unzipped_apks")
-        val files = ImmutableList.of(
-            tempDir.resolve("base-se.apk").apply {
-                toFile().writeText("file1")
-            },
-            tempDir.resolve("feature-master.apk").apply {
-                toFile().writeText("file2")
-            },
-            tempDir.resolve("file3").apply {
-                toFile().writeText("file3")
-            }
+        val apks = apkSet(
+            "splits/base-se.apk" to "file1",
+            "splits/feature-master.apk" to "file2",
+            "splits/base-master.apk" to "file3"
         )
-        val apks = tempDir.resolve("temp.apks").apply {
-            toFile().writeText("apks")
-        }
         doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
-        doReturn(files).whenever(bundleManager).extractApks(any(), any(), any(), any())
+        doReturn(listOf("splits/base-se.apk", "splits/feature-master.apk", "splits/base-master.apk"))
+            .whenever(bundleManager).matchApks(any(), any(), any())
         bundleManager.storeBundle(
             applicationId,
             version,
@@ -140,6 +185,713 @@ class BundleManagerImplTest {
         assertThat(unzippedSplits).contains("file1")
         assertThat(unzippedSplits).contains("file2")
         assertThat(unzippedSplits).doesNotContain("file3")
+
+        compressedSplitsResult.release()
+
+        assertThat(Files.exists(compressedSplitsResult.path)).isFalse()
     }
-}
 
+    @Test
+    fun whenEtagWasJustComputed_generateCompressedSplits_shouldNotMatchTheApksAgain() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = apkSet("splits/feature-master.apk" to "feature")
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doReturn(listOf("splits/feature-master.apk")).whenever(bundleManager).matchApks(any(), any(), any())
+        bundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+
+        val etag = bundleManager.splitsEtag(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = Devices.DeviceSpec.getDefaultInstance(),
+            features = arrayOf("feature"),
+            languages = arrayOf(),
+            includeMissing = false
+        )
+        val compressedSplitsResult = bundleManager.generateCompressedSplits(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = Devices.DeviceSpec.getDefaultInstance(),
+            features = arrayOf("feature"),
+            languages = arrayOf(),
+            includeMissing = false
+        ) as BundleManager.Result.Success
+
+        assertThat(compressedSplitsResult.etag).isEqualTo(etag)
+        verify(spyStorageBackend, times(2)).stat("application_variant_1.apks")
+        verify(bundleManager, times(1)).matchApks(any(), any(), any())
+        compressedSplitsResult.release()
+    }
+
+    @Test
+    fun whenApkSetIsReplacedInTheStorageBackend_splitsEtag_shouldMatchTheApksAgain() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = apkSet("splits/feature-master.apk" to "feature")
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doReturn(listOf("splits/feature-master.apk")).whenever(bundleManager).matchApks(any(), any(), any())
+        bundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+        val splitsEtag = {
+            bundleManager.splitsEtag(
+                applicationId = "application",
+                version = 1,
+                variant = "variant",
+                deviceSpec = Devices.DeviceSpec.getDefaultInstance(),
+                features = arrayOf("feature"),
+                languages = arrayOf(),
+                includeMissing = false
+            )
+        }
+
+        val before = splitsEtag()
+        // As another server sharing the storage backend would, without this one knowing
+        spyStorageBackend.storeFile(
+            "application_variant_1.apks",
+            "application/zip",
+            Files.newInputStream(apkSet("splits/feature-master.apk" to "new feature"))
+        )
+        val after = splitsEtag()
+
+        assertThat(after).isNotEqualTo(before)
+        verify(bundleManager, times(2)).matchApks(any(), any(), any())
+    }
+
+    @Test
+    fun whenSplitsCacheIsEnabled_generateCompressedSplits_shouldOnlyExtractOnceUntilBundleIsOverwritten() {
+        val cachingBundleManager = spy(BundleManagerImpl(
+            Gson(),
+            spyStorageBackend,
+            Logger(),
+            true,
+            SplitsCacheImpl(tempDir.resolve("cache"), Long.MAX_VALUE, Logger())
+        ))
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = apkSet()
+        doReturn(apks).whenever(cachingBundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doReturn(listOf<String>()).whenever(cachingBundleManager).matchApks(any(), any(), any())
+        val storeBundle = {
+            cachingBundleManager.storeBundle(
+                "application",
+                1,
+                "variant",
+                signingConfig,
+                "bundle".byteInputStream(),
+                "keystore".byteInputStream()
+            )
+        }
+        val generateCompressedSplits = {
+            cachingBundleManager.generateCompressedSplits(
+                applicationId = "application",
+                version = 1,
+                variant = "variant",
+                deviceSpec = Devices.DeviceSpec.getDefaultInstance(),
+                languages = arrayOf(),
+                features = arrayOf("feature"),
+                includeMissing = false
+            ) as BundleManager.Result.Success
+        }
+        storeBundle()
+
+        val first = generateCompressedSplits()
+        val second = generateCompressedSplits()
+        storeBundle()
+        generateCompressedSplits()
+
+        assertThat(second.path).isEqualTo(first.path)
+        verify(cachingBundleManager, times(2)).extractApks(any(), any(), any())
+    }
+
+    @Test
+    fun whenStreamingSplits_generateCompressedSplits_shouldReturnArchiveAndCacheItOnClose() {
+        val workingDirectories = mutableListOf<Path>()
+        val streamingBundleManager = spy(BundleManagerImpl(
+            Gson(),
+            spyStorageBackend,
+            Logger(),
+            true,
+            SplitsCacheImpl(tempDir.resolve("cache"), Long.MAX_VALUE, Logger()),
+            true
+        ))
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = apkSet("splits/feature-master.apk" to "file")
+        doReturn(apks).whenever(streamingBundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doReturn(listOf("splits/feature-master.apk")).whenever(streamingBundleManager).matchApks(any(), any(), any())
+        doAnswer { invocation ->
+            workingDirectories.add(invocation.getArgument(2))
+            invocation.callRealMethod()
+        }.whenever(streamingBundleManager).extractApks(any(), any(), any())
+        streamingBundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+        val generateCompressedSplits = {
+            streamingBundleManager.generateCompressedSplits(
+                applicationId = "application",
+                version = 1,
+                variant = "variant",
+                deviceSpec = Devices.DeviceSpec.getDefaultInstance(),
+                languages = arrayOf(),
+                features = arrayOf("feature"),
+                includeMissing = false
+            )
+        }
+
+        val streamed = generateCompressedSplits() as BundleManager.Result.Stream
+        val streamedSize = streamed.archive.size
+        assertThat(streamed.archive.filenames).containsExactly("feature-master.apk")
+        streamed.archive.close()
+        val cached = generateCompressedSplits() as BundleManager.Result.Success
+
+        assertThat(Files.size(cached.path)).isEqualTo(streamedSize)
+        assertThat(workingDirectories.map(Files::exists)).containsExactly(false)
+        verify(streamingBundleManager, times(1)).extractApks(any(), any(), any())
+    }
+
+    @Test
+    fun whenDevicesResolveToTheSameApks_generateCompressedSplits_shouldShareTheArchive() {
+        val cachingBundleManager = spy(BundleManagerImpl(
+            Gson(),
+            spyStorageBackend,
+            Logger(),
+            true,
+            SplitsCacheImpl(tempDir.resolve("cache"), Long.MAX_VALUE, Logger())
+        ))
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = apkSet("splits/feature-master.apk" to "feature", "splits/feature-xxhdpi.apk" to "xxhdpi")
+        doReturn(apks).whenever(cachingBundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doReturn(listOf("splits/feature-master.apk", "splits/feature-xxhdpi.apk"))
+            .whenever(cachingBundleManager).matchApks(any(), any(), any())
+        cachingBundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+        val generateCompressedSplits = { screenDensity: Int, locale: String ->
+            cachingBundleManager.generateCompressedSplits(
+                applicationId = "application",
+                version = 1,
+                variant = "variant",
+                deviceSpec = Devices.DeviceSpec.newBuilder()
+                    .setScreenDensity(screenDensity)
+                    .addSupportedLocales(locale)
+                    .build(),
+                languages = arrayOf(),
+                features = arrayOf("feature"),
+                includeMissing = false
+            ) as BundleManager.Result.Success
+        }
+
+        val first = generateCompressedSplits(440, "en-US")
+        val second = generateCompressedSplits(420, "sv-SE")
+
+        assertThat(second.path).isEqualTo(first.path)
+        assertThat(second.etag).isEqualTo(first.etag)
+        verify(cachingBundleManager, times(1)).extractApks(any(), any(), any())
+    }
+
+    @Test
+    fun whenWarmUpDeviceClassesAreConfigured_storeBundle_shouldGenerateSplitsOfEveryFeatureForEachOfThem() {
+        val deviceClasses = DeviceClass.combinations(listOf("arm64-v8a", "x86"), listOf(480), listOf(30), listOf("en"))
+        val warmingBundleManager = spy(BundleManagerImpl(
+            Gson(),
+            spyStorageBackend,
+            Logger(),
+            true,
+            SplitsCacheImpl(tempDir.resolve("cache"), Long.MAX_VALUE, Logger()),
+            false,
+            deviceClasses,
+            Executor { runnable -> runnable.run() }
+        ))
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = tempDir.resolve("temp.apks").apply {
+            ZipOutputStream(Files.newOutputStream(this)).use { zipOutputStream ->
+                listOf("toc.pb", "splits/base-master.apk", "splits/feature-master.apk", "splits/feature-xxhdpi.apk",
+                    "splits/feature-arm64_v8a.apk", "splits/feature-x86.apk")
+                    .forEach { name ->
+                        zipOutputStream.putNextEntry(ZipEntry(name))
+                        zipOutputStream.closeEntry()
+                    }
+            }
+        }
+        doReturn(apks).whenever(warmingBundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doAnswer { invocation ->
+            val abi = invocation.getArgument<Devices.DeviceSpec>(1).supportedAbisList.first()
+            listOf("splits/feature-master.apk", "splits/feature-${abi.replace('-', '_')}.apk")
+        }.whenever(warmingBundleManager).matchApks(any(), any(), any())
+
+        warmingBundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+        val result = warmingBundleManager.generateCompressedSplits(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceClasses.first().toDeviceSpec(),
+            languages = arrayOf(),
+            features = arrayOf("feature"),
+            includeMissing = false
+        )
+
+        assertThat(result).isInstanceOf(BundleManager.Result.Success::class.java)
+        verify(warmingBundleManager, times(deviceClasses.size)).extractApks(any(), any(), any())
+        // The request reuses the key that warm-up resolved for its device class
+        verify(warmingBundleManager, times(deviceClasses.size)).matchApks(any(), any(), eq(arrayOf("feature")))
+    }
+
+    @Test
+    fun whenAnArtifactFailsToBeStored_storeBundle_shouldLeaveNoArtifactsBehind() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = tempDir.resolve("temp.apks").apply { Files.write(this, "apks".toByteArray()) }
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doAnswer { invocation ->
+            if (invocation.getArgument<String>(0).endsWith(".aab")) {
+                throw IOException("Connection reset")
+            }
+            invocation.callRealMethod()
+        }.whenever(spyStorageBackend).storeFile(any(), any(), any())
+
+        assertThrows<IOException> {
+            bundleManager.storeBundle(
+                "application",
+                1,
+                "variant",
+                signingConfig,
+                "bundle".byteInputStream(),
+                "keystore".byteInputStream()
+            )
+        }
+
+        val stored = Files.list(tempDir).use { paths -> paths.map { it.fileName.toString() }.collect(Collectors.toList()) }
+        assertThat(stored).containsExactly("temp.apks")
+        verify(spyStorageBackend, never()).moveFile(any(), any(), any())
+    }
+
+    @Test
+    fun storeBundle_shouldMoveStagedArtifactsIntoPlace() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = tempDir.resolve("temp.apks").apply { Files.write(this, "apks".toByteArray()) }
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+
+        bundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+
+        val stored = Files.list(tempDir).use { paths -> paths.map { it.fileName.toString() }.collect(Collectors.toList()) }
+        assertThat(stored).containsExactly(
+            "temp.apks",
+            "application_variant_1.apks",
+            "application_variant_1.aab",
+            "application_variant_1.json",
+            "application_variant_1.keystore"
+        )
+        assertThat(Files.readAllBytes(tempDir.resolve("application_variant_1.aab"))).isEqualTo("bundle".toByteArray())
+        inOrder(spyStorageBackend) {
+            verify(spyStorageBackend).moveFile(any(), eq("application_variant_1.apks"), any())
+            verify(spyStorageBackend).moveFile(any(), eq("application_variant_1.aab"), any())
+            verify(spyStorageBackend).moveFile(any(), eq("application_variant_1.keystore"), any())
+            verify(spyStorageBackend).moveFile(any(), eq("application_variant_1.json"), any())
+        }
+    }
+
+    @Test
+    fun whenAnArtifactFailsToBeMoved_storeBundle_shouldRestoreTheOverwrittenArtifacts() {
+        val overridingBundleManager = spy(BundleManagerImpl(Gson(), spyStorageBackend, Logger(), true))
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = tempDir.resolve("temp.apks").apply { Files.write(this, "apks".toByteArray()) }
+        doReturn(apks).whenever(overridingBundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        listOf("apks", "aab", "json", "keystore").forEach { extension ->
+            spyStorageBackend.storeFile("application_variant_1.$extension", "text/plain", "old $extension".byteInputStream())
+        }
+        doAnswer { invocation ->
+            if (invocation.getArgument<String>(1) == "application_variant_1.json") {
+                throw IOException("Connection reset")
+            }
+            invocation.callRealMethod()
+        }.whenever(spyStorageBackend).moveFile(any(), any(), any())
+
+        assertThrows<IOException> {
+            overridingBundleManager.storeBundle(
+                "application",
+                1,
+                "variant",
+                signingConfig,
+                "bundle".byteInputStream(),
+                "keystore".byteInputStream()
+            )
+        }
+
+        val stored = Files.list(tempDir).use { paths -> paths.map { it.fileName.toString() }.collect(Collectors.toList()) }
+        assertThat(stored).containsExactly(
+            "temp.apks",
+            "application_variant_1.apks",
+            "application_variant_1.aab",
+            "application_variant_1.json",
+            "application_variant_1.keystore"
+        )
+        listOf("apks", "aab", "json", "keystore").forEach { extension ->
+            assertThat(String(Files.readAllBytes(tempDir.resolve("application_variant_1.$extension"))))
+                .isEqualTo("old $extension")
+        }
+    }
+
+    @Test
+    fun whenFingerprintCannotBeDerived_storeBundle_shouldDeleteTheOverwrittenOne() {
+        val overridingBundleManager = spy(BundleManagerImpl(Gson(), spyStorageBackend, Logger(), true))
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = tempDir.resolve("temp.apks").apply { Files.write(this, "apks".toByteArray()) }
+        doReturn(apks).whenever(overridingBundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        spyStorageBackend.storeFile("application_variant_1.fingerprint", "text/plain", "AB:CD".byteInputStream())
+        val validBefore = overridingBundleManager.validateSignature("AB:CD", "application", 1, "variant")
+
+        overridingBundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "not a keystore".byteInputStream()
+        )
+        val validAfter = runCatching {
+            overridingBundleManager.validateSignature("AB:CD", "application", 1, "variant")
+        }.getOrNull()
+
+        val stored = Files.list(tempDir).use { paths -> paths.map { it.fileName.toString() }.collect(Collectors.toList()) }
+        assertThat(validBefore).isInstanceOf(BundleManager.Result.SignatureValid::class.java)
+        assertThat(validAfter).isNotInstanceOf(BundleManager.Result.SignatureValid::class.java)
+        assertThat(stored).containsExactly(
+            "temp.apks",
+            "application_variant_1.apks",
+            "application_variant_1.aab",
+            "application_variant_1.json",
+            "application_variant_1.keystore"
+        )
+    }
+
+    @Test
+    fun whenFingerprintIsStored_validateSignature_shouldLookItUpOnce() {
+        spyStorageBackend.storeFile("application_variant_1.fingerprint", "text/plain", "AB:CD".byteInputStream())
+
+        val valid = bundleManager.validateSignature("AB:CD", "application", 1, "variant")
+        val mismatch = bundleManager.validateSignature("EF:01", "application", 1, "variant")
+
+        assertThat(valid).isInstanceOf(BundleManager.Result.SignatureValid::class.java)
+        assertThat(mismatch).isInstanceOf(BundleManager.Result.Error.SignatureMismatch::class.java)
+        verify(spyStorageBackend, times(1)).openRead("application_variant_1.fingerprint")
+        verify(spyStorageBackend, never()).openRead("application_variant_1.keystore")
+    }
+
+    @Test
+    fun splitsManifest_shouldListRequestedSplitsWithoutExtractingThem() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = tempDir.resolve("temp.apks").apply {
+            ZipOutputStream(Files.newOutputStream(this)).use { zipOutputStream ->
+                mapOf(
+                    "toc.pb" to "",
+                    "splits/base-master.apk" to "base",
+                    "splits/base-se.apk" to "se",
+                    "splits/feature-master.apk" to "feature"
+                ).forEach { (name, content) ->
+                    zipOutputStream.putNextEntry(ZipEntry(name))
+                    zipOutputStream.write(content.toByteArray())
+                    zipOutputStream.closeEntry()
+                }
+            }
+        }
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        doReturn(listOf("splits/base-master.apk", "splits/base-se.apk", "splits/feature-master.apk"))
+            .whenever(bundleManager).matchApks(any(), any(), any())
+        bundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+
+        val result = bundleManager.splitsManifest(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = Devices.DeviceSpec.getDefaultInstance(),
+            languages = arrayOf("se"),
+            features = arrayOf("feature"),
+            includeMissing = false
+        ) as BundleManager.Result.Manifest
+
+        assertThat(result.manifest.splits).containsExactly(
+            SplitDto("base-se.apk", 2, "se".byteInputStream().sha256()),
+            SplitDto("feature-master.apk", 7, "feature".byteInputStream().sha256())
+        ).inOrder()
+        verify(bundleManager, never()).extractApks(any(), any(), any())
+    }
+
+
+    @Test
+    fun split_shouldServeTheApkWithTheGivenDigest() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = tempDir.resolve("temp.apks").apply {
+            ZipOutputStream(Files.newOutputStream(this)).use { zipOutputStream ->
+                mapOf("splits/base-master.apk" to "base", "splits/feature-master.apk" to "feature")
+                    .forEach { (name, content) ->
+                        zipOutputStream.putNextEntry(ZipEntry(name))
+                        zipOutputStream.write(content.toByteArray())
+                        zipOutputStream.closeEntry()
+                    }
+            }
+        }
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        bundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+
+        val result = bundleManager.split(
+            "application",
+            1,
+            "variant",
+            "feature".byteInputStream().sha256()
+        ) as BundleManager.Result.Apk
+        val missing = bundleManager.split("application", 1, "variant", "feature".byteInputStream().sha256().reversed())
+
+        assertThat(result.split.name).isEqualTo("feature-master.apk")
+        assertThat(result.open().use { it.readBytes() }).isEqualTo("feature".toByteArray())
+        assertThat(missing).isInstanceOf(BundleManager.Result.Error.SplitNotFound::class.java)
+    }
+
+    @Test
+    fun splitPatch_shouldRebuildTheSplitFromThePreviousVersion() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val previous = Random(1).nextBytes(50_000)
+        val current = previous.copyOfRange(0, 20_000) + "changed".toByteArray() + previous.copyOfRange(20_000, 50_000)
+        listOf(1 to previous, 2 to current).forEach { (version, feature) ->
+            val apks = tempDir.resolve("temp$version.apks").apply {
+                ZipOutputStream(Files.newOutputStream(this)).use { zipOutputStream ->
+                    zipOutputStream.putNextEntry(ZipEntry("splits/feature-master.apk"))
+                    zipOutputStream.write(feature)
+                    zipOutputStream.closeEntry()
+                }
+            }
+            doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+            bundleManager.storeBundle(
+                "application",
+                version,
+                "variant",
+                signingConfig,
+                "bundle".byteInputStream(),
+                "keystore".byteInputStream()
+            )
+        }
+
+        val result = bundleManager.splitPatch(
+            "application",
+            2,
+            "variant",
+            current.inputStream().sha256(),
+            1,
+            previous.inputStream().sha256()
+        ) as BundleManager.Result.Patch
+
+        assertThat(result.patch.size).isLessThan(current.size / 10)
+        assertThat(SplitPatch.apply(previous, result.patch.inputStream())).isEqualTo(current)
+    }
+
+    @Test
+    fun whenPatchIsNotSmaller_splitPatch_shouldReturnPatchNotSmallerWithoutCreatingItAgain() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val previous = Random(1).nextBytes(50_000)
+        val current = Random(2).nextBytes(50_000)
+        listOf(1 to previous, 2 to current).forEach { (version, feature) ->
+            val apks = tempDir.resolve("temp$version.apks").apply {
+                ZipOutputStream(Files.newOutputStream(this)).use { zipOutputStream ->
+                    zipOutputStream.putNextEntry(ZipEntry("splits/feature-master.apk"))
+                    zipOutputStream.write(feature)
+                    zipOutputStream.closeEntry()
+                }
+            }
+            doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+            bundleManager.storeBundle(
+                "application",
+                version,
+                "variant",
+                signingConfig,
+                "bundle".byteInputStream(),
+                "keystore".byteInputStream()
+            )
+        }
+        val splitPatch = {
+            bundleManager.splitPatch(
+                "application",
+                2,
+                "variant",
+                current.inputStream().sha256(),
+                1,
+                previous.inputStream().sha256()
+            )
+        }
+
+        val first = splitPatch()
+        val second = splitPatch()
+
+        assertThat(first).isInstanceOf(BundleManager.Result.Error.PatchNotSmaller::class.java)
+        assertThat(second).isInstanceOf(BundleManager.Result.Error.PatchNotSmaller::class.java)
+        verify(bundleManager, times(2)).extractApks(any(), any(), any())
+    }
+
+    @Test
+    fun whenDeviceSpecHasNoDeviceTier_matchApks_shouldMatchTheDefaultOneOfTheTableOfContents() {
+        val tableOfContents = deviceTierTableOfContents(
+            splitApkDescription("splits/feature-master.apk", "", null),
+            splitApkDescription("splits/feature-tier_0.apk", "config.tier_0", 0),
+            splitApkDescription("splits/feature-tier_1.apk", "config.tier_1", 1)
+        )
+
+        val apks = bundleManager.matchApks(tableOfContents, deviceSpecWithoutDeviceTier, arrayOf("feature"))
+
+        assertThat(apks).containsExactly("splits/feature-master.apk", "splits/feature-tier_1.apk")
+    }
+
+    @Test
+    fun whenApkSetHasDeviceTierSplits_generateCompressedSplits_shouldExtractThoseOfTheDefaultTier() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = apkSet(
+            "splits/feature-master.apk" to "master",
+            "splits/feature-tier_0.apk" to "tier 0",
+            "splits/feature-tier_1.apk" to "tier 1",
+            tableOfContents = deviceTierTableOfContents(
+                splitApkDescription("splits/feature-master.apk", "", null),
+                splitApkDescription("splits/feature-tier_0.apk", "config.tier_0", 0),
+                splitApkDescription("splits/feature-tier_1.apk", "config.tier_1", 1)
+            )
+        )
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        bundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+
+        val compressedSplitsResult = bundleManager.generateCompressedSplits(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpecWithoutDeviceTier,
+            features = arrayOf("feature"),
+            languages = arrayOf(),
+            includeMissing = false
+        ) as BundleManager.Result.Success
+        val manifestResult = bundleManager.splitsManifest(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpecWithoutDeviceTier,
+            features = arrayOf("feature"),
+            languages = arrayOf(),
+            includeMissing = false
+        ) as BundleManager.Result.Manifest
+        val unzipDir = tempDir.resolve("unzipped_apks")
+        compressedSplitsResult.path.toFile().unzip(unzipDir.toString())
+        val unzippedSplits = unzipDir.toFile().listFiles()!!.toList().map { it.readText() }
+
+        assertThat(unzippedSplits).containsExactly("master", "tier 1")
+        assertThat(manifestResult.manifest.splits.map { split -> split.name })
+            .containsExactly("feature-master.apk", "feature-tier_1.apk")
+        compressedSplitsResult.release()
+    }
+
+    @Test
+    fun whenNoApksMatchTheDevice_generateCompressedSplits_shouldReturnExtractApksFailure() {
+        val signingConfig = "{storePassword: \"pass\", keyPassword: \"keypass\", keyAlias: \"keyalias\"}"
+        val apks = apkSet(
+            "splits/feature-tier_0.apk" to "tier 0",
+            tableOfContents = deviceTierTableOfContents(
+                splitApkDescription("splits/feature-tier_0.apk", "config.tier_0", 0)
+            )
+        )
+        doReturn(apks).whenever(bundleManager).buildApks(any(), any(), any(), any(), any(), any())
+        bundleManager.storeBundle(
+            "application",
+            1,
+            "variant",
+            signingConfig,
+            "bundle".byteInputStream(),
+            "keystore".byteInputStream()
+        )
+
+        val compressedSplitsResult = bundleManager.generateCompressedSplits(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpecWithoutDeviceTier,
+            features = arrayOf("feature"),
+            languages = arrayOf(),
+            includeMissing = false
+        )
+        val manifestResult = bundleManager.splitsManifest(
+            applicationId = "application",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpecWithoutDeviceTier,
+            features = arrayOf("feature"),
+            languages = arrayOf(),
+            includeMissing = false
+        )
+
+        assertThat(compressedSplitsResult).isInstanceOf(BundleManager.Result.Error.ExtractApksFailure::class.java)
+        assertThat(compressedSplitsResult.message)
+            .isEqualTo("Failed to extract APKs: No compatible APKs found for the device.")
+        assertThat(manifestResult).isInstanceOf(BundleManager.Result.Error.ExtractApksFailure::class.java)
+    }
+
+    private fun splitApkDescription(path: String, splitId: String, deviceTier: Int?) = Commands.ApkDescription.newBuilder()
+        .setPath(path)
+        .setTargeting(Targeting.ApkTargeting.newBuilder().apply {
+            if (deviceTier != null) {
+                setDeviceTierTargeting(Targeting.DeviceTierTargeting.newBuilder()
+                    .addValue(Int32Value.of(deviceTier))
+                    .addAlternatives(Int32Value.of(1 - deviceTier)))
+            }
+        })
+        .setSplitApkMetadata(Commands.SplitApkMetadata.newBuilder()
+            .setSplitId(splitId)
+            .setIsMasterSplit(deviceTier == null))
+        .build()
+}
@@ -0,0 +1,128 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.spy
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.nio.channels.Channels
+import java.nio.file.Path
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(JUnitPlatform::class)
+class CachingStorageBackendTest {
+    private lateinit var spyStorageBackend: StorageBackend
+    @TempDir
+    lateinit var tempDir: Path
+
+    @BeforeEach
+    fun setUp() {
+        spyStorageBackend = spy(LocalStorageBackend.builder()
+            .setBaseStoragePath(tempDir.resolve("storage"))
+            .build())
+    }
+
+    private fun cachingStorageBackend(maxSizeBytes: Long = 1024) = CachingStorageBackend.builder()
+        .setStorageBackend(spyStorageBackend)
+        .setCachePath(tempDir.resolve("cache"))
+        .setMaxSizeBytes(maxSizeBytes)
+        .setScratchPath(tempDir.resolve("scratch"))
+        .build()
+
+    @Test
+    fun whenFileIsCached_retrieveFile_shouldNotFetchItAgain() {
+        val cachingStorageBackend = cachingStorageBackend()
+        cachingStorageBackend.storeFile("file", "text/plain", "content".byteInputStream())
+
+        val first = cachingStorageBackend.retrieveFile("file")
+        val second = cachingStorageBackend.retrieveFile("file")
+
+        assertThat(first!!.toFile().readText()).isEqualTo("content")
+        assertThat(second!!.toFile().readText()).isEqualTo("content")
+        assertThat(second.startsWith(tempDir.resolve("scratch"))).isTrue()
+        verify(spyStorageBackend, times(1)).retrieveFile(eq("file"), any<Path>())
+    }
+
+    @Test
+    fun whenFileDoesNotExist_retrieveFile_shouldReturnNull() {
+        val cachingStorageBackend = cachingStorageBackend()
+
+        assertThat(cachingStorageBackend.retrieveFile("file")).isNull()
+    }
+
+    @Test
+    fun whenUnderlyingFileChanges_retrieveFile_shouldFetchItAgain() {
+        val cachingStorageBackend = cachingStorageBackend()
+        cachingStorageBackend.storeFile("file", "text/plain", "content".byteInputStream())
+        cachingStorageBackend.retrieveFile("file")
+
+        spyStorageBackend.storeFile("file", "text/plain", "changed content".byteInputStream())
+        val retrieved = cachingStorageBackend.retrieveFile("file")
+
+        assertThat(retrieved!!.toFile().readText()).isEqualTo("changed content")
+        verify(spyStorageBackend, times(2)).retrieveFile(eq("file"), any<Path>())
+    }
+
+    @Test
+    fun whenMaxSizeIsExceeded_retrieveFile_shouldEvictLeastRecentlyUsed() {
+        val cachingStorageBackend = cachingStorageBackend(maxSizeBytes = 15)
+        spyStorageBackend.storeFile("first", "text/plain", "0123456789".byteInputStream())
+        spyStorageBackend.storeFile("second", "text/plain", "0123456789".byteInputStream())
+
+        val first = cachingStorageBackend.retrieveFile("first")
+        cachingStorageBackend.retrieveFile("second")
+
+        assertThat(first!!.toFile().readText()).isEqualTo("0123456789")
+        cachingStorageBackend.retrieveFile("first")
+        verify(spyStorageBackend, times(2)).retrieveFile(eq("first"), any<Path>())
+    }
+
+    @Test
+    fun whenFileIsEvictedWhileBeingRead_openRead_shouldKeepReadingIt() {
+        val cachingStorageBackend = cachingStorageBackend(maxSizeBytes = 15)
+        spyStorageBackend.storeFile("first", "text/plain", "0123456789".byteInputStream())
+        spyStorageBackend.storeFile("second", "text/plain", "abcdefghij".byteInputStream())
+
+        val channel = cachingStorageBackend.openRead("first")!!
+        cachingStorageBackend.retrieveFile("second")
+        val content = channel.use { Channels.newInputStream(it).readBytes() }
+
+        assertThat(String(content)).isEqualTo("0123456789")
+        cachingStorageBackend.openRead("first")!!.close()
+        verify(spyStorageBackend, times(2)).retrieveFile(eq("first"), any<Path>())
+    }
+
+    @Test
+    fun whenReadConcurrently_retrieveFile_shouldOnlyFetchOnce() {
+        val cachingStorageBackend = cachingStorageBackend()
+        spyStorageBackend.storeFile("file", "text/plain", "content".byteInputStream())
+        val fetchStarted = CountDownLatch(1)
+        val releaseFetch = CountDownLatch(1)
+        doAnswer { invocation ->
+            fetchStarted.countDown()
+            releaseFetch.await(5, TimeUnit.SECONDS)
+            invocation.callRealMethod()
+        }.whenever(spyStorageBackend).retrieveFile(eq("file"), any<Path>())
+        val executor = Executors.newFixedThreadPool(4)
+
+        val results = (0 until 4).map { executor.submit<Path?> { cachingStorageBackend.retrieveFile("file") } }
+        fetchStarted.await(5, TimeUnit.SECONDS)
+        Thread.sleep(200)
+        releaseFetch.countDown()
+        val contents = results.map { it.get(5, TimeUnit.SECONDS)!!.toFile().readText() }.toSet()
+        executor.shutdown()
+
+        assertThat(contents).containsExactly("content")
+        verify(spyStorageBackend, times(1)).retrieveFile(eq("file"), any<Path>())
+    }
+}
@@ -0,0 +1,159 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.never
+import org.mockito.kotlin.spy
+import org.mockito.kotlin.verify
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+@RunWith(JUnitPlatform::class)
+class ContentAddressedStorageBackendTest {
+    private lateinit var localStorageBackend: LocalStorageBackend
+    private lateinit var contentAddressedStorageBackend: ContentAddressedStorageBackend
+    @TempDir
+    lateinit var tempDir: Path
+
+    @BeforeEach
+    fun setUp() {
+        localStorageBackend = LocalStorageBackend.builder()
+            .setBaseStoragePath(tempDir.resolve("storage"))
+            .build()
+        contentAddressedStorageBackend = ContentAddressedStorageBackend.builder()
+            .setStorageBackend(localStorageBackend)
+            .setScratchPath(tempDir.resolve("scratch"))
+            .build()
+    }
+
+    private fun apkSet(vararg entries: Pair<String, String>): ByteArray = ByteArrayOutputStream().also { bytes ->
+        ZipOutputStream(bytes).use { zipOutputStream ->
+            entries.forEach { (name, content) ->
+                zipOutputStream.putNextEntry(ZipEntry(name))
+                zipOutputStream.write(content.toByteArray())
+                zipOutputStream.closeEntry()
+            }
+        }
+    }.toByteArray()
+
+    private fun Path.entries(): Map<String, String> = ZipFile(toFile()).use { zipFile ->
+        zipFile.entries().asSequence().associate { entry ->
+            entry.name to zipFile.getInputStream(entry).use { String(it.readBytes()) }
+        }
+    }
+
+    private fun blobs(): List<Path> = Files.list(tempDir.resolve("storage")).use { paths ->
+        paths.filter { path -> path.fileName.toString().endsWith(".blob") }.toList()
+    }
+
+    @Test
+    fun storeFile_shouldStoreSharedEntriesOnce() {
+        contentAddressedStorageBackend.storeFile("app_variant_1.apks", "application/zip", apkSet(
+            "toc.pb" to "toc 1",
+            "splits/feature-master.apk" to "feature"
+        ).inputStream())
+        contentAddressedStorageBackend.storeFile("app_variant_2.apks", "application/zip", apkSet(
+            "toc.pb" to "toc 2",
+            "splits/feature-master.apk" to "feature"
+        ).inputStream())
+
+        assertThat(blobs()).hasSize(3)
+        assertThat(Files.size(localStorageBackend.retrieveFile("app_variant_2.apks")!!))
+            .isLessThan(1024)
+    }
+
+    @Test
+    fun retrieveFile_shouldReassembleTheApkSet() {
+        contentAddressedStorageBackend.storeFile("app_variant_1.apks", "application/zip", apkSet(
+            "toc.pb" to "toc",
+            "splits/feature-master.apk" to "feature",
+            "splits/base-master.apk" to "base"
+        ).inputStream())
+
+        val first = contentAddressedStorageBackend.retrieveFile("app_variant_1.apks")!!
+        val second = contentAddressedStorageBackend.retrieveFile("app_variant_1.apks")!!
+
+        assertThat(second).isEqualTo(first)
+        assertThat(first.startsWith(tempDir.resolve("scratch"))).isTrue()
+        assertThat(first.entries()).containsExactly(
+            "toc.pb", "toc",
+            "splits/feature-master.apk", "feature",
+            "splits/base-master.apk", "base"
+        ).inOrder()
+    }
+
+    @Test
+    fun whenAssemblyWasSwept_retrieveFile_shouldReassembleTheApkSet() {
+        contentAddressedStorageBackend.storeFile("app_variant_1.apks", "application/zip", apkSet(
+            "splits/feature-master.apk" to "feature"
+        ).inputStream())
+        val first = contentAddressedStorageBackend.retrieveFile("app_variant_1.apks")!!
+
+        first.parent.deleteCompletely()
+        val second = contentAddressedStorageBackend.retrieveFile("app_variant_1.apks")!!
+
+        assertThat(second.entries()).containsExactly("splits/feature-master.apk", "feature")
+    }
+
+    @Test
+    fun whenApkSetWasStoredWithoutManifest_retrieveFile_shouldReturnItAsItIs() {
+        localStorageBackend.storeFile("app_variant_1.apks", "application/zip", apkSet(
+            "splits/feature-master.apk" to "feature"
+        ).inputStream())
+
+        val retrieved = contentAddressedStorageBackend.retrieveFile("app_variant_1.apks")!!
+
+        assertThat(retrieved.entries()).containsExactly("splits/feature-master.apk", "feature")
+        assertThat(blobs()).isEmpty()
+    }
+
+    @Test
+    fun storeFile_shouldPassOtherFilesThrough() {
+        contentAddressedStorageBackend.storeFile("app_variant_1.json", "application/json", "{}".byteInputStream())
+
+        assertThat(contentAddressedStorageBackend.retrieveFile("app_variant_1.json")!!.toFile().readText())
+            .isEqualTo("{}")
+        assertThat(blobs()).isEmpty()
+    }
+
+    @Test
+    fun openRead_shouldReadOtherFilesFromTheUnderlyingBackendWithoutRetrievingThem() {
+        val spyStorageBackend = spy(localStorageBackend)
+        val passingThroughStorageBackend = ContentAddressedStorageBackend.builder()
+            .setStorageBackend(spyStorageBackend)
+            .setScratchPath(tempDir.resolve("scratch"))
+            .build()
+        localStorageBackend.storeFile("app_variant_1.json", "application/json", "{}".byteInputStream())
+
+        val content = passingThroughStorageBackend.openRead("app_variant_1.json")!!
+            .use { channel -> Channels.newInputStream(channel).readBytes() }
+
+        assertThat(String(content)).isEqualTo("{}")
+        verify(spyStorageBackend).openRead("app_variant_1.json")
+        verify(spyStorageBackend, never()).retrieveFile(any())
+        assertThat(Files.exists(tempDir.resolve("scratch"))).isFalse()
+    }
+
+    @Test
+    fun openWrite_shouldStoreApkSetsAsBlobsOnceClosed() {
+        val channel = contentAddressedStorageBackend.openWrite("app_variant_1.apks", "application/zip")
+        channel.use { it.write(ByteBuffer.wrap(apkSet("splits/feature-master.apk" to "feature"))) }
+
+        val retrieved = contentAddressedStorageBackend.retrieveFile("app_variant_1.apks")!!
+
+        assertThat(retrieved.entries()).containsExactly("splits/feature-master.apk", "feature")
+        assertThat(blobs()).hasSize(1)
+    }
+}
@@ -0,0 +1,111 @@
+package com.jeppeman.globallydynamic.server
+
+import com.android.bundle.Devices
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+
+@RunWith(JUnitPlatform::class)
+class DownloadKeyTest {
+    private fun deviceSpec(abis: List<String>, locales: List<String>) = Devices.DeviceSpec.newBuilder()
+        .addAllSupportedAbis(abis)
+        .addAllSupportedLocales(locales)
+        .setScreenDensity(420)
+        .setSdkVersion(29)
+        .build()
+
+    @Test
+    fun whenInputsOnlyDifferInOrderAndDuplicates_hash_shouldBeEqual() {
+        val first = DownloadKey(
+            applicationId = "applicationId",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpec(listOf("arm64-v8a", "armeabi-v7a"), listOf("en", "sv", "en")),
+            features = arrayOf("b", "a"),
+            languages = arrayOf("sv", "de"),
+            includeMissing = false
+        )
+        val second = DownloadKey(
+            applicationId = "applicationId",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpec(listOf("arm64-v8a", "armeabi-v7a"), listOf("sv", "en")),
+            features = arrayOf("a", "b", "a"),
+            languages = arrayOf("de", "sv"),
+            includeMissing = false
+        )
+
+        assertThat(first.hash).isEqualTo(second.hash)
+        assertThat(first).isEqualTo(second)
+    }
+
+    @Test
+    fun whenAbiPreferenceDiffers_hash_shouldDiffer() {
+        val first = DownloadKey(
+            applicationId = "applicationId",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpec(listOf("arm64-v8a", "armeabi-v7a"), listOf("en")),
+            features = arrayOf("a"),
+            languages = arrayOf(),
+            includeMissing = false
+        )
+        val second = DownloadKey(
+            applicationId = "applicationId",
+            version = 1,
+            variant = "variant",
+            deviceSpec = deviceSpec(listOf("armeabi-v7a", "arm64-v8a"), listOf("en")),
+            features = arrayOf("a"),
+            languages = arrayOf(),
+            includeMissing = false
+        )
+
+        assertThat(first.hash).isNotEqualTo(second.hash)
+    }
+
+    @Test
+    fun whenApkSetHashDiffers_etag_shouldDiffer() {
+        val key = { apkSetHash: String ->
+            DownloadKey(
+                applicationId = "applicationId",
+                version = 1,
+                variant = "variant",
+                deviceSpec = deviceSpec(listOf("arm64-v8a"), listOf("en")),
+                features = arrayOf("a"),
+                languages = arrayOf(),
+                includeMissing = false,
+                apkSetHash = apkSetHash
+            )
+        }
+
+        assertThat(key("first").etag).isEqualTo(key("first").etag)
+        assertThat(key("first").etag).isNotEqualTo(key("second").etag)
+    }
+
+    @Test
+    fun whenApksAreGiven_hash_shouldOnlyDependOnThem() {
+        val key = { deviceSpec: Devices.DeviceSpec, apks: List<String> ->
+            DownloadKey(
+                applicationId = "applicationId",
+                version = 1,
+                variant = "variant",
+                deviceSpec = deviceSpec,
+                features = arrayOf("a"),
+                languages = arrayOf(),
+                includeMissing = false,
+                apkSetHash = "apkSetHash",
+                apks = apks
+            )
+        }
+        val apks = listOf("splits/a-master.apk", "splits/a-xxhdpi.apk")
+
+        val first = key(deviceSpec(listOf("arm64-v8a"), listOf("en-US")), apks)
+        val second = key(deviceSpec(listOf("x86_64"), listOf("sv-SE", "de-DE")), apks.reversed())
+        val third = key(deviceSpec(listOf("arm64-v8a"), listOf("en-US")), listOf("splits/a-master.apk"))
+
+        assertThat(first).isEqualTo(second)
+        assertThat(first).isNotEqualTo(third)
+        assertThat(first.hash).hasLength(32)
+    }
+}
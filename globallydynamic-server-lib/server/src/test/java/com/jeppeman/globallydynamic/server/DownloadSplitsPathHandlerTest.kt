@@ -4,6 +4,7 @@ import com.google.common.truth.Truth.assertThat
 import com.google.gson.Gson
 import org.mockito.kotlin.any
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
 import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
 import org.eclipse.jetty.http.HttpStatus
@@ -16,6 +17,8 @@ import org.junit.platform.runner.JUnitPlatform
 import org.junit.runner.RunWith
 import org.mockito.Mock
 import org.mockito.junit.jupiter.MockitoExtension
+import java.io.ByteArrayOutputStream
+import java.nio.file.Files
 import java.nio.file.Path
 import javax.servlet.ServletOutputStream
 import javax.servlet.http.HttpServletRequest
@@ -190,6 +193,210 @@ class DownloadSplitsPathHandlerTest {
         assertThat(System.currentTimeMillis() - startTime).isAtLeast(2000)
         verify(mockResponse).contentType = "application/zip"
         verify(mockResponse).setHeader("Content-Disposition", "attachment; filename=splits.zip")
-        verify(mockResponse).setContentLength(content.size)
+        verify(mockResponse).setContentLengthLong(content.size.toLong())
     }
-}
\ No newline at end of file
+
+    @Test
+    fun whenNotThrottled_handle_shouldSendCompressedSplitsWithoutDelay(@TempDir tempDir: Path) {
+        val tempFile = tempDir.resolve("temp.txt").toFile()
+        val content = ByteArray(25) { index -> index.toByte() }
+        tempFile.writeBytes(content)
+        mockCompleteRequest()
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("1"),
+            "variant" to arrayOf("variant"),
+            "features" to arrayOf("feature")
+        ))
+        whenever(mockBundleManager.generateCompressedSplits(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Success(tempFile.toPath()))
+        val writtenBytes = mutableListOf<Byte>()
+        val outputStream = mock<ServletOutputStream>()
+        whenever(outputStream.write(any(), any(), any())).thenAnswer { invocation ->
+            val bytes = invocation.getArgument<ByteArray>(0)
+            val from = invocation.getArgument<Int>(1)
+            val length = invocation.getArgument<Int>(2)
+            writtenBytes.addAll(bytes.toList().subList(from, from + length))
+        }
+        whenever(mockResponse.outputStream).thenReturn(outputStream)
+        val startTime = System.currentTimeMillis()
+
+        downloadSplitsPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(writtenBytes).isEqualTo(content.toList())
+        assertThat(System.currentTimeMillis() - startTime).isLessThan(2000)
+        verify(mockResponse).setContentLengthLong(content.size.toLong())
+    }
+
+    @Test
+    fun whenSplitsAreStreamed_handle_shouldWriteArchiveAndCloseIt(@TempDir tempDir: Path) {
+        val workingDirectory = Files.createDirectories(tempDir.resolve("working"))
+        val apk = Files.write(workingDirectory.resolve("feature-master.apk"), ByteArray(25) { index -> index.toByte() })
+        val archive = SplitsArchive(listOf(apk), workingDirectory)
+        val expectedBytes = ByteArrayOutputStream().also(archive::writeTo).toByteArray()
+        mockCompleteRequest()
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("1"),
+            "variant" to arrayOf("variant"),
+            "features" to arrayOf("feature")
+        ))
+        whenever(mockBundleManager.generateCompressedSplits(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Stream(archive))
+        val writtenBytes = mutableListOf<Byte>()
+        val outputStream = mock<ServletOutputStream>()
+        whenever(outputStream.write(any(), any(), any())).thenAnswer { invocation ->
+            val bytes = invocation.getArgument<ByteArray>(0)
+            val from = invocation.getArgument<Int>(1)
+            val length = invocation.getArgument<Int>(2)
+            writtenBytes.addAll(bytes.toList().subList(from, from + length))
+        }
+        whenever(mockResponse.outputStream).thenReturn(outputStream)
+
+        downloadSplitsPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(writtenBytes).isEqualTo(expectedBytes.toList())
+        assertThat(Files.exists(workingDirectory)).isFalse()
+        verify(mockResponse).setContentLengthLong(expectedBytes.size.toLong())
+    }
+
+    @Test
+    fun whenStreamedSplitsAreThrottled_handle_shouldPaceTheArchiveAsItIsWritten(@TempDir tempDir: Path) {
+        val workingDirectory = Files.createDirectories(tempDir.resolve("working"))
+        val apk = Files.write(workingDirectory.resolve("feature-master.apk"), ByteArray(25) { index -> index.toByte() })
+        val archive = SplitsArchive(listOf(apk), workingDirectory)
+        val expectedBytes = ByteArrayOutputStream().also(archive::writeTo).toByteArray()
+        mockCompleteRequest()
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("1"),
+            "variant" to arrayOf("variant"),
+            "features" to arrayOf("feature"),
+            "throttle" to arrayOf("300")
+        ))
+        whenever(mockBundleManager.generateCompressedSplits(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Stream(archive))
+        val writtenBytes = mutableListOf<Byte>()
+        val outputStream = mock<ServletOutputStream>()
+        whenever(outputStream.write(any(), any(), any())).thenAnswer { invocation ->
+            val bytes = invocation.getArgument<ByteArray>(0)
+            val from = invocation.getArgument<Int>(1)
+            val length = invocation.getArgument<Int>(2)
+            writtenBytes.addAll(bytes.toList().subList(from, from + length))
+        }
+        whenever(mockResponse.outputStream).thenReturn(outputStream)
+
+        val startTime = System.currentTimeMillis()
+        downloadSplitsPathHandler.handle(mockRequest, mockResponse)
+        val elapsed = System.currentTimeMillis() - startTime
+
+        assertThat(elapsed).isAtLeast(300)
+        assertThat(writtenBytes).isEqualTo(expectedBytes.toList())
+        assertThat(Files.exists(workingDirectory)).isFalse()
+        verify(mockRequest, never()).startAsync()
+    }
+
+    private fun mockUnthrottledRequestFor(content: ByteArray, tempDir: Path) {
+        val tempFile = tempDir.resolve("temp.txt").toFile()
+        tempFile.writeBytes(content)
+        mockCompleteRequest()
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("1"),
+            "variant" to arrayOf("variant"),
+            "features" to arrayOf("feature")
+        ))
+        whenever(mockBundleManager.generateCompressedSplits(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Success(tempFile.toPath(), "\"etag\""))
+        whenever(mockRequest.getHeader(any())).thenReturn(null)
+    }
+
+    private fun captureOutput(): List<Byte> {
+        val writtenBytes = mutableListOf<Byte>()
+        val outputStream = mock<ServletOutputStream>()
+        whenever(outputStream.write(any(), any(), any())).thenAnswer { invocation ->
+            val bytes = invocation.getArgument<ByteArray>(0)
+            val from = invocation.getArgument<Int>(1)
+            val length = invocation.getArgument<Int>(2)
+            writtenBytes.addAll(bytes.toList().subList(from, from + length))
+        }
+        whenever(mockResponse.outputStream).thenReturn(outputStream)
+        return writtenBytes
+    }
+
+    @Test
+    fun whenRangeIsRequested_handle_shouldSendPartialContent(@TempDir tempDir: Path) {
+        val content = ByteArray(100) { index -> index.toByte() }
+        mockUnthrottledRequestFor(content, tempDir)
+        val writtenBytes = captureOutput()
+        whenever(mockRequest.getHeader("Range")).thenReturn("bytes=90-")
+        whenever(mockRequest.getHeader("If-Range")).thenReturn("\"etag\"")
+
+        downloadSplitsPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(writtenBytes).isEqualTo(content.toList().subList(90, 100))
+        verify(mockResponse).status = HttpStatus.PARTIAL_CONTENT_206
+        verify(mockResponse).setHeader("Content-Range", "bytes 90-99/100")
+        verify(mockResponse).setHeader("ETag", "\"etag\"")
+        verify(mockResponse).setHeader("Accept-Ranges", "bytes")
+        verify(mockResponse).setContentLengthLong(10)
+    }
+
+    @Test
+    fun whenIfRangeDoesNotMatch_handle_shouldSendWholeArchive(@TempDir tempDir: Path) {
+        val content = ByteArray(100) { index -> index.toByte() }
+        mockUnthrottledRequestFor(content, tempDir)
+        val writtenBytes = captureOutput()
+        whenever(mockRequest.getHeader("Range")).thenReturn("bytes=90-")
+        whenever(mockRequest.getHeader("If-Range")).thenReturn("\"stale\"")
+
+        downloadSplitsPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(writtenBytes).isEqualTo(content.toList())
+        verify(mockResponse).setContentLengthLong(100)
+    }
+
+    @Test
+    fun whenRangeIsNotSatisfiable_handle_shouldThrowWith416(@TempDir tempDir: Path) {
+        mockUnthrottledRequestFor(ByteArray(100), tempDir)
+        whenever(mockRequest.getHeader("Range")).thenReturn("bytes=100-")
+
+        val thrown = assertThrows<HttpException> { downloadSplitsPathHandler.handle(mockRequest, mockResponse) }
+
+        assertThat(thrown.code).isEqualTo(HttpStatus.RANGE_NOT_SATISFIABLE_416)
+        verify(mockResponse).setHeader("Content-Range", "bytes */100")
+    }
+
+    @Test
+    fun whenIfNoneMatchMatches_handle_shouldRespondWith304WithoutGeneratingSplits() {
+        mockCompleteRequest()
+        whenever(mockRequest.getHeader("If-None-Match")).thenReturn("\"other\", \"etag\"")
+        whenever(mockBundleManager.splitsEtag(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn("\"etag\"")
+
+        downloadSplitsPathHandler.handle(mockRequest, mockResponse)
+
+        verify(mockResponse).status = HttpStatus.NOT_MODIFIED_304
+        verify(mockResponse).setHeader("ETag", "\"etag\"")
+        verify(mockBundleManager, never()).generateCompressedSplits(any(), any(), any(), any(), any(), any(), any())
+    }
+
+    @Test
+    fun whenIfNoneMatchDoesNotMatch_handle_shouldSendSplits(@TempDir tempDir: Path) {
+        val content = ByteArray(100) { index -> index.toByte() }
+        mockUnthrottledRequestFor(content, tempDir)
+        val writtenBytes = captureOutput()
+        whenever(mockRequest.getHeader("If-None-Match")).thenReturn("\"stale\"")
+        whenever(mockBundleManager.splitsEtag(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn("\"etag\"")
+
+        downloadSplitsPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(writtenBytes.toByteArray()).isEqualTo(content)
+    }
+
+}
@@ -36,6 +36,23 @@ class GloballyDynamicMainKtTest {
         assertThat(configuration.password).isEqualTo("password")
     }
 
+    @Test
+    fun whenScratchPathIsGiven_fromArgs_shouldRebuildTheStorageBackendWithIt() {
+        val storageBackend = ContentAddressedStorageBackend.builder()
+            .setStorageBackend(LocalStorageBackend.builder().build())
+            .build()
+        val args = arrayOf("--scratch-path", "/scratch")
+
+        val configuration = GloballyDynamicServer.Configuration.builder()
+            .setStorageBackend(storageBackend)
+            .build()
+            .fromArgs(args)
+
+        assertThat(configuration.scratchPath.toString()).isEqualTo("/scratch")
+        assertThat((configuration.storageBackend as ContentAddressedStorageBackend).newBuilder().scratchPath.toString())
+            .isEqualTo("/scratch")
+    }
+
     @Test
     fun whenArgumentValueIsMissing_fromArgs_shouldThrow() {
         val args = arrayOf(
@@ -67,4 +84,131 @@ class GloballyDynamicMainKtTest {
 
         assertThrows<IllegalArgumentException>(executable)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun fromArgs_shouldGenerateWarmUpDeviceClassesFromEveryCombination() {
+        val args = arrayOf(
+            "--warm-up-abis", "arm64-v8a,x86",
+            "--warm-up-screen-densities", "320,480",
+            "--warm-up-sdk-versions", "30",
+            "--warm-up-locales", "en,sv"
+        )
+
+        val configuration = GloballyDynamicServer.Configuration.builder().build().fromArgs(args)
+
+        assertThat(configuration.warmUpDeviceClasses.map { "${it.abi}-${it.screenDensity}-${it.sdkVersion}" })
+            .containsExactly("arm64-v8a-320-30", "arm64-v8a-480-30", "x86-320-30", "x86-480-30")
+        assertThat(configuration.warmUpDeviceClasses.map { it.locales }.distinct())
+            .containsExactly(listOf("en", "sv"))
+    }
+
+    @Test
+    fun whenWarmUpScreenDensitiesAreMissing_fromArgs_shouldThrow() {
+        val args = arrayOf(
+            "--warm-up-abis", "arm64-v8a",
+            "--warm-up-sdk-versions", "30"
+        )
+
+        val executable = {
+            GloballyDynamicServer.Configuration.builder().build().fromArgs(args)
+            Unit
+        }
+
+        assertThrows<IllegalArgumentException>(executable)
+    }
+
+    @Test
+    fun whenContentAddressedStorageIsEnabled_fromArgs_shouldWrapTheStorageBackend() {
+        val args = arrayOf(
+            "--storage-backend", "local",
+            "--local-storage-path", "/build",
+            "--content-addressed-storage", "true"
+        )
+
+        val configuration = GloballyDynamicServer.Configuration.builder().build().fromArgs(args)
+
+        val storageBackend = (configuration.storageBackend as ContentAddressedStorageBackend).newBuilder().storageBackend
+        assertThat((storageBackend as LocalStorageBackend).newBuilder().baseStoragePath.toString()).isEqualTo("/build")
+    }
+
+    @Test
+    fun fromArgs_shouldLimitUploads() {
+        val args = arrayOf(
+            "--max-concurrent-uploads", "1",
+            "--max-queued-uploads", "4"
+        )
+
+        val configuration = GloballyDynamicServer.Configuration.builder().build().fromArgs(args)
+
+        assertThat(configuration.maxConcurrentUploads).isEqualTo(1)
+        assertThat(configuration.maxQueuedUploads).isEqualTo(4)
+    }
+
+    @Test
+    fun whenMaxConcurrentUploadsIsNotPositive_fromArgs_shouldThrow() {
+        val executable = {
+            GloballyDynamicServer.Configuration.builder().build()
+                .fromArgs(arrayOf("--max-concurrent-uploads", "0"))
+            Unit
+        }
+
+        assertThrows<IllegalArgumentException>(executable)
+    }
+
+    @Test
+    fun whenBundletoolThreadsAreGiven_fromArgs_shouldCreateADedicatedExecutor() {
+        val configuration = GloballyDynamicServer.Configuration.builder().build()
+            .fromArgs(arrayOf("--bundletool-threads", "3"))
+
+        assertThat(configuration.bundletoolExecutorService).isNotSameInstanceAs(DEFAULT_BUNDLETOOL_EXECUTOR_SERVICE)
+    }
+
+    @Test
+    fun whenLoggingArgsAreGiven_fromArgs_shouldBuildLoggerAndSampleRates() {
+        val configuration = GloballyDynamicServer.Configuration.builder().build()
+            .fromArgs(arrayOf(
+                "--log-level", "error",
+                "--async-logging", "true",
+                "--log-sample-rates", "download=0.1,manifest=0"
+            ))
+
+        assertThat(configuration.logger).isInstanceOf(AsyncLogger::class.java)
+        assertThat(configuration.logger.isEnabled(Logger.Level.INFO)).isFalse()
+        assertThat(configuration.logSampleRates).containsExactly("download", 0.1, "manifest", 0.0)
+    }
+
+    @Test
+    fun whenLogSampleRateIsOutOfRange_fromArgs_shouldThrow() {
+        val executable = {
+            GloballyDynamicServer.Configuration.builder().build()
+                .fromArgs(arrayOf("--log-sample-rates", "download=2"))
+            Unit
+        }
+
+        assertThrows<IllegalArgumentException>(executable)
+    }
+
+    @Test
+    fun whenServerTuningArgsAreGiven_fromArgs_shouldApplyThem() {
+        val configuration = GloballyDynamicServer.Configuration.builder().build()
+            .fromArgs(arrayOf(
+                "--min-threads", "16",
+                "--max-threads", "400",
+                "--max-queued-requests", "1000",
+                "--acceptors", "2",
+                "--selectors", "4",
+                "--idle-timeout", "120",
+                "--output-buffer-size", "64",
+                "--http2", "true"
+            ))
+
+        assertThat(configuration.minThreads).isEqualTo(16)
+        assertThat(configuration.maxThreads).isEqualTo(400)
+        assertThat(configuration.maxQueuedRequests).isEqualTo(1000)
+        assertThat(configuration.acceptors).isEqualTo(2)
+        assertThat(configuration.selectors).isEqualTo(4)
+        assertThat(configuration.idleTimeoutMillis).isEqualTo(120_000)
+        assertThat(configuration.outputBufferSize).isEqualTo(64 * 1024)
+        assertThat(configuration.http2).isTrue()
+    }
+}
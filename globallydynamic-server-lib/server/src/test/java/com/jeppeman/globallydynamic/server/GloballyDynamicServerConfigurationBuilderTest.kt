@@ -1,7 +1,9 @@
 package com.jeppeman.globallydynamic.server
 
 import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Assumptions.assumeFalse
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import org.junit.platform.runner.JUnitPlatform
 import org.junit.runner.RunWith
 import java.nio.file.Paths
@@ -50,4 +52,31 @@ class GloballyDynamicServerConfigurationBuilderTest {
         assertThat(configuration.username).isEqualTo("username")
         assertThat(configuration.password).isEqualTo("password")
     }
-}
\ No newline at end of file
+
+    @Test
+    fun whenMaxThreadsAreFewerThanMinThreads_build_shouldThrow() {
+        val executable = {
+            GloballyDynamicServer.Configuration.builder()
+                .setMinThreads(8)
+                .setMaxThreads(4)
+                .build()
+            Unit
+        }
+
+        assertThrows<IllegalArgumentException>(executable)
+    }
+
+    @Test
+    fun whenVirtualThreadsAreUnsupported_build_shouldThrow() {
+        assumeFalse(VirtualThreadPool.isSupported)
+
+        val executable = {
+            GloballyDynamicServer.Configuration.builder()
+                .setVirtualThreads(true)
+                .build()
+            Unit
+        }
+
+        assertThrows<IllegalArgumentException>(executable)
+    }
+}
@@ -0,0 +1,55 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.cloud.WriteChannel
+import com.google.cloud.storage.BlobId
+import com.google.cloud.storage.BlobInfo
+import com.google.cloud.storage.Storage
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.never
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class GoogleCloudStorageBackendTest {
+    @Mock
+    private lateinit var mockStorage: Storage
+    @Mock
+    private lateinit var mockWriteChannel: WriteChannel
+
+    @Test
+    fun storeFile_shouldWriteInChunksOfTheConfiguredSize() {
+        val chunkSizeBytes = 32 * 1024 * 1024
+        val backend = GoogleCloudStorageBackend("bucket", chunkSizeBytes, storage = mockStorage)
+        val content = ByteArray(1024 * 1024) { index -> index.toByte() }
+        val written = ByteArrayOutputStream()
+        whenever(mockStorage.writer(any<BlobInfo>())).thenReturn(mockWriteChannel)
+        doAnswer { invocation ->
+            val buffer = invocation.getArgument<ByteBuffer>(0)
+            val bytes = ByteArray(buffer.remaining()).also { buffer.get(it) }
+            written.write(bytes)
+            bytes.size
+        }.whenever(mockWriteChannel).write(any())
+
+        backend.storeFile("file", "application/zip", content.inputStream())
+
+        val captor = argumentCaptor<BlobInfo>()
+        verify(mockStorage, never()).delete(BlobId.of("bucket", "file"))
+        verify(mockStorage).writer(captor.capture())
+        verify(mockWriteChannel).setChunkSize(chunkSizeBytes)
+        verify(mockWriteChannel).close()
+        assertThat(captor.firstValue.contentType).isEqualTo("application/zip")
+        assertThat(written.toByteArray()).isEqualTo(content)
+    }
+}
@@ -0,0 +1,52 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.eclipse.jetty.server.HttpConnectionFactory
+import org.eclipse.jetty.server.ServerConnector
+import org.eclipse.jetty.util.thread.QueuedThreadPool
+import org.junit.jupiter.api.Test
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+
+@RunWith(JUnitPlatform::class)
+class JettyServerWrapperTest {
+    @Test
+    fun jettyServer_shouldApplyTheConfiguration() {
+        val configuration = GloballyDynamicServer.Configuration.builder()
+            .setPort(8096)
+            .setMinThreads(4)
+            .setMaxThreads(16)
+            .setMaxQueuedRequests(100)
+            .setAcceptors(1)
+            .setSelectors(2)
+            .setIdleTimeoutMillis(5000)
+            .setOutputBufferSize(64 * 1024)
+            .build()
+
+        val jettyServer = JettyServerWrapper.jettyServer(configuration)
+
+        val threadPool = jettyServer.threadPool as QueuedThreadPool
+        val connector = jettyServer.connectors.single() as ServerConnector
+        assertThat(threadPool.minThreads).isEqualTo(4)
+        assertThat(threadPool.maxThreads).isEqualTo(16)
+        assertThat(connector.port).isEqualTo(8096)
+        assertThat(connector.acceptors).isEqualTo(1)
+        assertThat(connector.selectorManager.selectorCount).isEqualTo(2)
+        assertThat(connector.idleTimeout).isEqualTo(5000)
+        assertThat(connector.protocols).containsExactly("http/1.1")
+        assertThat(connector.getConnectionFactory(HttpConnectionFactory::class.java).httpConfiguration.outputBufferSize)
+            .isEqualTo(64 * 1024)
+    }
+
+    @Test
+    fun whenHttp2IsEnabled_jettyServer_shouldAcceptH2c() {
+        val configuration = GloballyDynamicServer.Configuration.builder()
+            .setHttp2(true)
+            .build()
+
+        val jettyServer = JettyServerWrapper.jettyServer(configuration)
+
+        val connector = jettyServer.connectors.single() as ServerConnector
+        assertThat(connector.protocols).containsExactly("http/1.1", "h2c").inOrder()
+    }
+}
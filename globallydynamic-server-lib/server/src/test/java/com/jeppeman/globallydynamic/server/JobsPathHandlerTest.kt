@@ -0,0 +1,78 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.Gson
+import org.eclipse.jetty.http.HttpStatus
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import org.mockito.kotlin.any
+import org.mockito.kotlin.whenever
+import java.io.InputStream
+import java.io.PrintWriter
+import java.io.StringWriter
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class JobsPathHandlerTest {
+    @Mock
+    private lateinit var mockBundleManager: BundleManager
+    @Mock
+    private lateinit var mockLogger: Logger
+    @Mock
+    private lateinit var mockRequest: HttpServletRequest
+    @Mock
+    private lateinit var mockResponse: HttpServletResponse
+    private lateinit var uploadJobs: UploadJobs
+    private lateinit var jobsPathHandler: JobsPathHandler
+
+    @BeforeEach
+    fun setUp() {
+        uploadJobs = UploadJobs(mockBundleManager, mockLogger)
+        jobsPathHandler = JobsPathHandler(
+            uploadJobs = uploadJobs,
+            gson = Gson()
+        )
+    }
+
+    @Test
+    fun whenJobIsUnknown_handle_shouldThrowWith404() {
+        whenever(mockRequest.pathInfo).thenReturn("/jobs/unknown")
+
+        val executable = { jobsPathHandler.handle(mockRequest, mockResponse) }
+
+        val thrown = assertThrows<HttpException>(executable)
+        assertThat(thrown.code).isEqualTo(HttpStatus.NOT_FOUND_404)
+    }
+
+    @Test
+    fun whenJobIsKnown_handle_shouldRespondWithItsStage() {
+        whenever(mockBundleManager.storeBundle(any(), any(), any(), any(), any<InputStream>(), any(), any()))
+            .thenReturn(BundleManager.Result.Error.KeyAliasMissing)
+        val job = uploadJobs.submit(
+            applicationId = "applicationId",
+            version = 1,
+            variant = "variant",
+            signingConfig = "signingConfig",
+            bundleInputStream = FakeInputStream("bundle"),
+            keyStoreInputStream = FakeInputStream("keystore"),
+            spool = false
+        )
+        job.await()
+        val body = StringWriter()
+        whenever(mockRequest.pathInfo).thenReturn("/jobs/${job.id}")
+        whenever(mockResponse.writer).thenReturn(PrintWriter(body))
+
+        jobsPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(body.toString()).contains("\"id\":\"${job.id}\"")
+        assertThat(body.toString()).contains("\"stage\":\"failed\"")
+    }
+}
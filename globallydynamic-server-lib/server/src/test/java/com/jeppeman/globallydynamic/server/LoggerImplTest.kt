@@ -1,9 +1,14 @@
 package com.jeppeman.globallydynamic.server
 
 import com.google.common.truth.Truth.assertThat
+import com.google.gson.Gson
+import com.google.gson.JsonObject
 import com.jeppeman.globallydynamic.server.Logger
 import com.jeppeman.globallydynamic.server.extensions.stackTraceToString
+import org.mockito.kotlin.any
 import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.never
+import org.mockito.kotlin.timeout
 import org.mockito.kotlin.verify
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
@@ -84,4 +89,53 @@ class LoggerImplTest {
         verify(mockErrorStream).println(messageCaptor.capture())
         assertThat(messageCaptor.firstValue).endsWith("GloballyDynamicServer: $message: ${illegalStateException.stackTraceToString()}")
     }
-}
\ No newline at end of file
+
+    @Test
+    fun whenLevelIsError_i_andD_shouldNotPrint() {
+        val logger = Logger.builder().setLevel(Logger.Level.ERROR).setAsync(false).build()
+
+        logger.i("info")
+        logger.d { throw IllegalStateException("Debug messages should not be built") }
+
+        verify(mockOutStream, never()).println(any<Any>())
+    }
+
+    @Test
+    fun whenFormatIsJson_e_shouldPrintJsonToSystemErr() {
+        val messageCaptor = argumentCaptor<String>()
+        val logger = Logger.builder().setFormat(Logger.Format.JSON).setAsync(false).build()
+
+        logger.e("Hello there", IllegalStateException())
+
+        verify(mockErrorStream).println(messageCaptor.capture())
+        val json = Gson().fromJson(messageCaptor.firstValue, JsonObject::class.java)
+        assertThat(json.get("level").asString).isEqualTo("ERROR")
+        assertThat(json.get("message").asString).isEqualTo("Hello there")
+        assertThat(json.get("exception").asString).contains("IllegalStateException")
+    }
+
+    @Test
+    fun whenAsync_flush_shouldPrintQueuedMessages() {
+        val messageCaptor = argumentCaptor<Any>()
+        val logger = AsyncLogger(LoggerImpl(), 16)
+
+        logger.i("Hello there")
+        logger.flush()
+
+        verify(mockOutStream, timeout(1000)).println(messageCaptor.capture())
+        assertThat(messageCaptor.firstValue.toString()).endsWith("GloballyDynamicServer: Hello there")
+    }
+
+    @Test
+    fun whenRequestIsNotSampled_sampledLogger_shouldOnlyPrintErrors() {
+        val logger = SampledLogger(Logger())
+
+        SampledLogger.sampling(false) {
+            logger.i("info")
+            logger.e("error")
+        }
+
+        verify(mockOutStream, never()).println(any<Any>())
+        verify(mockErrorStream).println(any<String>())
+    }
+}
@@ -0,0 +1,64 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+
+@RunWith(JUnitPlatform::class)
+class MetricsTest {
+    private val metrics = Metrics()
+
+    @Test
+    fun requestDurations_shouldBeCountedInTheBucketsThatBoundThem() {
+        metrics.requestStarted("download")
+        metrics.requestFinished("download", 200, 1_000_000)
+
+        val text = metrics.toPrometheusText()
+
+        assertThat(text).contains("globallydynamic_request_duration_seconds_bucket{handler=\"download\",le=\"7.86432E-4\"} 0\n")
+        assertThat(text).contains("globallydynamic_request_duration_seconds_bucket{handler=\"download\",le=\"0.001048576\"} 1\n")
+        assertThat(text).contains("globallydynamic_request_duration_seconds_bucket{handler=\"download\",le=\"+Inf\"} 1\n")
+        assertThat(text).contains("globallydynamic_request_duration_seconds_sum{handler=\"download\"} 0.001\n")
+        assertThat(text).contains("globallydynamic_request_duration_seconds_count{handler=\"download\"} 1\n")
+        assertThat(text).contains("globallydynamic_requests_total{handler=\"download\",status=\"200\"} 1\n")
+        assertThat(text).contains("globallydynamic_requests_in_flight{handler=\"download\"} 0\n")
+    }
+
+    @Test
+    fun stages_shouldBeTimedAndExposedEvenIfNeverRecorded() {
+        val result = metrics.time(Metrics.Stage.ZIP) { "zipped" }
+
+        val text = metrics.toPrometheusText()
+
+        assertThat(result).isEqualTo("zipped")
+        assertThat(text).contains("globallydynamic_stage_duration_seconds_count{stage=\"zip\"} 1\n")
+        assertThat(text).contains("globallydynamic_stage_duration_seconds_count{stage=\"build_apks\"} 0\n")
+    }
+
+    @Test
+    fun timer_shouldOnlyRecordOnce() {
+        val timer = metrics.startTimer(Metrics.Stage.TRANSFER)
+
+        timer.stop()
+        timer.stop()
+
+        assertThat(metrics.toPrometheusText())
+            .contains("globallydynamic_stage_duration_seconds_count{stage=\"transfer\"} 1\n")
+    }
+
+    @Test
+    fun bytesAndCacheLookups_shouldBeCounted() {
+        metrics.bytesSent("split-apk", 100)
+        metrics.bytesSent("split-apk", 50)
+        metrics.cacheLookup("splits", true)
+        metrics.cacheLookup("splits", false)
+        metrics.cacheLookup("splits", false)
+
+        val text = metrics.toPrometheusText()
+
+        assertThat(text).contains("globallydynamic_bytes_sent_total{handler=\"split-apk\"} 150\n")
+        assertThat(text).contains("globallydynamic_cache_lookups_total{cache=\"splits\",result=\"hit\"} 1\n")
+        assertThat(text).contains("globallydynamic_cache_lookups_total{cache=\"splits\",result=\"miss\"} 2\n")
+    }
+}
@@ -1,5 +1,6 @@
 package com.jeppeman.globallydynamic.server
 
+import com.google.common.truth.Truth.assertThat
 import com.jeppeman.globallydynamic.server.extensions.toBase64
 import org.mockito.kotlin.*
 import org.eclipse.jetty.http.HttpStatus
@@ -13,6 +14,8 @@ import org.mockito.Mock
 import org.mockito.junit.jupiter.MockitoExtension
 import org.mockito.junit.jupiter.MockitoSettings
 import org.mockito.quality.Strictness
+import javax.servlet.AsyncContext
+import javax.servlet.AsyncListener
 import javax.servlet.ServletOutputStream
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
@@ -97,6 +100,55 @@ class RequestHandlerTest {
         verify(pathHandlers[0]).handle(mockRequest, mockResponse)
     }
 
+    @Test
+    fun handle_shouldRecordTheRequestInMetrics() {
+        val metrics = Metrics()
+        requestHandler = RequestHandler(
+            configuration = GloballyDynamicServer.Configuration.builder()
+                .setLogger(mockLogger)
+                .build(),
+            pathHandlers = pathHandlers,
+            metrics = metrics
+        )
+        whenever(mockRequest.pathInfo).thenReturn("/path")
+        whenever(mockResponse.status).thenReturn(HttpStatus.OK_200)
+
+        requestHandler.handle("", mockBaserequest, mockRequest, mockResponse)
+
+        val text = metrics.toPrometheusText()
+        assertThat(text).contains("globallydynamic_requests_total{handler=\"path\",status=\"200\"} 1\n")
+        assertThat(text).contains("globallydynamic_requests_in_flight{handler=\"path\"} 0\n")
+    }
+
+    @Test
+    fun whenResponseIsSentAsynchronously_handle_shouldRecordTheRequestOnceItCompletes() {
+        val metrics = Metrics()
+        requestHandler = RequestHandler(
+            configuration = GloballyDynamicServer.Configuration.builder()
+                .setLogger(mockLogger)
+                .build(),
+            pathHandlers = pathHandlers,
+            metrics = metrics
+        )
+        val mockAsyncContext = mock<AsyncContext>()
+        whenever(mockRequest.pathInfo).thenReturn("/path")
+        whenever(mockRequest.isAsyncStarted).thenReturn(true)
+        whenever(mockRequest.asyncContext).thenReturn(mockAsyncContext)
+        whenever(mockResponse.status).thenReturn(HttpStatus.OK_200)
+
+        requestHandler.handle("", mockBaserequest, mockRequest, mockResponse)
+
+        assertThat(metrics.toPrometheusText()).contains("globallydynamic_requests_in_flight{handler=\"path\"} 1\n")
+        val listener = argumentCaptor<AsyncListener>().apply {
+            verify(mockAsyncContext).addListener(capture())
+        }.firstValue
+        listener.onComplete(null)
+        listener.onError(null)
+        val text = metrics.toPrometheusText()
+        assertThat(text).contains("globallydynamic_requests_total{handler=\"path\",status=\"200\"} 1\n")
+        assertThat(text).contains("globallydynamic_requests_in_flight{handler=\"path\"} 0\n")
+    }
+
     @Test
     fun whenRequestIsSslAndHttpsRedirectIsTrue_handle_shouldRedirectToHttps() {
         requestHandler = RequestHandler(
@@ -0,0 +1,124 @@
+package com.jeppeman.globallydynamic.server
+
+import com.amazonaws.SdkClientException
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PartETag
+import com.amazonaws.services.s3.model.UploadPartRequest
+import com.amazonaws.services.s3.model.UploadPartResult
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.never
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import org.junit.jupiter.api.assertThrows
+import java.io.InputStream
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class S3BackendTest {
+    @Mock
+    private lateinit var mockS3: AmazonS3
+
+    @Test
+    fun whenFileIsSmall_storeFile_shouldPutItInASingleRequest() {
+        val s3Backend = S3Backend("bucket", mockS3)
+        var stored: ByteArray? = null
+        doAnswer { invocation ->
+            stored = invocation.getArgument<InputStream>(2).readBytes()
+            null
+        }.whenever(mockS3).putObject(eq("bucket"), eq("file"), any<InputStream>(), any<ObjectMetadata>())
+
+        s3Backend.storeFile("file", "application/zip", "content".byteInputStream())
+
+        assertThat(stored).isEqualTo("content".toByteArray())
+        verify(mockS3, never()).initiateMultipartUpload(any())
+    }
+
+    @Test
+    fun whenFileIsLarge_storeFile_shouldUploadItInParts() {
+        val s3Backend = S3Backend("bucket", mockS3)
+        val content = ByteArray(20 * 1024 * 1024) { index -> index.toByte() }
+        whenever(mockS3.initiateMultipartUpload(any()))
+            .thenReturn(InitiateMultipartUploadResult().apply { uploadId = "upload" })
+        val partSizes = Collections.synchronizedList(mutableListOf<Long>())
+        doAnswer { invocation ->
+            val request = invocation.getArgument<UploadPartRequest>(0)
+            partSizes += request.partSize
+            UploadPartResult().apply {
+                partNumber = request.partNumber
+                eTag = "etag${request.partNumber}"
+            }
+        }.whenever(mockS3).uploadPart(any())
+
+        s3Backend.storeFile("file", "application/zip", content.inputStream())
+
+        val captor = argumentCaptor<CompleteMultipartUploadRequest>()
+        verify(mockS3, times(3)).uploadPart(any())
+        verify(mockS3).completeMultipartUpload(captor.capture())
+        assertThat(partSizes.sum()).isEqualTo(content.size.toLong())
+        assertThat(captor.firstValue.uploadId).isEqualTo("upload")
+        assertThat(captor.firstValue.partETags.map(PartETag::getPartNumber)).containsExactly(1, 2, 3).inOrder()
+        verify(mockS3, never()).putObject(any<String>(), any(), any<InputStream>(), any())
+    }
+
+    @Test
+    fun whenAPartFails_storeFile_shouldRetryOnlyThatPart() {
+        val s3Backend = S3Backend("bucket", mockS3, partSizeBytes = S3Backend.MIN_PART_SIZE_BYTES)
+        val content = ByteArray(S3Backend.MIN_PART_SIZE_BYTES * 3)
+        whenever(mockS3.initiateMultipartUpload(any()))
+            .thenReturn(InitiateMultipartUploadResult().apply { uploadId = "upload" })
+        val secondPartAttempts = AtomicInteger()
+        doAnswer { invocation ->
+            val request = invocation.getArgument<UploadPartRequest>(0)
+            if (request.partNumber == 2 && secondPartAttempts.incrementAndGet() == 1) {
+                throw SdkClientException("Connection reset")
+            }
+            UploadPartResult().apply {
+                partNumber = request.partNumber
+                eTag = "etag${request.partNumber}"
+            }
+        }.whenever(mockS3).uploadPart(any())
+
+        s3Backend.storeFile("file", "application/zip", content.inputStream())
+
+        val captor = argumentCaptor<CompleteMultipartUploadRequest>()
+        verify(mockS3, times(4)).uploadPart(any())
+        verify(mockS3).completeMultipartUpload(captor.capture())
+        assertThat(secondPartAttempts.get()).isEqualTo(2)
+        assertThat(captor.firstValue.partETags.map(PartETag::getPartNumber)).containsExactly(1, 2, 3).inOrder()
+    }
+
+    @Test
+    fun whenAPartKeepsFailing_storeFile_shouldAbortTheUpload() {
+        val s3Backend = S3Backend("bucket", mockS3, partSizeBytes = S3Backend.MIN_PART_SIZE_BYTES)
+        val content = ByteArray(S3Backend.MIN_PART_SIZE_BYTES + 1)
+        whenever(mockS3.initiateMultipartUpload(any()))
+            .thenReturn(InitiateMultipartUploadResult().apply { uploadId = "upload" })
+        whenever(mockS3.uploadPart(any())).thenThrow(SdkClientException("Connection reset"))
+
+        assertThrows<SdkClientException> {
+            s3Backend.storeFile("file", "application/zip", content.inputStream())
+        }
+
+        val captor = argumentCaptor<AbortMultipartUploadRequest>()
+        verify(mockS3).abortMultipartUpload(captor.capture())
+        verify(mockS3, never()).completeMultipartUpload(any())
+        assertThat(captor.firstValue.uploadId).isEqualTo("upload")
+    }
+}
@@ -0,0 +1,87 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.jupiter.api.io.TempDir
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class ScratchSpaceTest {
+    @Mock
+    private lateinit var mockLogger: Logger
+    @TempDir
+    lateinit var tempDir: Path
+
+    private val scratchDir get() = tempDir.resolve("scratch")
+
+    private fun scratchSpace(maxSizeBytes: Long = 0) = ScratchSpace(
+        path = scratchDir,
+        maxSizeBytes = maxSizeBytes,
+        ttlMillis = TTL_MILLIS,
+        logger = mockLogger,
+        sweeper = null
+    )
+
+    private fun Path.withFile(size: Int, lastModified: Long): Path = apply {
+        resolve("file").toFile().writeBytes(ByteArray(size))
+        Files.setLastModifiedTime(this, FileTime.fromMillis(lastModified))
+    }
+
+    @Test
+    fun whenWorkspaceIsClosed_itShouldBeDeleted() {
+        val scratchSpace = scratchSpace()
+
+        val path = scratchSpace.withWorkspace("workspace") { path ->
+            path.resolve("file").toFile().writeText("content")
+            path
+        }
+
+        assertThat(path.startsWith(scratchDir)).isTrue()
+        assertThat(Files.exists(path)).isFalse()
+    }
+
+    @Test
+    fun sweep_shouldDeleteExpiredEntriesButNotOpenWorkspaces() {
+        val scratchSpace = scratchSpace()
+        val now = System.currentTimeMillis()
+        val expired = scratchSpace.createTempDirectory("expired").withFile(1, now - TTL_MILLIS - 1)
+        val fresh = scratchSpace.createTempDirectory("fresh").withFile(1, now)
+        val workspace = scratchSpace.workspace("workspace")
+        workspace.path.withFile(1, now - TTL_MILLIS - 1)
+
+        scratchSpace.sweep(now)
+
+        assertThat(Files.exists(expired)).isFalse()
+        assertThat(Files.exists(fresh)).isTrue()
+        assertThat(Files.exists(workspace.path)).isTrue()
+
+        workspace.close()
+    }
+
+    @Test
+    fun whenOverQuota_sweep_shouldDeleteTheOldestEntriesFirst() {
+        val scratchSpace = scratchSpace(maxSizeBytes = 25)
+        val now = System.currentTimeMillis()
+        val oldest = scratchSpace.createTempDirectory("oldest").withFile(10, now - 3 * 60 * 1000)
+        val older = scratchSpace.createTempDirectory("older").withFile(10, now - 2 * 60 * 1000)
+        val newest = scratchSpace.createTempDirectory("newest").withFile(10, now - 60 * 1000)
+
+        scratchSpace.sweep(now)
+
+        assertThat(Files.exists(oldest)).isFalse()
+        assertThat(Files.exists(older)).isTrue()
+        assertThat(Files.exists(newest)).isTrue()
+    }
+
+    companion object {
+        private const val TTL_MILLIS = 60 * 60 * 1000L
+    }
+}
@@ -0,0 +1,71 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import com.jeppeman.globallydynamic.server.extensions.deleteCompletely
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+
+@RunWith(JUnitPlatform::class)
+class SeekableZipTest {
+    private lateinit var tempDir: Path
+
+    @BeforeEach
+    fun setUp() {
+        tempDir = Files.createTempDirectory("SeekableZipTest")
+    }
+
+    @AfterEach
+    fun tearDown() {
+        tempDir.deleteCompletely()
+    }
+
+    private fun open(path: Path) = SeekableZip.open(FileChannel.open(path, StandardOpenOption.READ))
+
+    @Test
+    fun entries_shouldBeReadableWhetherStoredOrDeflated() {
+        val stored = Random(1).nextBytes(10_000)
+        val deflated = "deflated".repeat(1_000).toByteArray()
+        val zip = tempDir.resolve("archive.zip")
+        ZipOutputStream(Files.newOutputStream(zip)).use { zipOutputStream ->
+            zipOutputStream.setComment("comment")
+            zipOutputStream.putNextEntry(ZipEntry("stored.apk").apply {
+                method = ZipEntry.STORED
+                size = stored.size.toLong()
+                crc = CRC32().apply { update(stored) }.value
+            })
+            zipOutputStream.write(stored)
+            zipOutputStream.closeEntry()
+            zipOutputStream.putNextEntry(ZipEntry("splits/deflated.apk"))
+            zipOutputStream.write(deflated)
+            zipOutputStream.closeEntry()
+        }
+
+        open(zip).use { seekableZip ->
+            assertThat(seekableZip.entries.keys).containsExactly("stored.apk", "splits/deflated.apk").inOrder()
+            assertThat(seekableZip.entries.getValue("splits/deflated.apk").size).isEqualTo(deflated.size.toLong())
+            assertThat(seekableZip.readBytes("splits/deflated.apk")).isEqualTo(deflated)
+            assertThat(seekableZip.readBytes("stored.apk")).isEqualTo(stored)
+            assertThat(seekableZip.readBytes("missing.apk")).isNull()
+        }
+    }
+
+    @Test
+    fun whenFileIsNotAZipArchive_open_shouldThrow() {
+        val file = tempDir.resolve("file").apply { toFile().writeText("not a zip archive") }
+
+        assertThrows<ZipException> { open(file) }
+    }
+}
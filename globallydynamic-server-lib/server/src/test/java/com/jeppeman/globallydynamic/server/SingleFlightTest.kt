@@ -0,0 +1,83 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(JUnitPlatform::class)
+class SingleFlightTest {
+    @Test
+    fun whenCalledConcurrently_execute_shouldComputeOnceAndShareTheValue() {
+        val singleFlight = SingleFlight<String, Any>()
+        val computations = AtomicInteger()
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        var sharedWith = -1
+        val executor = Executors.newFixedThreadPool(4)
+
+        val results = (0 until 4).map {
+            executor.submit<Any> {
+                singleFlight.execute("key", share = { _, followers -> sharedWith = followers }) {
+                    computations.incrementAndGet()
+                    started.countDown()
+                    release.await(5, TimeUnit.SECONDS)
+                    Any()
+                }
+            }
+        }
+        started.await(5, TimeUnit.SECONDS)
+        Thread.sleep(200)
+        release.countDown()
+        val values = results.map { it.get(5, TimeUnit.SECONDS) }.toSet()
+        executor.shutdown()
+
+        assertThat(values).hasSize(1)
+        assertThat(computations.get()).isEqualTo(1)
+        assertThat(sharedWith).isEqualTo(3)
+    }
+
+    @Test
+    fun whenComputationFails_execute_shouldThrowToEveryCaller() {
+        val singleFlight = SingleFlight<String, Any>()
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(2)
+
+        val results = (0 until 2).map {
+            executor.submit<Any> {
+                singleFlight.execute("key") {
+                    started.countDown()
+                    release.await(5, TimeUnit.SECONDS)
+                    throw IllegalStateException("failed")
+                }
+            }
+        }
+        started.await(5, TimeUnit.SECONDS)
+        Thread.sleep(200)
+        release.countDown()
+
+        results.forEach { result ->
+            val thrown = assertThrows<ExecutionException> { result.get(5, TimeUnit.SECONDS) }
+            assertThat(thrown.cause).isInstanceOf(IllegalStateException::class.java)
+        }
+        executor.shutdown()
+    }
+
+    @Test
+    fun whenCalledSequentially_execute_shouldComputeEachTime() {
+        val singleFlight = SingleFlight<String, Int>()
+        val computations = AtomicInteger()
+
+        singleFlight.execute("key") { computations.incrementAndGet() }
+        singleFlight.execute("key") { computations.incrementAndGet() }
+
+        assertThat(computations.get()).isEqualTo(2)
+    }
+}
@@ -0,0 +1,130 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import com.jeppeman.globallydynamic.server.dto.SplitDto
+import org.eclipse.jetty.http.HttpStatus
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import org.mockito.kotlin.any
+import org.mockito.kotlin.never
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.io.ByteArrayOutputStream
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class SplitApkPathHandlerTest {
+    @Mock
+    private lateinit var mockBundleManager: BundleManager
+    @Mock
+    private lateinit var mockLogger: Logger
+    @Mock
+    private lateinit var mockRequest: HttpServletRequest
+    @Mock
+    private lateinit var mockResponse: HttpServletResponse
+    private lateinit var splitApkPathHandler: SplitApkPathHandler
+
+    @BeforeEach
+    fun setUp() {
+        splitApkPathHandler = SplitApkPathHandler(
+            bundleManager = mockBundleManager,
+            validateSignature = false,
+            logger = mockLogger
+        )
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("1"),
+            "variant" to arrayOf("variant"),
+            "sha256" to arrayOf("ABC")
+        ))
+    }
+
+    @Test
+    fun whenSplitExists_handle_shouldSendItAsImmutable() {
+        val content = "feature".toByteArray()
+        val body = ByteArrayOutputStream()
+        whenever(mockBundleManager.split("applicationId", 1, "variant", "abc")).thenReturn(
+            BundleManager.Result.Apk(SplitDto("feature-master.apk", content.size.toLong(), "abc")) {
+                content.inputStream()
+            }
+        )
+        whenever(mockResponse.outputStream).thenReturn(object : ServletOutputStream() {
+            override fun isReady(): Boolean = true
+            override fun setWriteListener(writeListener: WriteListener?) = Unit
+            override fun write(b: Int) = body.write(b)
+        })
+
+        splitApkPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(body.toByteArray()).isEqualTo(content)
+        verify(mockResponse).setHeader("ETag", "\"abc\"")
+        verify(mockResponse).setHeader("Cache-Control", "public, max-age=31536000, immutable")
+        verify(mockResponse).setContentLengthLong(content.size.toLong())
+    }
+
+    @Test
+    fun whenIfNoneMatchMatches_handle_shouldRespondWith304() {
+        whenever(mockRequest.getHeader("If-None-Match")).thenReturn("\"abc\"")
+        whenever(mockBundleManager.split(any(), any(), any(), any())).thenReturn(
+            BundleManager.Result.Apk(SplitDto("feature-master.apk", 7, "abc")) { "feature".byteInputStream() }
+        )
+
+        splitApkPathHandler.handle(mockRequest, mockResponse)
+
+        verify(mockResponse).status = HttpStatus.NOT_MODIFIED_304
+        verify(mockResponse, never()).outputStream
+    }
+
+    @Test
+    fun whenIfNoneMatchListsTheEtagWeakly_handle_shouldRespondWith304() {
+        whenever(mockRequest.getHeader("If-None-Match")).thenReturn("\"abcd\", W/\"abc\"")
+        whenever(mockBundleManager.split(any(), any(), any(), any())).thenReturn(
+            BundleManager.Result.Apk(SplitDto("feature-master.apk", 7, "abc")) { "feature".byteInputStream() }
+        )
+
+        splitApkPathHandler.handle(mockRequest, mockResponse)
+
+        verify(mockResponse).status = HttpStatus.NOT_MODIFIED_304
+        verify(mockResponse, never()).outputStream
+    }
+
+    @Test
+    fun whenIfNoneMatchDoesNotListTheEtag_handle_shouldSendTheSplit() {
+        val body = ByteArrayOutputStream()
+        whenever(mockRequest.getHeader("If-None-Match")).thenReturn("\"abcd\", \"\"abc\"\"")
+        whenever(mockBundleManager.split(any(), any(), any(), any())).thenReturn(
+            BundleManager.Result.Apk(SplitDto("feature-master.apk", 7, "abc")) { "feature".byteInputStream() }
+        )
+        whenever(mockResponse.outputStream).thenReturn(object : ServletOutputStream() {
+            override fun isReady(): Boolean = true
+            override fun setWriteListener(writeListener: WriteListener?) = Unit
+            override fun write(b: Int) = body.write(b)
+        })
+
+        splitApkPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(body.toString()).isEqualTo("feature")
+        verify(mockResponse, never()).status = HttpStatus.NOT_MODIFIED_304
+    }
+
+    @Test
+    fun whenSplitDoesNotExist_handle_shouldThrowWith404() {
+        whenever(mockBundleManager.split(any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Error.SplitNotFound("abc"))
+
+        val thrown = assertThrows<HttpException> { splitApkPathHandler.handle(mockRequest, mockResponse) }
+
+        assertThat(thrown.code).isEqualTo(HttpStatus.NOT_FOUND_404)
+    }
+}
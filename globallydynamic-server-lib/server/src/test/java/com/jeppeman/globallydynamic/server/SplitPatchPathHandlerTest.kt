@@ -0,0 +1,99 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import com.jeppeman.globallydynamic.server.dto.SplitDto
+import org.eclipse.jetty.http.HttpStatus
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import org.mockito.kotlin.any
+import org.mockito.kotlin.never
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.io.ByteArrayOutputStream
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class SplitPatchPathHandlerTest {
+    @Mock
+    private lateinit var mockBundleManager: BundleManager
+    @Mock
+    private lateinit var mockLogger: Logger
+    @Mock
+    private lateinit var mockRequest: HttpServletRequest
+    @Mock
+    private lateinit var mockResponse: HttpServletResponse
+    private lateinit var splitPatchPathHandler: SplitPatchPathHandler
+
+    @BeforeEach
+    fun setUp() {
+        splitPatchPathHandler = SplitPatchPathHandler(
+            bundleManager = mockBundleManager,
+            validateSignature = false,
+            logger = mockLogger
+        )
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("2"),
+            "variant" to arrayOf("variant"),
+            "sha256" to arrayOf("DEF"),
+            "base-version" to arrayOf("1"),
+            "base-sha256" to arrayOf("abc")
+        ))
+    }
+
+    @Test
+    fun whenPatchExists_handle_shouldSendItAsImmutable() {
+        val patch = byteArrayOf(1, 2, 3)
+        val body = ByteArrayOutputStream()
+        whenever(mockBundleManager.splitPatch("applicationId", 2, "variant", "def", 1, "abc")).thenReturn(
+            BundleManager.Result.Patch(
+                split = SplitDto("feature-master.apk", 100, "def"),
+                base = SplitDto("feature-master.apk", 100, "abc"),
+                patch = patch
+            )
+        )
+        whenever(mockResponse.outputStream).thenReturn(object : ServletOutputStream() {
+            override fun isReady(): Boolean = true
+            override fun setWriteListener(writeListener: WriteListener?) = Unit
+            override fun write(b: Int) = body.write(b)
+        })
+
+        splitPatchPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(body.toByteArray()).isEqualTo(patch)
+        verify(mockResponse).setHeader("ETag", "\"abc-def\"")
+        verify(mockResponse).setHeader("Cache-Control", "public, max-age=31536000, immutable")
+    }
+
+    @Test
+    fun whenIfNoneMatchIsAWildcard_handle_shouldRespondWith304WithoutCreatingThePatch() {
+        whenever(mockRequest.getHeader("If-None-Match")).thenReturn("*")
+
+        splitPatchPathHandler.handle(mockRequest, mockResponse)
+
+        verify(mockResponse).status = HttpStatus.NOT_MODIFIED_304
+        verify(mockResponse).setHeader("ETag", "\"abc-def\"")
+        verify(mockBundleManager, never()).splitPatch(any(), any(), any(), any(), any(), any())
+    }
+
+    @Test
+    fun whenPatchIsNotSmaller_handle_shouldThrowWith404() {
+        whenever(mockBundleManager.splitPatch(any(), any(), any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Error.PatchNotSmaller("def"))
+
+        val thrown = assertThrows<HttpException> { splitPatchPathHandler.handle(mockRequest, mockResponse) }
+
+        assertThat(thrown.code).isEqualTo(HttpStatus.NOT_FOUND_404)
+    }
+}
@@ -0,0 +1,42 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import kotlin.random.Random
+
+@RunWith(JUnitPlatform::class)
+class SplitPatchTest {
+    private fun roundTrip(base: ByteArray, target: ByteArray): ByteArray =
+        SplitPatch.apply(base, SplitPatch.create(base, target).inputStream())
+
+    @Test
+    fun apply_shouldRebuildTheTarget() {
+        val base = Random(1).nextBytes(100_000)
+        val target = base.copyOfRange(0, 30_000) +
+            Random(2).nextBytes(5_000) +
+            base.copyOfRange(31_000, 100_000) +
+            Random(3).nextBytes(10)
+
+        assertThat(roundTrip(base, target)).isEqualTo(target)
+    }
+
+    @Test
+    fun apply_shouldRebuildTargetsSmallerThanABlock() {
+        assertThat(roundTrip(Random(1).nextBytes(100), Random(2).nextBytes(10))).isEqualTo(Random(2).nextBytes(10))
+        assertThat(roundTrip(ByteArray(0), ByteArray(0))).isEmpty()
+    }
+
+    @Test
+    fun create_whenTargetMostlyMatchesBase_shouldBeMuchSmallerThanTheTarget() {
+        val base = Random(1).nextBytes(1_000_000)
+        val target = Random(2).nextBytes(100) + base.copyOfRange(0, 500_000) + Random(3).nextBytes(1_000) +
+            base.copyOfRange(500_000, 1_000_000)
+
+        val patch = SplitPatch.create(base, target)
+
+        assertThat(patch.size).isLessThan(5_000)
+        assertThat(SplitPatch.apply(base, patch.inputStream())).isEqualTo(target)
+    }
+}
@@ -0,0 +1,111 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import java.io.ByteArrayOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+
+@RunWith(JUnitPlatform::class)
+class SplitsArchiveTest {
+    @TempDir
+    lateinit var tempDir: Path
+
+    private fun apks(directory: Path): List<Path> {
+        Files.createDirectories(directory)
+        return listOf(
+            Files.write(directory.resolve("feature-master.apk"), ByteArray(100_000) { index -> (index % 7).toByte() }),
+            Files.write(directory.resolve("base-sv.apk"), "base-sv".toByteArray()),
+            Files.write(directory.resolve("base-empty.apk"), ByteArray(0))
+        )
+    }
+
+    private fun SplitsArchive.toByteArray() = ByteArrayOutputStream().also(::writeTo).toByteArray()
+
+    @Test
+    fun size_shouldMatchTheNumberOfBytesWritten() {
+        val archive = SplitsArchive(apks(tempDir))
+
+        assertThat(archive.toByteArray().size.toLong()).isEqualTo(archive.size)
+    }
+
+    @Test
+    fun writeTo_shouldWriteStoredEntriesInNameOrder() {
+        val archive = SplitsArchive(apks(tempDir))
+        val entries = mutableListOf<Pair<ZipEntry, ByteArray>>()
+
+        ZipInputStream(archive.toByteArray().inputStream()).use { zipInputStream ->
+            var entry = zipInputStream.nextEntry
+            while (entry != null) {
+                entries += entry to zipInputStream.readBytes()
+                entry = zipInputStream.nextEntry
+            }
+        }
+
+        assertThat(entries.map { (entry, _) -> entry.name })
+            .containsExactly("base-empty.apk", "base-sv.apk", "feature-master.apk").inOrder()
+        assertThat(entries.map { (entry, _) -> entry.method }.distinct()).containsExactly(ZipEntry.STORED)
+        entries.forEach { (entry, content) ->
+            assertThat(content).isEqualTo(Files.readAllBytes(tempDir.resolve(entry.name)))
+        }
+    }
+
+    @Test
+    fun writeTo_shouldBeDeterministic() {
+        val first = SplitsArchive(apks(tempDir.resolve("first"))).toByteArray()
+        Thread.sleep(10)
+        val second = SplitsArchive(apks(tempDir.resolve("second")).reversed()).toByteArray()
+
+        assertThat(second).isEqualTo(first)
+    }
+
+    @Test
+    fun close_shouldInvokeOnCloseAndDeleteWorkingDirectory() {
+        val workingDirectory = tempDir.resolve("working")
+        var archiveOnClose: SplitsArchive? = null
+        val archive = SplitsArchive(
+            apks = apks(workingDirectory),
+            workingDirectory = workingDirectory,
+            onClose = { archive ->
+                assertThat(Files.exists(workingDirectory)).isTrue()
+                archiveOnClose = archive
+            }
+        )
+
+        archive.close()
+
+        assertThat(archiveOnClose).isSameAs(archive)
+        assertThat(Files.exists(workingDirectory)).isFalse()
+    }
+
+    @Test
+    fun whenRetained_close_shouldOnlyDeleteWorkingDirectoryOnceEveryHolderHasClosed() {
+        val workingDirectory = tempDir.resolve("working")
+        val archive = SplitsArchive(apks(workingDirectory), workingDirectory).retain(2)
+
+        archive.close()
+        archive.close()
+        val existsBeforeLastClose = Files.exists(workingDirectory)
+        archive.close()
+
+        assertThat(existsBeforeLastClose).isTrue()
+        assertThat(Files.exists(workingDirectory)).isFalse()
+    }
+
+    @Test
+    fun writeTo_withRange_shouldOnlyWriteTheBytesInRange() {
+        val archive = SplitsArchive(apks(tempDir))
+        val whole = archive.toByteArray()
+
+        val partial = ByteArrayOutputStream().also { outputStream ->
+            archive.writeTo(outputStream, position = 1000, count = 50_000)
+        }.toByteArray()
+
+        assertThat(partial).isEqualTo(whole.copyOfRange(1000, 51_000))
+    }
+}
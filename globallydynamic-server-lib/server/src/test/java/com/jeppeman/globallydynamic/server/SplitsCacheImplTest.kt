@@ -0,0 +1,132 @@
+package com.jeppeman.globallydynamic.server
+
+import com.android.bundle.Devices
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.jupiter.api.io.TempDir
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import java.nio.file.Files
+import java.nio.file.Path
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class SplitsCacheImplTest {
+    @Mock
+    private lateinit var mockLogger: Logger
+    @TempDir
+    lateinit var tempDir: Path
+
+    private val cacheDir get() = tempDir.resolve("cache")
+
+    private fun downloadKey(
+        feature: String,
+        applicationId: String = "applicationId",
+        version: Int = 1
+    ) = DownloadKey(
+        applicationId = applicationId,
+        version = version,
+        variant = "variant",
+        deviceSpec = Devices.DeviceSpec.getDefaultInstance(),
+        features = arrayOf(feature),
+        languages = arrayOf(),
+        includeMissing = false
+    )
+
+    private fun archive(name: String, size: Int): Path = tempDir.resolve(name).apply {
+        toFile().writeBytes(ByteArray(size))
+    }
+
+    @Test
+    fun put_shouldMakeArchiveRetrievableByKey() {
+        val splitsCache = SplitsCacheImpl(cacheDir, 100, mockLogger)
+        val key = downloadKey("feature")
+
+        val cached = splitsCache.put(key, archive("splits.zip", 10))
+
+        assertThat(cached.startsWith(cacheDir)).isTrue()
+        assertThat(splitsCache.get(key)).isEqualTo(cached)
+        assertThat(splitsCache.get(downloadKey("other"))).isNull()
+    }
+
+    @Test
+    fun whenMaxSizeIsExceeded_put_shouldEvictLeastRecentlyUsed() {
+        val splitsCache = SplitsCacheImpl(cacheDir, 25, mockLogger)
+        val first = downloadKey("first")
+        val second = downloadKey("second")
+        val third = downloadKey("third")
+
+        splitsCache.put(first, archive("first.zip", 10))
+        splitsCache.put(second, archive("second.zip", 10))
+        splitsCache.get(first)
+        splitsCache.put(third, archive("third.zip", 10))
+
+        assertThat(splitsCache.get(first)).isNotNull()
+        assertThat(splitsCache.get(second)).isNull()
+        assertThat(splitsCache.get(third)).isNotNull()
+    }
+
+    @Test
+    fun whenArchiveIsLargerThanMaxSize_put_shouldNotCacheIt() {
+        val splitsCache = SplitsCacheImpl(cacheDir, 5, mockLogger)
+        val key = downloadKey("feature")
+        val splits = archive("splits.zip", 10)
+
+        val result = splitsCache.put(key, splits)
+
+        assertThat(result).isEqualTo(splits)
+        assertThat(splitsCache.get(key)).isNull()
+    }
+
+    @Test
+    fun invalidate_shouldOnlyRemoveArchivesOfTheGivenBundle() {
+        val splitsCache = SplitsCacheImpl(cacheDir, 100, mockLogger)
+        val invalidated = downloadKey("feature", version = 1)
+        val kept = downloadKey("feature", version = 2)
+        val invalidatedPath = splitsCache.put(invalidated, archive("first.zip", 10))
+        splitsCache.put(kept, archive("second.zip", 10))
+        splitsCache.release(invalidatedPath)
+
+        splitsCache.invalidate("applicationId", 1, "variant")
+
+        assertThat(splitsCache.get(invalidated)).isNull()
+        assertThat(Files.exists(invalidatedPath)).isFalse()
+        assertThat(splitsCache.get(kept)).isNotNull()
+    }
+
+    @Test
+    fun whenArchiveIsPinned_evictAndInvalidate_shouldDeleteItOnlyOnceReleased() {
+        val splitsCache = SplitsCacheImpl(cacheDir, 15, mockLogger)
+        val evicted = downloadKey("evicted")
+        val invalidated = downloadKey("invalidated")
+        val evictedPath = splitsCache.put(evicted, archive("first.zip", 10))
+        val reader = splitsCache.get(evicted)
+        splitsCache.release(evictedPath)
+
+        val invalidatedPath = splitsCache.put(invalidated, archive("second.zip", 10))
+        splitsCache.invalidate("applicationId", 1, "variant")
+
+        assertThat(splitsCache.get(evicted)).isNull()
+        assertThat(Files.exists(evictedPath)).isTrue()
+        assertThat(Files.exists(invalidatedPath)).isTrue()
+
+        splitsCache.release(reader!!)
+        splitsCache.release(invalidatedPath)
+
+        assertThat(Files.exists(evictedPath)).isFalse()
+        assertThat(Files.exists(invalidatedPath)).isFalse()
+    }
+
+    @Test
+    fun whenCacheDirectoryIsPopulated_init_shouldRestoreEntries() {
+        val key = downloadKey("feature")
+        val cached = SplitsCacheImpl(cacheDir, 100, mockLogger).put(key, archive("splits.zip", 10))
+
+        val restoredSplitsCache = SplitsCacheImpl(cacheDir, 100, mockLogger)
+
+        assertThat(restoredSplitsCache.get(key)).isEqualTo(cached)
+    }
+}
@@ -0,0 +1,105 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.Gson
+import com.jeppeman.globallydynamic.server.dto.SplitDto
+import com.jeppeman.globallydynamic.server.dto.SplitsManifestDto
+import org.eclipse.jetty.http.HttpStatus
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import org.mockito.kotlin.any
+import org.mockito.kotlin.whenever
+import java.io.PrintWriter
+import java.io.StringWriter
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class SplitsManifestPathHandlerTest {
+    @Mock
+    private lateinit var mockBundleManager: BundleManager
+    @Mock
+    private lateinit var mockLogger: Logger
+    @Mock
+    private lateinit var mockRequest: HttpServletRequest
+    @Mock
+    private lateinit var mockResponse: HttpServletResponse
+    private lateinit var splitsManifestPathHandler: SplitsManifestPathHandler
+
+    @BeforeEach
+    fun setUp() {
+        splitsManifestPathHandler = SplitsManifestPathHandler(
+            bundleManager = mockBundleManager,
+            validateSignature = false,
+            logger = mockLogger,
+            gson = Gson()
+        )
+    }
+
+    private fun mockCompleteRequest() {
+        val deviceSpec = """{
+                "supportedAbis": ["x86"],
+                "supportedLocales": ["en"],
+                "deviceFeatures": ["android.hardware.camera"],
+                "glExtensions": ["GL_IMAGE"],
+                "screenDensity": 420,
+                "sdkVersion": 23
+            }
+        """.trimMargin()
+        whenever(mockRequest.inputStream).thenReturn(FakeInputStream(deviceSpec))
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("1"),
+            "variant" to arrayOf("variant"),
+            "features" to arrayOf("feature")
+        ))
+    }
+
+    @Test
+    fun whenFeaturesAndLanguagesAreMissing_handle_shouldThrowWith400() {
+        whenever(mockRequest.inputStream).thenReturn(FakeInputStream("{}"))
+        whenever(mockRequest.parameterMap).thenReturn(mapOf(
+            "application-id" to arrayOf("applicationId"),
+            "signature" to arrayOf("signature"),
+            "version" to arrayOf("1"),
+            "variant" to arrayOf("variant")
+        ))
+
+        val thrown = assertThrows<HttpException> { splitsManifestPathHandler.handle(mockRequest, mockResponse) }
+
+        assertThat(thrown.code).isEqualTo(HttpStatus.BAD_REQUEST_400)
+    }
+
+    @Test
+    fun whenBundleDoesNotExist_handle_shouldThrowWith400() {
+        mockCompleteRequest()
+        whenever(mockBundleManager.splitsManifest(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Error.BundleNotFound("bundle"))
+
+        val thrown = assertThrows<HttpException> { splitsManifestPathHandler.handle(mockRequest, mockResponse) }
+
+        assertThat(thrown.code).isEqualTo(HttpStatus.BAD_REQUEST_400)
+    }
+
+    @Test
+    fun handle_shouldWriteManifestAsJson() {
+        val manifest = SplitsManifestDto(listOf(SplitDto("feature-master.apk", 100, "abc")))
+        val body = StringWriter()
+        mockCompleteRequest()
+        whenever(mockBundleManager.splitsManifest(any(), any(), any(), any(), any(), any(), any()))
+            .thenReturn(BundleManager.Result.Manifest(manifest))
+        whenever(mockResponse.writer).thenReturn(PrintWriter(body))
+
+        splitsManifestPathHandler.handle(mockRequest, mockResponse)
+
+        assertThat(Gson().fromJson(body.toString(), SplitsManifestDto::class.java)).isEqualTo(manifest)
+    }
+}
@@ -1,8 +1,12 @@
 package com.jeppeman.globallydynamic.server
 
 import com.google.common.truth.Truth.assertThat
+import com.google.gson.Gson
 import com.jeppeman.globallydynamic.server.*
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argThat
 import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.eq
 import org.mockito.kotlin.mock
 import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
@@ -17,6 +21,9 @@ import org.mockito.Mock
 import org.mockito.junit.jupiter.MockitoExtension
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
+import java.io.InputStream
+import java.io.PrintWriter
+import java.io.StringWriter
 import javax.servlet.http.Part
 
 @RunWith(JUnitPlatform::class)
@@ -35,8 +42,9 @@ class UploadBundlePathHandlerTest {
     @BeforeEach
     fun setUp() {
         uploadBundlePathHandler = UploadBundlePathHandler(
-            bundleManager = mockBundleManager,
-            logger = mockLogger
+            uploadJobs = UploadJobs(mockBundleManager, mockLogger),
+            logger = mockLogger,
+            gson = Gson()
         )
     }
 
@@ -193,9 +201,7 @@ class UploadBundlePathHandlerTest {
         assertThat(thrown.message).contains("keystore")
     }
 
-    @Test
-    fun whenRequestIsValid_handle_shouldDelegateToApkSetManager() {
-        val bundleInputStream = FakeInputStream("bundle")
+    private fun mockValidParts(bundleInputStream: FakeInputStream, keyStoreInputStream: FakeInputStream) {
         val mockBundlePart = mock<Part> {
             on { name } doReturn "bundle"
             on { inputStream } doReturn bundleInputStream
@@ -216,7 +222,6 @@ class UploadBundlePathHandlerTest {
             on { name } doReturn "signing-config"
             on { inputStream } doReturn FakeInputStream("signingConfig")
         }
-        val keyStoreInputStream = FakeInputStream("keystore")
         val mockKeystorePart = mock<Part> {
             on { name } doReturn "keystore"
             on { inputStream } doReturn keyStoreInputStream
@@ -230,16 +235,53 @@ class UploadBundlePathHandlerTest {
             mockSigningConfigPart,
             mockKeystorePart
         ))
+    }
+
+    @Test
+    fun whenRequestIsValid_handle_shouldDelegateToApkSetManager() {
+        val bundleInputStream = FakeInputStream("bundle")
+        val keyStoreInputStream = FakeInputStream("keystore")
+        mockValidParts(bundleInputStream, keyStoreInputStream)
+        whenever(mockBundleManager.storeBundle(any(), any(), any(), any(), any<InputStream>(), any(), any()))
+            .thenReturn(BundleManager.Result.Success(mock()))
 
         uploadBundlePathHandler.handle(mockRequest, mockResponse)
 
         verify(mockBundleManager).storeBundle(
-            "application-id",
-            23,
-            "variant",
-            "signingConfig",
-            bundleInputStream,
-            keyStoreInputStream
+            eq("application-id"),
+            eq(23),
+            eq("variant"),
+            eq("signingConfig"),
+            eq(bundleInputStream),
+            eq(keyStoreInputStream),
+            any()
         )
     }
-}
\ No newline at end of file
+
+    @Test
+    fun whenStoringFails_handle_shouldThrowWith400() {
+        mockValidParts(FakeInputStream("bundle"), FakeInputStream("keystore"))
+        whenever(mockBundleManager.storeBundle(any(), any(), any(), any(), any<InputStream>(), any(), any()))
+            .thenReturn(BundleManager.Result.Error.KeyAliasMissing)
+
+        val executable = { uploadBundlePathHandler.handle(mockRequest, mockResponse) }
+
+        val thrown = assertThrows<HttpException>(executable)
+        assertThat(thrown.code).isEqualTo(HttpStatus.BAD_REQUEST_400)
+    }
+
+    @Test
+    fun whenAsyncResponseIsPreferred_handle_shouldRespondWith202AndTheJob() {
+        mockValidParts(FakeInputStream("bundle"), FakeInputStream("keystore"))
+        whenever(mockRequest.getHeader("Prefer")).thenReturn("respond-async")
+        val body = StringWriter()
+        whenever(mockResponse.writer).thenReturn(PrintWriter(body))
+
+        uploadBundlePathHandler.handle(mockRequest, mockResponse)
+
+        verify(mockResponse).status = HttpStatus.ACCEPTED_202
+        verify(mockResponse).setHeader(eq("Location"), argThat { startsWith("jobs/") })
+        assertThat(body.toString()).contains("\"applicationId\":\"application-id\"")
+        assertThat(body.toString()).contains("\"version\":23")
+    }
+}
@@ -0,0 +1,110 @@
+package com.jeppeman.globallydynamic.server
+
+import com.google.common.truth.Truth.assertThat
+import org.eclipse.jetty.http.HttpStatus
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.extension.ExtendWith
+import org.junit.jupiter.api.io.TempDir
+import org.junit.platform.runner.JUnitPlatform
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.jupiter.MockitoExtension
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.whenever
+import java.io.InputStream
+import java.nio.file.Path
+import java.util.concurrent.CountDownLatch
+
+@RunWith(JUnitPlatform::class)
+@ExtendWith(MockitoExtension::class)
+class UploadJobsTest {
+    @Mock
+    private lateinit var mockBundleManager: BundleManager
+    @Mock
+    private lateinit var mockLogger: Logger
+    @TempDir
+    lateinit var tempDir: Path
+
+    private fun UploadJobs.submit(spool: Boolean = false) = submit(
+        applicationId = "applicationId",
+        version = 1,
+        variant = "variant",
+        signingConfig = "signingConfig",
+        bundleInputStream = FakeInputStream("bundle"),
+        keyStoreInputStream = FakeInputStream("keystore"),
+        spool = spool
+    )
+
+    @Test
+    fun submit_shouldReportTheStagesOfTheUpload() {
+        val uploadJobs = UploadJobs(mockBundleManager, mockLogger)
+        doAnswer { invocation ->
+            val onProgress = invocation.getArgument<(UploadJob.Stage) -> Unit>(6)
+            onProgress(UploadJob.Stage.BUILDING)
+            onProgress(UploadJob.Stage.PERSISTING)
+            BundleManager.Result.Success(tempDir)
+        }.whenever(mockBundleManager).storeBundle(any(), any(), any(), any(), any<InputStream>(), any(), any())
+
+        val job = uploadJobs.submit()
+        job.await()
+
+        val dto = job.toDto()
+        assertThat(uploadJobs[job.id]).isSameAs(job)
+        assertThat(dto.stage).isEqualTo("completed")
+        assertThat(dto.timings.keys).containsExactly("stored", "building", "persisting", "completed").inOrder()
+        assertThat(dto.error).isNull()
+    }
+
+    @Test
+    fun whenStoringFails_submit_shouldReportTheError() {
+        val uploadJobs = UploadJobs(mockBundleManager, mockLogger)
+        whenever(mockBundleManager.storeBundle(any(), any(), any(), any(), any<InputStream>(), any(), any()))
+            .thenReturn(BundleManager.Result.Error.KeyAliasMissing)
+
+        val job = uploadJobs.submit()
+        job.await()
+
+        assertThat(job.toDto().stage).isEqualTo("failed")
+        assertThat(job.toDto().error).isEqualTo(BundleManager.Result.Error.KeyAliasMissing.message)
+    }
+
+    @Test
+    fun whenSpooling_submit_shouldPassTheSpooledBundleOn() {
+        val uploadJobs = UploadJobs(mockBundleManager, mockLogger)
+        var bundle: String? = null
+        doAnswer { invocation ->
+            bundle = invocation.getArgument<Path>(4).toFile().readText()
+            BundleManager.Result.Success(tempDir)
+        }.whenever(mockBundleManager).storeBundle(any(), any(), any(), any(), any<Path>(), any(), any())
+
+        val job = uploadJobs.submit(spool = true)
+        job.await()
+
+        assertThat(bundle).isEqualTo("bundle")
+    }
+
+    @Test
+    fun whenTheQueueIsFull_submit_shouldThrowWith503() {
+        val uploadJobs = UploadJobs(mockBundleManager, mockLogger, maxConcurrentUploads = 1, maxQueuedUploads = 1)
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        doAnswer {
+            started.countDown()
+            release.await()
+            BundleManager.Result.Success(tempDir)
+        }.whenever(mockBundleManager).storeBundle(any(), any(), any(), any(), any<InputStream>(), any(), any())
+
+        try {
+            uploadJobs.submit()
+            started.await()
+            uploadJobs.submit()
+
+            val thrown = assertThrows<HttpException> { uploadJobs.submit() }
+            assertThat(thrown.code).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE_503)
+        } finally {
+            release.countDown()
+        }
+    }
+}
@@ -59,6 +59,42 @@ The following command line arguments can be given:
 | <kbd>--local-storage-path</kbd> - the path on the machine to store bundle at <br/><br/>**Note**: used in combination with <kbd>--storage-backend local</kbd> - has no effect otherwise. If a relative path is given, bundles will be stored relative to where the application was started from | **Acceptable Values:** <kbd>string</kbd> - e.g. \`/home/me/globallydynamic\`|
 | <kbd>--gcp-bucket-id</kbd> - the id of the bucket ot use in Google Cloud Storage <br/><br/>**Note**: used in combination with <kbd>--storage-backend gcp</kbd> - has no effect otherwise.<br/>**Note**: if the server is not running on GCP, you will need to set the \`GOOGLE_APPLICATION_CREDENTIALS\` environment variable in order to authenticate with GCP, see more [here](https://cloud.google.com/docs/authentication/getting-started#setting_the_environment_variable). | **Acceptable Values:** <kbd>string</kbd> - e.g. \`my-bucket-id\`|
 | <kbd>--s3-bucket-id</kbd> - the id of the bucket ot use in S3 <br/><br/>**Note**: used in combination with <kbd>--storage-backend s3</kbd> - has no effect otherwise.<br/>**Note**: if the server is not running on AWS, you will need to set the following environment variables in order to authenticate with AWS: <ul><li>\`AWS_ACCESS_KEY_ID\`</li><li>\`AWS_SECRET_KEY\`</li><li>\`AWS_REGION\`</li></ul> see more [here](https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/setup-credentials.html). | **Acceptable Values:** <kbd>string</kbd> - e.g. \`my-bucket-id\`|
+| <kbd>--s3-endpoint</kbd> - the endpoint of an S3 compatible service to use instead of AWS, e.g. a MinIO server, objects are addressed by path rather than by virtual host <br/><br/>**Note**: used in combination with <kbd>--storage-backend s3</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>string</kbd> - e.g. \`http://localhost:9000\`|
+| <kbd>--s3-part-size</kbd> - the size in megabytes of the parts that files are uploaded to S3 in, files smaller than a part are uploaded in a single request <br/><br/>**Note**: used in combination with <kbd>--storage-backend s3</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>number</kbd> between 5 and 1024 - e.g. \`16\`<br/><br/>**Default Value:** <kbd>8</kbd>|
+| <kbd>--s3-upload-parallelism</kbd> - the maximum number of parts of a file that are uploaded to S3 concurrently, failed parts are retried on their own <br/><br/>**Note**: used in combination with <kbd>--storage-backend s3</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>number</kbd> - e.g. \`8\`<br/><br/>**Default Value:** <kbd>4</kbd>|
+| <kbd>--gcp-storage-host</kbd> - the host of a Cloud Storage emulator to use instead of Google Cloud Storage, e.g. fake-gcs-server, requests are sent without credentials <br/><br/>**Note**: used in combination with <kbd>--storage-backend gcp</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>string</kbd> - e.g. \`http://localhost:4443\`|
+| <kbd>--gcp-chunk-size</kbd> - the size in megabytes of the chunks that files are uploaded to Google Cloud Storage in, uploads are resumable sessions and a failed chunk is resent from where the session left off <br/><br/>**Note**: used in combination with <kbd>--storage-backend gcp</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>number</kbd> between 1 and 1024 - e.g. \`32\`<br/><br/>**Default Value:** <kbd>16</kbd>|
+| <kbd>--storage-cache-max-size</kbd> - the maximum total size in megabytes of files from the storage backend to cache on local disk, files are validated against the storage backend on every read and least recently used files are evicted first <br/><br/>**Note**: used in combination with <kbd>--storage-backend gcp</kbd> or <kbd>--storage-backend s3</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>number</kbd> - e.g. \`4096\`<br/><br/>**Default Value:** <kbd>0</kbd> (disabled)|
+| <kbd>--storage-cache-path</kbd> - the directory to cache files from the storage backend in <br/><br/>**Note**: used in combination with <kbd>--storage-cache-max-size</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>string</kbd> - e.g. \`/var/cache/globallydynamic/storage\`<br/><br/>**Default Value:** <kbd>$TMPDIR/globallydynamic/storage-cache</kbd>|
+| <kbd>--content-addressed-storage</kbd> - whether to store the split APK:s of uploaded bundles once by their SHA-256 digest, and the APK sets of bundles as small manifests that refer to them. Split APK:s that are unchanged between versions and variants are then only stored once. APK sets are reassembled on local disk when they are first used. Blobs are never deleted, and bundles that were stored before this was enabled are served as they are | **Acceptable Values:** <kbd>boolean</kbd> - e.g. \`true\`<br/><br/>**Default Value:** <kbd>false</kbd>|
+| <kbd>--splits-cache-max-size</kbd> - the maximum total size in megabytes of generated split archives to cache on disk, least recently used archives are evicted first. Archives of a bundle are invalidated when it is overwritten | **Acceptable Values:** <kbd>number</kbd> - e.g. \`2048\`<br/><br/>**Default Value:** <kbd>0</kbd> (disabled)|
+| <kbd>--splits-cache-path</kbd> - the directory to cache generated split archives in <br/><br/>**Note**: used in combination with <kbd>--splits-cache-max-size</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>string</kbd> - e.g. \`/var/cache/globallydynamic\`<br/><br/>**Default Value:** <kbd>$TMPDIR/globallydynamic/splits-cache</kbd>|
+| <kbd>--max-egress-bandwidth</kbd> - the maximum total rate in kilobytes per second at which splits are sent to clients, slow transfers do not occupy request threads while waiting | **Acceptable Values:** <kbd>number</kbd> - e.g. \`10240\`<br/><br/>**Default Value:** <kbd>0</kbd> (unlimited)|
+| <kbd>--stream-splits</kbd> - whether split archives should be written straight into responses rather than to temporary files first, which lets downloads start sooner and saves disk I/O | **Acceptable Values:** <kbd>true</kbd>, <kbd>false</kbd><br/><br/>**Default Value:** <kbd>false</kbd>|
+| <kbd>--warm-up-abis</kbd> - comma separated ABIs of device classes to generate the splits of every dynamic feature for as soon as a bundle has been uploaded, one device class is warmed up per combination of ABI, screen density and SDK version <br/><br/>**Note**: used in combination with <kbd>--splits-cache-max-size</kbd>, <kbd>--warm-up-screen-densities</kbd> and <kbd>--warm-up-sdk-versions</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>string</kbd> - e.g. \`arm64-v8a,armeabi-v7a\`<br/><br/>**Default Value:** none (disabled)|
+| <kbd>--warm-up-screen-densities</kbd> - comma separated screen densities of the device classes to warm up | **Acceptable Values:** <kbd>string</kbd> - e.g. \`320,480\`<br/><br/>**Default Value:** none|
+| <kbd>--warm-up-sdk-versions</kbd> - comma separated SDK versions of the device classes to warm up | **Acceptable Values:** <kbd>string</kbd> - e.g. \`24,30\`<br/><br/>**Default Value:** none|
+| <kbd>--warm-up-locales</kbd> - comma separated locales of the device classes to warm up | **Acceptable Values:** <kbd>string</kbd> - e.g. \`en,sv\`<br/><br/>**Default Value:** none|
+| <kbd>--max-concurrent-uploads</kbd> - the maximum number of uploaded bundles to build APK:s from at the same time, so that uploads from several CI pipelines do not starve downloads of CPU | **Acceptable Values:** <kbd>number</kbd> - e.g. \`1\`<br/><br/>**Default Value:** <kbd>2</kbd>|
+| <kbd>--max-queued-uploads</kbd> - the maximum number of uploaded bundles to keep waiting for processing, further uploads are rejected with \`503\` | **Acceptable Values:** <kbd>number</kbd> - e.g. \`32\`<br/><br/>**Default Value:** <kbd>16</kbd>|
+| <kbd>--bundletool-threads</kbd> - the number of threads that APK:s are built from uploaded bundles on, shared by all uploads that are being processed | **Acceptable Values:** <kbd>number</kbd> - e.g. \`8\`<br/><br/>**Default Value:** the number of available processors|
+| <kbd>--scratch-path</kbd> - the directory that APK:s are extracted to, bundles are built in and uploads are spooled to. Files that are no longer in use are swept from it, including those left behind by a previous run of the server | **Acceptable Values:** <kbd>string</kbd> - e.g. \`/mnt/scratch\`<br/><br/>**Default Value:** <kbd>$TMPDIR/globallydynamic/scratch</kbd>|
+| <kbd>--scratch-max-size</kbd> - the size in megabytes above which files that are no longer in use are swept from the scratch path, oldest first, before they expire, \`0\` disables the limit | **Acceptable Values:** <kbd>number</kbd> - e.g. \`4096\`<br/><br/>**Default Value:** <kbd>0</kbd>|
+| <kbd>--scratch-ttl</kbd> - the age in minutes after which files that are no longer in use are swept from the scratch path | **Acceptable Values:** <kbd>number</kbd> - e.g. \`30\`<br/><br/>**Default Value:** <kbd>60</kbd>|
+| <kbd>--log-level</kbd> - the lowest level of messages to log, \`debug\` adds request headers, request bodies and the progress of throttled downloads | **Acceptable Values:** <kbd>debug</kbd>, <kbd>info</kbd>, <kbd>error</kbd><br/><br/>**Default Value:** <kbd>info</kbd>|
+| <kbd>--log-format</kbd> - whether to log plain text lines or one JSON object per line, with the fields \`timestamp\`, \`level\`, \`thread\`, \`message\` and \`exception\` | **Acceptable Values:** <kbd>text</kbd>, <kbd>json</kbd><br/><br/>**Default Value:** <kbd>text</kbd>|
+| <kbd>--async-logging</kbd> - whether to write log messages on a background thread, so that request threads never wait for the console | **Acceptable Values:** <kbd>true</kbd>, <kbd>false</kbd><br/><br/>**Default Value:** <kbd>true</kbd>|
+| <kbd>--log-buffer-size</kbd> - the maximum number of log messages waiting to be written when logging asynchronously. While it is full, messages below the error level are dropped and the number dropped is logged <br/><br/>**Note**: used in combination with <kbd>--async-logging</kbd> - has no effect otherwise. | **Acceptable Values:** <kbd>number</kbd> - e.g. \`65536\`<br/><br/>**Default Value:** <kbd>8192</kbd>|
+| <kbd>--log-sample-rates</kbd> - comma separated \`<path>=<rate>\` pairs, the fraction of requests to each path to log debug and info messages of. Errors are always logged | **Acceptable Values:** <kbd>string</kbd> - e.g. \`download=0.1,manifest=0.01\`<br/><br/>**Default Value:** none (every request is logged)|
+| <kbd>--min-threads</kbd> - the number of threads that are kept to handle requests when idle | **Acceptable Values:** <kbd>number</kbd> - e.g. \`16\`<br/><br/>**Default Value:** <kbd>8</kbd>|
+| <kbd>--max-threads</kbd> - the maximum number of threads that handle requests, including the acceptor and selector threads. Throttled downloads do not hold on to a thread while they wait | **Acceptable Values:** <kbd>number</kbd> - e.g. \`400\`<br/><br/>**Default Value:** <kbd>200</kbd>|
+| <kbd>--max-queued-requests</kbd> - the maximum number of requests to keep waiting for a thread. Connections beyond it are closed, 0 means no limit | **Acceptable Values:** <kbd>number</kbd> - e.g. \`1000\`<br/><br/>**Default Value:** <kbd>0</kbd>|
+| <kbd>--acceptors</kbd> - the number of threads that accept connections | **Acceptable Values:** <kbd>number</kbd> - e.g. \`2\`<br/><br/>**Default Value:** <kbd>-1</kbd> (derived from the number of available processors)|
+| <kbd>--selectors</kbd> - the number of threads that select connections that have data to read or room to write | **Acceptable Values:** <kbd>number</kbd> - e.g. \`4\`<br/><br/>**Default Value:** <kbd>-1</kbd> (derived from the number of available processors)|
+| <kbd>--idle-timeout</kbd> - the time in seconds after which connections that neither read nor write are closed. Raise it for clients on slow networks that download large splits | **Acceptable Values:** <kbd>number</kbd> - e.g. \`120\`<br/><br/>**Default Value:** <kbd>30</kbd>|
+| <kbd>--output-buffer-size</kbd> - the size in kilobytes of the buffer that responses are written to before they are flushed. Responses that fit in it are sent in one write | **Acceptable Values:** <kbd>number</kbd> - e.g. \`64\`<br/><br/>**Default Value:** <kbd>32</kbd>|
+| <kbd>--http2</kbd> - whether or not to accept HTTP/2 over cleartext (h2c), both with prior knowledge and as an upgrade from HTTP/1.1. Put a TLS-terminating proxy in front of the server for HTTP/2 over TLS | **Acceptable Values:** <kbd>true</kbd> <kbd>false</kbd><br/><br/>**Default Value:** <kbd>false</kbd>|
+| <kbd>--virtual-threads</kbd> - whether or not to handle requests on virtual threads instead of a pool of <kbd>--max-threads</kbd> threads. <br/><br/>**Note**: requires JDK 21 or later | **Acceptable Values:** <kbd>true</kbd> <kbd>false</kbd><br/><br/>**Default Value:** <kbd>false</kbd>|
 
 The options can also be picked up through the following environment variables:
 \`\`\`shell script
@@ -72,6 +108,42 @@ GLOBALLY_DYNAMIC_STORAGE_BACKEND=<storage-backend>
 GLOBALLY_DYNAMIC_LOCAL_STORAGE_PATH=<local-storage-path>
 GLOBALLY_DYNAMIC_GCP_BUCKET_ID=<gcp-bucket-id>
 GLOBALLY_DYNAMIC_S3_BUCKET_ID=<s3-bucket-id>
+GLOBALLY_DYNAMIC_S3_ENDPOINT=<s3-endpoint>
+GLOBALLY_DYNAMIC_S3_PART_SIZE=<s3-part-size>
+GLOBALLY_DYNAMIC_S3_UPLOAD_PARALLELISM=<s3-upload-parallelism>
+GLOBALLY_DYNAMIC_GCP_STORAGE_HOST=<gcp-storage-host>
+GLOBALLY_DYNAMIC_GCP_CHUNK_SIZE=<gcp-chunk-size>
+GLOBALLY_DYNAMIC_STORAGE_CACHE_MAX_SIZE=<storage-cache-max-size>
+GLOBALLY_DYNAMIC_STORAGE_CACHE_PATH=<storage-cache-path>
+GLOBALLY_DYNAMIC_CONTENT_ADDRESSED_STORAGE=<content-addressed-storage>
+GLOBALLY_DYNAMIC_SPLITS_CACHE_MAX_SIZE=<splits-cache-max-size>
+GLOBALLY_DYNAMIC_SPLITS_CACHE_PATH=<splits-cache-path>
+GLOBALLY_DYNAMIC_MAX_EGRESS_BANDWIDTH=<max-egress-bandwidth>
+GLOBALLY_DYNAMIC_STREAM_SPLITS=<stream-splits>
+GLOBALLY_DYNAMIC_WARM_UP_ABIS=<warm-up-abis>
+GLOBALLY_DYNAMIC_WARM_UP_SCREEN_DENSITIES=<warm-up-screen-densities>
+GLOBALLY_DYNAMIC_WARM_UP_SDK_VERSIONS=<warm-up-sdk-versions>
+GLOBALLY_DYNAMIC_WARM_UP_LOCALES=<warm-up-locales>
+GLOBALLY_DYNAMIC_MAX_CONCURRENT_UPLOADS=<max-concurrent-uploads>
+GLOBALLY_DYNAMIC_MAX_QUEUED_UPLOADS=<max-queued-uploads>
+GLOBALLY_DYNAMIC_BUNDLETOOL_THREADS=<bundletool-threads>
+GLOBALLY_DYNAMIC_SCRATCH_PATH=<scratch-path>
+GLOBALLY_DYNAMIC_SCRATCH_MAX_SIZE=<scratch-max-size>
+GLOBALLY_DYNAMIC_SCRATCH_TTL=<scratch-ttl>
+GLOBALLY_DYNAMIC_LOG_LEVEL=<log-level>
+GLOBALLY_DYNAMIC_LOG_FORMAT=<log-format>
+GLOBALLY_DYNAMIC_ASYNC_LOGGING=<async-logging>
+GLOBALLY_DYNAMIC_LOG_BUFFER_SIZE=<log-buffer-size>
+GLOBALLY_DYNAMIC_LOG_SAMPLE_RATES=<log-sample-rates>
+GLOBALLY_DYNAMIC_MIN_THREADS=<min-threads>
+GLOBALLY_DYNAMIC_MAX_THREADS=<max-threads>
+GLOBALLY_DYNAMIC_MAX_QUEUED_REQUESTS=<max-queued-requests>
+GLOBALLY_DYNAMIC_ACCEPTORS=<acceptors>
+GLOBALLY_DYNAMIC_SELECTORS=<selectors>
+GLOBALLY_DYNAMIC_IDLE_TIMEOUT=<idle-timeout>
+GLOBALLY_DYNAMIC_OUTPUT_BUFFER_SIZE=<output-buffer-size>
+GLOBALLY_DYNAMIC_HTTP2=<http2>
+GLOBALLY_DYNAMIC_VIRTUAL_THREADS=<virtual-threads>
 \`\`\`
 The command line arguments take precedence over environment variables.<br/><br/>
 **Example**
@@ -179,6 +251,24 @@ The request needs to have the header \`Content-Type: multipart/form-data\` set,
 | <kbd>keystore</kbd> - the keystore to sign APK:s in the bundle with | **Acceptable Values:** <kbd>application/octet-stream</kbd> - the byte stream of the keystore to sign APK:s in the bundle with, e.g. the debug.keystore |
 | <kbd>signing-config</kbd> - the signing config for the keystore to sign APK:s in the bundle with | **Acceptable Values:** <kbd>application/json</kbd> - needs to have the following structure: <br/><br/> \`{ "storePassword": "my-secret-store-password", "keyAlias": "my-key-alias", "keyPassword": "my-secret-key-password"}\`|
 
+By default the response is sent once APK:s have been built from the bundle and stored, which can take minutes for large bundles.
+If the header \`Prefer: respond-async\` is set, the server instead responds with \`202 Accepted\` as soon as the bundle has been received, with a \`Location\` header pointing to the job that processes it, e.g. \`jobs/3f0c…\`.
+GET \`/jobs/<id>\` to follow its progress:
+
+\`\`\`json
+{
+  "id": "3f0c…",
+  "applicationId": "com.example.globallydynamic",
+  "version": 24,
+  "variant": "debug",
+  "stage": "building",
+  "timings": { "stored": 0, "building": 1520 }
+}
+\`\`\`
+
+The stage is one of \`stored\`, \`building\`, \`persisting\`, \`completed\`, \`warmed\` (splits have been warmed up, see <kbd>--warm-up-abis</kbd>) or \`failed\`, in which case \`error\` describes why.
+Timings are given in milliseconds since the bundle was received. At most <kbd>--max-concurrent-uploads</kbd> bundles are processed at the same time, and uploads beyond <kbd>--max-queued-uploads</kbd> waiting ones are rejected with \`503\`.
+
 ### Downloading split APK:s (\`/download\`)
 Downloading of split APK:s that have been previously uploaded to the server is done automatically by the [android library](./android) - but in case you need to do it manually, POST to the 
 \`/download\` endpoint with an \`application/json; charset=utf8\` body containing the device specification of the device you want to download for, e.g.
@@ -208,6 +298,53 @@ Certain query parameters listed below are also needed:
 
 **Example**:<br/>
 \`/download?variant=debug&version=1&application-id=com.example.globallydynamic&throttle=1000&languages=ko,features=myfeature\`
+
+### Listing split APK:s (\`/splits-manifest\`)
+POST to the \`/splits-manifest\` endpoint with the same body and query parameters as \`/download\` (except <kbd>throttle</kbd>) to list the split APK:s that 
+a download would contain, without downloading them. The response is an \`application/json\` body with the name, size in bytes and SHA-256 digest of each split APK, e.g.
+
+\`\`\`json
+{
+  "splits": [
+    { "name": "myfeature-master.apk", "size": 24576, "sha256": "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08" }
+  ]
+}
+\`\`\`
+
+### Downloading a single split APK (\`/split-apk\`)
+GET the \`/split-apk\` endpoint to download one of the split APK:s listed by \`/splits-manifest\` by its SHA-256 digest. Since the content behind a digest never changes, 
+the response is marked as immutable and may be cached indefinitely. The query parameters <kbd>application-id</kbd>, <kbd>version</kbd>, <kbd>variant</kbd> and <kbd>signature</kbd> 
+are the same as for \`/download\`, in addition to:
+
+| Name | Required | Values | 
+| :--------- | :--------- | :--------- | 
+| <kbd>sha256</kbd> - the SHA-256 digest of the split APK to download, as listed by \`/splits-manifest\` | Yes | **Acceptable Values:** <kbd>string</kbd> - e.g. \`9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08\` |
+
+### Downloading a patch for a split APK (\`/split-patch\`)
+GET the \`/split-patch\` endpoint to download a binary patch that rebuilds a split APK from the same split APK of a previous version, which is typically 
+much smaller than the split APK itself. Patches are computed on the first request and kept in memory, and are marked as immutable just like \`/split-apk\`. 
+If there is no such split APK in the previous version, or if the patch would not be smaller than the split APK, the server responds with a 404 and the 
+split APK should be downloaded from \`/split-apk\` instead. The selfhosted library does this by itself for split APK:s that are present for a previously installed version. 
+The query parameters are the same as for \`/split-apk\`, in addition to:
+
+| Name | Required | Values | 
+| :--------- | :--------- | :--------- | 
+| <kbd>base-version</kbd> - the version that the patch should be applied to | Yes | **Acceptable Values:** <kbd>integer</kbd> - e.g. \`1\` |
+| <kbd>base-sha256</kbd> - the SHA-256 digest of the split APK of <kbd>base-version</kbd> that the patch should be applied to | Yes | **Acceptable Values:** <kbd>string</kbd> - e.g. \`9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08\` |
+
+### Metrics (\`/metrics\`)
+GET the \`/metrics\` endpoint to scrape the metrics of the server in the Prometheus text format, which include:
+
+| Name | Description |
+| :--------- | :--------- |
+| \`globallydynamic_stage_duration_seconds\` | A histogram of the time spent in each stage of storing and serving bundles, labeled by \`stage\`: \`storage_retrieve\`, \`storage_store\`, \`storage_stat\`, \`table_of_contents\`, \`extract\`, \`zip\`, \`transfer\`, \`build_apks\` and \`validate_signature\` |
+| \`globallydynamic_request_duration_seconds\` | A histogram of the time spent handling requests, labeled by \`handler\` |
+| \`globallydynamic_requests_total\` | The number of handled requests, labeled by \`handler\` and \`status\` |
+| \`globallydynamic_requests_in_flight\` | The number of requests that are being handled, labeled by \`handler\` |
+| \`globallydynamic_bytes_sent_total\` | The number of bytes of splits, split APK:s and patches sent, labeled by \`handler\` |
+| \`globallydynamic_cache_lookups_total\` | The number of cache lookups, labeled by \`cache\` and \`result\` (\`hit\` or \`miss\`) |
+
+Histogram buckets are spaced at half powers of two, from about 0.2 milliseconds up to about two minutes.
 `;
 
 const Server = () => {